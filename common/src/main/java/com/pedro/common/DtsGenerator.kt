@@ -0,0 +1,82 @@
+/*
+ * Copyright (C) 2024 pedroSG94.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.pedro.common
+
+import java.util.PriorityQueue
+
+/**
+ * Calculate decode timestamps of video frames produced by an encoder. Frames are received in decode
+ * order and with B-frames the presentation timestamps are reordered. The decode timestamp of a frame
+ * is the lowest presentation timestamp pending after wait reorderDepth frames, so it is monotonic
+ * and never bigger than the presentation timestamp.
+ *
+ * Without B-frames the decode timestamp is the presentation timestamp. The reorder depth is
+ * increased when a frame is presented before frames already received, only frames received while
+ * the depth is adapted can have a decode timestamp bigger than the presentation timestamp.
+ *
+ * @param initialReorderDepth max number of frames that can be decoded before the frame presented.
+ * Use the max number of consecutive B-frames if it is known to avoid adapt it.
+ */
+class DtsGenerator(private val initialReorderDepth: Int = 0) {
+
+  private val pending = PriorityQueue<Long>()
+  private val history = ArrayDeque<Long>(MAX_REORDER_DEPTH)
+  private var lastDts = NO_TIMESTAMP
+  var reorderDepth = initialReorderDepth
+    private set
+
+  companion object {
+    private const val NO_TIMESTAMP = Long.MIN_VALUE
+    //max reference frames in H264 and H265
+    const val MAX_REORDER_DEPTH = 16
+  }
+
+  init {
+    if (initialReorderDepth < 0 || initialReorderDepth > MAX_REORDER_DEPTH) {
+      throw IllegalArgumentException("reorder depth must be in range 0 to $MAX_REORDER_DEPTH")
+    }
+  }
+
+  /**
+   * @param pts presentation timestamp of the frame. Frames must be provided in decode order.
+   * @return decode timestamp in the same unit than pts
+   */
+  fun getDts(pts: Long): Long {
+    //frames decoded before and presented after this frame
+    val reordered = history.count { it > pts }
+    if (reordered > reorderDepth) reorderDepth = minOf(reordered, MAX_REORDER_DEPTH)
+    history.addLast(pts)
+    if (history.size > MAX_REORDER_DEPTH) history.removeFirst()
+    pending.add(pts)
+    val dts = when {
+      pending.size > reorderDepth -> pending.poll()!!
+      //waiting frames to know the order, it is the first frame or the depth was increased
+      lastDts == NO_TIMESTAMP -> pts
+      else -> lastDts
+    }
+    lastDts = if (lastDts == NO_TIMESTAMP) dts else maxOf(dts, lastDts)
+    return lastDts
+  }
+
+  fun reset() {
+    pending.clear()
+    history.clear()
+    lastDts = NO_TIMESTAMP
+    reorderDepth = initialReorderDepth
+  }
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright (C) 2024 pedroSG94.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.pedro.common
+
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.locks.ReentrantLock
+import kotlin.concurrent.withLock
+
+/**
+ * Blocking queue that save the media timestamp of each item. The queue is full when the capacity
+ * in items is reached or, if maxDurationMs is set, when the media buffered reach that duration.
+ */
+class TimedBlockingQueue<T>(capacity: Int) {
+
+  private class Item<T>(val value: T, val timestampUs: Long)
+
+  private val lock = ReentrantLock()
+  private val notEmpty = lock.newCondition()
+  private val items = ArrayDeque<Item<T>>()
+  private var newestTimestampUs = 0L
+  var capacity = capacity
+    private set
+  /**
+   * Max media duration buffered in milliseconds. 0 to only use capacity
+   */
+  @Volatile
+  var maxDurationMs = 0L
+    set(value) {
+      if (value < 0) throw IllegalArgumentException("duration must be 0 or greater")
+      field = value
+    }
+
+  /**
+   * @param timestampUs media timestamp of the item in microseconds
+   * @return false if the queue is full and the item was not added
+   */
+  fun offer(item: T, timestampUs: Long): Boolean = lock.withLock {
+    if (items.size >= capacity) return false
+    val maxDurationMs = maxDurationMs
+    if (maxDurationMs > 0 && items.isNotEmpty()) {
+      val delayUs = maxOf(newestTimestampUs, timestampUs) - items.first().timestampUs
+      if (delayUs >= maxDurationMs * 1000) return false
+    }
+    if (items.isEmpty() || timestampUs > newestTimestampUs) newestTimestampUs = timestampUs
+    items.addLast(Item(item, timestampUs))
+    notEmpty.signal()
+    true
+  }
+
+  fun poll(timeout: Long, unit: TimeUnit): T? = lock.withLock {
+    var nanos = unit.toNanos(timeout)
+    while (items.isEmpty()) {
+      if (nanos <= 0) return null
+      nanos = notEmpty.awaitNanos(nanos)
+    }
+    items.removeFirst().value
+  }
+
+  /**
+   * @param onRemove called with each item removed, out of the lock, to release the resources of
+   * the items
+   */
+  fun clear(onRemove: ((T) -> Unit)? = null) {
+    val removed = lock.withLock {
+      val removed = if (onRemove != null) items.map { it.value } else emptyList()
+      items.clear()
+      removed
+    }
+    onRemove?.let { removed.forEach(it) }
+  }
+
+  @Throws(IllegalArgumentException::class)
+  fun resize(capacity: Int) = lock.withLock {
+    if (capacity < items.size) throw IllegalArgumentException("Can't fit current cache inside new cache size")
+    this.capacity = capacity
+  }
+
+  val size: Int
+    get() = lock.withLock { items.size }
+
+  fun remainingCapacity(): Int = lock.withLock { capacity - items.size }
+
+  /**
+   * @return media duration buffered in milliseconds, from the oldest item to the newest
+   */
+  fun getDelayMs(): Long = lock.withLock { getDelayUs() / 1000 }
+
+  /**
+   * @return the higher usage of the queue in percent, by items or by duration if maxDurationMs is set
+   */
+  fun getUsage(): Float = lock.withLock {
+    val itemsUsage = items.size * 100f / capacity
+    val maxDurationMs = maxDurationMs
+    if (maxDurationMs <= 0) return itemsUsage
+    maxOf(itemsUsage, getDelayUs() / 1000f * 100f / maxDurationMs)
+  }
+
+  private fun getDelayUs(): Long {
+    return if (items.isEmpty()) 0 else (newestTimestampUs - items.first().timestampUs).coerceAtLeast(0)
+  }
+}
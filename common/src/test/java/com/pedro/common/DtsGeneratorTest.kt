@@ -0,0 +1,72 @@
+/*
+ * Copyright (C) 2024 pedroSG94.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.pedro.common
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Test
+
+class DtsGeneratorTest {
+
+  //IPBB GOP in decode order, presentation index of each frame
+  private val decodeOrder = listOf(0, 3, 1, 2, 6, 4, 5, 9, 7, 8, 12, 10, 11)
+  private val frameDuration = 33_333L
+
+  @Test
+  fun `GIVEN frames without reorder WHEN get dts THEN dts is pts`() {
+    val dtsGenerator = DtsGenerator()
+    for (i in 0 until 30) {
+      val pts = i * frameDuration
+      assertEquals(pts, dtsGenerator.getDts(pts))
+    }
+    assertEquals(0, dtsGenerator.reorderDepth)
+  }
+
+  @Test
+  fun `GIVEN IPBB frames and known depth WHEN get dts THEN dts is monotonic and never bigger than pts`() {
+    val dtsGenerator = DtsGenerator(2)
+    var lastDts = Long.MIN_VALUE
+    decodeOrder.forEach {
+      val pts = it * frameDuration
+      val dts = dtsGenerator.getDts(pts)
+      assertTrue(dts >= lastDts)
+      assertTrue(dts <= pts)
+      lastDts = dts
+    }
+    assertEquals(2, dtsGenerator.reorderDepth)
+  }
+
+  @Test
+  fun `GIVEN IPBB frames WHEN get dts THEN adapt reorder depth`() {
+    val dtsGenerator = DtsGenerator()
+    var lastDts = Long.MIN_VALUE
+    decodeOrder.forEachIndexed { index, it ->
+      val pts = it * frameDuration
+      val dts = dtsGenerator.getDts(pts)
+      assertTrue(dts >= lastDts)
+      //only frames of the first GOP are used to detect the reorder
+      if (index >= 4) assertTrue(dts <= pts)
+      lastDts = dts
+    }
+    assertEquals(1, dtsGenerator.reorderDepth)
+
+    dtsGenerator.reset()
+    assertEquals(0, dtsGenerator.reorderDepth)
+    assertEquals(frameDuration, dtsGenerator.getDts(frameDuration))
+  }
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright (C) 2024 pedroSG94.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.pedro.common
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertNull
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import java.util.concurrent.TimeUnit
+
+class TimedBlockingQueueTest {
+
+  @Test
+  fun `GIVEN a queue without max duration WHEN offer more items than capacity THEN discard items`() {
+    val queue = TimedBlockingQueue<Int>(3)
+    repeat(3) { assertTrue(queue.offer(it, it * 1_000_000L)) }
+    assertFalse(queue.offer(3, 3_000_000))
+    assertEquals(3, queue.size)
+    assertEquals(2000, queue.getDelayMs())
+  }
+
+  @Test
+  fun `GIVEN a queue with max duration WHEN offer frames THEN limit the queue by media duration`() {
+    val queue = TimedBlockingQueue<Int>(200)
+    queue.maxDurationMs = 500
+    //30 fps
+    var added = 0
+    for (i in 0 until 60) {
+      if (queue.offer(i, i * 33_333L)) added++
+    }
+    assertEquals(16, added)
+    assertTrue(queue.getDelayMs() < 500)
+    assertEquals(0, queue.poll(0, TimeUnit.SECONDS))
+    assertTrue(queue.offer(60, 16 * 33_333L))
+  }
+
+  @Test
+  fun `GIVEN a queue with max duration WHEN check usage THEN use the higher of items and duration`() {
+    val queue = TimedBlockingQueue<Int>(100)
+    queue.maxDurationMs = 1000
+    queue.offer(0, 0)
+    queue.offer(1, 500_000)
+    assertEquals(50f, queue.getUsage(), 0.01f)
+    queue.maxDurationMs = 0
+    assertEquals(2f, queue.getUsage(), 0.01f)
+  }
+
+  @Test
+  fun `GIVEN audio and video with unordered timestamps WHEN get delay THEN use the newest timestamp`() {
+    val queue = TimedBlockingQueue<Int>(10)
+    queue.offer(0, 100_000)
+    queue.offer(1, 180_000)
+    queue.offer(2, 150_000)
+    assertEquals(80, queue.getDelayMs())
+    queue.clear()
+    assertEquals(0, queue.getDelayMs())
+    assertNull(queue.poll(0, TimeUnit.SECONDS))
+  }
+
+  @Test
+  fun `GIVEN a queue with items WHEN clear with callback THEN each item is removed and notified`() {
+    val queue = TimedBlockingQueue<Int>(10)
+    repeat(3) { queue.offer(it, it * 1_000L) }
+    val removed = mutableListOf<Int>()
+    queue.clear { removed.add(it) }
+    assertEquals(listOf(0, 1, 2), removed)
+    assertEquals(0, queue.size)
+    assertNull(queue.poll(0, TimeUnit.SECONDS))
+  }
+}
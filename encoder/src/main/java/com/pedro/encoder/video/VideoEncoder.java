@@ -70,6 +70,7 @@ public class VideoEncoder extends BaseEncoder implements GetCameraData {
   private FormatVideoEncoder formatVideoEncoder = FormatVideoEncoder.YUV420Dynamical;
   private int profile = -1;
   private int level = -1;
+  private int maxBFrames = 0;
 
   public VideoEncoder(GetVideoData getVideoData) {
     this.getVideoData = getVideoData;
@@ -156,6 +157,13 @@ public class VideoEncoder extends BaseEncoder implements GetCameraData {
         // MediaFormat.KEY_LEVEL, API > 23
         videoFormat.setInteger("level", this.level);
       }
+      if (maxBFrames > 0) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+          videoFormat.setInteger(MediaFormat.KEY_MAX_B_FRAMES, maxBFrames);
+        } else {
+          Log.i(TAG, "B-frames config not supported, using encoder default");
+        }
+      }
       setCallback();
       codec.configure(videoFormat, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
       running = false;
@@ -298,6 +306,22 @@ public class VideoEncoder extends BaseEncoder implements GetCameraData {
     fpsLimiter.setFPS(fps);
   }
 
+  /**
+   * Allow the encoder to produce B-frames. Frames are received in decode order and timestamps
+   * are presentation timestamps. Must be called before prepareVideoEncoder.
+   * Only supported on Android 10+.
+   *
+   * @param maxBFrames max number of consecutive B-frames. 0 to use the encoder default (normally disabled)
+   */
+  public void setMaxBFrames(int maxBFrames) {
+    if (maxBFrames < 0) throw new IllegalArgumentException("maxBFrames must be 0 or greater");
+    this.maxBFrames = maxBFrames;
+  }
+
+  public int getMaxBFrames() {
+    return maxBFrames;
+  }
+
   @Override
   public void inputYUVData(Frame frame) {
     if (running && !queue.offer(frame)) {
@@ -507,7 +531,8 @@ public class VideoEncoder extends BaseEncoder implements GetCameraData {
       forceKey = false;
       requestKeyframe();
     }
-    fixTimeStamp(bufferInfo);
+    //with B-frames the encoder output is in decode order and pts is not monotonic
+    if (maxBFrames <= 0) fixTimeStamp(bufferInfo);
     if (!spsPpsSetted && type.equals(CodecUtil.H264_MIME)) {
       Log.i(TAG, "formatChanged not called, doing manual sps/pps extraction...");
       Pair<ByteBuffer, ByteBuffer> buffers = decodeSpsPpsFromBuffer(byteBuffer.duplicate(), bufferInfo.size);
@@ -545,7 +570,12 @@ public class VideoEncoder extends BaseEncoder implements GetCameraData {
       }
     }
     if (formatVideoEncoder == FormatVideoEncoder.SURFACE) {
-      bufferInfo.presentationTimeUs = System.nanoTime() / 1000 - presentTimeUs;
+      if (maxBFrames > 0) {
+        //keep encoder order, surface timestamps use the same clock than presentTimeUs
+        bufferInfo.presentationTimeUs = Math.max(0, bufferInfo.presentationTimeUs - presentTimeUs);
+      } else {
+        bufferInfo.presentationTimeUs = System.nanoTime() / 1000 - presentTimeUs;
+      }
     }
   }
 
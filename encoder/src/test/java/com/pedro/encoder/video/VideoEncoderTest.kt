@@ -0,0 +1,74 @@
+/*
+ * Copyright (C) 2024 pedroSG94.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.pedro.encoder.video
+
+import android.media.MediaCodec
+import android.media.MediaFormat
+import com.pedro.common.DtsGenerator
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import java.nio.ByteBuffer
+
+class VideoEncoderTest {
+
+  private val getVideoData = object: GetVideoData {
+    override fun onVideoInfo(sps: ByteBuffer, pps: ByteBuffer?, vps: ByteBuffer?) {}
+    override fun getVideoData(videoBuffer: ByteBuffer, info: MediaCodec.BufferInfo) {}
+    override fun onVideoFormat(mediaFormat: MediaFormat) {}
+  }
+  //I0 P3 B1 B2 P6 B4 B5 in decode order
+  private val decodeOrderPts = longArrayOf(0, 100_000, 33_333, 66_666, 200_000, 133_333, 166_666)
+
+  private fun createEncoder(maxBFrames: Int): VideoEncoder {
+    return VideoEncoder(getVideoData).apply {
+      //avoid manual config extraction, only timestamps are checked
+      type = "video/x-vnd.on2.vp9"
+      setMaxBFrames(maxBFrames)
+    }
+  }
+
+  private fun checkBuffer(encoder: VideoEncoder, pts: Long): Long {
+    val info = MediaCodec.BufferInfo()
+    info.presentationTimeUs = pts
+    encoder.checkBuffer(ByteBuffer.allocate(0), info)
+    return info.presentationTimeUs
+  }
+
+  @Test
+  fun `GIVEN B-frames enabled WHEN check buffers in decode order THEN pts is not modified and bigger than dts in reordered frames`() {
+    val maxBFrames = 2
+    val encoder = createEncoder(maxBFrames)
+    val dtsGenerator = DtsGenerator(maxBFrames)
+    decodeOrderPts.forEachIndexed { index, pts ->
+      val result = checkBuffer(encoder, pts)
+      assertEquals(pts, result)
+      val dts = dtsGenerator.getDts(result)
+      assertTrue(result >= dts)
+      //P-frames are decoded before the B-frames presented before them
+      if (index == 1 || index == 4) assertTrue(result - dts > 0)
+    }
+  }
+
+  @Test
+  fun `GIVEN B-frames disabled WHEN check buffer with pts lower than previous THEN pts is fixed`() {
+    val encoder = createEncoder(0)
+    assertEquals(100_000L, checkBuffer(encoder, 100_000))
+    assertEquals(100_000L, checkBuffer(encoder, 33_333))
+    assertEquals(200_000L, checkBuffer(encoder, 200_000))
+  }
+}
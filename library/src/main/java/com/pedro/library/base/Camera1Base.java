@@ -378,6 +378,16 @@ public abstract class Camera1Base {
     audioEncoder.forceCodecType(codecTypeAudio);
   }
 
+  /**
+   * Allow B-frames in video encoder. Only supported on Android 10+ and by RTMP protocol.
+   * Must be called before prepareVideo.
+   *
+   * @param maxBFrames max number of consecutive B-frames. 0 to use the encoder default
+   */
+  public void setMaxBFrames(int maxBFrames) {
+    videoEncoder.setMaxBFrames(maxBFrames);
+  }
+
   /**
    * Starts recording a MP4 video.
    *
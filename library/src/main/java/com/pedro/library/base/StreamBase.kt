@@ -190,6 +190,16 @@ abstract class StreamBase(
     audioEncoder.forceCodecType(codecTypeAudio)
   }
 
+  /**
+   * Allow B-frames in video encoder. Only supported on Android 10+ and by RTMP protocol.
+   * Must be called before prepareVideo.
+   *
+   * @param maxBFrames max number of consecutive B-frames. 0 to use the encoder default
+   */
+  fun setMaxBFrames(maxBFrames: Int) {
+    videoEncoder.setMaxBFrames(maxBFrames)
+  }
+
   /**
    * Stop stream.
    *
@@ -386,6 +396,8 @@ abstract class StreamBase(
 
   protected fun getVideoFps() = videoEncoder.fps
 
+  protected fun getMaxBFrames() = videoEncoder.maxBFrames
+
   private fun startSources() {
     if (!glInterface.isRunning) glInterface.start()
     if (!videoSource.isRunning()) {
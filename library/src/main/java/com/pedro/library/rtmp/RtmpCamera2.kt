@@ -92,6 +92,7 @@ class RtmpCamera2 : Camera2Base {
   }
 
   override fun onVideoInfoImp(sps: ByteBuffer, pps: ByteBuffer?, vps: ByteBuffer?) {
+    rtmpClient.setMaxBFrames(videoEncoder.maxBFrames)
     rtmpClient.setVideoInfo(sps, pps, vps)
   }
 
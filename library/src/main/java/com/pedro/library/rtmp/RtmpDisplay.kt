@@ -78,6 +78,7 @@ class RtmpDisplay(context: Context, useOpengl: Boolean, connectChecker: ConnectC
   }
 
   override fun onVideoInfoImp(sps: ByteBuffer, pps: ByteBuffer?, vps: ByteBuffer?) {
+    rtmpClient.setMaxBFrames(videoEncoder.maxBFrames)
     rtmpClient.setVideoInfo(sps, pps, vps)
   }
 
@@ -103,6 +103,7 @@ class RtmpFromFile: FromFileBase {
   }
 
   override fun onVideoInfoImp(sps: ByteBuffer, pps: ByteBuffer?, vps: ByteBuffer?) {
+    rtmpClient.setMaxBFrames(videoEncoder.maxBFrames)
     rtmpClient.setVideoInfo(sps, pps, vps)
   }
 
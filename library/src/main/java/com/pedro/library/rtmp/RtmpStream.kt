@@ -81,6 +81,7 @@ class RtmpStream(
   }
 
   override fun onVideoInfoImp(sps: ByteBuffer, pps: ByteBuffer?, vps: ByteBuffer?) {
+    rtmpClient.setMaxBFrames(super.getMaxBFrames())
     rtmpClient.setVideoInfo(sps, pps, vps)
   }
 
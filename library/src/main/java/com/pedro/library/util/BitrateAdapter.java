@@ -71,6 +71,38 @@ public class BitrateAdapter {
     }
   }
 
+  /**
+   * Adapt bitrate on fly based on media duration in the queue.
+   * @param cacheDelay media duration in the queue in milliseconds. See getCacheDelay
+   * @param maxCacheDelay media duration in milliseconds considered congestion
+   */
+  public void adaptBitrate(long actualBitrate, long cacheDelay, long maxCacheDelay) {
+    adaptBitrate(actualBitrate, cacheDelay >= maxCacheDelay);
+  }
+
+  /**
+   * Adapt bitrate on fly based on media duration in the queue and data sent but not delivered.
+   * The data in flight detect congestion before the queue start to grow.
+   * @param cacheDelay media duration in the queue in milliseconds. See getCacheDelay
+   * @param inFlightDelay time in milliseconds to deliver data already sent. See getInFlightDelay
+   * @param maxDelay total delay in milliseconds considered congestion
+   */
+  public void adaptBitrate(long actualBitrate, long cacheDelay, long inFlightDelay, long maxDelay) {
+    adaptBitrate(actualBitrate, cacheDelay + inFlightDelay >= maxDelay);
+  }
+
+  /**
+   * Adapt bitrate on fly based on media duration in the queue and packets lost reported by the server.
+   * Loss is detected even if the queue is empty, for example using UDP.
+   * @param cacheDelay media duration in the queue in milliseconds. See getCacheDelay
+   * @param maxCacheDelay media duration in milliseconds considered congestion
+   * @param packetLoss fraction of packets lost from 0 to 1. See getPacketLoss
+   * @param maxPacketLoss fraction of packets lost considered congestion
+   */
+  public void adaptBitrate(long actualBitrate, long cacheDelay, long maxCacheDelay, float packetLoss, float maxPacketLoss) {
+    adaptBitrate(actualBitrate, cacheDelay >= maxCacheDelay || packetLoss >= maxPacketLoss);
+  }
+
   private int getBitrateAdapted(int bitrate) {
     if (bitrate >= maxBitrate) { //You have high speed and max bitrate. Keep max speed
       oldBitrate = maxBitrate;
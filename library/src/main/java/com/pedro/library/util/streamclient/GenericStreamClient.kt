@@ -141,6 +141,17 @@ class GenericStreamClient(
 
   override fun getItemsInCache(): Int = connectedStreamClient?.getItemsInCache() ?: 0
 
+  override fun setMaxCacheDuration(durationMs: Long) {
+    rtmpClient.setMaxCacheDuration(durationMs)
+    rtspClient.setMaxCacheDuration(durationMs)
+    srtClient.setMaxCacheDuration(durationMs)
+    udpClient.setMaxCacheDuration(durationMs)
+  }
+
+  override fun getMaxCacheDuration(): Long = rtmpClient.getMaxCacheDuration()
+
+  override fun getCacheDelay(): Long = connectedStreamClient?.getCacheDelay() ?: 0
+
   override fun getSentAudioFrames(): Long = connectedStreamClient?.getSentAudioFrames() ?: 0
 
   override fun getSentVideoFrames(): Long = connectedStreamClient?.getSentVideoFrames() ?: 0
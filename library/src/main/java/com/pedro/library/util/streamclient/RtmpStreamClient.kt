@@ -17,6 +17,7 @@
 package com.pedro.library.util.streamclient
 
 import com.pedro.rtmp.rtmp.RtmpClient
+import com.pedro.rtmp.rtmp.queue.GopCache
 import javax.net.ssl.TrustManager
 
 /**
@@ -55,6 +56,17 @@ class RtmpStreamClient(
     rtmpClient.forceIncrementalTs(enabled)
   }
 
+  /**
+   * Keep the last GOP in memory and send it after reconnect so viewers get video without wait
+   * for the next keyframe. A keyframe is not requested on retry if a GOP is cached.
+   *
+   * @param maxSize max bytes cached, a bigger GOP is not cached
+   */
+  @JvmOverloads
+  fun setGopCache(enabled: Boolean, maxSize: Int = GopCache.DEFAULT_MAX_SIZE) {
+    rtmpClient.setGopCache(enabled, maxSize)
+  }
+
   /**
    * Must be called before start stream or will be ignored.
    *
@@ -69,10 +81,41 @@ class RtmpStreamClient(
     rtmpClient.setWriteChunkSize(chunkSize)
   }
 
+  /**
+   * Must be called before start stream or will be ignored.
+   *
+   * @param windowSize bytes sent before the server must send an acknowledgement, used to calculate
+   * delivery metrics. 0 to use the window of the server.
+   */
+  fun setAcknowledgementWindowSize(windowSize: Int) {
+    rtmpClient.setAcknowledgementWindowSize(windowSize)
+  }
+
+  /**
+   * @return bytes sent and not acknowledged by the server
+   */
+  fun getBytesInFlight(): Long = rtmpClient.getBytesInFlight()
+
+  /**
+   * @return bits per second acknowledged by the server, 0 if unknown
+   */
+  fun getDeliveryRate(): Long = rtmpClient.getDeliveryRate()
+
+  /**
+   * @return smoothed round trip time in milliseconds measured with server acknowledgements, 0 if unknown
+   */
+  fun getRtt(): Long = rtmpClient.getRtt()
+
+  /**
+   * @return time in milliseconds to deliver the bytes in flight, 0 if unknown
+   */
+  fun getInFlightDelay(): Long = rtmpClient.getInFlightDelay()
+
   override fun reTry(delay: Long, reason: String, backupUrl: String?): Boolean {
     val result = rtmpClient.shouldRetry(reason)
     if (result) {
-      streamClientListener?.onRequestKeyframe()
+      //the cached GOP is replayed after reconnect so a new keyframe is not needed
+      if (!rtmpClient.hasGopCached()) streamClientListener?.onRequestKeyframe()
       rtmpClient.reConnect(delay, backupUrl)
     }
     return result
@@ -108,6 +151,14 @@ class RtmpStreamClient(
 
   override fun getItemsInCache(): Int = rtmpClient.getItemsInCache()
 
+  override fun setMaxCacheDuration(durationMs: Long) {
+    rtmpClient.setMaxCacheDuration(durationMs)
+  }
+
+  override fun getMaxCacheDuration(): Long = rtmpClient.getMaxCacheDuration()
+
+  override fun getCacheDelay(): Long = rtmpClient.getCacheDelay()
+
   override fun getSentAudioFrames(): Long = rtmpClient.sentAudioFrames
 
   override fun getSentVideoFrames(): Long = rtmpClient.sentVideoFrames
@@ -16,6 +16,7 @@
 
 package com.pedro.library.util.streamclient
 
+import com.pedro.rtsp.rtcp.ReceiverReport
 import com.pedro.rtsp.rtsp.Protocol
 import com.pedro.rtsp.rtsp.RtspClient
 import javax.net.ssl.TrustManager
@@ -44,6 +45,98 @@ class RtspStreamClient(
     rtspClient.setProtocol(protocol)
   }
 
+  /**
+   * Send rtp packets over udp using a DatagramChannel per track. Only used with Protocol.UDP.
+   *
+   * @param sendBufferSize socket send buffer size in bytes. 0 to use the system default
+   * @param dscp value (0 to 63) used to mark packets. -1 to not mark
+   */
+  @JvmOverloads
+  fun setUdpChannel(enabled: Boolean, sendBufferSize: Int = 0, dscp: Int = -1) {
+    rtspClient.setUdpChannel(enabled, sendBufferSize, dscp)
+  }
+
+  /**
+   * Resend packets requested by the server using RTCP NACK. Only used with Protocol.UDP.
+   *
+   * @param historyMs time that packets are kept to be resent
+   * @param rtx resend packets using RTX payload and SSRC
+   */
+  @JvmOverloads
+  fun setRetransmission(enabled: Boolean, historyMs: Long = 1000, rtx: Boolean = false) {
+    rtspClient.setRetransmission(enabled, historyMs, rtx)
+  }
+
+  /**
+   * @return packets resent after a NACK request of the server
+   */
+  fun getRetransmittedPackets(): Long = rtspClient.getRetransmittedPackets()
+
+  /**
+   * Spread video packets of each frame at a multiple of the video bitrate instead of send them in a burst.
+   * Audio is not paced. Can be called while streaming to update the bitrate.
+   *
+   * @param bitrate video bitrate in bits per second
+   * @param factor multiple of the bitrate used to send video packets
+   */
+  @JvmOverloads
+  fun setPacing(enabled: Boolean, bitrate: Long, factor: Float = 2.5f) {
+    rtspClient.setPacing(enabled, bitrate, factor)
+  }
+
+  /**
+   * @return time in milliseconds that the last video packet was waiting in the pacer
+   */
+  fun getPacingDelay(): Long = rtspClient.getPacingDelay()
+
+  /**
+   * Send ULPFEC packets after each video frame. Only used with Protocol.UDP.
+   *
+   * @param rowSize video packets protected by each FEC packet
+   * @param depth rows protected by column FEC packets, 1 to disable them
+   * @param keyframeRowSize rowSize used with keyframes
+   * @param keyframeDepth depth used with keyframes
+   */
+  @JvmOverloads
+  fun setFec(enabled: Boolean, rowSize: Int = 10, depth: Int = 1, keyframeRowSize: Int = 5, keyframeDepth: Int = 4) {
+    rtspClient.setFec(enabled, rowSize, depth, keyframeRowSize, keyframeDepth)
+  }
+
+  /**
+   * Estimate the bandwidth with the delay reported by the server using transport-cc feedback.
+   * Use getTargetBitrate to update the video bitrate with setVideoBitrateOnFly.
+   *
+   * @param startBitrate bitrate used until the first estimation in bits per second, usually the video bitrate
+   */
+  fun setCongestionControl(enabled: Boolean, startBitrate: Long, minBitrate: Long, maxBitrate: Long) {
+    rtspClient.setCongestionControl(enabled, startBitrate, minBitrate, maxBitrate)
+  }
+
+  /**
+   * @return bitrate in bits per second estimated with transport-cc feedback, 0 if disabled
+   */
+  fun getTargetBitrate(): Long = rtspClient.getTargetBitrate()
+
+  /**
+   * @return last reception statistics of the video track reported by the server with RTCP, null if not received
+   */
+  fun getVideoReceiverReport(): ReceiverReport? = rtspClient.getVideoReceiverReport()
+
+  /**
+   * @return last reception statistics of the audio track reported by the server with RTCP, null if not received
+   */
+  fun getAudioReceiverReport(): ReceiverReport? = rtspClient.getAudioReceiverReport()
+
+  /**
+   * @return smoothed round trip time in milliseconds calculated with RTCP reports, 0 if unknown
+   */
+  fun getRtt(): Long = rtspClient.getRtt()
+
+  /**
+   * @return fraction of packets lost (0 to 1) in the last RTCP report of the server
+   */
+  fun getPacketLoss(): Float = rtspClient.getPacketLoss()
+
   override fun setAuthorization(user: String?, password: String?) {
     rtspClient.setAuthorization(user, password)
   }
@@ -83,6 +176,14 @@ class RtspStreamClient(
 
   override fun getItemsInCache(): Int = rtspClient.getItemsInCache()
 
+  override fun setMaxCacheDuration(durationMs: Long) {
+    rtspClient.setMaxCacheDuration(durationMs)
+  }
+
+  override fun getMaxCacheDuration(): Long = rtspClient.getMaxCacheDuration()
+
+  override fun getCacheDelay(): Long = rtspClient.getCacheDelay()
+
   override fun getSentAudioFrames(): Long = rtspClient.sentAudioFrames
 
   override fun getSentVideoFrames(): Long = rtspClient.sentVideoFrames
@@ -73,6 +73,14 @@ class SrtStreamClient(
 
   override fun getItemsInCache(): Int = srtClient.getItemsInCache()
 
+  override fun setMaxCacheDuration(durationMs: Long) {
+    srtClient.setMaxCacheDuration(durationMs)
+  }
+
+  override fun getMaxCacheDuration(): Long = srtClient.getMaxCacheDuration()
+
+  override fun getCacheDelay(): Long = srtClient.getCacheDelay()
+
   override fun getSentAudioFrames(): Long = srtClient.sentAudioFrames
 
   override fun getSentVideoFrames(): Long = srtClient.sentVideoFrames
@@ -49,6 +49,19 @@ abstract class StreamBaseClient {
   abstract fun clearCache()
   abstract fun getCacheSize(): Int
   abstract fun getItemsInCache(): Int
+
+  /**
+   * Limit the cache by media duration instead of only by size.
+   * @param durationMs max media duration in the cache. 0 to limit the cache only by size
+   */
+  @Throws(IllegalArgumentException::class)
+  abstract fun setMaxCacheDuration(durationMs: Long)
+  abstract fun getMaxCacheDuration(): Long
+
+  /**
+   * @return media duration in the cache in milliseconds
+   */
+  abstract fun getCacheDelay(): Long
   abstract fun getSentAudioFrames(): Long
   abstract fun getSentVideoFrames(): Long
   abstract fun getDroppedAudioFrames(): Long
@@ -66,6 +66,14 @@ class UdpStreamClient(
 
   override fun getItemsInCache(): Int = udpClient.getItemsInCache()
 
+  override fun setMaxCacheDuration(durationMs: Long) {
+    udpClient.setMaxCacheDuration(durationMs)
+  }
+
+  override fun getMaxCacheDuration(): Long = udpClient.getMaxCacheDuration()
+
+  override fun getCacheDelay(): Long = udpClient.getCacheDelay()
+
   override fun getSentAudioFrames(): Long = udpClient.sentAudioFrames
 
   override fun getSentVideoFrames(): Long = udpClient.sentVideoFrames
@@ -0,0 +1,134 @@
+/*
+ * Copyright (C) 2024 pedroSG94.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.pedro.rtmp.amf
+
+import java.nio.ByteBuffer
+
+/**
+ * Growable ByteBuffer used by AMF encoders. Values are written directly in the buffer so no
+ * intermediate arrays are created.
+ */
+class AmfBuffer(capacity: Int = 256) {
+
+  var buffer: ByteBuffer = ByteBuffer.allocate(capacity)
+    private set
+  val size: Int
+    get() = buffer.position()
+
+  companion object {
+    /**
+     * Size of the value encoded in UTF-8 without encode it
+     */
+    fun utf8Length(value: String): Int {
+      var length = 0
+      var i = 0
+      while (i < value.length) {
+        val c = value[i]
+        length += when {
+          c.code < 0x80 -> 1
+          c.code < 0x800 -> 2
+          c.isHighSurrogate() && i + 1 < value.length && value[i + 1].isLowSurrogate() -> {
+            i++
+            4
+          }
+          //unpaired surrogates are replaced by '?'
+          c.isSurrogate() -> 1
+          else -> 3
+        }
+        i++
+      }
+      return length
+    }
+  }
+
+  fun writeByte(value: Int) {
+    ensureCapacity(1)
+    buffer.put(value.toByte())
+  }
+
+  fun writeUInt16(value: Int) {
+    ensureCapacity(2)
+    buffer.putShort(value.toShort())
+  }
+
+  fun writeUInt32(value: Int) {
+    ensureCapacity(4)
+    buffer.putInt(value)
+  }
+
+  fun writeDouble(value: Double) {
+    ensureCapacity(8)
+    buffer.putDouble(value)
+  }
+
+  fun writeBytes(bytes: ByteArray, offset: Int = 0, length: Int = bytes.size) {
+    ensureCapacity(length)
+    buffer.put(bytes, offset, length)
+  }
+
+  /**
+   * Write the value encoded in UTF-8. The length must be calculated using utf8Length
+   */
+  fun writeUtf8(value: String, length: Int) {
+    ensureCapacity(length)
+    if (length == value.length) { //ASCII
+      for (c in value) buffer.put(c.code.toByte())
+      return
+    }
+    var i = 0
+    while (i < value.length) {
+      val c = value[i].code
+      when {
+        c < 0x80 -> buffer.put(c.toByte())
+        c < 0x800 -> {
+          buffer.put((0xC0 or (c shr 6)).toByte())
+          buffer.put((0x80 or (c and 0x3F)).toByte())
+        }
+        value[i].isHighSurrogate() && i + 1 < value.length && value[i + 1].isLowSurrogate() -> {
+          val codePoint = Character.toCodePoint(value[i], value[i + 1])
+          buffer.put((0xF0 or (codePoint shr 18)).toByte())
+          buffer.put((0x80 or ((codePoint shr 12) and 0x3F)).toByte())
+          buffer.put((0x80 or ((codePoint shr 6) and 0x3F)).toByte())
+          buffer.put((0x80 or (codePoint and 0x3F)).toByte())
+          i++
+        }
+        value[i].isSurrogate() -> buffer.put('?'.code.toByte())
+        else -> {
+          buffer.put((0xE0 or (c shr 12)).toByte())
+          buffer.put((0x80 or ((c shr 6) and 0x3F)).toByte())
+          buffer.put((0x80 or (c and 0x3F)).toByte())
+        }
+      }
+      i++
+    }
+  }
+
+  fun toByteArray(): ByteArray = buffer.array().copyOf(buffer.position())
+
+  fun reset() {
+    buffer.clear()
+  }
+
+  private fun ensureCapacity(bytes: Int) {
+    if (buffer.remaining() >= bytes) return
+    val newBuffer = ByteBuffer.allocate(maxOf(buffer.capacity() * 2, buffer.position() + bytes))
+    buffer.flip()
+    newBuffer.put(buffer)
+    buffer = newBuffer
+  }
+}
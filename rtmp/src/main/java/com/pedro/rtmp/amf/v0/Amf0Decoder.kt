@@ -0,0 +1,134 @@
+/*
+ * Copyright (C) 2024 pedroSG94.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.pedro.rtmp.amf.v0
+
+import com.pedro.rtmp.amf.v3.Amf3Data
+import com.pedro.rtmp.amf.v3.Amf3Decoder
+import com.pedro.rtmp.amf.v3.Amf3Double
+import com.pedro.rtmp.amf.v3.Amf3False
+import com.pedro.rtmp.amf.v3.Amf3Null
+import com.pedro.rtmp.amf.v3.Amf3Object
+import com.pedro.rtmp.amf.v3.Amf3String
+import com.pedro.rtmp.amf.v3.Amf3True
+import com.pedro.rtmp.amf.v3.Amf3Undefined
+import java.io.IOException
+import java.nio.BufferUnderflowException
+import java.nio.ByteBuffer
+
+/**
+ * Read AmfData directly from a ByteBuffer.
+ */
+class Amf0Decoder(private val buffer: ByteBuffer) {
+
+  //AMF3 values read in the same message share reference tables
+  private val amf3Decoder by lazy { Amf3Decoder(buffer) }
+
+  fun hasRemaining(): Boolean = buffer.hasRemaining()
+
+  @Throws(IOException::class)
+  fun read(): AmfData {
+    try {
+      return readValue(buffer.get().toInt() and 0xFF)
+    } catch (e: BufferUnderflowException) {
+      throw IOException("AMF0 value truncated")
+    }
+  }
+
+  /**
+   * Read a value of an AMF3 message. AMF0 values are converted to AMF3.
+   */
+  @Throws(IOException::class)
+  fun readAmf3(): Amf3Data {
+    try {
+      val mark = buffer.get().toInt() and 0xFF
+      if (mark == AmfType.AVM_PLUS_OBJECT.mark.toInt()) return amf3Decoder.read()
+      return toAmf3(readValue(mark))
+    } catch (e: BufferUnderflowException) {
+      throw IOException("AMF0 value truncated")
+    }
+  }
+
+  private fun readValue(mark: Int): AmfData {
+    return when (mark) {
+      AmfType.NUMBER.mark.toInt() -> AmfNumber(buffer.getDouble())
+      AmfType.BOOLEAN.mark.toInt() -> AmfBoolean(buffer.get().toInt() != 0)
+      AmfType.STRING.mark.toInt() -> AmfString(readUtf8(buffer.getShort().toInt() and 0xFFFF))
+      AmfType.OBJECT.mark.toInt() -> AmfObject(readProperties())
+      AmfType.NULL.mark.toInt() -> AmfNull()
+      AmfType.UNDEFINED.mark.toInt() -> AmfUndefined()
+      AmfType.ECMA_ARRAY.mark.toInt() -> {
+        val length = buffer.getInt()
+        AmfEcmaArray(readProperties()).also { it.length = length }
+      }
+      AmfType.STRICT_ARRAY.mark.toInt() -> {
+        val length = buffer.getInt()
+        if (length < 0 || length > buffer.remaining()) throw IOException("invalid strict array length: $length")
+        AmfStrictArray(MutableList(length) { read() })
+      }
+      AmfType.DATE.mark.toInt() -> AmfDate(buffer.getDouble()).also {
+        //time zone, reserved
+        buffer.getShort()
+      }
+      AmfType.LONG_STRING.mark.toInt() -> AmfLongString(readUtf8(buffer.getInt()))
+      AmfType.UNSUPPORTED.mark.toInt() -> AmfUnsupported()
+      AmfType.XML_DOCUMENT.mark.toInt() -> AmfXmlDocument(readUtf8(buffer.getInt()))
+      else -> throw IOException("Unimplemented AMF data type: $mark")
+    }
+  }
+
+  private fun readProperties(): LinkedHashMap<AmfString, AmfData> {
+    val properties = LinkedHashMap<AmfString, AmfData>()
+    while (true) {
+      val length = buffer.getShort().toInt() and 0xFFFF
+      if (length == 0) {
+        if (buffer.get() == AmfType.OBJECT_END.mark) return properties
+        //empty key, restore the value marker
+        buffer.position(buffer.position() - 1)
+      }
+      val key = AmfString(readUtf8(length))
+      properties[key] = read()
+    }
+  }
+
+  private fun readUtf8(length: Int): String {
+    if (length < 0 || length > buffer.remaining()) throw IOException("invalid string length: $length")
+    val value = if (buffer.hasArray()) {
+      String(buffer.array(), buffer.arrayOffset() + buffer.position(), length, Charsets.UTF_8)
+    } else {
+      val bytes = ByteArray(length)
+      buffer.duplicate().get(bytes)
+      String(bytes, Charsets.UTF_8)
+    }
+    buffer.position(buffer.position() + length)
+    return value
+  }
+
+  private fun toAmf3(data: AmfData): Amf3Data {
+    return when (data) {
+      is AmfNumber -> Amf3Double(data.value)
+      is AmfBoolean -> if (data.value) Amf3True() else Amf3False()
+      is AmfString -> Amf3String(data.value)
+      is AmfLongString -> Amf3String(data.value)
+      is AmfNull -> Amf3Null()
+      is AmfObject -> Amf3Object().also { amf3Object ->
+        data.getProperties().forEach { (key, value) -> amf3Object.setProperty(key.value, toAmf3(value)) }
+      }
+      else -> Amf3Undefined()
+    }
+  }
+}
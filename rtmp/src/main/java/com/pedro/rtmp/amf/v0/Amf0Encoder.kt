@@ -0,0 +1,149 @@
+/*
+ * Copyright (C) 2024 pedroSG94.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.pedro.rtmp.amf.v0
+
+import com.pedro.rtmp.amf.AmfBuffer
+import com.pedro.rtmp.amf.v3.Amf3Data
+import com.pedro.rtmp.amf.v3.Amf3Double
+import com.pedro.rtmp.amf.v3.Amf3Encoder
+import com.pedro.rtmp.amf.v3.Amf3False
+import com.pedro.rtmp.amf.v3.Amf3Null
+import com.pedro.rtmp.amf.v3.Amf3String
+import com.pedro.rtmp.amf.v3.Amf3True
+import com.pedro.rtmp.amf.v3.Amf3Undefined
+
+/**
+ * Write AmfData directly in a ByteBuffer.
+ */
+class Amf0Encoder(val buffer: AmfBuffer = AmfBuffer()) {
+
+  //AMF3 values written in the same message share reference tables
+  private val amf3Encoder by lazy { Amf3Encoder(buffer) }
+
+  fun write(data: AmfData) {
+    when (data) {
+      is AmfNumber -> writeNumber(data.value)
+      is AmfBoolean -> writeBoolean(data.value)
+      is AmfString -> writeString(data.value)
+      is AmfXmlDocument -> writeLongString(AmfType.XML_DOCUMENT, data.value)
+      is AmfLongString -> writeLongString(AmfType.LONG_STRING, data.value)
+      is AmfEcmaArray -> {
+        buffer.writeByte(AmfType.ECMA_ARRAY.mark.toInt())
+        buffer.writeUInt32(data.getProperties().size)
+        writeProperties(data)
+      }
+      is AmfObject -> {
+        buffer.writeByte(AmfType.OBJECT.mark.toInt())
+        writeProperties(data)
+      }
+      is AmfStrictArray -> {
+        buffer.writeByte(AmfType.STRICT_ARRAY.mark.toInt())
+        buffer.writeUInt32(data.items.size)
+        data.items.forEach { write(it) }
+      }
+      is AmfDate -> {
+        buffer.writeByte(AmfType.DATE.mark.toInt())
+        buffer.writeDouble(data.date)
+        buffer.writeUInt16(0)
+      }
+      is AmfObjectEnd -> writeObjectEnd()
+      else -> buffer.writeByte(data.getType().mark.toInt())
+    }
+  }
+
+  fun writeNumber(value: Double) {
+    buffer.writeByte(AmfType.NUMBER.mark.toInt())
+    buffer.writeDouble(value)
+  }
+
+  fun writeBoolean(value: Boolean) {
+    buffer.writeByte(AmfType.BOOLEAN.mark.toInt())
+    buffer.writeByte(if (value) 1 else 0)
+  }
+
+  fun writeString(value: String) {
+    val length = AmfBuffer.utf8Length(value)
+    if (length > 0xFFFF) {
+      buffer.writeByte(AmfType.LONG_STRING.mark.toInt())
+      buffer.writeUInt32(length)
+    } else {
+      buffer.writeByte(AmfType.STRING.mark.toInt())
+      buffer.writeUInt16(length)
+    }
+    buffer.writeUtf8(value, length)
+  }
+
+  fun writeNull() {
+    buffer.writeByte(AmfType.NULL.mark.toInt())
+  }
+
+  /**
+   * Property name of an object, without type marker
+   */
+  fun writeKey(name: String) {
+    val length = AmfBuffer.utf8Length(name)
+    buffer.writeUInt16(length)
+    buffer.writeUtf8(name, length)
+  }
+
+  fun writeObjectEnd() {
+    buffer.writeUInt16(0)
+    buffer.writeByte(AmfType.OBJECT_END.mark.toInt())
+  }
+
+  /**
+   * Write an AMF3 value in an AMF0 message. Simple values are converted to AMF0 and the rest are
+   * written after the avmplus marker.
+   */
+  fun writeAmf3(data: Amf3Data) {
+    when (data) {
+      is Amf3String -> writeString(data.value)
+      is Amf3Double -> writeNumber(data.value)
+      is Amf3True -> writeBoolean(true)
+      is Amf3False -> writeBoolean(false)
+      is Amf3Null -> writeNull()
+      is Amf3Undefined -> buffer.writeByte(AmfType.UNDEFINED.mark.toInt())
+      else -> {
+        buffer.writeByte(AmfType.AVM_PLUS_OBJECT.mark.toInt())
+        amf3Encoder.write(data)
+      }
+    }
+  }
+
+  fun toByteArray(): ByteArray = buffer.toByteArray()
+
+  fun reset() {
+    buffer.reset()
+    amf3Encoder.reset()
+  }
+
+  private fun writeLongString(type: AmfType, value: String) {
+    val length = AmfBuffer.utf8Length(value)
+    buffer.writeByte(type.mark.toInt())
+    buffer.writeUInt32(length)
+    buffer.writeUtf8(value, length)
+  }
+
+  private fun writeProperties(data: AmfObject) {
+    data.getProperties().forEach { (key, value) ->
+      writeKey(key.value)
+      write(value)
+    }
+    writeObjectEnd()
+  }
+}
@@ -16,6 +16,7 @@
 
 package com.pedro.rtmp.amf.v0
 
+import com.pedro.rtmp.amf.AmfBuffer
 import com.pedro.rtmp.utils.*
 import java.io.IOException
 import java.io.InputStream
@@ -28,7 +29,7 @@ import java.io.OutputStream
  */
 open class AmfLongString(var value: String = ""): AmfData() {
 
-  private var bodySize: Int = value.toByteArray(Charsets.UTF_8).size + 4
+  private var bodySize: Int = AmfBuffer.utf8Length(value) + 4
 
   @Throws(IOException::class)
   override fun readBody(input: InputStream) {
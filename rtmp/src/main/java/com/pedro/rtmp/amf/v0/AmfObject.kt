@@ -40,13 +40,15 @@ open class AmfObject(private val properties: LinkedHashMap<AmfString, AmfData> =
     bodySize += objectEnd.getSize()
   }
 
+  //index by name to avoid iterate all properties in each lookup
+  private var index: HashMap<String, AmfData>? = null
+
   fun getProperty(name: String): AmfData? {
-    properties.forEach {
-      if (it.key.value == name) {
-        return it.value
-      }
+    val index = index?.takeIf { it.size == properties.size } ?: HashMap<String, AmfData>(properties.size * 2).also { index ->
+      properties.forEach { index.putIfAbsent(it.key.value, it.value) }
+      this.index = index
     }
-    return null
+    return index[name]
   }
 
   open fun setProperty(name: String, data: String) {
@@ -16,6 +16,7 @@
 
 package com.pedro.rtmp.amf.v0
 
+import com.pedro.rtmp.amf.AmfBuffer
 import com.pedro.rtmp.utils.readUInt16
 import com.pedro.rtmp.utils.readUntil
 import com.pedro.rtmp.utils.writeUInt16
@@ -30,7 +31,7 @@ import java.io.OutputStream
  */
 class AmfString(var value: String = ""): AmfData() {
 
-  private var bodySize: Int = value.toByteArray(Charsets.UTF_8).size + 2
+  private var bodySize: Int = AmfBuffer.utf8Length(value) + 2
 
   @Throws(IOException::class)
   override fun readBody(input: InputStream) {
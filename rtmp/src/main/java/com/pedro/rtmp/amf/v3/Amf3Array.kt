@@ -16,25 +16,33 @@
 
 package com.pedro.rtmp.amf.v3
 
+import java.io.IOException
 import java.io.InputStream
 import java.io.OutputStream
 
 /**
  * Created by pedro on 29/04/21.
+ *
+ * Dense array of any amf3 packets. Items can reference strings and objects of the message so it
+ * must be read using Amf3Decoder.
  */
 class Amf3Array(val items: MutableList<Amf3Data> = mutableListOf()): Amf3Data() {
 
+  @Throws(IOException::class)
   override fun readBody(input: InputStream) {
-    TODO("Not yet implemented")
+    throw IOException("AMF3 arrays must be read using Amf3Decoder")
   }
 
+  @Throws(IOException::class)
   override fun writeBody(output: OutputStream) {
-    TODO("Not yet implemented")
+    output.write(Amf3Encoder().apply { writeBody(this@Amf3Array) }.toByteArray())
   }
 
   override fun getType(): Amf3Type = Amf3Type.ARRAY
 
-  override fun getSize(): Int {
-    TODO("Not yet implemented")
+  override fun getSize(): Int = Amf3Encoder().apply { writeBody(this@Amf3Array) }.buffer.size
+
+  override fun toString(): String {
+    return "Amf3Array items: $items"
   }
-}
\ No newline at end of file
+}
@@ -16,6 +16,7 @@
 
 package com.pedro.rtmp.amf.v3
 
+import java.io.EOFException
 import java.io.IOException
 import java.io.InputStream
 import java.io.OutputStream
@@ -52,6 +53,32 @@ abstract class Amf3Data {
     fun getMark3Type(type: Int): Amf3Type {
       return Amf3Type.entries.find { it.mark.toInt() == type } ?: Amf3Type.STRING
     }
+
+    /**
+     * Read a variable length unsigned integer of 29 bits
+     */
+    @Throws(IOException::class)
+    fun readU29(input: InputStream): Int {
+      var result = 0
+      for (i in 0 until 3) {
+        val b = input.read()
+        if (b == -1) throw EOFException()
+        if (b and 0x80 == 0) return (result shl 7) or b
+        result = (result shl 7) or (b and 0x7F)
+      }
+      val b = input.read()
+      if (b == -1) throw EOFException()
+      return (result shl 8) or b
+    }
+
+    fun getU29Size(value: Int): Int {
+      return when {
+        value < 0x80 -> 1
+        value < 0x4000 -> 2
+        value < 0x200000 -> 3
+        else -> 4
+      }
+    }
   }
 
   @Throws(IOException::class)
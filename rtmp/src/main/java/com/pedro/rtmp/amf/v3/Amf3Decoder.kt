@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) 2024 pedroSG94.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.pedro.rtmp.amf.v3
+
+import java.io.IOException
+import java.nio.BufferUnderflowException
+import java.nio.ByteBuffer
+
+/**
+ * Read Amf3Data directly from a ByteBuffer resolving string, object and traits references.
+ */
+class Amf3Decoder(private val buffer: ByteBuffer) {
+
+  private class Traits(val dynamic: Boolean, val members: List<String>)
+
+  private val strings = ArrayList<String>()
+  private val objects = ArrayList<Amf3Data>()
+  private val traits = ArrayList<Traits>()
+
+  fun hasRemaining(): Boolean = buffer.hasRemaining()
+
+  @Throws(IOException::class)
+  fun read(): Amf3Data {
+    try {
+      return when (val mark = buffer.get().toInt() and 0xFF) {
+        Amf3Type.UNDEFINED.mark.toInt() -> Amf3Undefined()
+        Amf3Type.NULL.mark.toInt() -> Amf3Null()
+        Amf3Type.TRUE.mark.toInt() -> Amf3True()
+        Amf3Type.FALSE.mark.toInt() -> Amf3False()
+        //sign extend 29 bits
+        Amf3Type.INTEGER.mark.toInt() -> Amf3Integer((readU29() shl 3) shr 3)
+        Amf3Type.DOUBLE.mark.toInt() -> Amf3Double(buffer.getDouble())
+        Amf3Type.STRING.mark.toInt() -> Amf3String(readString())
+        Amf3Type.ARRAY.mark.toInt() -> readArray()
+        Amf3Type.OBJECT.mark.toInt() -> readObject()
+        else -> throw IOException("Unimplemented AMF3 data type: $mark")
+      }
+    } catch (e: BufferUnderflowException) {
+      throw IOException("AMF3 value truncated")
+    } catch (e: IndexOutOfBoundsException) {
+      throw IOException("AMF3 invalid reference")
+    }
+  }
+
+  fun readString(): String {
+    val value = readU29()
+    if (value and 1 == 0) return strings[value shr 1]
+    val length = value shr 1
+    if (length == 0) return ""
+    if (length > buffer.remaining()) throw IOException("invalid string length: $length")
+    val string = if (buffer.hasArray()) {
+      String(buffer.array(), buffer.arrayOffset() + buffer.position(), length, Charsets.UTF_8)
+    } else {
+      val bytes = ByteArray(length)
+      buffer.duplicate().get(bytes)
+      String(bytes, Charsets.UTF_8)
+    }
+    buffer.position(buffer.position() + length)
+    strings.add(string)
+    return string
+  }
+
+  private fun readArray(): Amf3Data {
+    val value = readU29()
+    if (value and 1 == 0) return objects[value shr 1]
+    val length = value shr 1
+    if (length > buffer.remaining()) throw IOException("invalid array length: $length")
+    val array = Amf3Array()
+    objects.add(array)
+    //associative values are not supported by Amf3Array, discard them
+    while (readString().isNotEmpty()) read()
+    repeat(length) { array.items.add(read()) }
+    return array
+  }
+
+  private fun readObject(): Amf3Data {
+    val value = readU29()
+    if (value and 1 == 0) return objects[value shr 1]
+    val objectTraits = if (value and 2 == 0) {
+      traits[value shr 2]
+    } else {
+      if (value and 4 != 0) throw IOException("externalizable AMF3 objects are not supported")
+      val dynamic = value and 8 != 0
+      val count = value shr 4
+      //class name is not used
+      readString()
+      Traits(dynamic, List(count) { readString() }).also { traits.add(it) }
+    }
+    val amf3Object = Amf3Object()
+    objects.add(amf3Object)
+    objectTraits.members.forEach { amf3Object.setProperty(it, read()) }
+    if (objectTraits.dynamic) {
+      while (true) {
+        val key = readString()
+        if (key.isEmpty()) break
+        amf3Object.setProperty(key, read())
+      }
+    }
+    return amf3Object
+  }
+
+  private fun readU29(): Int {
+    var result = 0
+    for (i in 0 until 3) {
+      val b = buffer.get().toInt() and 0xFF
+      if (b and 0x80 == 0) return (result shl 7) or b
+      result = (result shl 7) or (b and 0x7F)
+    }
+    return (result shl 8) or (buffer.get().toInt() and 0xFF)
+  }
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright (C) 2024 pedroSG94.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.pedro.rtmp.amf.v3
+
+import com.pedro.rtmp.amf.AmfBuffer
+import java.util.IdentityHashMap
+
+/**
+ * Write Amf3Data directly in a ByteBuffer. Strings, objects and traits already written by this
+ * encoder are sent as references so repeated keys are only sent once.
+ * Objects are written as anonymous dynamic objects.
+ */
+class Amf3Encoder(val buffer: AmfBuffer = AmfBuffer()) {
+
+  private val strings = HashMap<String, Int>()
+  private val objects = IdentityHashMap<Amf3Data, Int>()
+  //all objects use the same traits (anonymous and dynamic)
+  private var traitsIndex = -1
+
+  companion object {
+    const val MIN_INTEGER = -(1 shl 28)
+    const val MAX_INTEGER = (1 shl 28) - 1
+  }
+
+  fun write(data: Amf3Data) {
+    if (data is Amf3Integer && (data.value < MIN_INTEGER || data.value > MAX_INTEGER)) {
+      buffer.writeByte(Amf3Type.DOUBLE.mark.toInt())
+      buffer.writeDouble(data.value.toDouble())
+      return
+    }
+    buffer.writeByte(data.getType().mark.toInt())
+    writeBody(data)
+  }
+
+  /**
+   * Write the value without type marker
+   */
+  fun writeBody(data: Amf3Data) {
+    when (data) {
+      is Amf3Integer -> writeU29(data.value and 0x1FFFFFFF)
+      is Amf3Double -> buffer.writeDouble(data.value)
+      is Amf3String -> writeString(data.value)
+      is Amf3Array -> {
+        if (writeReference(data)) return
+        writeU29((data.items.size shl 1) or 1)
+        //no associative values
+        writeString("")
+        data.items.forEach { write(it) }
+      }
+      is Amf3Dictionary -> throw IllegalArgumentException("Unsupported AMF3 data type: ${data.getType().name}")
+      is Amf3Object -> {
+        if (writeReference(data)) return
+        if (traitsIndex >= 0) {
+          writeU29((traitsIndex shl 2) or 0x01)
+        } else {
+          traitsIndex = 0
+          //inline traits, dynamic, 0 sealed members and anonymous class name
+          writeU29(0x0B)
+          writeString("")
+        }
+        data.getProperties().forEach { (key, value) ->
+          writeString(key.value)
+          write(value)
+        }
+        writeString("")
+      }
+      is Amf3True, is Amf3False, is Amf3Null, is Amf3Undefined -> {
+        //no body
+      }
+      else -> throw IllegalArgumentException("Unsupported AMF3 data type: ${data.getType().name}")
+    }
+  }
+
+  fun writeString(value: String) {
+    if (value.isEmpty()) {
+      writeU29(0x01)
+      return
+    }
+    val reference = strings[value]
+    if (reference != null) {
+      writeU29(reference shl 1)
+      return
+    }
+    strings[value] = strings.size
+    val length = AmfBuffer.utf8Length(value)
+    writeU29((length shl 1) or 1)
+    buffer.writeUtf8(value, length)
+  }
+
+  fun toByteArray(): ByteArray = buffer.toByteArray()
+
+  fun reset() {
+    buffer.reset()
+    strings.clear()
+    objects.clear()
+    traitsIndex = -1
+  }
+
+  /**
+   * @return true if the object was already written and a reference was written
+   */
+  private fun writeReference(data: Amf3Data): Boolean {
+    val reference = objects[data]
+    if (reference != null) {
+      writeU29(reference shl 1)
+      return true
+    }
+    objects[data] = objects.size
+    return false
+  }
+
+  private fun writeU29(value: Int) {
+    when {
+      value < 0x80 -> buffer.writeByte(value)
+      value < 0x4000 -> {
+        buffer.writeByte((value shr 7) or 0x80)
+        buffer.writeByte(value and 0x7F)
+      }
+      value < 0x200000 -> {
+        buffer.writeByte((value shr 14) or 0x80)
+        buffer.writeByte(((value shr 7) and 0x7F) or 0x80)
+        buffer.writeByte(value and 0x7F)
+      }
+      else -> {
+        buffer.writeByte((value shr 22) or 0x80)
+        buffer.writeByte(((value shr 15) and 0x7F) or 0x80)
+        buffer.writeByte(((value shr 8) and 0x7F) or 0x80)
+        buffer.writeByte(value and 0xFF)
+      }
+    }
+  }
+}
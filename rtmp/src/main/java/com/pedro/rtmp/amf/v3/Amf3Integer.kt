@@ -16,25 +16,33 @@
 
 package com.pedro.rtmp.amf.v3
 
+import java.io.IOException
 import java.io.InputStream
 import java.io.OutputStream
 
 /**
  * Created by pedro on 29/04/21.
+ *
+ * A signed integer of 29 bits encoded as U29. Values out of range are written as Amf3Double.
  */
-class Amf3Integer: Amf3Data() {
+class Amf3Integer(var value: Int = 0): Amf3Data() {
 
+  @Throws(IOException::class)
   override fun readBody(input: InputStream) {
-    TODO("Not yet implemented")
+    //sign extend 29 bits
+    value = (readU29(input) shl 3) shr 3
   }
 
+  @Throws(IOException::class)
   override fun writeBody(output: OutputStream) {
-    TODO("Not yet implemented")
+    output.write(Amf3Encoder().apply { writeBody(this@Amf3Integer) }.toByteArray())
   }
 
   override fun getType(): Amf3Type = Amf3Type.INTEGER
 
-  override fun getSize(): Int {
-    TODO("Not yet implemented")
+  override fun getSize(): Int = getU29Size(value and 0x1FFFFFFF)
+
+  override fun toString(): String {
+    return "Amf3Integer value: $value"
   }
-}
\ No newline at end of file
+}
@@ -16,76 +16,67 @@
 
 package com.pedro.rtmp.amf.v3
 
+import java.io.IOException
 import java.io.InputStream
 import java.io.OutputStream
 
 /**
  * Created by pedro on 29/04/21.
+ *
+ * A Map of others amf3 packets where key is an Amf3String and value could be any amf3 packet.
+ * Values can reference strings and objects of the message so it must be read using Amf3Decoder.
  */
 open class Amf3Object(private val properties: HashMap<Amf3String, Amf3Data> = LinkedHashMap()): Amf3Data() {
 
-  protected var bodySize = 0
+  //index by name to avoid iterate all properties in each lookup
+  private var index: HashMap<String, Amf3Data>? = null
 
   fun getProperty(name: String): Amf3Data? {
-    properties.forEach {
-      if (it.key.value == name) {
-        return it.value
-      }
+    val index = index?.takeIf { it.size == properties.size } ?: HashMap<String, Amf3Data>(properties.size * 2).also { index ->
+      properties.forEach { index.putIfAbsent(it.key.value, it.value) }
+      this.index = index
     }
-    return null
+    return index[name]
   }
 
   open fun setProperty(name: String, data: String) {
-    val key = Amf3String(name)
-    val value = Amf3String(data)
-    properties[key] = value
-    bodySize += key.getSize()
-    bodySize += value.getSize() + 1
+    setProperty(name, Amf3String(data))
   }
 
   open fun setProperty(name: String, data: Boolean) {
-    val key = Amf3String(name)
-    val value = if (data) Amf3True() else Amf3False()
-    properties[key] = value
-    bodySize += key.getSize()
-    bodySize += value.getSize() + 1
+    setProperty(name, if (data) Amf3True() else Amf3False())
   }
 
   open fun setProperty(name: String, data: Amf3Data) {
-    val key = Amf3String(name)
-    properties[key] = data
-    bodySize += key.getSize()
-    bodySize += data.getSize() + 1
+    properties[Amf3String(name)] = data
+    index = null
   }
 
   open fun setProperty(name: String) {
-    val key = Amf3String(name)
-    val value = Amf3Null()
-    properties[key] = value
-    bodySize += key.getSize()
-    bodySize += value.getSize() + 1
+    setProperty(name, Amf3Null())
   }
 
   open fun setProperty(name: String, data: Double) {
-    val key = Amf3String(name)
-    val value = Amf3Double(data)
-    properties[key] = value
-    bodySize += key.getSize()
-    bodySize += value.getSize() + 1
+    setProperty(name, Amf3Double(data))
   }
 
+  fun getProperties() = properties
 
+  @Throws(IOException::class)
   override fun readBody(input: InputStream) {
-    TODO("Not yet implemented")
+    throw IOException("AMF3 objects must be read using Amf3Decoder")
   }
 
+  @Throws(IOException::class)
   override fun writeBody(output: OutputStream) {
-    TODO("Not yet implemented")
+    output.write(Amf3Encoder().apply { writeBody(this@Amf3Object) }.toByteArray())
   }
 
   override fun getType(): Amf3Type = Amf3Type.OBJECT
 
-  override fun getSize(): Int {
-    TODO("Not yet implemented")
+  override fun getSize(): Int = Amf3Encoder().apply { writeBody(this@Amf3Object) }.buffer.size
+
+  override fun toString(): String {
+    return "Amf3Object properties: $properties"
   }
-}
\ No newline at end of file
+}
@@ -16,25 +16,42 @@
 
 package com.pedro.rtmp.amf.v3
 
+import com.pedro.rtmp.amf.AmfBuffer
+import com.pedro.rtmp.utils.readUntil
+import java.io.IOException
 import java.io.InputStream
 import java.io.OutputStream
 
 /**
  * Created by pedro on 8/04/21.
+ *
+ * A string encoded in UTF-8 where the first U29 indicate string size.
+ * Written alone the string is never sent as reference.
  */
 class Amf3String(var value: String = ""): Amf3Data() {
 
+  @Throws(IOException::class)
   override fun readBody(input: InputStream) {
-    TODO("Not yet implemented")
+    val u29 = readU29(input)
+    if (u29 and 1 == 0) throw IOException("string references must be read using Amf3Decoder")
+    val bytes = ByteArray(u29 shr 1)
+    input.readUntil(bytes)
+    value = String(bytes, Charsets.UTF_8)
   }
 
+  @Throws(IOException::class)
   override fun writeBody(output: OutputStream) {
-    TODO("Not yet implemented")
+    output.write(Amf3Encoder(AmfBuffer(getSize())).apply { writeBody(this@Amf3String) }.toByteArray())
   }
 
   override fun getType(): Amf3Type = Amf3Type.STRING
 
   override fun getSize(): Int {
-    TODO("Not yet implemented")
+    val length = AmfBuffer.utf8Length(value)
+    return getU29Size(length shl 1) + length
+  }
+
+  override fun toString(): String {
+    return "Amf3String value: $value"
   }
-}
\ No newline at end of file
+}
@@ -0,0 +1,26 @@
+/*
+ * Copyright (C) 2024 pedroSG94.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.pedro.rtmp.flv
+
+/**
+ * Enhanced RTMP multitrack mode, shared by audio and video packets.
+ */
+enum class AvMultitrackType(val value: Int) {
+  ONE_TRACK(0),
+  MANY_TRACKS(1),
+  MANY_TRACKS_MANY_CODECS(2)
+}
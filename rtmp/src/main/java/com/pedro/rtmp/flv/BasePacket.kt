@@ -17,6 +17,7 @@
 package com.pedro.rtmp.flv
 
 import android.media.MediaCodec
+import com.pedro.rtmp.utils.BufferPool
 import java.nio.ByteBuffer
 
 /**
@@ -24,6 +25,23 @@ import java.nio.ByteBuffer
  */
 abstract class BasePacket {
 
+  private var bufferPool: BufferPool? = null
+
   abstract fun createFlvPacket(byteBuffer: ByteBuffer, info: MediaCodec.BufferInfo, callback: (FlvPacket) -> Unit)
   abstract fun reset(resetInfo: Boolean = true)
+
+  /**
+   * Packets created after set a pool use buffers of the pool and must be released after use.
+   */
+  open fun setBufferPool(bufferPool: BufferPool?) {
+    this.bufferPool = bufferPool
+  }
+
+  protected fun obtainBuffer(size: Int): ByteArray {
+    return bufferPool?.obtain(size) ?: ByteArray(size)
+  }
+
+  protected fun createPacket(buffer: ByteArray, timeStamp: Long, length: Int, type: FlvType, compositionTime: Int = 0): FlvPacket {
+    return FlvPacket(buffer, timeStamp, length, type, bufferPool, compositionTime)
+  }
 }
\ No newline at end of file
@@ -16,12 +16,100 @@
 
 package com.pedro.rtmp.flv
 
+import com.pedro.rtmp.flv.audio.AudioFormat
+import com.pedro.rtmp.flv.audio.AudioPacketType
+import com.pedro.rtmp.flv.video.FourCCPacketType
+import com.pedro.rtmp.flv.video.VideoDataType
+import com.pedro.rtmp.utils.BufferPool
+import java.util.concurrent.atomic.AtomicInteger
+
 /**
  * Created by pedro on 8/04/21.
+ *
+ * buffer can be bigger than length if it was obtained from a BufferPool. In that case, the packet
+ * must be released after send it to return the buffer to the pool.
+ *
+ * timeStamp is the decode timestamp and compositionTime the difference with the presentation
+ * timestamp in milliseconds. Both are the same with frames without reorder (audio, I and P frames).
  */
 data class FlvPacket(
   val buffer: ByteArray = byteArrayOf(),
   var timeStamp: Long = 0,
   val length: Int = 0,
-  val type: FlvType = FlvType.AUDIO
-)
\ No newline at end of file
+  val type: FlvType = FlvType.AUDIO,
+  private val bufferPool: BufferPool? = null,
+  val compositionTime: Int = 0
+) {
+
+  private val references = AtomicInteger(1)
+
+  /**
+   * Keep the buffer out of the pool until release is called again
+   */
+  fun retain(): FlvPacket {
+    references.incrementAndGet()
+    return this
+  }
+
+  fun getPresentationTimeStamp(): Long = timeStamp + compositionTime
+
+  fun release() {
+    if (references.decrementAndGet() == 0) {
+      bufferPool?.recycle(buffer)
+    }
+  }
+
+  /**
+   * Frame type is in the bits 4-6 of the first byte in legacy and enhanced video headers.
+   * Sequence headers are marked as keyframe too.
+   */
+  fun isKeyFrame(): Boolean {
+    if (type != FlvType.VIDEO || length < 1) return false
+    return (buffer[0].toInt() ushr 4 and 0x07) == VideoDataType.KEYFRAME.value
+  }
+
+  /**
+   * Codec config needed to decode all frames, it should never be discarded.
+   */
+  fun isSequenceHeader(): Boolean {
+    if (length < 2) return false
+    val flags = buffer[0].toInt()
+    return when (type) {
+      FlvType.VIDEO -> {
+        if (flags and 0x80 != 0) { //enhanced header
+          getPacketType() == FourCCPacketType.SEQUENCE_START.value
+        } else buffer[1].toInt() == 0
+      }
+      FlvType.AUDIO -> when (flags ushr 4 and 0x0F) {
+        AudioFormat.AAC.value -> buffer[1].toInt() == 0
+        AudioFormat.EX_HEADER.value -> getPacketType() == AudioPacketType.SEQUENCE_START.value
+        else -> false
+      }
+    }
+  }
+
+  /**
+   * Enhanced RTMP multitrack packet with the track id after the fourCC
+   */
+  fun isMultitrack(): Boolean {
+    if (length < 2) return false
+    val flags = buffer[0].toInt()
+    return when (type) {
+      FlvType.VIDEO -> flags and 0x80 != 0 && (flags and 0x0F) == FourCCPacketType.MULTITRACK.value
+      FlvType.AUDIO -> (flags ushr 4 and 0x0F) == AudioFormat.EX_HEADER.value && (flags and 0x0F) == AudioPacketType.MULTITRACK.value
+    }
+  }
+
+  /**
+   * @return track of a multitrack packet, 0 (default track) for the rest
+   */
+  fun getTrackId(): Int {
+    if (!isMultitrack() || length < 7) return 0
+    return buffer[6].toInt() and 0xFF
+  }
+
+  //packet type of enhanced packets, multitrack packets have it in the second byte
+  private fun getPacketType(): Int {
+    return if (isMultitrack()) buffer[1].toInt() and 0x0F else buffer[0].toInt() and 0x0F
+  }
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright (C) 2024 pedroSG94.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.pedro.rtmp.flv
+
+import android.media.MediaCodec
+import com.pedro.rtmp.flv.audio.AudioFormat
+import com.pedro.rtmp.flv.audio.AudioPacketType
+import com.pedro.rtmp.flv.video.FourCCPacketType
+import com.pedro.rtmp.flv.video.VideoFormat
+import com.pedro.rtmp.utils.BufferPool
+import java.nio.ByteBuffer
+
+/**
+ * Convert packets of other packetizer to Enhanced RTMP multitrack packets (one track per packet)
+ * so several renditions can be sent in the same stream.
+ *
+ * Video header:
+ * 1 byte: 1 bit ex header, 3 bits frame type, 4 bits packet type (MULTITRACK)
+ * 1 byte: 4 bits AvMultitrackType (ONE_TRACK), 4 bits real packet type
+ * 4 bytes: fourCC
+ * 1 byte: track id
+ * 3 bytes: CompositionTime, only in CODED_FRAMES packets of avc1 and hvc1
+ *
+ * Audio header:
+ * 1 byte: 4 bits sound format (EX_HEADER), 4 bits packet type (MULTITRACK)
+ * 1 byte: 4 bits AvMultitrackType (ONE_TRACK), 4 bits real packet type
+ * 4 bytes: fourCC
+ * 1 byte: track id
+ */
+class MultitrackPacket(
+  val trackId: Int,
+  private val packet: BasePacket
+): BasePacket() {
+
+  companion object {
+    private const val HEADER_SIZE = 7
+  }
+
+  init {
+    if (trackId !in 0..255) throw IllegalArgumentException("track id must be in range 0 to 255")
+  }
+
+  override fun setBufferPool(bufferPool: BufferPool?) {
+    super.setBufferPool(bufferPool)
+    packet.setBufferPool(bufferPool)
+  }
+
+  override fun createFlvPacket(
+    byteBuffer: ByteBuffer,
+    info: MediaCodec.BufferInfo,
+    callback: (FlvPacket) -> Unit
+  ) {
+    packet.createFlvPacket(byteBuffer, info) { flvPacket ->
+      val multitrackPacket = try {
+        if (flvPacket.type == FlvType.VIDEO) convertVideo(flvPacket) else convertAudio(flvPacket)
+      } finally {
+        flvPacket.release()
+      }
+      callback(multitrackPacket)
+    }
+  }
+
+  private fun convertVideo(flvPacket: FlvPacket): FlvPacket {
+    val flags = flvPacket.buffer[0].toInt()
+    val frameType = flags ushr 4 and 0x07
+    val packetType: Int
+    val fourCC: Int
+    val offset: Int
+    if (flags and 0x80 != 0) { //enhanced header, the body is copied as is
+      packetType = flags and 0x0F
+      fourCC = readInt(flvPacket.buffer, 1)
+      offset = 5
+    } else { //legacy avc header, use avc1 fourCC
+      packetType = when (flvPacket.buffer[1].toInt()) {
+        0 -> FourCCPacketType.SEQUENCE_START.value
+        2 -> FourCCPacketType.SEQUENCE_END.value
+        else -> FourCCPacketType.CODED_FRAMES.value
+      }
+      fourCC = VideoFormat.AVC1.value
+      //keep the CompositionTime only in coded frames
+      offset = if (packetType == FourCCPacketType.CODED_FRAMES.value) 2 else 5
+    }
+    val first = 0x80 or (frameType shl 4) or FourCCPacketType.MULTITRACK.value
+    return createMultitrack(flvPacket, first, packetType, fourCC, offset)
+  }
+
+  private fun convertAudio(flvPacket: FlvPacket): FlvPacket {
+    val flags = flvPacket.buffer[0].toInt()
+    val packetType: Int
+    val fourCC: Int
+    val offset: Int
+    when (flags ushr 4 and 0x0F) {
+      AudioFormat.EX_HEADER.value -> {
+        packetType = flags and 0x0F
+        fourCC = readInt(flvPacket.buffer, 1)
+        offset = 5
+      }
+      AudioFormat.AAC.value -> {
+        packetType = if (flvPacket.buffer[1].toInt() == 0) AudioPacketType.SEQUENCE_START.value else AudioPacketType.CODED_FRAMES.value
+        fourCC = AudioFormat.MP4A.value
+        offset = 2
+      }
+      else -> throw IllegalArgumentException("Unsupported audio codec in multitrack packets")
+    }
+    val first = (AudioFormat.EX_HEADER.value shl 4) or AudioPacketType.MULTITRACK.value
+    return createMultitrack(flvPacket, first, packetType, fourCC, offset)
+  }
+
+  private fun createMultitrack(flvPacket: FlvPacket, first: Int, packetType: Int, fourCC: Int, offset: Int): FlvPacket {
+    val size = flvPacket.length - offset
+    val length = HEADER_SIZE + size
+    val buffer = obtainBuffer(length)
+    buffer[0] = first.toByte()
+    buffer[1] = ((AvMultitrackType.ONE_TRACK.value shl 4) or packetType).toByte()
+    buffer[2] = (fourCC shr 24).toByte()
+    buffer[3] = (fourCC shr 16).toByte()
+    buffer[4] = (fourCC shr 8).toByte()
+    buffer[5] = fourCC.toByte()
+    buffer[6] = trackId.toByte()
+    System.arraycopy(flvPacket.buffer, offset, buffer, HEADER_SIZE, size)
+    return createPacket(buffer, flvPacket.timeStamp, length, flvPacket.type, flvPacket.compositionTime)
+  }
+
+  private fun readInt(buffer: ByteArray, offset: Int): Int {
+    return (buffer[offset].toInt() and 0xFF shl 24) or (buffer[offset + 1].toInt() and 0xFF shl 16) or
+        (buffer[offset + 2].toInt() and 0xFF shl 8) or (buffer[offset + 3].toInt() and 0xFF)
+  }
+
+  override fun reset(resetInfo: Boolean) {
+    packet.reset(resetInfo)
+  }
+}
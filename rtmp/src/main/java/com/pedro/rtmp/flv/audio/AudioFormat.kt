@@ -22,6 +22,9 @@ package com.pedro.rtmp.flv.audio
  */
 enum class AudioFormat(val value: Int) {
   PCM(0), ADPCM(1), MP3(2), PCM_LE(3), NELLYMOSER_16K(4),
-  NELLYMOSER_8K(5), NELLYMOSER(6), G711_A(7), G711_MU(8), RESERVED(9),
-  AAC(10), SPEEX(11), MP3_8K(14), DEVICE_SPECIFIC(15)
+  NELLYMOSER_8K(5), NELLYMOSER(6), G711_A(7), G711_MU(8), EX_HEADER(9),
+  AAC(10), SPEEX(11), MP3_8K(14), DEVICE_SPECIFIC(15),
+  //fourCC extension, used with EX_HEADER
+  MP4A(1836069985), // { "m", "p", "4", "a" }
+  OPUS(1332770163) // { "O", "p", "u", "s" }
 }
\ No newline at end of file
@@ -0,0 +1,30 @@
+/*
+ * Copyright (C) 2024 pedroSG94.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.pedro.rtmp.flv.audio
+
+/**
+ * Packet types of enhanced audio packets (sound format EX_HEADER).
+ */
+enum class AudioPacketType(val value: Int) {
+  SEQUENCE_START(0),
+  CODED_FRAMES(1),
+  SEQUENCE_END(2),
+  MULTICHANNEL_CONFIG(4),
+  //the real packet type is in the next byte with the AvMultitrackType
+  MULTITRACK(5),
+  MOD_EX(7)
+}
@@ -0,0 +1,55 @@
+/*
+ * Copyright (C) 2024 pedroSG94.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.pedro.rtmp.flv.audio.config
+
+/**
+ * Opus identification header. RFC 7845 section 5.1
+ * Only channel mapping family 0 (mono or stereo) is supported.
+ */
+class OpusHeadConfig(
+  private val channels: Int,
+  private val sampleRate: Int,
+  private val preSkip: Int = DEFAULT_PRE_SKIP
+) {
+
+  companion object {
+    //samples at 48khz discarded by the decoder at the start, lookahead of libopus
+    const val DEFAULT_PRE_SKIP = 312
+    private val MAGIC = "OpusHead".toByteArray(Charsets.US_ASCII)
+  }
+
+  val size = 19
+
+  fun write(buffer: ByteArray, offset: Int) {
+    System.arraycopy(MAGIC, 0, buffer, offset, MAGIC.size)
+    //version
+    buffer[offset + 8] = 1
+    buffer[offset + 9] = channels.toByte()
+    //little endian values
+    buffer[offset + 10] = preSkip.toByte()
+    buffer[offset + 11] = (preSkip shr 8).toByte()
+    buffer[offset + 12] = sampleRate.toByte()
+    buffer[offset + 13] = (sampleRate shr 8).toByte()
+    buffer[offset + 14] = (sampleRate shr 16).toByte()
+    buffer[offset + 15] = (sampleRate shr 24).toByte()
+    //output gain
+    buffer[offset + 16] = 0
+    buffer[offset + 17] = 0
+    //channel mapping family
+    buffer[offset + 18] = 0
+  }
+}
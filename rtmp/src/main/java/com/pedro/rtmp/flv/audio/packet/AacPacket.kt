@@ -75,20 +75,24 @@ class AacPacket: BasePacket() {
     }
     header[0] = type or (audioSize.value shl 1).toByte() or (soundRate.value shl 2).toByte() or (AudioFormat.AAC.value shl 4).toByte()
     val buffer: ByteArray
+    val length: Int
     if (!configSend) {
       val config = AudioSpecificConfig(objectType.value, sampleRate, if (isStereo) 2 else 1)
-      buffer = ByteArray(config.size + header.size)
+      length = config.size + header.size
+      //config use the buffer size to write the frame length so it can't use a pooled buffer
+      buffer = ByteArray(length)
       header[1] = Type.SEQUENCE.mark
       config.write(buffer, header.size)
       configSend = true
     } else {
       header[1] = Type.RAW.mark
-      buffer = ByteArray(fixedBuffer.remaining() + header.size)
+      length = fixedBuffer.remaining() + header.size
+      buffer = obtainBuffer(length)
       fixedBuffer.get(buffer, header.size, fixedBuffer.remaining())
     }
     System.arraycopy(header, 0, buffer, 0, header.size)
     val ts = info.presentationTimeUs / 1000
-    callback(FlvPacket(buffer, ts, buffer.size, FlvType.AUDIO))
+    callback(createPacket(buffer, ts, length, FlvType.AUDIO))
   }
 
   override fun reset(resetInfo: Boolean) {
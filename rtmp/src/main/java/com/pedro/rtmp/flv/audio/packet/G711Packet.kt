@@ -53,11 +53,12 @@ class G711Packet: BasePacket() {
     //sound rate should be ignored because G711 only support 8k so we are using 5_5k by default
     header[0] = AudioSoundType.MONO.value or (audioSize.value shl 1).toByte() or
         (AudioSoundRate.SR_5_5K.value shl 2).toByte() or (AudioFormat.G711_A.value shl 4).toByte()
-    val buffer = ByteArray(fixedBuffer.remaining() + header.size)
+    val length = fixedBuffer.remaining() + header.size
+    val buffer = obtainBuffer(length)
     fixedBuffer.get(buffer, header.size, fixedBuffer.remaining())
     System.arraycopy(header, 0, buffer, 0, header.size)
     val ts = info.presentationTimeUs / 1000
-    callback(FlvPacket(buffer, ts, buffer.size, FlvType.AUDIO))
+    callback(createPacket(buffer, ts, length, FlvType.AUDIO))
   }
 
   override fun reset(resetInfo: Boolean) {
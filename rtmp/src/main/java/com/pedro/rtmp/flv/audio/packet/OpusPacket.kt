@@ -0,0 +1,85 @@
+/*
+ * Copyright (C) 2024 pedroSG94.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.pedro.rtmp.flv.audio.packet
+
+import android.media.MediaCodec
+import com.pedro.common.removeInfo
+import com.pedro.rtmp.flv.BasePacket
+import com.pedro.rtmp.flv.FlvPacket
+import com.pedro.rtmp.flv.FlvType
+import com.pedro.rtmp.flv.audio.AudioFormat
+import com.pedro.rtmp.flv.audio.AudioPacketType
+import com.pedro.rtmp.flv.audio.config.OpusHeadConfig
+import java.nio.ByteBuffer
+
+/**
+ * Enhanced RTMP audio packet with Opus fourCC. The sequence start contains an OpusHead and
+ * coded frames contain one Opus packet.
+ */
+class OpusPacket: BasePacket() {
+
+  private val header = ByteArray(5)
+  //first time we need send audio config
+  private var configSend = false
+
+  private var sampleRate = 48000
+  private var isStereo = true
+
+  fun sendAudioInfo(sampleRate: Int, isStereo: Boolean) {
+    this.sampleRate = sampleRate
+    this.isStereo = isStereo
+  }
+
+  override fun createFlvPacket(
+    byteBuffer: ByteBuffer,
+    info: MediaCodec.BufferInfo,
+    callback: (FlvPacket) -> Unit
+  ) {
+    //codec specific data of the encoder, we send our own OpusHead
+    if (info.flags and MediaCodec.BUFFER_FLAG_CODEC_CONFIG != 0) return
+    val fixedBuffer = byteBuffer.removeInfo(info)
+    //header is 5 bytes length
+    //4 bits sound format (ex header), 4 bits packet type
+    //4 bytes fourCC
+    val codec = AudioFormat.OPUS.value // { "O", "p", "u", "s" }
+    header[1] = (codec shr 24).toByte()
+    header[2] = (codec shr 16).toByte()
+    header[3] = (codec shr 8).toByte()
+    header[4] = codec.toByte()
+    val ts = info.presentationTimeUs / 1000
+    if (!configSend) {
+      val config = OpusHeadConfig(if (isStereo) 2 else 1, sampleRate)
+      val length = config.size + header.size
+      val buffer = obtainBuffer(length)
+      header[0] = ((AudioFormat.EX_HEADER.value shl 4) or AudioPacketType.SEQUENCE_START.value).toByte()
+      System.arraycopy(header, 0, buffer, 0, header.size)
+      config.write(buffer, header.size)
+      callback(createPacket(buffer, ts, length, FlvType.AUDIO))
+      configSend = true
+    }
+    header[0] = ((AudioFormat.EX_HEADER.value shl 4) or AudioPacketType.CODED_FRAMES.value).toByte()
+    val length = fixedBuffer.remaining() + header.size
+    val buffer = obtainBuffer(length)
+    System.arraycopy(header, 0, buffer, 0, header.size)
+    fixedBuffer.get(buffer, header.size, fixedBuffer.remaining())
+    callback(createPacket(buffer, ts, length, FlvType.AUDIO))
+  }
+
+  override fun reset(resetInfo: Boolean) {
+    configSend = false
+  }
+}
@@ -26,5 +26,8 @@ enum class FourCCPacketType(val value: Int) {
   SEQUENCE_END(2),
   CODED_FRAMES_X(3),
   METADATA(4),
-  MPEG_2_TS_SEQUENCE_START(5)
+  MPEG_2_TS_SEQUENCE_START(5),
+  //the real packet type is in the next byte with the AvMultitrackType
+  MULTITRACK(6),
+  MOD_EX(7)
 }
\ No newline at end of file
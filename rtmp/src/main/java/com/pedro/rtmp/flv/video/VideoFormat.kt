@@ -25,5 +25,6 @@ enum class VideoFormat(val value: Int) {
   //fourCC extension
   HEVC(1752589105), // { "h", "v", "c", "1" }
   AV1(1635135537), // { "a", "v", "0", "1" }
-  VP9(1987063865) // { "v", "p", "0", "9" }
+  VP9(1987063865), // { "v", "p", "0", "9" }
+  AVC1(1635148593) // { "a", "v", "c", "1" }, only used in multitrack packets
 }
\ No newline at end of file
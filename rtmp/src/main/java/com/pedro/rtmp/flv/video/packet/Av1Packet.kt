@@ -70,12 +70,14 @@ class Av1Packet: BasePacket() {
     header[4] = codec.toByte()
 
     var buffer: ByteArray
+    var length: Int
     if (!configSend) {
       header[0] = (0b10000000 or (VideoDataType.KEYFRAME.value shl 4) or FourCCPacketType.SEQUENCE_START.value).toByte()
       val obuSequence = this.obuSequence
       if (obuSequence != null) {
         val config = VideoSpecificConfigAV1(obuSequence)
-        buffer = ByteArray(config.size + header.size)
+        length = config.size + header.size
+        buffer = obtainBuffer(length)
         config.write(buffer, header.size)
       } else {
         Log.e(TAG, "waiting for a valid av1ConfigurationRecord")
@@ -83,7 +85,7 @@ class Av1Packet: BasePacket() {
       }
 
       System.arraycopy(header, 0, buffer, 0, header.size)
-      callback(FlvPacket(buffer, ts, buffer.size, FlvType.VIDEO))
+      callback(createPacket(buffer, ts, length, FlvType.VIDEO))
       configSend = true
     }
     //remove temporal delimitered OBU if found on start
@@ -94,14 +96,15 @@ class Av1Packet: BasePacket() {
 
     fixedBuffer.rewind()
     val size = fixedBuffer.remaining()
-    buffer = ByteArray(header.size + size)
+    length = header.size + size
+    buffer = obtainBuffer(length)
 
     val nalType = if (info.isKeyframe()) VideoDataType.KEYFRAME.value else VideoDataType.INTER_FRAME.value
     header[0] = (0b10000000 or (nalType shl 4) or FourCCPacketType.CODED_FRAMES.value).toByte()
     fixedBuffer.get(buffer, header.size, size)
 
     System.arraycopy(header, 0, buffer, 0, header.size)
-    callback(FlvPacket(buffer, ts, buffer.size, FlvType.VIDEO))
+    callback(createPacket(buffer, ts, length, FlvType.VIDEO))
   }
 
   override fun reset(resetInfo: Boolean) {
@@ -18,6 +18,7 @@ package com.pedro.rtmp.flv.video.packet
 
 import android.media.MediaCodec
 import android.util.Log
+import com.pedro.common.DtsGenerator
 import com.pedro.common.isKeyframe
 import com.pedro.common.removeInfo
 import com.pedro.rtmp.flv.BasePacket
@@ -35,7 +36,7 @@ import kotlin.experimental.and
  *
  * ISO 14496-15
  */
-class H264Packet: BasePacket() {
+class H264Packet(reorderDepth: Int = 0): BasePacket() {
 
   private val TAG = "H264Packet"
 
@@ -43,6 +44,8 @@ class H264Packet: BasePacket() {
   private val naluSize = 4
   //first time we need send video config
   private var configSend = false
+  //frames are received in decode order, B-frames need a decode timestamp different than pts
+  private val dtsGenerator = DtsGenerator(reorderDepth)
 
   private var sps: ByteArray? = null
   private var pps: ByteArray? = null
@@ -74,38 +77,21 @@ class H264Packet: BasePacket() {
     //header is 5 bytes length:
     //4 bits FrameType, 4 bits CodecID
     //1 byte AVCPacketType
-    //3 bytes CompositionTime, the cts.
-    val cts = 0
-    header[2] = (cts shr 16).toByte()
-    header[3] = (cts shr 8).toByte()
-    header[4] = cts.toByte()
+    //3 bytes CompositionTime, the cts. Written per frame
 
     var buffer: ByteArray
-    if (!configSend) {
-      header[0] = ((VideoDataType.KEYFRAME.value shl 4) or VideoFormat.AVC.value).toByte()
-      header[1] = Type.SEQUENCE.value
-
-      val sps = this.sps
-      val pps = this.pps
-      if (sps != null && pps != null) {
-        val config = VideoSpecificConfigAVC(sps, pps)
-        buffer = ByteArray(config.size + header.size)
-        config.write(buffer, header.size)
-      } else {
-        Log.e(TAG, "waiting for a valid sps and pps")
-        return
-      }
-
-      System.arraycopy(header, 0, buffer, 0, header.size)
-      callback(FlvPacket(buffer, ts, buffer.size, FlvType.VIDEO))
-      configSend = true
+    var length: Int
+    val sps = this.sps
+    val pps = this.pps
+    if (!configSend && (sps == null || pps == null)) {
+      Log.e(TAG, "waiting for a valid sps and pps")
+      return
     }
     val headerSize = getHeaderSize(fixedBuffer)
     if (headerSize == 0) return //invalid buffer or waiting for sps/pps
     fixedBuffer.rewind()
     val validBuffer = removeHeader(fixedBuffer, headerSize)
     val size = validBuffer.remaining()
-    buffer = ByteArray(header.size + size + naluSize)
 
     val type: Int = (validBuffer.get(0) and 0x1F).toInt()
     var nalType = VideoDataType.INTER_FRAME.value
@@ -115,13 +101,36 @@ class H264Packet: BasePacket() {
       // we don't need send it because we already do it in video config
       return
     }
+    val dts = dtsGenerator.getDts(info.presentationTimeUs) / 1000
+    //sequence header use the dts of the first frame so timestamps never go backwards
+    if (!configSend && sps != null && pps != null) {
+      header[0] = ((VideoDataType.KEYFRAME.value shl 4) or VideoFormat.AVC.value).toByte()
+      header[1] = Type.SEQUENCE.value
+      //sequence header has no cts
+      header[2] = 0
+      header[3] = 0
+      header[4] = 0
+      val config = VideoSpecificConfigAVC(sps, pps)
+      length = config.size + header.size
+      buffer = obtainBuffer(length)
+      config.write(buffer, header.size)
+      System.arraycopy(header, 0, buffer, 0, header.size)
+      callback(createPacket(buffer, dts, length, FlvType.VIDEO))
+      configSend = true
+    }
     header[0] = ((nalType shl 4) or VideoFormat.AVC.value).toByte()
     header[1] = Type.NALU.value
+    val cts = (ts - dts).toInt()
+    header[2] = (cts shr 16).toByte()
+    header[3] = (cts shr 8).toByte()
+    header[4] = cts.toByte()
+    length = header.size + size + naluSize
+    buffer = obtainBuffer(length)
     writeNaluSize(buffer, header.size, size)
     validBuffer.get(buffer, header.size + naluSize, size)
 
     System.arraycopy(header, 0, buffer, 0, header.size)
-    callback(FlvPacket(buffer, ts, buffer.size, FlvType.VIDEO))
+    callback(createPacket(buffer, dts, length, FlvType.VIDEO, cts))
   }
 
   //naluSize = UInt32
@@ -182,5 +191,6 @@ class H264Packet: BasePacket() {
       pps = null
     }
     configSend = false
+    dtsGenerator.reset()
   }
 }
\ No newline at end of file
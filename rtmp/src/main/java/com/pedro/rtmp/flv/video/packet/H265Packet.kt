@@ -18,6 +18,7 @@ package com.pedro.rtmp.flv.video.packet
 
 import android.media.MediaCodec
 import android.util.Log
+import com.pedro.common.DtsGenerator
 import com.pedro.common.isKeyframe
 import com.pedro.common.removeInfo
 import com.pedro.rtmp.flv.BasePacket
@@ -34,7 +35,7 @@ import java.nio.ByteBuffer
  * Created by pedro on 14/08/23.
  *
  */
-class H265Packet: BasePacket() {
+class H265Packet(reorderDepth: Int = 0): BasePacket() {
 
   private val TAG = "H265Packet"
 
@@ -42,6 +43,8 @@ class H265Packet: BasePacket() {
   private val naluSize = 4
   //first time we need send video config
   private var configSend = false
+  //frames are received in decode order, B-frames need a decode timestamp different than pts
+  private val dtsGenerator = DtsGenerator(reorderDepth)
 
   private var sps: ByteArray? = null
   private var pps: ByteArray? = null
@@ -81,38 +84,23 @@ class H265Packet: BasePacket() {
     header[2] = (codec shr 16).toByte()
     header[3] = (codec shr 8).toByte()
     header[4] = codec.toByte()
-    val cts = 0
+    //CompositionTime is written per frame
     val ctsLength = 3
-    header[5] = (cts shr 16).toByte()
-    header[6] = (cts shr 8).toByte()
-    header[7] = cts.toByte()
 
     var buffer: ByteArray
-    if (!configSend) {
-      //avoid send cts on sequence start
-      header[0] = (0b10000000 or (VideoDataType.KEYFRAME.value shl 4) or FourCCPacketType.SEQUENCE_START.value).toByte()
-      val sps = this.sps
-      val pps = this.pps
-      val vps = this.vps
-      if (sps != null && pps != null && vps != null) {
-        val config = VideoSpecificConfigHEVC(sps, pps, vps)
-        buffer = ByteArray(config.size + header.size - ctsLength)
-        config.write(buffer, header.size - ctsLength)
-      } else {
-        Log.e(TAG, "waiting for a valid sps and pps")
-        return
-      }
-
-      System.arraycopy(header, 0, buffer, 0, header.size - ctsLength)
-      callback(FlvPacket(buffer, ts, buffer.size, FlvType.VIDEO))
-      configSend = true
+    var length: Int
+    val sps = this.sps
+    val pps = this.pps
+    val vps = this.vps
+    if (!configSend && (sps == null || pps == null || vps == null)) {
+      Log.e(TAG, "waiting for a valid sps and pps")
+      return
     }
     val headerSize = getHeaderSize(fixedBuffer)
     if (headerSize == 0) return //invalid buffer or waiting for sps/pps
     fixedBuffer.rewind()
     val validBuffer = removeHeader(fixedBuffer, headerSize)
     val size = validBuffer.remaining()
-    buffer = ByteArray(header.size + size + naluSize)
 
     val type: Int = validBuffer.get(0).toInt().shr(1 and 0x3f)
     var nalType = VideoDataType.INTER_FRAME.value
@@ -122,12 +110,31 @@ class H265Packet: BasePacket() {
       // we don't need send it because we already do it in video config
       return
     }
+    val dts = dtsGenerator.getDts(info.presentationTimeUs) / 1000
+    //sequence start use the dts of the first frame so timestamps never go backwards
+    if (!configSend && sps != null && pps != null && vps != null) {
+      //avoid send cts on sequence start
+      header[0] = (0b10000000 or (VideoDataType.KEYFRAME.value shl 4) or FourCCPacketType.SEQUENCE_START.value).toByte()
+      val config = VideoSpecificConfigHEVC(sps, pps, vps)
+      length = config.size + header.size - ctsLength
+      buffer = obtainBuffer(length)
+      config.write(buffer, header.size - ctsLength)
+      System.arraycopy(header, 0, buffer, 0, header.size - ctsLength)
+      callback(createPacket(buffer, dts, length, FlvType.VIDEO))
+      configSend = true
+    }
     header[0] = (0b10000000 or (nalType shl 4) or FourCCPacketType.CODED_FRAMES.value).toByte()
+    val cts = (ts - dts).toInt()
+    header[5] = (cts shr 16).toByte()
+    header[6] = (cts shr 8).toByte()
+    header[7] = cts.toByte()
+    length = header.size + size + naluSize
+    buffer = obtainBuffer(length)
     writeNaluSize(buffer, header.size, size)
     validBuffer.get(buffer, header.size + naluSize, size)
 
     System.arraycopy(header, 0, buffer, 0, header.size)
-    callback(FlvPacket(buffer, ts, buffer.size, FlvType.VIDEO))
+    callback(createPacket(buffer, dts, length, FlvType.VIDEO, cts))
   }
 
   //naluSize = UInt32
@@ -190,5 +197,6 @@ class H265Packet: BasePacket() {
       vps = null
     }
     configSend = false
+    dtsGenerator.reset()
   }
 }
\ No newline at end of file
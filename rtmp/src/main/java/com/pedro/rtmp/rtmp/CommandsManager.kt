@@ -22,6 +22,10 @@ import com.pedro.common.TimeUtils
 import com.pedro.common.VideoCodec
 import com.pedro.rtmp.amf.v0.*
 import com.pedro.rtmp.flv.FlvPacket
+import com.pedro.rtmp.flv.FlvType
+import com.pedro.rtmp.rtmp.chunk.ChunkReassembler
+import com.pedro.rtmp.rtmp.chunk.ChunkScheduler
+import com.pedro.rtmp.rtmp.chunk.ChunkSizeTuner
 import com.pedro.rtmp.rtmp.message.*
 import com.pedro.rtmp.rtmp.message.control.Event
 import com.pedro.rtmp.rtmp.message.control.Type
@@ -41,6 +45,8 @@ abstract class CommandsManager {
   protected val TAG = "CommandsManager"
 
   val sessionHistory = CommandSessionHistory()
+  //serialized messages that only change if the config change
+  private val cachedMessages = HashMap<String, Pair<List<Any?>, RtmpMessage>>()
   var timestamp = 0
   protected var commandId = 0
   var streamId = 0
@@ -55,7 +61,26 @@ abstract class CommandsManager {
   var onAuth = false
   var incrementalTs = false
   var startTs = 0L
+  //subtracted to packet timestamps to start a new session near 0 after replay a cached GOP
+  var timestampOffset = 0L
   var readChunkSize = RtmpConfig.DEFAULT_CHUNK_SIZE
+  //chunk size requested by the user, sent at the start of the connection
+  var writeChunkSize = RtmpConfig.DEFAULT_CHUNK_SIZE
+  //update the write chunk size during the stream using frame sizes
+  var autoChunkSize = false
+  //chunk size in use for this connection
+  protected var currentWriteChunkSize = RtmpConfig.DEFAULT_CHUNK_SIZE
+    private set
+  var acknowledgementWindowSize = Int.MAX_VALUE
+  //bytes written before the server must send an Acknowledgement, 0 to use the server window
+  var writeAcknowledgementWindowSize = RtmpConfig.DEFAULT_ACKNOWLEDGEMENT_WINDOW_SIZE
+  val deliveryTracker = DeliveryTracker()
+  //count bytes written to compare it with server acknowledgements
+  private val countingOutput = CountingOutputStream(deliveryTracker)
+  private val chunkSizeTuner = ChunkSizeTuner()
+  private val chunkReassembler = ChunkReassembler(sessionHistory)
+  //extra tracks are sent as Enhanced RTMP multitrack packets
+  var multitrack = false
   var audioDisabled = false
   var videoDisabled = false
   private var bytesRead = 0
@@ -71,6 +96,29 @@ abstract class CommandsManager {
   //Avoid write a packet in middle of other.
   private val writeSync = Mutex(locked = false)
 
+  /**
+   * Copy the configuration set before connect, used when the manager is replaced to change the amf version
+   */
+  fun copyConfig(commandsManager: CommandsManager) {
+    flashVersion = commandsManager.flashVersion
+    user = commandsManager.user
+    password = commandsManager.password
+    incrementalTs = commandsManager.incrementalTs
+    writeChunkSize = commandsManager.writeChunkSize
+    autoChunkSize = commandsManager.autoChunkSize
+    writeAcknowledgementWindowSize = commandsManager.writeAcknowledgementWindowSize
+    multitrack = commandsManager.multitrack
+    audioDisabled = commandsManager.audioDisabled
+    videoDisabled = commandsManager.videoDisabled
+    width = commandsManager.width
+    height = commandsManager.height
+    fps = commandsManager.fps
+    sampleRate = commandsManager.sampleRate
+    isStereo = commandsManager.isStereo
+    videoCodec = commandsManager.videoCodec
+    audioCodec = commandsManager.audioCodec
+  }
+
   fun setVideoResolution(width: Int, height: Int) {
     this.width = width
     this.height = height
@@ -90,18 +138,38 @@ abstract class CommandsManager {
     return (TimeUtils.getCurrentTimeMillis() / 1000 - timestamp).toInt()
   }
 
+  /**
+   * Reuse the message created with the same key last time so reconnections don't serialize it
+   * again. Timestamp and stream id are updated because they are not part of the body.
+   */
+  protected fun getCachedMessage(name: String, key: List<Any?>, create: () -> RtmpMessage): RtmpMessage {
+    val cached = cachedMessages[name]
+    val message = if (cached != null && cached.first == key) {
+      cached.second
+    } else {
+      create().also { cachedMessages[name] = key to it }
+    }
+    message.header.timeStamp = getCurrentTimestamp()
+    message.header.messageStreamId = streamId
+    return message
+  }
+
+  /**
+   * Must be called with writeSync locked
+   */
+  private fun getOutput(socket: RtmpSocket): OutputStream {
+    countingOutput.output = socket.getOutStream()
+    return countingOutput
+  }
+
   @Throws(IOException::class)
   suspend fun sendChunkSize(socket: RtmpSocket) {
     writeSync.withLock {
-      val output = socket.getOutStream()
-      if (RtmpConfig.writeChunkSize != RtmpConfig.DEFAULT_CHUNK_SIZE) {
-        val chunkSize = SetChunkSize(RtmpConfig.writeChunkSize)
-        chunkSize.header.timeStamp = getCurrentTimestamp()
-        chunkSize.header.messageStreamId = streamId
-        chunkSize.writeHeader(output)
-        chunkSize.writeBody(output)
+      val output = getOutput(socket)
+      chunkSizeTuner.reset(writeChunkSize)
+      if (writeChunkSize != RtmpConfig.DEFAULT_CHUNK_SIZE) {
+        writeSetChunkSize(writeChunkSize, output)
         socket.flush()
-        Log.i(TAG, "send $chunkSize")
       } else {
         Log.i(TAG, "using default write chunk size ${RtmpConfig.DEFAULT_CHUNK_SIZE}")
       }
@@ -111,7 +179,7 @@ abstract class CommandsManager {
   @Throws(IOException::class)
   suspend fun sendConnect(auth: String, socket: RtmpSocket) {
     writeSync.withLock {
-      val output = socket.getOutStream()
+      val output = getOutput(socket)
       sendConnect(auth, output)
       socket.flush()
     }
@@ -120,7 +188,7 @@ abstract class CommandsManager {
   @Throws(IOException::class)
   suspend fun createStream(socket: RtmpSocket) {
     writeSync.withLock {
-      val output = socket.getOutStream()
+      val output = getOutput(socket)
       createStream(output)
       socket.flush()
     }
@@ -129,8 +197,7 @@ abstract class CommandsManager {
   @Throws(IOException::class)
   fun readMessageResponse(socket: RtmpSocket): RtmpMessage {
     val input = socket.getInputStream()
-    val message = RtmpMessage.getRtmpMessage(input, readChunkSize, sessionHistory)
-    sessionHistory.setReadHeader(message.header)
+    val message = chunkReassembler.readMessage(input, readChunkSize)
     Log.i(TAG, "read $message")
     bytesRead += message.header.getPacketLength()
     return message
@@ -139,7 +206,7 @@ abstract class CommandsManager {
   @Throws(IOException::class)
   suspend fun sendMetadata(socket: RtmpSocket) {
     writeSync.withLock {
-      val output = socket.getOutStream()
+      val output = getOutput(socket)
       sendMetadata(output)
       socket.flush()
     }
@@ -148,7 +215,7 @@ abstract class CommandsManager {
   @Throws(IOException::class)
   suspend fun sendPublish(socket: RtmpSocket) {
     writeSync.withLock {
-      val output = socket.getOutStream()
+      val output = getOutput(socket)
       sendPublish(output)
       socket.flush()
     }
@@ -157,20 +224,21 @@ abstract class CommandsManager {
   @Throws(IOException::class)
   suspend fun sendWindowAcknowledgementSize(socket: RtmpSocket) {
     writeSync.withLock {
-      val output = socket.getOutStream()
-      val windowAcknowledgementSize = WindowAcknowledgementSize(RtmpConfig.acknowledgementWindowSize, getCurrentTimestamp())
+      val output = getOutput(socket)
+      val windowSize = if (writeAcknowledgementWindowSize > 0) writeAcknowledgementWindowSize else acknowledgementWindowSize
+      val windowAcknowledgementSize = WindowAcknowledgementSize(windowSize, getCurrentTimestamp())
       windowAcknowledgementSize.writeHeader(output)
-      windowAcknowledgementSize.writeBody(output)
+      windowAcknowledgementSize.writeBody(output, currentWriteChunkSize)
       socket.flush()
     }
   }
 
   suspend fun sendPong(event: Event, socket: RtmpSocket) {
     writeSync.withLock {
-      val output = socket.getOutStream()
+      val output = getOutput(socket)
       val pong = UserControl(Type.PONG_REPLY, event)
       pong.writeHeader(output)
-      pong.writeBody(output)
+      pong.writeBody(output, currentWriteChunkSize)
       socket.flush()
       Log.i(TAG, "send pong")
     }
@@ -179,7 +247,7 @@ abstract class CommandsManager {
   @Throws(IOException::class)
   suspend fun sendClose(socket: RtmpSocket) {
     writeSync.withLock {
-      val output = socket.getOutStream()
+      val output = getOutput(socket)
       sendClose(output)
       socket.flush()
     }
@@ -187,13 +255,13 @@ abstract class CommandsManager {
 
   suspend fun checkAndSendAcknowledgement(socket: RtmpSocket) {
     writeSync.withLock {
-      if (bytesRead >= RtmpConfig.acknowledgementWindowSize) {
+      if (bytesRead >= acknowledgementWindowSize) {
         acknowledgementSequence += bytesRead
-        bytesRead -= RtmpConfig.acknowledgementWindowSize
-        val output = socket.getOutStream()
+        bytesRead -= acknowledgementWindowSize
+        val output = getOutput(socket)
         val acknowledgement = Acknowledgement(acknowledgementSequence)
         acknowledgement.writeHeader(output)
-        acknowledgement.writeBody(output)
+        acknowledgement.writeBody(output, currentWriteChunkSize)
         output.flush()
         Log.i(TAG, "send $acknowledgement")
       }
@@ -203,13 +271,11 @@ abstract class CommandsManager {
   @Throws(IOException::class)
   suspend fun sendVideoPacket(flvPacket: FlvPacket, socket: RtmpSocket): Int {
     writeSync.withLock {
-      val output = socket.getOutStream()
-      if (incrementalTs) {
-        flvPacket.timeStamp = ((TimeUtils.getCurrentTimeNano() / 1000 - startTs) / 1000)
-      }
-      val video = Video(flvPacket, streamId)
+      val output = getOutput(socket)
+      tuneChunkSize(flvPacket, output)
+      val video = createVideo(flvPacket)
       video.writeHeader(output)
-      video.writeBody(output)
+      video.writeBody(output, currentWriteChunkSize)
       socket.flush(true)
       return video.header.getPacketLength() //get packet size with header included to calculate bps
     }
@@ -218,18 +284,113 @@ abstract class CommandsManager {
   @Throws(IOException::class)
   suspend fun sendAudioPacket(flvPacket: FlvPacket, socket: RtmpSocket): Int {
     writeSync.withLock {
-      val output = socket.getOutStream()
-      if (incrementalTs) {
-        flvPacket.timeStamp = ((TimeUtils.getCurrentTimeNano() / 1000 - startTs) / 1000)
-      }
-      val audio = Audio(flvPacket, streamId)
+      val output = getOutput(socket)
+      val audio = createAudio(flvPacket)
       audio.writeHeader(output)
-      audio.writeBody(output)
+      audio.writeBody(output, currentWriteChunkSize)
       socket.flush(true)
       return audio.header.getPacketLength() //get packet size with header included to calculate bps
     }
   }
 
+  /**
+   * Add the packet to the scheduler to be written chunk by chunk using sendNextChunk.
+   * @param onRelease called when the packet is written or discarded
+   */
+  @Throws(IOException::class)
+  suspend fun addPacket(flvPacket: FlvPacket, chunkScheduler: ChunkScheduler, socket: RtmpSocket, onRelease: () -> Unit) {
+    writeSync.withLock {
+      //the chunk size can't change while a message is written partially
+      if (!chunkScheduler.hasPending()) tuneChunkSize(flvPacket, getOutput(socket))
+      val message = if (flvPacket.type == FlvType.VIDEO) createVideo(flvPacket) else createAudio(flvPacket)
+      chunkScheduler.add(message, onRelease)
+    }
+  }
+
+  /**
+   * Write the next chunk selected by the scheduler. Other messages can be sent between chunks.
+   * @return packet size with header included if the chunk completed a message, 0 otherwise
+   */
+  @Throws(IOException::class)
+  suspend fun sendNextChunk(chunkScheduler: ChunkScheduler, socket: RtmpSocket): Int {
+    writeSync.withLock {
+      val message = chunkScheduler.writeChunk(getOutput(socket), currentWriteChunkSize) ?: return 0
+      socket.flush(true)
+      return message.header.getPacketLength()
+    }
+  }
+
+  /**
+   * Send a new chunk size if auto chunk size is enabled and frame sizes changed.
+   * Must be called before start to write a message.
+   */
+  @Throws(IOException::class)
+  private fun tuneChunkSize(flvPacket: FlvPacket, output: OutputStream) {
+    if (!autoChunkSize) return
+    if (flvPacket.type == FlvType.VIDEO) chunkSizeTuner.addFrame(flvPacket.length)
+    val chunkSize = chunkSizeTuner.chunkSize
+    if (chunkSize != currentWriteChunkSize) writeSetChunkSize(chunkSize, output)
+  }
+
+  @Throws(IOException::class)
+  private fun writeSetChunkSize(chunkSize: Int, output: OutputStream) {
+    val setChunkSize = SetChunkSize(chunkSize)
+    setChunkSize.header.timeStamp = getCurrentTimestamp()
+    setChunkSize.header.messageStreamId = streamId
+    setChunkSize.writeHeader(output)
+    setChunkSize.writeBody(output, currentWriteChunkSize)
+    currentWriteChunkSize = chunkSize
+    Log.i(TAG, "send $setChunkSize")
+  }
+
+  private fun createVideo(flvPacket: FlvPacket): Video {
+    if (incrementalTs) {
+      flvPacket.timeStamp = ((TimeUtils.getCurrentTimeNano() / 1000 - startTs) / 1000)
+    }
+    val video = Video(flvPacket, streamId)
+    if (timestampOffset != 0L) video.header.timeStamp = getRebasedTimestamp(flvPacket)
+    video.header.compressHeader(sessionHistory)
+    return video
+  }
+
+  private fun createAudio(flvPacket: FlvPacket): Audio {
+    if (incrementalTs) {
+      flvPacket.timeStamp = ((TimeUtils.getCurrentTimeNano() / 1000 - startTs) / 1000)
+    }
+    val audio = Audio(flvPacket, streamId)
+    if (timestampOffset != 0L) audio.header.timeStamp = getRebasedTimestamp(flvPacket)
+    audio.header.compressHeader(sessionHistory)
+    return audio
+  }
+
+  private fun getRebasedTimestamp(flvPacket: FlvPacket): Int {
+    return (flvPacket.timeStamp - timestampOffset).coerceAtLeast(0).toInt()
+  }
+
+  /**
+   * Enhanced RTMP codecs announced in connect command
+   */
+  protected fun getFourCcList(): List<String> {
+    val list = mutableListOf<String>()
+    if (!videoDisabled) {
+      when (videoCodec) {
+        VideoCodec.H265 -> list.add("hvc1")
+        VideoCodec.AV1 -> list.add("av01")
+        //multitrack packets always use fourCC
+        VideoCodec.H264 -> if (multitrack) list.add("avc1")
+      }
+    }
+    if (!audioDisabled) {
+      when (audioCodec) {
+        AudioCodec.OPUS -> list.add("Opus")
+        //multitrack packets always use fourCC
+        AudioCodec.AAC -> if (multitrack) list.add("mp4a")
+        AudioCodec.G711 -> {}
+      }
+    }
+    return list
+  }
+
   abstract fun sendConnect(auth: String, output: OutputStream)
   abstract fun createStream(output: OutputStream)
   abstract fun sendMetadata(output: OutputStream)
@@ -238,12 +399,35 @@ abstract class CommandsManager {
 
   fun reset() {
     startTs = 0
+    timestampOffset = 0
     timestamp = 0
     streamId = 0
     commandId = 0
     readChunkSize = RtmpConfig.DEFAULT_CHUNK_SIZE
+    currentWriteChunkSize = RtmpConfig.DEFAULT_CHUNK_SIZE
+    acknowledgementWindowSize = Int.MAX_VALUE
     sessionHistory.reset()
+    chunkReassembler.reset()
     acknowledgementSequence = 0
     bytesRead = 0
+    deliveryTracker.reset()
+  }
+
+  private class CountingOutputStream(private val deliveryTracker: DeliveryTracker): OutputStream() {
+    lateinit var output: OutputStream
+
+    override fun write(b: Int) {
+      output.write(b)
+      deliveryTracker.onBytesWritten(1)
+    }
+
+    override fun write(b: ByteArray, off: Int, len: Int) {
+      output.write(b, off, len)
+      deliveryTracker.onBytesWritten(len)
+    }
+
+    override fun flush() {
+      output.flush()
+    }
   }
 }
@@ -32,34 +32,33 @@ import com.pedro.rtmp.rtmp.chunk.ChunkType
 import com.pedro.rtmp.rtmp.message.BasicHeader
 import com.pedro.rtmp.rtmp.message.command.CommandAmf0
 import com.pedro.rtmp.rtmp.message.data.DataAmf0
+import com.pedro.rtmp.utils.RtmpConfig
 import java.io.OutputStream
 
 class CommandsManagerAmf0: CommandsManager() {
   override fun sendConnect(auth: String, output: OutputStream) {
-    val connect = CommandAmf0("connect", ++commandId, getCurrentTimestamp(), streamId,
-        BasicHeader(ChunkType.TYPE_0, ChunkStreamId.OVER_CONNECTION.mark))
-    val connectInfo = AmfObject()
-    connectInfo.setProperty("app", appName + auth)
-    connectInfo.setProperty("flashVer", flashVersion)
-    connectInfo.setProperty("tcUrl", tcUrl + auth)
-    if (!videoDisabled) {
-      if (videoCodec == VideoCodec.H265) {
-        val list = mutableListOf<AmfData>()
-        list.add(AmfString("hvc1"))
-        val array = AmfStrictArray(list)
-        connectInfo.setProperty("fourCcList", array)
-      } else if (videoCodec == VideoCodec.AV1) {
-        val list = mutableListOf<AmfData>()
-        list.add(AmfString("av01"))
-        val array = AmfStrictArray(list)
-        connectInfo.setProperty("fourCcList", array)
+    val id = ++commandId
+    val key = listOf(id, appName + auth, flashVersion, tcUrl + auth, videoDisabled, videoCodec, audioDisabled, audioCodec, multitrack)
+    val connect = getCachedMessage("connect", key) {
+      val connect = CommandAmf0("connect", id, getCurrentTimestamp(), streamId,
+          BasicHeader(ChunkType.TYPE_0, ChunkStreamId.OVER_CONNECTION.mark))
+      val connectInfo = AmfObject()
+      connectInfo.setProperty("app", appName + auth)
+      connectInfo.setProperty("flashVer", flashVersion)
+      connectInfo.setProperty("tcUrl", tcUrl + auth)
+      val fourCcList = getFourCcList()
+      if (fourCcList.isNotEmpty()) {
+        val list = fourCcList.mapTo(mutableListOf<AmfData>()) { AmfString(it) }
+        connectInfo.setProperty("fourCcList", AmfStrictArray(list))
       }
+      if (multitrack) connectInfo.setProperty("capsEx", RtmpConfig.CAPS_EX_MULTITRACK.toDouble())
+      connectInfo.setProperty("objectEncoding", 0.0)
+      connect.addData(connectInfo)
+      connect
     }
-    connectInfo.setProperty("objectEncoding", 0.0)
-    connect.addData(connectInfo)
 
     connect.writeHeader(output)
-    connect.writeBody(output)
+    connect.writeBody(output, currentWriteChunkSize)
     sessionHistory.setPacket(commandId, "connect")
     Log.i(TAG, "send $connect")
   }
@@ -71,7 +70,7 @@ class CommandsManagerAmf0: CommandsManager() {
     releaseStream.addData(AmfString(streamName))
 
     releaseStream.writeHeader(output)
-    releaseStream.writeBody(output)
+    releaseStream.writeBody(output, currentWriteChunkSize)
     sessionHistory.setPacket(commandId, "releaseStream")
     Log.i(TAG, "send $releaseStream")
 
@@ -81,7 +80,7 @@ class CommandsManagerAmf0: CommandsManager() {
     fcPublish.addData(AmfString(streamName))
 
     fcPublish.writeHeader(output)
-    fcPublish.writeBody(output)
+    fcPublish.writeBody(output, currentWriteChunkSize)
     sessionHistory.setPacket(commandId, "FCPublish")
     Log.i(TAG, "send $fcPublish")
 
@@ -90,60 +89,68 @@ class CommandsManagerAmf0: CommandsManager() {
     createStream.addData(AmfNull())
 
     createStream.writeHeader(output)
-    createStream.writeBody(output)
+    createStream.writeBody(output, currentWriteChunkSize)
     sessionHistory.setPacket(commandId, "createStream")
     Log.i(TAG, "send $createStream")
   }
 
   override fun sendMetadata(output: OutputStream) {
     val name = "@setDataFrame"
-    val metadata = DataAmf0(name, getCurrentTimestamp(), streamId)
-    metadata.addData(AmfString("onMetaData"))
-    val amfEcmaArray = AmfEcmaArray()
-    amfEcmaArray.setProperty("duration", 0.0)
-    if (!videoDisabled) {
-      amfEcmaArray.setProperty("width", width.toDouble())
-      amfEcmaArray.setProperty("height", height.toDouble())
-      //few servers don't support it even if it is in the standard rtmp enhanced
-      val codecValue = when (videoCodec) {
-        VideoCodec.H264 -> VideoFormat.AVC.value
-        VideoCodec.H265 -> VideoFormat.HEVC.value
-        VideoCodec.AV1 -> VideoFormat.AV1.value
+    val key = listOf(videoDisabled, audioDisabled, width, height, videoCodec, fps, audioCodec, sampleRate, isStereo)
+    val metadata = getCachedMessage(name, key) {
+      val metadata = DataAmf0(name, getCurrentTimestamp(), streamId)
+      metadata.addData(AmfString("onMetaData"))
+      val amfEcmaArray = AmfEcmaArray()
+      amfEcmaArray.setProperty("duration", 0.0)
+      if (!videoDisabled) {
+        amfEcmaArray.setProperty("width", width.toDouble())
+        amfEcmaArray.setProperty("height", height.toDouble())
+        //few servers don't support it even if it is in the standard rtmp enhanced
+        val codecValue = when (videoCodec) {
+          VideoCodec.H264 -> VideoFormat.AVC.value
+          VideoCodec.H265 -> VideoFormat.HEVC.value
+          VideoCodec.AV1 -> VideoFormat.AV1.value
+        }
+        amfEcmaArray.setProperty("videocodecid", codecValue.toDouble())
+        amfEcmaArray.setProperty("framerate", fps.toDouble())
+        amfEcmaArray.setProperty("videodatarate", 0.0)
       }
-      amfEcmaArray.setProperty("videocodecid", codecValue.toDouble())
-      amfEcmaArray.setProperty("framerate", fps.toDouble())
-      amfEcmaArray.setProperty("videodatarate", 0.0)
-    }
-    if (!audioDisabled) {
-      val codecValue = when (audioCodec) {
-        AudioCodec.G711 -> AudioFormat.G711_A.value
-        AudioCodec.AAC -> AudioFormat.AAC.value
-        AudioCodec.OPUS -> throw IllegalArgumentException("Unsupported codec: ${audioCodec.name}")
+      if (!audioDisabled) {
+        val codecValue = when (audioCodec) {
+          AudioCodec.G711 -> AudioFormat.G711_A.value
+          AudioCodec.AAC -> AudioFormat.AAC.value
+          AudioCodec.OPUS -> AudioFormat.OPUS.value
+        }
+        amfEcmaArray.setProperty("audiocodecid", codecValue.toDouble())
+        amfEcmaArray.setProperty("audiosamplerate", sampleRate.toDouble())
+        amfEcmaArray.setProperty("audiosamplesize", 16.0)
+        amfEcmaArray.setProperty("audiodatarate", 0.0)
+        amfEcmaArray.setProperty("stereo", isStereo)
       }
-      amfEcmaArray.setProperty("audiocodecid", codecValue.toDouble())
-      amfEcmaArray.setProperty("audiosamplerate", sampleRate.toDouble())
-      amfEcmaArray.setProperty("audiosamplesize", 16.0)
-      amfEcmaArray.setProperty("audiodatarate", 0.0)
-      amfEcmaArray.setProperty("stereo", isStereo)
+      amfEcmaArray.setProperty("filesize", 0.0)
+      metadata.addData(amfEcmaArray)
+      metadata
     }
-    amfEcmaArray.setProperty("filesize", 0.0)
-    metadata.addData(amfEcmaArray)
 
     metadata.writeHeader(output)
-    metadata.writeBody(output)
+    metadata.writeBody(output, currentWriteChunkSize)
     Log.i(TAG, "send $metadata")
   }
 
   override fun sendPublish(output: OutputStream) {
     val name = "publish"
-    val publish = CommandAmf0(name, ++commandId, getCurrentTimestamp(), streamId,
-        BasicHeader(ChunkType.TYPE_0, ChunkStreamId.OVER_STREAM.mark))
-    publish.addData(AmfNull())
-    publish.addData(AmfString(streamName))
-    publish.addData(AmfString("live"))
+    val id = ++commandId
+    val publish = getCachedMessage(name, listOf(id, streamName)) {
+      val publish = CommandAmf0(name, id, getCurrentTimestamp(), streamId,
+          BasicHeader(ChunkType.TYPE_0, ChunkStreamId.OVER_STREAM.mark))
+      publish.addData(AmfNull())
+      publish.addData(AmfString(streamName))
+      publish.addData(AmfString("live"))
+      publish
+    }
 
     publish.writeHeader(output)
-    publish.writeBody(output)
+    publish.writeBody(output, currentWriteChunkSize)
     sessionHistory.setPacket(commandId, name)
     Log.i(TAG, "send $publish")
   }
@@ -154,7 +161,7 @@ class CommandsManagerAmf0: CommandsManager() {
     closeStream.addData(AmfNull())
 
     closeStream.writeHeader(output)
-    closeStream.writeBody(output)
+    closeStream.writeBody(output, currentWriteChunkSize)
     sessionHistory.setPacket(commandId, name)
     Log.i(TAG, "send $closeStream")
   }
@@ -17,10 +17,9 @@
 package com.pedro.rtmp.rtmp
 
 import android.util.Log
-import com.pedro.common.VideoCodec
+import com.pedro.common.AudioCodec
 import com.pedro.rtmp.amf.v3.Amf3Array
 import com.pedro.rtmp.amf.v3.Amf3Data
-import com.pedro.rtmp.amf.v3.Amf3Dictionary
 import com.pedro.rtmp.amf.v3.Amf3Null
 import com.pedro.rtmp.amf.v3.Amf3Object
 import com.pedro.rtmp.amf.v3.Amf3String
@@ -31,34 +30,33 @@ import com.pedro.rtmp.rtmp.chunk.ChunkType
 import com.pedro.rtmp.rtmp.message.BasicHeader
 import com.pedro.rtmp.rtmp.message.command.CommandAmf3
 import com.pedro.rtmp.rtmp.message.data.DataAmf3
+import com.pedro.rtmp.utils.RtmpConfig
 import java.io.OutputStream
 
 class CommandsManagerAmf3: CommandsManager() {
   override fun sendConnect(auth: String, output: OutputStream) {
-    val connect = CommandAmf3("connect", ++commandId, getCurrentTimestamp(), streamId,
-        BasicHeader(ChunkType.TYPE_0, ChunkStreamId.OVER_CONNECTION.mark))
-    val connectInfo = Amf3Object()
-    connectInfo.setProperty("app", appName + auth)
-    connectInfo.setProperty("flashVer", flashVersion)
-    connectInfo.setProperty("tcUrl", tcUrl + auth)
-    if (!videoDisabled) {
-      if (videoCodec == VideoCodec.H265) {
-        val list = mutableListOf<Amf3Data>()
-        list.add(Amf3String("hvc1"))
-        val array = Amf3Array(list)
-        connectInfo.setProperty("fourCcList", array)
-      } else if (videoCodec == VideoCodec.AV1) {
-        val list = mutableListOf<Amf3Data>()
-        list.add(Amf3String("av01"))
-        val array = Amf3Array(list)
-        connectInfo.setProperty("fourCcList", array)
+    val id = ++commandId
+    val key = listOf(id, appName + auth, flashVersion, tcUrl + auth, videoDisabled, videoCodec, audioDisabled, audioCodec, multitrack)
+    val connect = getCachedMessage("connect", key) {
+      val connect = CommandAmf3("connect", id, getCurrentTimestamp(), streamId,
+          BasicHeader(ChunkType.TYPE_0, ChunkStreamId.OVER_CONNECTION.mark))
+      val connectInfo = Amf3Object()
+      connectInfo.setProperty("app", appName + auth)
+      connectInfo.setProperty("flashVer", flashVersion)
+      connectInfo.setProperty("tcUrl", tcUrl + auth)
+      val fourCcList = getFourCcList()
+      if (fourCcList.isNotEmpty()) {
+        val list = fourCcList.mapTo(mutableListOf<Amf3Data>()) { Amf3String(it) }
+        connectInfo.setProperty("fourCcList", Amf3Array(list))
       }
+      if (multitrack) connectInfo.setProperty("capsEx", RtmpConfig.CAPS_EX_MULTITRACK.toDouble())
+      connectInfo.setProperty("objectEncoding", 3.0)
+      connect.addData(connectInfo)
+      connect
     }
-    connectInfo.setProperty("objectEncoding", 3.0)
-    connect.addData(connectInfo)
 
     connect.writeHeader(output)
-    connect.writeBody(output)
+    connect.writeBody(output, currentWriteChunkSize)
     sessionHistory.setPacket(commandId, "connect")
     Log.i(TAG, "send $connect")
   }
@@ -70,7 +68,7 @@ class CommandsManagerAmf3: CommandsManager() {
     releaseStream.addData(Amf3String(streamName))
 
     releaseStream.writeHeader(output)
-    releaseStream.writeBody(output)
+    releaseStream.writeBody(output, currentWriteChunkSize)
     sessionHistory.setPacket(commandId, "releaseStream")
     Log.i(TAG, "send $releaseStream")
 
@@ -80,7 +78,7 @@ class CommandsManagerAmf3: CommandsManager() {
     fcPublish.addData(Amf3String(streamName))
 
     fcPublish.writeHeader(output)
-    fcPublish.writeBody(output)
+    fcPublish.writeBody(output, currentWriteChunkSize)
     sessionHistory.setPacket(commandId, "FCPublish")
     Log.i(TAG, "send $fcPublish")
 
@@ -89,52 +87,61 @@ class CommandsManagerAmf3: CommandsManager() {
     createStream.addData(Amf3Null())
 
     createStream.writeHeader(output)
-    createStream.writeBody(output)
+    createStream.writeBody(output, currentWriteChunkSize)
     sessionHistory.setPacket(commandId, "createStream")
     Log.i(TAG, "send $createStream")
   }
 
   override fun sendMetadata(output: OutputStream) {
     val name = "@setDataFrame"
-    val metadata = DataAmf3(name, getCurrentTimestamp(), streamId)
-    metadata.addData(Amf3String("onMetaData"))
-    val amfEcmaArray = Amf3Dictionary()
-    amfEcmaArray.setProperty("duration", 0.0)
-    if (!videoDisabled) {
-      amfEcmaArray.setProperty("width", width.toDouble())
-      amfEcmaArray.setProperty("height", height.toDouble())
-      //few servers don't support it even if it is in the standard rtmp enhanced
-      //val codecValue = if (videoCodec == VideoCodec.H265) VideoFormat.HEVC.value else VideoFormat.AVC.value
-      //amfEcmaArray.setProperty("videocodecid", codecValue.toDouble())
-      amfEcmaArray.setProperty("videocodecid", VideoFormat.AVC.value.toDouble())
-      amfEcmaArray.setProperty("framerate", fps.toDouble())
-      amfEcmaArray.setProperty("videodatarate", 0.0)
-    }
-    if (!audioDisabled) {
-      amfEcmaArray.setProperty("audiocodecid", AudioFormat.AAC.value.toDouble())
-      amfEcmaArray.setProperty("audiosamplerate", sampleRate.toDouble())
-      amfEcmaArray.setProperty("audiosamplesize", 16.0)
-      amfEcmaArray.setProperty("audiodatarate", 0.0)
-      amfEcmaArray.setProperty("stereo", isStereo)
+    val key = listOf(videoDisabled, audioDisabled, width, height, videoCodec, fps, audioCodec, sampleRate, isStereo)
+    val metadata = getCachedMessage(name, key) {
+      val metadata = DataAmf3(name, getCurrentTimestamp(), streamId)
+      metadata.addData(Amf3String("onMetaData"))
+      val amfEcmaArray = Amf3Object()
+      amfEcmaArray.setProperty("duration", 0.0)
+      if (!videoDisabled) {
+        amfEcmaArray.setProperty("width", width.toDouble())
+        amfEcmaArray.setProperty("height", height.toDouble())
+        //few servers don't support it even if it is in the standard rtmp enhanced
+        //val codecValue = if (videoCodec == VideoCodec.H265) VideoFormat.HEVC.value else VideoFormat.AVC.value
+        //amfEcmaArray.setProperty("videocodecid", codecValue.toDouble())
+        amfEcmaArray.setProperty("videocodecid", VideoFormat.AVC.value.toDouble())
+        amfEcmaArray.setProperty("framerate", fps.toDouble())
+        amfEcmaArray.setProperty("videodatarate", 0.0)
+      }
+      if (!audioDisabled) {
+        val codecValue = if (audioCodec == AudioCodec.OPUS) AudioFormat.OPUS.value else AudioFormat.AAC.value
+        amfEcmaArray.setProperty("audiocodecid", codecValue.toDouble())
+        amfEcmaArray.setProperty("audiosamplerate", sampleRate.toDouble())
+        amfEcmaArray.setProperty("audiosamplesize", 16.0)
+        amfEcmaArray.setProperty("audiodatarate", 0.0)
+        amfEcmaArray.setProperty("stereo", isStereo)
+      }
+      amfEcmaArray.setProperty("filesize", 0.0)
+      metadata.addData(amfEcmaArray)
+      metadata
     }
-    amfEcmaArray.setProperty("filesize", 0.0)
-    metadata.addData(amfEcmaArray)
 
     metadata.writeHeader(output)
-    metadata.writeBody(output)
+    metadata.writeBody(output, currentWriteChunkSize)
     Log.i(TAG, "send $metadata")
   }
 
   override fun sendPublish(output: OutputStream) {
     val name = "publish"
-    val publish = CommandAmf3(name, ++commandId, getCurrentTimestamp(), streamId,
-        BasicHeader(ChunkType.TYPE_0, ChunkStreamId.OVER_STREAM.mark))
-    publish.addData(Amf3Null())
-    publish.addData(Amf3String(streamName))
-    publish.addData(Amf3String("live"))
+    val id = ++commandId
+    val publish = getCachedMessage(name, listOf(id, streamName)) {
+      val publish = CommandAmf3(name, id, getCurrentTimestamp(), streamId,
+          BasicHeader(ChunkType.TYPE_0, ChunkStreamId.OVER_STREAM.mark))
+      publish.addData(Amf3Null())
+      publish.addData(Amf3String(streamName))
+      publish.addData(Amf3String("live"))
+      publish
+    }
 
     publish.writeHeader(output)
-    publish.writeBody(output)
+    publish.writeBody(output, currentWriteChunkSize)
     sessionHistory.setPacket(commandId, name)
     Log.i(TAG, "send $publish")
   }
@@ -145,7 +152,7 @@ class CommandsManagerAmf3: CommandsManager() {
     closeStream.addData(Amf3Null())
 
     closeStream.writeHeader(output)
-    closeStream.writeBody(output)
+    closeStream.writeBody(output, currentWriteChunkSize)
     sessionHistory.setPacket(commandId, name)
     Log.i(TAG, "send $closeStream")
   }
@@ -0,0 +1,149 @@
+/*
+ * Copyright (C) 2024 pedroSG94.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.pedro.rtmp.rtmp
+
+import com.pedro.common.TimeUtils
+
+/**
+ * Compare bytes written in the socket with bytes acknowledged by the server using Acknowledgement
+ * messages. Bytes written and not acknowledged are in flight (kernel buffers or network). The in
+ * flight bytes and the RTT grow as soon as the network can't deliver the bitrate, before the send
+ * queue is full.
+ *
+ * The server only send an Acknowledgement after receive a window of bytes, so values are updated
+ * at most once per window.
+ */
+class DeliveryTracker {
+
+  private class Sample(var bytes: Long, val timeNs: Long)
+
+  private val sync = Any()
+  //write times to know when the acknowledged byte was written, merged by millisecond
+  private val samples = ArrayDeque<Sample>()
+  private var bytesWritten = 0L
+  private var bytesAcknowledged = 0L
+  private var lastSequence = -1L
+  private var lastAcknowledgementTimeNs = 0L
+  private var smoothedRttNs = 0L
+  private var minRttNs = 0L
+  private var deliveryRate = 0L
+
+  companion object {
+    private const val MAX_SAMPLES = 4096
+    private const val SAMPLE_INTERVAL_NS = 1_000_000L
+    private const val RTT_FACTOR = 0.125f
+    private const val RATE_FACTOR = 0.25f
+  }
+
+  fun onBytesWritten(bytes: Int) {
+    if (bytes <= 0) return
+    synchronized(sync) { addSample(bytes) }
+  }
+
+  private fun addSample(bytes: Int) {
+    bytesWritten += bytes
+    val now = TimeUtils.getCurrentTimeNano()
+    val last = samples.lastOrNull()
+    if (last != null && now - last.timeNs < SAMPLE_INTERVAL_NS) {
+      last.bytes = bytesWritten
+    } else {
+      samples.addLast(Sample(bytesWritten, now))
+      if (samples.size > MAX_SAMPLES) samples.removeFirst()
+    }
+  }
+
+  /**
+   * @param sequenceNumber bytes received by the server, unsigned 32 bits that wrap around
+   */
+  fun onAcknowledgement(sequenceNumber: Int) {
+    synchronized(sync) { acknowledge(sequenceNumber) }
+  }
+
+  private fun acknowledge(sequenceNumber: Int) {
+    val now = TimeUtils.getCurrentTimeNano()
+    val sequence = sequenceNumber.toLong() and 0xFFFFFFFFL
+    val hasPrevious = lastSequence >= 0
+    val acknowledged = if (!hasPrevious) sequence else {
+      bytesAcknowledged + ((sequence - lastSequence) and 0xFFFFFFFFL)
+    }
+    lastSequence = sequence
+    //the server could count the handshake
+    val newAcknowledged = acknowledged.coerceAtMost(bytesWritten)
+    val deliveredBytes = newAcknowledged - bytesAcknowledged
+    if (hasPrevious && now > lastAcknowledgementTimeNs && deliveredBytes > 0) {
+      val rate = deliveredBytes * 8 * 1_000_000_000L / (now - lastAcknowledgementTimeNs)
+      deliveryRate = if (deliveryRate == 0L) rate else (deliveryRate + (rate - deliveryRate) * RATE_FACTOR).toLong()
+    }
+    lastAcknowledgementTimeNs = now
+    bytesAcknowledged = newAcknowledged
+    //the acknowledged byte was written with the first sample that reach it
+    var writeTimeNs: Long? = null
+    while (samples.isNotEmpty()) {
+      val sample = samples.first()
+      if (sample.bytes >= newAcknowledged) {
+        writeTimeNs = sample.timeNs
+        if (sample.bytes == newAcknowledged) samples.removeFirst()
+        break
+      }
+      samples.removeFirst()
+    }
+    if (writeTimeNs != null) {
+      val rtt = now - writeTimeNs
+      smoothedRttNs = if (smoothedRttNs == 0L) rtt else (smoothedRttNs + (rtt - smoothedRttNs) * RTT_FACTOR).toLong()
+      if (minRttNs == 0L || rtt < minRttNs) minRttNs = rtt
+    }
+  }
+
+  /**
+   * @return bytes written and not acknowledged by the server
+   */
+  fun getBytesInFlight(): Long = synchronized(sync) { bytesWritten - bytesAcknowledged }
+
+  /**
+   * @return bits per second acknowledged by the server, 0 if unknown
+   */
+  fun getDeliveryRate(): Long = synchronized(sync) { deliveryRate }
+
+  /**
+   * @return smoothed time in milliseconds between write a byte and receive the acknowledgement, 0 if unknown
+   */
+  fun getRtt(): Long = synchronized(sync) { smoothedRttNs / 1_000_000 }
+
+  fun getMinRtt(): Long = synchronized(sync) { minRttNs / 1_000_000 }
+
+  /**
+   * @return time in milliseconds needed to deliver the bytes in flight with the current delivery
+   * rate, 0 if unknown. It can be added to the send queue delay to know the total delay.
+   */
+  fun getInFlightDelay(): Long = synchronized(sync) {
+    if (deliveryRate <= 0) 0 else (bytesWritten - bytesAcknowledged) * 8 * 1000 / deliveryRate
+  }
+
+  fun reset() {
+    synchronized(sync) {
+      samples.clear()
+      bytesWritten = 0
+      bytesAcknowledged = 0
+      lastSequence = -1
+      lastAcknowledgementTimeNs = 0
+      smoothedRttNs = 0
+      minRttNs = 0
+      deliveryRate = 0
+    }
+  }
+}
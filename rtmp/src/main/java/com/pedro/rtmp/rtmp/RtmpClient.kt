@@ -29,9 +29,12 @@ import com.pedro.rtmp.rtmp.message.*
 import com.pedro.rtmp.rtmp.message.command.Command
 import com.pedro.rtmp.rtmp.message.control.Type
 import com.pedro.rtmp.rtmp.message.control.UserControl
+import com.pedro.rtmp.rtmp.queue.DropReason
+import com.pedro.rtmp.rtmp.queue.GopCache
+import com.pedro.rtmp.rtmp.queue.QueuePolicy
 import com.pedro.rtmp.utils.AuthUtil
-import com.pedro.rtmp.utils.RtmpConfig
 import com.pedro.rtmp.utils.socket.RtmpSocket
+import com.pedro.rtmp.utils.socket.TcpNioSocket
 import com.pedro.rtmp.utils.socket.TcpSocket
 import com.pedro.rtmp.utils.socket.TcpTunneledSocket
 import kotlinx.coroutines.CoroutineScope
@@ -73,6 +76,7 @@ class RtmpClient(private val connectChecker: ConnectChecker) {
   private var tlsEnabled = false
   private var certificates: Array<TrustManager>? = null
   private var tunneled = false
+  private var useNioSocket = false
 
   private var doingRetry = false
   private var numRetry = 0
@@ -85,6 +89,12 @@ class RtmpClient(private val connectChecker: ConnectChecker) {
   val droppedVideoFrames: Long
     get() = rtmpSender.droppedVideoFrames
 
+  /**
+   * Frames discarded by the queue policy for the reason indicated.
+   * Included in droppedAudioFrames and droppedVideoFrames.
+   */
+  fun getDroppedFrames(reason: DropReason): Long = rtmpSender.getDroppedFrames(reason)
+
   val cacheSize: Int
     get() = rtmpSender.getCacheSize()
   val sentAudioFrames: Long
@@ -107,19 +117,20 @@ class RtmpClient(private val connectChecker: ConnectChecker) {
 
   fun setAudioCodec(audioCodec: AudioCodec) {
     if (!isStreaming) {
-      commandsManager.audioCodec = when (audioCodec) {
-        AudioCodec.OPUS -> throw IllegalArgumentException("Unsupported codec: ${audioCodec.name}")
-        else -> audioCodec
-      }
+      commandsManager.audioCodec = audioCodec
     }
   }
 
   fun setAmfVersion(amfVersion: AmfVersion) {
     if (!isStreaming) {
-      commandsManager = when (amfVersion) {
+      val newCommandsManager = when (amfVersion) {
         AmfVersion.VERSION_0 -> CommandsManagerAmf0()
         AmfVersion.VERSION_3 -> CommandsManagerAmf3()
       }
+      //keep values configured before change the amf version
+      newCommandsManager.copyConfig(commandsManager)
+      commandsManager = newCommandsManager
+      rtmpSender.commandsManager = commandsManager
     }
   }
 
@@ -146,13 +157,68 @@ class RtmpClient(private val connectChecker: ConnectChecker) {
     commandsManager.audioDisabled = onlyVideo
   }
 
+  /**
+   * Use a SocketChannel that packs the chunks written between flushes in a direct buffer and send
+   * them with a single blocking write, instead of a buffered socket. Ignored in tunneled mode.
+   * Must be called before connect
+   */
+  fun setUseNioSocket(enabled: Boolean) {
+    useNioSocket = enabled
+  }
+
+  /**
+   * Select how frames are discarded when the cache is full. KeyFrameAwarePolicy by default.
+   */
+  fun setQueuePolicy(policy: QueuePolicy) {
+    rtmpSender.setQueuePolicy(policy)
+  }
+
+  /**
+   * Split audio and video packets in chunks and write audio chunks between chunks of big video
+   * packets, like keyframes, to avoid audio delays.
+   */
+  fun setChunkInterleaving(enabled: Boolean) {
+    rtmpSender.setChunkInterleaving(enabled)
+  }
+
+  /**
+   * Max number of consecutive B-frames produced by the video encoder. Used as reorder depth to
+   * calculate the decode timestamp of video frames. Must be called before setVideoInfo.
+   */
+  fun setMaxBFrames(maxBFrames: Int) {
+    rtmpSender.setMaxBFrames(maxBFrames)
+  }
+
+  /**
+   * Keep the last GOP in memory and send it after reconnect so viewers get video without wait
+   * for the next keyframe. Timestamps of the new session start from the cached keyframe.
+   * @param maxSize max bytes cached, a bigger GOP is not cached
+   */
+  @JvmOverloads
+  @Throws(IllegalArgumentException::class)
+  fun setGopCache(enabled: Boolean, maxSize: Int = GopCache.DEFAULT_MAX_SIZE) {
+    rtmpSender.setGopCache(enabled, maxSize)
+  }
+
+  fun hasGopCached(): Boolean = rtmpSender.hasGopCached()
+
   fun forceIncrementalTs(enabled: Boolean) {
     commandsManager.incrementalTs = enabled
   }
 
   fun setWriteChunkSize(chunkSize: Int) {
     if (!isStreaming) {
-      RtmpConfig.writeChunkSize = chunkSize
+      commandsManager.writeChunkSize = chunkSize
+    }
+  }
+
+  /**
+   * Update the write chunk size during the stream using the size of video frames.
+   * The chunk size selected with setWriteChunkSize is used at the start of the stream.
+   */
+  fun setAutoChunkSize(enabled: Boolean) {
+    if (!isStreaming) {
+      commandsManager.autoChunkSize = enabled
     }
   }
 
@@ -180,6 +246,39 @@ class RtmpClient(private val connectChecker: ConnectChecker) {
     rtmpSender.setVideoInfo(sps, pps, vps)
   }
 
+  /**
+   * Add a video track to send other rendition in the same stream using Enhanced RTMP multitrack.
+   * The codec is the same that the default track. Must be called before connect.
+   * Renditions should use aligned keyframes.
+   *
+   * @param trackId 1 to 255, 0 is the default track configured with setVideoInfo
+   */
+  @Throws(IllegalArgumentException::class)
+  fun setVideoTrackInfo(trackId: Int, sps: ByteBuffer, pps: ByteBuffer?, vps: ByteBuffer?) {
+    rtmpSender.setVideoTrackInfo(trackId, sps, pps, vps)
+    commandsManager.multitrack = true
+  }
+
+  /**
+   * Add an audio track to send other rendition in the same stream using Enhanced RTMP multitrack.
+   * G711 is not supported. Must be called before connect.
+   *
+   * @param trackId 1 to 255, 0 is the default track configured with setAudioInfo
+   */
+  @Throws(IllegalArgumentException::class)
+  fun setAudioTrackInfo(trackId: Int, sampleRate: Int, isStereo: Boolean) {
+    rtmpSender.setAudioTrackInfo(trackId, sampleRate, isStereo)
+    commandsManager.multitrack = true
+  }
+
+  /**
+   * Remove tracks added with setVideoTrackInfo and setAudioTrackInfo
+   */
+  fun removeTracks() {
+    rtmpSender.removeTracks()
+    commandsManager.multitrack = false
+  }
+
   fun setVideoResolution(width: Int, height: Int) {
     commandsManager.setVideoResolution(width, height)
   }
@@ -311,6 +410,8 @@ class RtmpClient(private val connectChecker: ConnectChecker) {
   private fun establishConnection(): Boolean {
     val socket = if (tunneled) {
       TcpTunneledSocket(commandsManager.host, commandsManager.port, tlsEnabled)
+    } else if (useNioSocket) {
+      TcpNioSocket(commandsManager.host, commandsManager.port, tlsEnabled, certificates)
     } else {
       TcpSocket(commandsManager.host, commandsManager.port, tlsEnabled, certificates)
     }
@@ -342,10 +443,11 @@ class RtmpClient(private val connectChecker: ConnectChecker) {
       }
       MessageType.ACKNOWLEDGEMENT -> {
         val acknowledgement = message as Acknowledgement
+        commandsManager.deliveryTracker.onAcknowledgement(acknowledgement.sequenceNumber)
       }
       MessageType.WINDOW_ACKNOWLEDGEMENT_SIZE -> {
         val windowAcknowledgementSize = message as WindowAcknowledgementSize
-        RtmpConfig.acknowledgementWindowSize = windowAcknowledgementSize.acknowledgementWindowSize
+        commandsManager.acknowledgementWindowSize = windowAcknowledgementSize.acknowledgementWindowSize
       }
       MessageType.SET_PEER_BANDWIDTH -> {
         val setPeerBandwidth = message as SetPeerBandwidth
@@ -515,6 +617,7 @@ class RtmpClient(private val connectChecker: ConnectChecker) {
 
   private suspend fun disconnect(clear: Boolean) {
     if (isStreaming) rtmpSender.stop(clear)
+    else if (clear) rtmpSender.clearGopCache()
     runCatching {
       withTimeoutOrNull(100) {
         socket?.let { commandsManager.sendClose(it) }
@@ -553,6 +656,24 @@ class RtmpClient(private val connectChecker: ConnectChecker) {
     }
   }
 
+  /**
+   * Send a frame of the track added with setVideoTrackInfo
+   */
+  fun sendVideo(trackId: Int, h264Buffer: ByteBuffer, info: MediaCodec.BufferInfo) {
+    if (!commandsManager.videoDisabled) {
+      rtmpSender.sendVideoFrame(trackId, h264Buffer, info)
+    }
+  }
+
+  /**
+   * Send a frame of the track added with setAudioTrackInfo
+   */
+  fun sendAudio(trackId: Int, aacBuffer: ByteBuffer, info: MediaCodec.BufferInfo) {
+    if (!commandsManager.audioDisabled) {
+      rtmpSender.sendAudioFrame(trackId, aacBuffer, info)
+    }
+  }
+
   @JvmOverloads
   @Throws(IllegalArgumentException::class)
   fun hasCongestion(percentUsed: Float = 20f): Boolean {
@@ -590,6 +711,55 @@ class RtmpClient(private val connectChecker: ConnectChecker) {
 
   fun getItemsInCache(): Int = rtmpSender.getItemsInCache()
 
+  /**
+   * Limit the cache by media duration instead of only by size.
+   * @param durationMs max media duration in the cache. 0 to limit the cache only by size
+   */
+  @Throws(IllegalArgumentException::class)
+  fun setMaxCacheDuration(durationMs: Long) {
+    rtmpSender.setMaxCacheDuration(durationMs)
+  }
+
+  fun getMaxCacheDuration(): Long = rtmpSender.getMaxCacheDuration()
+
+  /**
+   * @return media duration in the cache in milliseconds
+   */
+  fun getCacheDelay(): Long = rtmpSender.getCacheDelay()
+
+  /**
+   * Must be called before start stream or will be ignored.
+   *
+   * @param windowSize bytes sent before the server must send an acknowledgement, used to calculate
+   * delivery metrics. 0 to use the window of the server.
+   */
+  fun setAcknowledgementWindowSize(windowSize: Int) {
+    if (windowSize < 0) throw IllegalArgumentException("window size must be 0 or greater")
+    commandsManager.writeAcknowledgementWindowSize = windowSize
+  }
+
+  /**
+   * @return bytes sent and not acknowledged by the server
+   */
+  fun getBytesInFlight(): Long = commandsManager.deliveryTracker.getBytesInFlight()
+
+  /**
+   * @return bits per second acknowledged by the server, 0 if unknown
+   */
+  fun getDeliveryRate(): Long = commandsManager.deliveryTracker.getDeliveryRate()
+
+  /**
+   * @return smoothed round trip time in milliseconds measured with server acknowledgements, 0 if unknown.
+   * It includes the time waiting in the socket buffer.
+   */
+  fun getRtt(): Long = commandsManager.deliveryTracker.getRtt()
+
+  /**
+   * @return time in milliseconds to deliver the bytes in flight, 0 if unknown.
+   * The total delay of the stream is getCacheDelay() + getInFlightDelay()
+   */
+  fun getInFlightDelay(): Long = commandsManager.deliveryTracker.getInFlightDelay()
+
   /**
    * @param factor values from 0.1f to 1f
    * Set an exponential factor to the bitrate calculation to avoid bitrate spikes
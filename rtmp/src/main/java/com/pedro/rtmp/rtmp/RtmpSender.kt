@@ -21,17 +21,25 @@ import android.util.Log
 import com.pedro.common.AudioCodec
 import com.pedro.common.BitrateManager
 import com.pedro.common.ConnectChecker
+import com.pedro.common.DtsGenerator
 import com.pedro.common.VideoCodec
 import com.pedro.common.onMainThread
-import com.pedro.common.trySend
 import com.pedro.rtmp.flv.BasePacket
 import com.pedro.rtmp.flv.FlvPacket
 import com.pedro.rtmp.flv.FlvType
+import com.pedro.rtmp.flv.MultitrackPacket
 import com.pedro.rtmp.flv.audio.packet.AacPacket
 import com.pedro.rtmp.flv.audio.packet.G711Packet
+import com.pedro.rtmp.flv.audio.packet.OpusPacket
 import com.pedro.rtmp.flv.video.packet.Av1Packet
 import com.pedro.rtmp.flv.video.packet.H264Packet
 import com.pedro.rtmp.flv.video.packet.H265Packet
+import com.pedro.rtmp.rtmp.chunk.ChunkScheduler
+import com.pedro.rtmp.rtmp.queue.DropReason
+import com.pedro.rtmp.rtmp.queue.GopCache
+import com.pedro.rtmp.rtmp.queue.PacketQueue
+import com.pedro.rtmp.rtmp.queue.QueuePolicy
+import com.pedro.rtmp.utils.BufferPool
 import com.pedro.rtmp.utils.socket.RtmpSocket
 import kotlinx.coroutines.CoroutineScope
 import kotlinx.coroutines.Dispatchers
@@ -43,8 +51,7 @@ import kotlinx.coroutines.isActive
 import kotlinx.coroutines.launch
 import kotlinx.coroutines.runInterruptible
 import java.nio.ByteBuffer
-import java.util.concurrent.BlockingQueue
-import java.util.concurrent.LinkedBlockingQueue
+import java.util.concurrent.ConcurrentHashMap
 import java.util.concurrent.TimeUnit
 
 /**
@@ -52,19 +59,33 @@ import java.util.concurrent.TimeUnit
  */
 class RtmpSender(
   private val connectChecker: ConnectChecker,
-  private val commandsManager: CommandsManager
+  @Volatile
+  var commandsManager: CommandsManager
 ) {
 
-  private var audioPacket: BasePacket = AacPacket()
-  private var videoPacket: BasePacket = H264Packet()
+  //reuse frame buffers, packets are released after write it in the socket
+  private val bufferPool = BufferPool()
+  private var audioPacket: BasePacket = AacPacket().apply { setBufferPool(bufferPool) }
+  private var videoPacket: BasePacket = H264Packet().apply { setBufferPool(bufferPool) }
+  //extra tracks sent as multitrack packets by track id
+  private val videoTracks = ConcurrentHashMap<Int, MultitrackPacket>()
+  private val audioTracks = ConcurrentHashMap<Int, MultitrackPacket>()
   @Volatile
   private var running = false
+  //keep packetizing frames into the GOP cache while reconnecting
+  @Volatile
+  private var caching = false
+  @Volatile
+  private var gopCacheEnabled = false
+  private val gopCache = GopCache()
+  //cache enabled while streaming so sequence headers were sent before it and are not cached
+  private var missingConfigs = false
+  private val sync = Any()
   private var cacheSize = 200
 
   private var job: Job? = null
   private val scope = CoroutineScope(Dispatchers.IO)
-  @Volatile
-  private var queue: BlockingQueue<FlvPacket> = LinkedBlockingQueue(cacheSize)
+  private val queue = PacketQueue(cacheSize)
   private var audioFramesSent: Long = 0
   private var videoFramesSent: Long = 0
   var socket: RtmpSocket? = null
@@ -73,75 +94,146 @@ class RtmpSender(
   var droppedVideoFrames: Long = 0
     private set
   private val bitrateManager: BitrateManager = BitrateManager(connectChecker)
+  private val chunkScheduler = ChunkScheduler()
+  @Volatile
+  private var chunkInterleaving = false
+  //reorder depth used to calculate dts of the video frames
+  private var maxBFrames = 0
   private var isEnableLogs = true
 
   companion object {
     private const val TAG = "RtmpSender"
   }
 
+  init {
+    queue.onDrop = { flvPacket, reason ->
+      if (flvPacket.type == FlvType.VIDEO) droppedVideoFrames++ else droppedAudioFrames++
+      Log.i(TAG, "${flvPacket.type} frame discarded, reason: $reason")
+    }
+  }
+
   fun setVideoInfo(sps: ByteBuffer, pps: ByteBuffer?, vps: ByteBuffer?) {
-    when (commandsManager.videoCodec) {
+    videoPacket = createVideoPacket(sps, pps, vps)
+  }
+
+  fun setAudioInfo(sampleRate: Int, isStereo: Boolean) {
+    audioPacket = createAudioPacket(sampleRate, isStereo)
+  }
+
+  /**
+   * Configure an extra video track sent as Enhanced RTMP multitrack packets. The codec is the
+   * same that the default track.
+   * @param trackId 1 to 255, 0 is the default track
+   */
+  @Throws(IllegalArgumentException::class)
+  fun setVideoTrackInfo(trackId: Int, sps: ByteBuffer, pps: ByteBuffer?, vps: ByteBuffer?) {
+    if (trackId !in 1..255) throw IllegalArgumentException("track id must be in range 1 to 255")
+    videoTracks[trackId] = MultitrackPacket(trackId, createVideoPacket(sps, pps, vps)).apply { setBufferPool(bufferPool) }
+  }
+
+  /**
+   * Configure an extra audio track sent as Enhanced RTMP multitrack packets. G711 is not supported.
+   * @param trackId 1 to 255, 0 is the default track
+   */
+  @Throws(IllegalArgumentException::class)
+  fun setAudioTrackInfo(trackId: Int, sampleRate: Int, isStereo: Boolean) {
+    if (trackId !in 1..255) throw IllegalArgumentException("track id must be in range 1 to 255")
+    if (commandsManager.audioCodec == AudioCodec.G711) throw IllegalArgumentException("Unsupported codec in multitrack: ${commandsManager.audioCodec.name}")
+    audioTracks[trackId] = MultitrackPacket(trackId, createAudioPacket(sampleRate, isStereo)).apply { setBufferPool(bufferPool) }
+  }
+
+  fun removeTracks() {
+    videoTracks.clear()
+    audioTracks.clear()
+  }
+
+  private fun createVideoPacket(sps: ByteBuffer, pps: ByteBuffer?, vps: ByteBuffer?): BasePacket {
+    val packet = when (commandsManager.videoCodec) {
       VideoCodec.H265 -> {
         if (vps == null || pps == null) throw IllegalArgumentException("pps or vps can't be null with h265")
-        videoPacket = H265Packet()
-        (videoPacket as H265Packet).sendVideoInfo(sps, pps, vps)
+        H265Packet(maxBFrames).apply { sendVideoInfo(sps, pps, vps) }
       }
       VideoCodec.AV1 -> {
-        videoPacket = Av1Packet()
-        (videoPacket as Av1Packet).sendVideoInfo(sps)
+        Av1Packet().apply { sendVideoInfo(sps) }
       }
       else -> {
         if (pps == null) throw IllegalArgumentException("pps can't be null with h264")
-        videoPacket = H264Packet()
-        (videoPacket as H264Packet).sendVideoInfo(sps, pps)
+        H264Packet(maxBFrames).apply { sendVideoInfo(sps, pps) }
       }
     }
+    packet.setBufferPool(bufferPool)
+    return packet
   }
 
-  fun setAudioInfo(sampleRate: Int, isStereo: Boolean) {
-    when (commandsManager.audioCodec) {
+  private fun createAudioPacket(sampleRate: Int, isStereo: Boolean): BasePacket {
+    val packet = when (commandsManager.audioCodec) {
       AudioCodec.G711 -> {
-        audioPacket = G711Packet()
-        (audioPacket as G711Packet).sendAudioInfo()
+        G711Packet().apply { sendAudioInfo() }
       }
       AudioCodec.AAC -> {
-        audioPacket = AacPacket()
-        (audioPacket as AacPacket).sendAudioInfo(sampleRate, isStereo)
+        AacPacket().apply { sendAudioInfo(sampleRate, isStereo) }
       }
       AudioCodec.OPUS -> {
-        throw IllegalArgumentException("Unsupported codec: ${commandsManager.audioCodec.name}")
+        OpusPacket().apply { sendAudioInfo(sampleRate, isStereo) }
       }
     }
+    packet.setBufferPool(bufferPool)
+    return packet
   }
 
   fun sendVideoFrame(h264Buffer: ByteBuffer, info: MediaCodec.BufferInfo) {
-    if (running) {
+    if (running || caching) {
       videoPacket.createFlvPacket(h264Buffer, info) { flvPacket ->
-        val result = queue.trySend(flvPacket)
-        if (!result) {
-          Log.i(TAG, "Video frame discarded")
-          droppedVideoFrames++
-        }
+        onFlvPacket(flvPacket)
       }
     }
   }
 
   fun sendAudioFrame(aacBuffer: ByteBuffer, info: MediaCodec.BufferInfo) {
-    if (running) {
+    if (running || caching) {
       audioPacket.createFlvPacket(aacBuffer, info) { flvPacket ->
-        val result = queue.trySend(flvPacket)
-        if (!result) {
-          Log.i(TAG, "Audio frame discarded")
-          droppedAudioFrames++
-        }
+        onFlvPacket(flvPacket)
+      }
+    }
+  }
+
+  fun sendVideoFrame(trackId: Int, h264Buffer: ByteBuffer, info: MediaCodec.BufferInfo) {
+    if (trackId == 0) return sendVideoFrame(h264Buffer, info)
+    val packet = videoTracks[trackId] ?: return
+    if (running || caching) {
+      packet.createFlvPacket(h264Buffer, info) { flvPacket ->
+        onFlvPacket(flvPacket)
+      }
+    }
+  }
+
+  fun sendAudioFrame(trackId: Int, aacBuffer: ByteBuffer, info: MediaCodec.BufferInfo) {
+    if (trackId == 0) return sendAudioFrame(aacBuffer, info)
+    val packet = audioTracks[trackId] ?: return
+    if (running || caching) {
+      packet.createFlvPacket(aacBuffer, info) { flvPacket ->
+        onFlvPacket(flvPacket)
       }
     }
   }
 
+  private fun onFlvPacket(flvPacket: FlvPacket) {
+    //synchronized with start to avoid lose or duplicate packets while the GOP is replayed
+    synchronized(sync) {
+      if (gopCacheEnabled) gopCache.add(flvPacket)
+      if (running) queue.offer(flvPacket) else flvPacket.release()
+    }
+  }
+
   fun start() {
     bitrateManager.reset()
-    queue.clear()
-    running = true
+    chunkScheduler.clear()
+    clearQueue()
+    synchronized(sync) {
+      if (gopCacheEnabled) replayGop()
+      caching = false
+      running = true
+    }
     job = scope.launch {
       var bytesSend = 0L
       val bitrateTask = async {
@@ -159,24 +251,31 @@ class RtmpSender(
           }
           if (flvPacket == null) {
             Log.i(TAG, "Skipping iteration, frame null")
+          } else if (chunkInterleaving) {
+            bytesSend += sendInterleaved(flvPacket)
           } else {
             var size = 0
-            if (flvPacket.type == FlvType.VIDEO) {
-              videoFramesSent++
-              socket?.let { socket ->
-                size = commandsManager.sendVideoPacket(flvPacket, socket)
-                if (isEnableLogs) {
-                  Log.i(TAG, "wrote Video packet, size $size")
+            try {
+              if (flvPacket.type == FlvType.VIDEO) {
+                videoFramesSent++
+                socket?.let { socket ->
+                  size = commandsManager.sendVideoPacket(flvPacket, socket)
+                  if (isEnableLogs) {
+                    Log.i(TAG, "wrote Video packet, size $size")
+                  }
                 }
-              }
-            } else {
-              audioFramesSent++
-              socket?.let { socket ->
-                size = commandsManager.sendAudioPacket(flvPacket, socket)
-                if (isEnableLogs) {
-                  Log.i(TAG, "wrote Audio packet, size $size")
+              } else {
+                audioFramesSent++
+                socket?.let { socket ->
+                  size = commandsManager.sendAudioPacket(flvPacket, socket)
+                  if (isEnableLogs) {
+                    Log.i(TAG, "wrote Audio packet, size $size")
+                  }
                 }
               }
+            } finally {
+              //the packet is already in the socket buffer so the buffer can be reused
+              flvPacket.release()
             }
             bytesSend += size
           }
@@ -193,34 +292,88 @@ class RtmpSender(
   }
 
   suspend fun stop(clear: Boolean = true) {
-    running = false
-    audioPacket.reset(clear)
-    videoPacket.reset(clear)
+    val keepGop = gopCacheEnabled && !clear
+    synchronized(sync) {
+      running = false
+      caching = keepGop
+      //the GOP can't be decoded without sequence headers, produce them again while reconnecting
+      if (keepGop && missingConfigs) {
+        resetPackets(false)
+        gopCache.clear()
+      }
+      missingConfigs = false
+    }
+    //packetizers continue without reset so cached sequence headers and timestamps are still valid
+    if (!keepGop) {
+      resetPackets(clear)
+      gopCache.clear()
+    }
     resetSentAudioFrames()
     resetSentVideoFrames()
     resetDroppedAudioFrames()
     resetDroppedVideoFrames()
+    queue.resetDroppedFrames()
     job?.cancelAndJoin()
     job = null
-    queue.clear()
+    chunkScheduler.clear()
+    clearQueue()
+    bufferPool.clear()
+  }
+
+  /**
+   * Queue the sequence headers and the last GOP so the server can decode video without wait for
+   * the next keyframe. Timestamps are rebased to start the new session from the cached keyframe.
+   */
+  private fun replayGop() {
+    val packets = gopCache.getPackets()
+    if (!commandsManager.incrementalTs) {
+      commandsManager.timestampOffset = packets.firstOrNull { !it.isSequenceHeader() }?.timeStamp ?: 0
+    }
+    packets.forEach { queue.offer(it) }
+    if (packets.isNotEmpty()) Log.i(TAG, "replaying ${packets.size} cached packets")
+  }
+
+  /**
+   * Write audio packets between chunks of video packets if audio packets are received while
+   * writing a video packet.
+   */
+  private suspend fun sendInterleaved(flvPacket: FlvPacket): Long {
+    val socket = socket
+    if (socket == null) {
+      flvPacket.release()
+      return 0
+    }
+    var size = 0L
+    addToScheduler(flvPacket, socket)
+    while (chunkScheduler.hasPending()) {
+      pollAudio()?.let { addToScheduler(it, socket) }
+      val messageSize = commandsManager.sendNextChunk(chunkScheduler, socket)
+      if (messageSize > 0 && isEnableLogs) {
+        Log.i(TAG, "wrote packet, size $messageSize")
+      }
+      size += messageSize
+    }
+    return size
+  }
+
+  private suspend fun addToScheduler(flvPacket: FlvPacket, socket: RtmpSocket) {
+    if (flvPacket.type == FlvType.VIDEO) videoFramesSent++ else audioFramesSent++
+    //the packet is in the socket buffer after write the last chunk so the buffer can be reused
+    commandsManager.addPacket(flvPacket, chunkScheduler, socket) { flvPacket.release() }
+  }
+
+  private fun pollAudio(): FlvPacket? {
+    return queue.poll { it.type == FlvType.AUDIO }
   }
 
   @Throws(IllegalArgumentException::class)
   fun hasCongestion(percentUsed: Float = 20f): Boolean {
     if (percentUsed < 0 || percentUsed > 100) throw IllegalArgumentException("the value must be in range 0 to 100")
-    val size = queue.size.toFloat()
-    val remaining = queue.remainingCapacity().toFloat()
-    val capacity = size + remaining
-    return size >= capacity * (percentUsed / 100f)
+    return queue.getUsage() >= percentUsed
   }
 
   fun resizeCache(newSize: Int) {
-    if (newSize < queue.size - queue.remainingCapacity()) {
-      throw RuntimeException("Can't fit current cache inside new cache size")
-    }
-    val tempQueue: BlockingQueue<FlvPacket> = LinkedBlockingQueue(newSize)
-    queue.drainTo(tempQueue)
-    queue = tempQueue
+    queue.resize(newSize)
   }
 
   fun getCacheSize(): Int {
@@ -229,7 +382,26 @@ class RtmpSender(
 
   fun getItemsInCache(): Int = queue.size
 
+  /**
+   * @param durationMs max media duration in the cache. 0 to limit the cache only by size
+   */
+  @Throws(IllegalArgumentException::class)
+  fun setMaxCacheDuration(durationMs: Long) {
+    queue.maxDurationMs = durationMs
+  }
+
+  fun getMaxCacheDuration(): Long = queue.maxDurationMs
+
+  /**
+   * @return media duration in the cache in milliseconds
+   */
+  fun getCacheDelay(): Long = queue.getDelayMs()
+
   fun clearCache() {
+    clearQueue()
+  }
+
+  private fun clearQueue() {
     queue.clear()
   }
 
@@ -257,6 +429,58 @@ class RtmpSender(
     droppedVideoFrames = 0
   }
 
+  fun setQueuePolicy(policy: QueuePolicy) {
+    queue.policy = policy
+  }
+
+  fun getDroppedFrames(reason: DropReason): Long = queue.getDroppedFrames(reason)
+
+  /**
+   * @param enabled keep the last GOP in memory to replay it after reconnect
+   * @param maxSize max bytes cached, a bigger GOP is not cached
+   */
+  @Throws(IllegalArgumentException::class)
+  fun setGopCache(enabled: Boolean, maxSize: Int = GopCache.DEFAULT_MAX_SIZE) {
+    synchronized(sync) {
+      gopCache.maxSize = maxSize
+      if (enabled && !gopCacheEnabled && running) missingConfigs = true
+      gopCacheEnabled = enabled
+      if (!enabled) clearGopCache()
+    }
+  }
+
+  /**
+   * Discard the cached GOP and stop caching frames if the sender is stopped.
+   */
+  fun clearGopCache() {
+    synchronized(sync) {
+      //packetizers was not reset on stop so config must be sent again
+      if (caching) resetPackets(false)
+      caching = false
+      missingConfigs = false
+      gopCache.clear()
+    }
+  }
+
+  private fun resetPackets(resetInfo: Boolean) {
+    audioPacket.reset(resetInfo)
+    videoPacket.reset(resetInfo)
+    videoTracks.values.forEach { it.reset(resetInfo) }
+    audioTracks.values.forEach { it.reset(resetInfo) }
+  }
+
+  fun isGopCacheEnabled(): Boolean = gopCacheEnabled
+
+  fun hasGopCached(): Boolean = gopCacheEnabled && gopCache.hasGop()
+
+  fun setChunkInterleaving(enabled: Boolean) {
+    chunkInterleaving = enabled
+  }
+
+  fun setMaxBFrames(maxBFrames: Int) {
+    this.maxBFrames = maxBFrames.coerceIn(0, DtsGenerator.MAX_REORDER_DEPTH)
+  }
+
   fun setLogs(enable: Boolean) {
     isEnableLogs = enable
   }
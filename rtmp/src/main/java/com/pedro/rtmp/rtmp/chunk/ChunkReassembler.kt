@@ -0,0 +1,99 @@
+/*
+ * Copyright (C) 2024 pedroSG94.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.pedro.rtmp.rtmp.chunk
+
+import com.pedro.rtmp.rtmp.message.BasicHeader
+import com.pedro.rtmp.rtmp.message.RtmpHeader
+import com.pedro.rtmp.rtmp.message.RtmpMessage
+import com.pedro.rtmp.utils.CommandSessionHistory
+import com.pedro.rtmp.utils.readUntil
+import java.io.ByteArrayInputStream
+import java.io.EOFException
+import java.io.IOException
+import java.io.InputStream
+
+/**
+ * Read chunks and join them into messages. Each chunk stream keep a partial message with a buffer
+ * reused between messages so chunks of different chunk streams can be interleaved and continuation
+ * chunks are read without allocations.
+ */
+class ChunkReassembler(private val commandSessionHistory: CommandSessionHistory) {
+
+  private class PartialMessage {
+    var header: RtmpHeader? = null
+    var buffer = ByteArray(0)
+    var length = 0
+  }
+
+  private val partialMessages = HashMap<Int, PartialMessage>()
+
+  /**
+   * Read chunks until a message is completed.
+   */
+  @Throws(IOException::class)
+  fun readMessage(input: InputStream, chunkSize: Int): RtmpMessage {
+    while (true) {
+      val byte = input.read()
+      if (byte == -1) throw EOFException("End of stream")
+      val chunkTypeValue = byte ushr 6
+      val chunkStreamId = when (val value = byte and 0x3F) {
+        0 -> readByte(input) + 64 //Basic header 2 bytes
+        1 -> readByte(input) + (readByte(input) shl 8) + 64 //Basic header 3 bytes
+        else -> value
+      }
+      val partialMessage = partialMessages.getOrPut(chunkStreamId) { PartialMessage() }
+      var header = partialMessage.header
+      if (header != null && chunkTypeValue == ChunkType.TYPE_3.mark.toInt()) {
+        //continuation chunk, the extended timestamp is repeated
+        if (header.timeStampDelta >= 0xffffff) input.skipFully(4)
+      } else {
+        val chunkType = ChunkType.entries.first { it.mark.toInt() == chunkTypeValue }
+        header = RtmpHeader.readHeader(BasicHeader(chunkType, chunkStreamId), input, commandSessionHistory)
+        //next headers of this chunk stream are relative to this one
+        commandSessionHistory.setReadHeader(header)
+        if (partialMessage.buffer.size < header.messageLength) {
+          partialMessage.buffer = ByteArray(header.messageLength)
+        }
+        partialMessage.header = header
+        partialMessage.length = 0
+      }
+      val length = minOf(chunkSize, header.messageLength - partialMessage.length)
+      input.readUntil(partialMessage.buffer, partialMessage.length, length)
+      partialMessage.length += length
+      if (partialMessage.length == header.messageLength) {
+        partialMessage.header = null
+        val rtmpMessage = RtmpMessage.createMessage(header)
+        rtmpMessage.readBody(ByteArrayInputStream(partialMessage.buffer, 0, partialMessage.length))
+        return rtmpMessage
+      }
+    }
+  }
+
+  fun reset() {
+    partialMessages.clear()
+  }
+
+  private fun readByte(input: InputStream): Int {
+    val byte = input.read()
+    if (byte == -1) throw EOFException("End of stream")
+    return byte
+  }
+
+  private fun InputStream.skipFully(length: Int) {
+    repeat(length) { readByte(this) }
+  }
+}
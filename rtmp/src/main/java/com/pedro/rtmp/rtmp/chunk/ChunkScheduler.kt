@@ -0,0 +1,80 @@
+/*
+ * Copyright (C) 2024 pedroSG94.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.pedro.rtmp.rtmp.chunk
+
+import com.pedro.rtmp.rtmp.message.RtmpMessage
+import com.pedro.rtmp.utils.RtmpConfig
+import java.io.IOException
+import java.io.OutputStream
+import java.util.TreeMap
+
+/**
+ * Split messages in chunks and select the next chunk to write. Audio chunks are always written
+ * first and the rest of chunk streams are written using round robin so a big video message only
+ * delay an audio message the time needed to write a chunk.
+ * Messages of the same chunk stream are written in order so headers must be compressed in the
+ * same order that messages are added.
+ */
+class ChunkScheduler {
+
+  private class PendingMessage(val message: RtmpMessage, val onRelease: () -> Unit) {
+    var position = 0
+  }
+
+  private val streams = TreeMap<Int, ArrayDeque<PendingMessage>>()
+  private var lastChunkStreamId = -1
+
+  /**
+   * @param onRelease called when the message is fully written or discarded.
+   */
+  fun add(message: RtmpMessage, onRelease: () -> Unit = {}) {
+    val chunkStreamId = message.header.basicHeader.chunkStreamId
+    streams.getOrPut(chunkStreamId) { ArrayDeque() }.addLast(PendingMessage(message, onRelease))
+  }
+
+  fun hasPending(): Boolean = streams.isNotEmpty()
+
+  /**
+   * Write the next chunk.
+   * @return the message if this chunk was the last one of it, null otherwise
+   */
+  @Throws(IOException::class)
+  fun writeChunk(output: OutputStream, chunkSize: Int = RtmpConfig.DEFAULT_CHUNK_SIZE): RtmpMessage? {
+    val chunkStreamId = nextChunkStreamId() ?: return null
+    val pendingMessages = streams[chunkStreamId] ?: return null
+    val pending = pendingMessages.first()
+    pending.position = pending.message.writeChunk(output, pending.position, chunkSize)
+    if (chunkStreamId != ChunkStreamId.AUDIO.mark) lastChunkStreamId = chunkStreamId
+    if (pending.position < pending.message.getSize()) return null
+    pendingMessages.removeFirst()
+    if (pendingMessages.isEmpty()) streams.remove(chunkStreamId)
+    pending.onRelease()
+    return pending.message
+  }
+
+  fun clear() {
+    streams.values.forEach { pendingMessages -> pendingMessages.forEach { it.onRelease() } }
+    streams.clear()
+    lastChunkStreamId = -1
+  }
+
+  private fun nextChunkStreamId(): Int? {
+    if (streams.isEmpty()) return null
+    if (streams.containsKey(ChunkStreamId.AUDIO.mark)) return ChunkStreamId.AUDIO.mark
+    return streams.higherKey(lastChunkStreamId) ?: streams.firstKey()
+  }
+}
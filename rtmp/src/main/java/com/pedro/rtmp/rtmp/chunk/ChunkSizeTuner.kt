@@ -0,0 +1,58 @@
+/*
+ * Copyright (C) 2024 pedroSG94.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.pedro.rtmp.rtmp.chunk
+
+/**
+ * Select a write chunk size using the median of the last video frame sizes so a typical frame is
+ * written in a few chunks. The size is limited to maxChunkSize so interleaved audio only wait a
+ * small chunk. The value is only changed if 2 consecutive windows select the same size.
+ */
+class ChunkSizeTuner(
+  private val minChunkSize: Int = MIN_CHUNK_SIZE,
+  private val maxChunkSize: Int = MAX_CHUNK_SIZE,
+  private val chunksPerFrame: Int = 4,
+  private val windowSize: Int = 30
+) {
+
+  companion object {
+    const val MIN_CHUNK_SIZE = 128
+    const val MAX_CHUNK_SIZE = 4096
+  }
+
+  private val sizes = IntArray(windowSize)
+  private var count = 0
+  private var candidate = -1
+  var chunkSize = minChunkSize
+    private set
+
+  fun addFrame(size: Int) {
+    sizes[count++] = size
+    if (count < windowSize) return
+    count = 0
+    sizes.sort()
+    val median = sizes[windowSize / 2]
+    val target = (median / chunksPerFrame).takeHighestOneBit().coerceIn(minChunkSize, maxChunkSize)
+    if (target == candidate) chunkSize = target
+    candidate = target
+  }
+
+  fun reset(chunkSize: Int) {
+    this.chunkSize = chunkSize
+    count = 0
+    candidate = -1
+  }
+}
@@ -82,7 +82,7 @@ class BasicHeader(val chunkType: ChunkType, val chunkStreamId: Int) {
       ChunkType.TYPE_0 -> 12
       ChunkType.TYPE_1 -> 8
       ChunkType.TYPE_2 -> 4
-      ChunkType.TYPE_3 -> 0
+      ChunkType.TYPE_3 -> 1
     }
     if (timestamp >= 0xffffff) {
       size += 4
@@ -32,6 +32,8 @@ class RtmpHeader(var basicHeader: BasicHeader) {
   var messageLength: Int = 0
   var messageType: MessageType? = null
   var messageStreamId: Int = 0
+  //timestamp field of TYPE_1, TYPE_2 and TYPE_3 headers, the difference with the previous message in the chunk stream
+  var timeStampDelta: Int = 0
 
   companion object {
 
@@ -41,10 +43,17 @@ class RtmpHeader(var basicHeader: BasicHeader) {
      * Check ChunkType class to know header structure
      */
     @Throws(IOException::class)
-    fun readHeader(input: InputStream, commandSessionHistory: CommandSessionHistory,
-      timestamp: Int = 0): RtmpHeader {
-      val basicHeader = BasicHeader.parseBasicHeader(input)
-      var timeStamp = timestamp
+    fun readHeader(input: InputStream, commandSessionHistory: CommandSessionHistory): RtmpHeader {
+      return readHeader(BasicHeader.parseBasicHeader(input), input, commandSessionHistory)
+    }
+
+    /**
+     * Read the rest of the header when the basic header is already read
+     */
+    @Throws(IOException::class)
+    fun readHeader(basicHeader: BasicHeader, input: InputStream, commandSessionHistory: CommandSessionHistory): RtmpHeader {
+      var timeStamp = 0
+      var timeStampDelta = 0
       var messageLength = 0
       var messageType: MessageType? = null
       var messageStreamId = 0
@@ -59,18 +68,20 @@ class RtmpHeader(var basicHeader: BasicHeader) {
           if (timeStamp >= 0xffffff) {
             timeStamp = input.readUInt32()
           }
+          timeStampDelta = timeStamp
         }
         ChunkType.TYPE_1 -> {
           if (lastHeader != null) {
             messageStreamId = lastHeader.messageStreamId
           }
-          timeStamp = input.readUInt24()
+          timeStampDelta = input.readUInt24()
           messageLength = input.readUInt24()
           messageType = RtmpMessage.getMarkType(input.read())
           //extended timestamp
-          if (timeStamp >= 0xffffff) {
-            timeStamp = input.readUInt32()
+          if (timeStampDelta >= 0xffffff) {
+            timeStampDelta = input.readUInt32()
           }
+          timeStamp = (lastHeader?.timeStamp ?: 0) + timeStampDelta
         }
         ChunkType.TYPE_2 -> {
           if (lastHeader != null) {
@@ -78,28 +89,31 @@ class RtmpHeader(var basicHeader: BasicHeader) {
             messageType = lastHeader.messageType
             messageStreamId = lastHeader.messageStreamId
           }
-          timeStamp = input.readUInt24()
+          timeStampDelta = input.readUInt24()
           //extended timestamp
-          if (timeStamp >= 0xffffff) {
-            timeStamp = input.readUInt32()
+          if (timeStampDelta >= 0xffffff) {
+            timeStampDelta = input.readUInt32()
           }
+          timeStamp = (lastHeader?.timeStamp ?: 0) + timeStampDelta
         }
         ChunkType.TYPE_3 -> {
           if (lastHeader != null) {
-            timeStamp = lastHeader.timeStamp
+            timeStampDelta = lastHeader.timeStampDelta
+            timeStamp = lastHeader.timeStamp + timeStampDelta
             messageLength = lastHeader.messageLength
             messageType = lastHeader.messageType
             messageStreamId = lastHeader.messageStreamId
           }
           //extended timestamp
-          if (timeStamp >= 0xffffff) {
-            timeStamp = input.readUInt32()
+          if (timeStampDelta >= 0xffffff) {
+            timeStampDelta = input.readUInt32()
           }
           //No header to read
         }
       }
       val rtmpHeader = RtmpHeader(basicHeader)
       rtmpHeader.timeStamp = timeStamp
+      rtmpHeader.timeStampDelta = timeStampDelta
       rtmpHeader.messageLength = messageLength
       rtmpHeader.messageType = messageType
       rtmpHeader.messageStreamId = messageStreamId
@@ -117,51 +131,71 @@ class RtmpHeader(var basicHeader: BasicHeader) {
    */
   @Throws(IOException::class)
   fun writeHeader(basicHeader: BasicHeader, output: OutputStream) {
+    //TYPE_3 headers carry the extended timestamp of the header that started the message
+    val timeStampField = getTimeStampField()
     // Write basic header byte
     output.write((basicHeader.chunkType.mark.toInt() shl 6) or basicHeader.chunkStreamId)
     when (basicHeader.chunkType) {
       ChunkType.TYPE_0 -> {
-        output.writeUInt24(min(timeStamp, 0xffffff))
+        output.writeUInt24(min(timeStampField, 0xffffff))
         output.writeUInt24(messageLength)
         messageType?.let { messageType ->
           output.write(messageType.mark.toInt())
         }
         output.writeUInt32LittleEndian(messageStreamId)
-        //extended timestamp
-        if (timeStamp > 0xffffff) {
-          output.writeUInt32(timeStamp)
-        }
       }
       ChunkType.TYPE_1 -> {
-        output.writeUInt24(min(timeStamp, 0xffffff))
+        output.writeUInt24(min(timeStampField, 0xffffff))
         output.writeUInt24(messageLength)
         messageType?.let { messageType ->
           output.write(messageType.mark.toInt())
         }
-        //extended timestamp
-        if (timeStamp > 0xffffff) {
-          output.writeUInt32(timeStamp)
-        }
       }
       ChunkType.TYPE_2 -> {
-        output.writeUInt24(min(timeStamp, 0xffffff))
-        //extended timestamp
-        if (timeStamp > 0xffffff) {
-          output.writeUInt32(timeStamp)
-        }
+        output.writeUInt24(min(timeStampField, 0xffffff))
       }
       ChunkType.TYPE_3 -> {
-        //extended timestamp
-        if (timeStamp > 0xffffff) {
-          output.writeUInt32(timeStamp)
-        }
+        //No header to write
       }
     }
+    //extended timestamp
+    if (timeStampField >= 0xffffff) {
+      output.writeUInt32(timeStampField)
+    }
+  }
+
+  /**
+   * Select the smallest chunk type allowed for this header using the last header written in the
+   * same chunk stream. Timestamp goes backward or a new message stream force TYPE_0.
+   * The header is stored as the last written header of the chunk stream.
+   */
+  fun compressHeader(commandSessionHistory: CommandSessionHistory) {
+    val chunkStreamId = basicHeader.chunkStreamId
+    val lastHeader = commandSessionHistory.getLastWriteHeader(chunkStreamId)
+    val delta = if (lastHeader != null) timeStamp - lastHeader.timeStamp else -1
+    val chunkType = if (lastHeader == null || lastHeader.messageStreamId != messageStreamId
+      || delta < 0 || delta >= 0xffffff) {
+      ChunkType.TYPE_0
+    } else if (lastHeader.messageLength != messageLength || lastHeader.messageType != messageType) {
+      ChunkType.TYPE_1
+    } else if (lastHeader.basicHeader.chunkType == ChunkType.TYPE_0 || lastHeader.timeStampDelta != delta) {
+      //avoid TYPE_3 after TYPE_0 because servers disagree about the delta of a TYPE_0 header
+      ChunkType.TYPE_2
+    } else {
+      ChunkType.TYPE_3
+    }
+    basicHeader = BasicHeader(chunkType, chunkStreamId)
+    timeStampDelta = if (chunkType == ChunkType.TYPE_0) timeStamp else delta
+    commandSessionHistory.setWriteHeader(this)
+  }
+
+  private fun getTimeStampField(): Int {
+    return if (basicHeader.chunkType == ChunkType.TYPE_0) timeStamp else timeStampDelta
   }
 
-  fun getPacketLength(): Int = messageLength + basicHeader.getHeaderSize(timeStamp)
+  fun getPacketLength(): Int = messageLength + basicHeader.getHeaderSize(getTimeStampField())
 
   override fun toString(): String {
-    return "RtmpHeader(timeStamp=$timeStamp, messageLength=$messageLength, messageType=$messageType, messageStreamId=$messageStreamId, basicHeader=$basicHeader)"
+    return "RtmpHeader(timeStamp=$timeStamp, timeStampDelta=$timeStampDelta, messageLength=$messageLength, messageType=$messageType, messageStreamId=$messageStreamId, basicHeader=$basicHeader)"
   }
 }
\ No newline at end of file
@@ -16,6 +16,7 @@
 
 package com.pedro.rtmp.rtmp.message
 
+import com.pedro.rtmp.rtmp.chunk.ChunkReassembler
 import com.pedro.rtmp.rtmp.chunk.ChunkType
 import com.pedro.rtmp.rtmp.message.command.CommandAmf0
 import com.pedro.rtmp.rtmp.message.command.CommandAmf3
@@ -26,7 +27,6 @@ import com.pedro.rtmp.rtmp.message.shared.SharedObjectAmf0
 import com.pedro.rtmp.rtmp.message.shared.SharedObjectAmf3
 import com.pedro.rtmp.utils.CommandSessionHistory
 import com.pedro.rtmp.utils.RtmpConfig
-import com.pedro.rtmp.utils.readUntil
 import java.io.*
 
 /**
@@ -45,10 +45,18 @@ abstract class RtmpMessage(basicHeader: BasicHeader) {
 
     private const val TAG = "RtmpMessage"
 
+    /**
+     * Read a full message. Partial messages of other chunk streams are discarded so use a
+     * ChunkReassembler to keep them between calls.
+     */
     @Throws(IOException::class)
     fun getRtmpMessage(input: InputStream, chunkSize: Int,
       commandSessionHistory: CommandSessionHistory): RtmpMessage {
-      val header = RtmpHeader.readHeader(input, commandSessionHistory)
+      return ChunkReassembler(commandSessionHistory).readMessage(input, chunkSize)
+    }
+
+    @Throws(IOException::class)
+    fun createMessage(header: RtmpHeader): RtmpMessage {
       val rtmpMessage = when (header.messageType) {
         MessageType.SET_CHUNK_SIZE -> SetChunkSize()
         MessageType.ABORT -> Abort()
@@ -68,41 +76,12 @@ abstract class RtmpMessage(basicHeader: BasicHeader) {
         else -> throw IOException("Unimplemented message type: ${header.messageType}")
       }
       rtmpMessage.updateHeader(header)
-      //we have multiple chunk wait until we have full body on stream and discard chunk header
-      val bodyInput = if (header.messageLength > chunkSize) {
-        getInputWithoutChunks(input, header, chunkSize, commandSessionHistory)
-      } else {
-        input
-      }
-      rtmpMessage.readBody(bodyInput)
       return rtmpMessage
     }
 
     fun getMarkType(type: Int): MessageType {
       return MessageType.entries.find { it.mark.toInt() == type } ?: throw IOException("Unknown rtmp message type: $type")
     }
-
-    private fun getInputWithoutChunks(input: InputStream, header: RtmpHeader, chunkSize: Int,
-      commandSessionHistory: CommandSessionHistory): InputStream {
-      val packetStore = ByteArrayOutputStream()
-      var bytesRead = 0
-      while (bytesRead < header.messageLength) {
-        var chunk: ByteArray
-        if (header.messageLength - bytesRead < chunkSize) {
-          //last chunk
-          chunk = ByteArray(header.messageLength - bytesRead)
-          input.readUntil(chunk)
-        } else {
-          chunk = ByteArray(chunkSize)
-          input.readUntil(chunk)
-          //skip chunk header to discard it, set packet ts to indicate if you need read extended ts
-          RtmpHeader.readHeader(input, commandSessionHistory, header.timeStamp)
-        }
-        bytesRead += chunk.size
-        packetStore.write(chunk)
-      }
-      return ByteArrayInputStream(packetStore.toByteArray())
-    }
   }
 
   fun updateHeader(rtmpHeader: RtmpHeader) {
@@ -111,6 +90,7 @@ abstract class RtmpMessage(basicHeader: BasicHeader) {
     header.messageLength = rtmpHeader.messageLength
     header.messageStreamId = rtmpHeader.messageStreamId
     header.timeStamp = rtmpHeader.timeStamp
+    header.timeStampDelta = rtmpHeader.timeStampDelta
   }
 
   @Throws(IOException::class)
@@ -119,8 +99,7 @@ abstract class RtmpMessage(basicHeader: BasicHeader) {
   }
 
   @Throws(IOException::class)
-  fun writeBody(output: OutputStream) {
-    val chunkSize = RtmpConfig.writeChunkSize
+  fun writeBody(output: OutputStream, chunkSize: Int = RtmpConfig.DEFAULT_CHUNK_SIZE) {
     val bytes = storeBody()
     var pos = 0
     var length = getSize()
@@ -136,6 +115,23 @@ abstract class RtmpMessage(basicHeader: BasicHeader) {
     output.write(bytes, pos, length)
   }
 
+  /**
+   * Write a single chunk of the body starting in the position indicated.
+   * The first chunk use the message header and the rest a TYPE_3 header.
+   * @return the body position of the next chunk
+   */
+  @Throws(IOException::class)
+  fun writeChunk(output: OutputStream, position: Int, chunkSize: Int = RtmpConfig.DEFAULT_CHUNK_SIZE): Int {
+    if (position == 0) {
+      header.writeHeader(output)
+    } else {
+      header.writeHeader(BasicHeader(ChunkType.TYPE_3, header.basicHeader.chunkStreamId), output)
+    }
+    val length = minOf(chunkSize, getSize() - position)
+    output.write(storeBody(), position, length)
+    return position + length
+  }
+
   abstract fun readBody(input: InputStream)
 
   abstract fun storeBody(): ByteArray
@@ -16,6 +16,9 @@
 
 package com.pedro.rtmp.rtmp.message.command
 
+import com.pedro.rtmp.amf.AmfBuffer
+import com.pedro.rtmp.amf.v0.Amf0Decoder
+import com.pedro.rtmp.amf.v0.Amf0Encoder
 import com.pedro.rtmp.amf.v0.AmfData
 import com.pedro.rtmp.amf.v0.AmfNumber
 import com.pedro.rtmp.amf.v0.AmfObject
@@ -24,8 +27,9 @@ import com.pedro.rtmp.rtmp.chunk.ChunkStreamId
 import com.pedro.rtmp.rtmp.chunk.ChunkType
 import com.pedro.rtmp.rtmp.message.BasicHeader
 import com.pedro.rtmp.rtmp.message.MessageType
-import java.io.ByteArrayOutputStream
+import com.pedro.rtmp.utils.readUntil
 import java.io.InputStream
+import java.nio.ByteBuffer
 
 /**
  * Created by pedro on 21/04/21.
@@ -34,6 +38,8 @@ class CommandAmf0(name: String = "", commandId: Int = 0, private val timestamp:
     BasicHeader(ChunkType.TYPE_0, ChunkStreamId.OVER_CONNECTION.mark)): Command(name, commandId, timestamp, streamId, basicHeader = basicHeader) {
 
   private val data: MutableList<AmfData> = mutableListOf()
+  //serialized body, reused until data is added
+  private var body: ByteArray? = null
 
   init {
     val amfString = AmfString(name)
@@ -46,6 +52,7 @@ class CommandAmf0(name: String = "", commandId: Int = 0, private val timestamp:
 
   fun addData(amfData: AmfData) {
     data.add(amfData)
+    body = null
     bodySize += amfData.getSize() + 1
     header.messageLength = bodySize
   }
@@ -64,11 +71,11 @@ class CommandAmf0(name: String = "", commandId: Int = 0, private val timestamp:
 
   override fun readBody(input: InputStream) {
     data.clear()
-    var bytesRead = 0
-    while (bytesRead < header.messageLength) {
-      val amfData = AmfData.getAmfData(input)
-      bytesRead += amfData.getSize() + 1
-      data.add(amfData)
+    val bytes = ByteArray(header.messageLength)
+    input.readUntil(bytes)
+    val decoder = Amf0Decoder(ByteBuffer.wrap(bytes))
+    while (decoder.hasRemaining()) {
+      data.add(decoder.read())
     }
     if (data.isNotEmpty()) {
       if (data[0] is AmfString) {
@@ -78,17 +85,14 @@ class CommandAmf0(name: String = "", commandId: Int = 0, private val timestamp:
         commandId = (data[1] as AmfNumber).value.toInt()
       }
     }
-    bodySize = bytesRead
-    header.messageLength = bodySize
+    bodySize = bytes.size
+    body = bytes
   }
 
   override fun storeBody(): ByteArray {
-    val byteArrayOutputStream = ByteArrayOutputStream()
-    data.forEach {
-      it.writeHeader(byteArrayOutputStream)
-      it.writeBody(byteArrayOutputStream)
-    }
-    return byteArrayOutputStream.toByteArray()
+    return body ?: Amf0Encoder(AmfBuffer(bodySize)).apply {
+      data.forEach { write(it) }
+    }.toByteArray().also { body = it }
   }
 
   override fun getType(): MessageType = MessageType.COMMAND_AMF0
@@ -16,6 +16,8 @@
 
 package com.pedro.rtmp.rtmp.message.command
 
+import com.pedro.rtmp.amf.v0.Amf0Decoder
+import com.pedro.rtmp.amf.v0.Amf0Encoder
 import com.pedro.rtmp.amf.v3.Amf3Data
 import com.pedro.rtmp.amf.v3.Amf3Double
 import com.pedro.rtmp.amf.v3.Amf3Object
@@ -24,29 +26,34 @@ import com.pedro.rtmp.rtmp.chunk.ChunkStreamId
 import com.pedro.rtmp.rtmp.chunk.ChunkType
 import com.pedro.rtmp.rtmp.message.BasicHeader
 import com.pedro.rtmp.rtmp.message.MessageType
-import java.io.ByteArrayOutputStream
+import com.pedro.rtmp.utils.readUntil
 import java.io.InputStream
+import java.nio.ByteBuffer
 
 /**
  * Created by pedro on 21/04/21.
+ *
+ * The body start with a format byte and values are AMF0. AMF3 values use the avmplus marker and
+ * share reference tables in the message.
  */
 class CommandAmf3(name: String = "", commandId: Int = 0, private val timestamp: Int = 0, private val streamId: Int = 0, basicHeader: BasicHeader =
     BasicHeader(ChunkType.TYPE_0, ChunkStreamId.OVER_CONNECTION.mark)): Command(name, commandId, timestamp, streamId, basicHeader = basicHeader) {
 
   private val data: MutableList<Amf3Data> = mutableListOf()
+  //serialized body, reused until data is added
+  private var body: ByteArray? = null
 
   init {
-    val amf3String = Amf3String(name)
-    data.add(amf3String)
-    bodySize += amf3String.getSize() + 1
-    val amf3Double = Amf3Double(commandId.toDouble())
-    bodySize += amf3Double.getSize() + 1
-    data.add(amf3Double)
+    data.add(Amf3String(name))
+    data.add(Amf3Double(commandId.toDouble()))
+    bodySize = storeBody().size
+    header.messageLength = bodySize
   }
 
   fun addData(amf3Data: Amf3Data) {
     data.add(amf3Data)
-    bodySize += amf3Data.getSize() + 1
+    body = null
+    bodySize = storeBody().size
     header.messageLength = bodySize
   }
 
@@ -64,11 +71,14 @@ class CommandAmf3(name: String = "", commandId: Int = 0, private val timestamp:
 
   override fun readBody(input: InputStream) {
     data.clear()
-    var bytesRead = 0
-    while (bytesRead < header.messageLength) {
-      val amf3Data = Amf3Data.getAmf3Data(input)
-      bytesRead += amf3Data.getSize() + 1
-      data.add(amf3Data)
+    val bytes = ByteArray(header.messageLength)
+    input.readUntil(bytes)
+    val buffer = ByteBuffer.wrap(bytes)
+    //format byte
+    if (bytes.isNotEmpty() && bytes[0].toInt() == 0) buffer.get()
+    val decoder = Amf0Decoder(buffer)
+    while (decoder.hasRemaining()) {
+      data.add(decoder.readAmf3())
     }
     if (data.isNotEmpty()) {
       if (data[0] is Amf3String) {
@@ -78,17 +88,15 @@ class CommandAmf3(name: String = "", commandId: Int = 0, private val timestamp:
         commandId = (data[1] as Amf3Double).value.toInt()
       }
     }
-    bodySize = bytesRead
-    header.messageLength = bodySize
+    bodySize = bytes.size
+    body = bytes
   }
 
   override fun storeBody(): ByteArray {
-    val byteArrayOutputStream = ByteArrayOutputStream()
-    data.forEach {
-      it.writeHeader(byteArrayOutputStream)
-      it.writeBody(byteArrayOutputStream)
-    }
-    return byteArrayOutputStream.toByteArray()
+    return body ?: Amf0Encoder().apply {
+      buffer.writeByte(0)
+      data.forEach { writeAmf3(it) }
+    }.toByteArray().also { body = it }
   }
 
   override fun getType(): MessageType = MessageType.COMMAND_AMF3
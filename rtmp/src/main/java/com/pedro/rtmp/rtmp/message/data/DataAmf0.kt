@@ -16,14 +16,19 @@
 
 package com.pedro.rtmp.rtmp.message.data
 
+import com.pedro.rtmp.amf.AmfBuffer
+import com.pedro.rtmp.amf.v0.Amf0Decoder
+import com.pedro.rtmp.amf.v0.Amf0Encoder
 import com.pedro.rtmp.amf.v0.AmfData
 import com.pedro.rtmp.amf.v0.AmfString
 import com.pedro.rtmp.rtmp.chunk.ChunkStreamId
 import com.pedro.rtmp.rtmp.chunk.ChunkType
 import com.pedro.rtmp.rtmp.message.BasicHeader
 import com.pedro.rtmp.rtmp.message.MessageType
-import java.io.ByteArrayOutputStream
+import com.pedro.rtmp.utils.readUntil
+import java.io.IOException
 import java.io.InputStream
+import java.nio.ByteBuffer
 
 /**
  * Created by pedro on 21/04/21.
@@ -32,6 +37,8 @@ class DataAmf0(private var name: String = "", timeStamp: Int = 0, streamId: Int
     Data(timeStamp, streamId, basicHeader) {
 
   private val data: MutableList<AmfData> = mutableListOf()
+  //serialized body, reused until data is added
+  private var body: ByteArray? = null
 
   init {
     val amfString = AmfString(name)
@@ -43,35 +50,29 @@ class DataAmf0(private var name: String = "", timeStamp: Int = 0, streamId: Int
 
   fun addData(amfData: AmfData) {
     data.add(amfData)
+    body = null
     bodySize += amfData.getSize() + 1
     header.messageLength = bodySize
   }
 
   override fun readBody(input: InputStream) {
     data.clear()
-    bodySize = 0
-    val amfString = AmfString()
-    amfString.readHeader(input)
-    amfString.readBody(input)
-    name = amfString.value
-    bodySize += amfString.getSize() + 1
-    while (bodySize < header.messageLength) {
-      val amfData = AmfData.getAmfData(input)
-      data.add(amfData)
-      bodySize += amfData.getSize() + 1
+    val bytes = ByteArray(header.messageLength)
+    input.readUntil(bytes)
+    val decoder = Amf0Decoder(ByteBuffer.wrap(bytes))
+    name = (decoder.read() as? AmfString)?.value ?: throw IOException("data name not found")
+    while (decoder.hasRemaining()) {
+      data.add(decoder.read())
     }
+    bodySize = bytes.size
+    body = bytes
   }
 
   override fun storeBody(): ByteArray {
-    val byteArrayOutputStream = ByteArrayOutputStream()
-    val amfString = AmfString(name)
-    amfString.writeHeader(byteArrayOutputStream)
-    amfString.writeBody(byteArrayOutputStream)
-    data.forEach {
-      it.writeHeader(byteArrayOutputStream)
-      it.writeBody(byteArrayOutputStream)
-    }
-    return byteArrayOutputStream.toByteArray()
+    return body ?: Amf0Encoder(AmfBuffer(bodySize)).apply {
+      writeString(name)
+      data.forEach { write(it) }
+    }.toByteArray().also { body = it }
   }
 
   override fun getType(): MessageType = MessageType.DATA_AMF0
@@ -16,61 +16,66 @@
 
 package com.pedro.rtmp.rtmp.message.data
 
+import com.pedro.rtmp.amf.v0.Amf0Decoder
+import com.pedro.rtmp.amf.v0.Amf0Encoder
 import com.pedro.rtmp.amf.v3.Amf3Data
 import com.pedro.rtmp.amf.v3.Amf3String
 import com.pedro.rtmp.rtmp.chunk.ChunkStreamId
 import com.pedro.rtmp.rtmp.chunk.ChunkType
 import com.pedro.rtmp.rtmp.message.BasicHeader
 import com.pedro.rtmp.rtmp.message.MessageType
-import java.io.ByteArrayOutputStream
+import com.pedro.rtmp.utils.readUntil
+import java.io.IOException
 import java.io.InputStream
+import java.nio.ByteBuffer
 
 /**
  * Created by pedro on 21/04/21.
+ *
+ * The body start with a format byte and values are AMF0. AMF3 values use the avmplus marker and
+ * share reference tables in the message.
  */
-class DataAmf3(private val name: String = "", timeStamp: Int = 0, streamId: Int = 0, basicHeader: BasicHeader = BasicHeader(ChunkType.TYPE_0, ChunkStreamId.OVER_CONNECTION.mark)):
+class DataAmf3(private var name: String = "", timeStamp: Int = 0, streamId: Int = 0, basicHeader: BasicHeader = BasicHeader(ChunkType.TYPE_0, ChunkStreamId.OVER_CONNECTION.mark)):
   Data(timeStamp, streamId, basicHeader) {
 
   private val data: MutableList<Amf3Data> = mutableListOf()
+  //serialized body, reused until data is added
+  private var body: ByteArray? = null
 
   init {
-    val amf3String = Amf3String(name)
-    bodySize += amf3String.getSize() + 1
-    data.forEach {
-      bodySize += it.getSize() + 1
-    }
+    bodySize = storeBody().size
+    header.messageLength = bodySize
   }
 
   fun addData(amf3Data: Amf3Data) {
     data.add(amf3Data)
-    bodySize += amf3Data.getSize() + 1
+    body = null
+    bodySize = storeBody().size
     header.messageLength = bodySize
   }
 
   override fun readBody(input: InputStream) {
     data.clear()
-    bodySize = 0
-    val amf3String = Amf3String()
-    amf3String.readHeader(input)
-    amf3String.readBody(input)
-    bodySize += amf3String.getSize() + 1
-    while (bodySize < header.messageLength) {
-      val amf3Data = Amf3Data.getAmf3Data(input)
-      data.add(amf3Data)
-      bodySize += amf3Data.getSize() + 1
+    val bytes = ByteArray(header.messageLength)
+    input.readUntil(bytes)
+    val buffer = ByteBuffer.wrap(bytes)
+    //format byte
+    if (bytes.isNotEmpty() && bytes[0].toInt() == 0) buffer.get()
+    val decoder = Amf0Decoder(buffer)
+    name = (decoder.readAmf3() as? Amf3String)?.value ?: throw IOException("data name not found")
+    while (decoder.hasRemaining()) {
+      data.add(decoder.readAmf3())
     }
+    bodySize = bytes.size
+    body = bytes
   }
 
   override fun storeBody(): ByteArray {
-    val byteArrayOutputStream = ByteArrayOutputStream()
-    val amf3String = Amf3String(name)
-    amf3String.writeHeader(byteArrayOutputStream)
-    amf3String.writeBody(byteArrayOutputStream)
-    data.forEach {
-      it.writeHeader(byteArrayOutputStream)
-      it.writeBody(byteArrayOutputStream)
-    }
-    return byteArrayOutputStream.toByteArray()
+    return body ?: Amf0Encoder().apply {
+      buffer.writeByte(0)
+      writeString(name)
+      data.forEach { writeAmf3(it) }
+    }.toByteArray().also { body = it }
   }
 
   override fun getType(): MessageType = MessageType.DATA_AMF3
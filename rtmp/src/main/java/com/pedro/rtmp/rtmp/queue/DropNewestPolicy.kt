@@ -0,0 +1,30 @@
+/*
+ * Copyright (C) 2024 pedroSG94.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.pedro.rtmp.rtmp.queue
+
+import com.pedro.rtmp.flv.FlvPacket
+
+/**
+ * Discard the packet received if the queue is full.
+ */
+class DropNewestPolicy: QueuePolicy {
+
+  override fun offer(queue: PacketQueue, packet: FlvPacket) {
+    if (queue.isFull()) queue.drop(packet, DropReason.QUEUE_FULL)
+    else queue.add(packet)
+  }
+}
@@ -0,0 +1,39 @@
+/*
+ * Copyright (C) 2024 pedroSG94.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.pedro.rtmp.rtmp.queue
+
+/**
+ * Why a packet was discarded by a QueuePolicy
+ */
+enum class DropReason {
+  /**
+   * The queue is full and the policy can't make room
+   */
+  QUEUE_FULL,
+  /**
+   * Last video frames of a GOP discarded to make room
+   */
+  GOP_TAIL,
+  /**
+   * Video frame that depend on a discarded frame, discarded until the next keyframe
+   */
+  BROKEN_GOP,
+  /**
+   * Queued packets discarded because the queue duration exceed the max backlog
+   */
+  BACKLOG
+}
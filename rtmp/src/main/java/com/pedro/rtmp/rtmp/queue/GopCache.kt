@@ -0,0 +1,104 @@
+/*
+ * Copyright (C) 2024 pedroSG94.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.pedro.rtmp.rtmp.queue
+
+import com.pedro.rtmp.flv.FlvPacket
+import com.pedro.rtmp.flv.FlvType
+
+/**
+ * Keep the last sequence headers and the packets since the last video keyframe so a new
+ * connection can start with a decodable picture without wait for the next keyframe.
+ *
+ * Packets are retained while they are in the cache and released when discarded. If a GOP is
+ * bigger than maxSize it is discarded until the next keyframe.
+ *
+ * With multitrack packets, a sequence header is kept per track and the GOP start with keyframes of
+ * the default track so renditions should use aligned keyframes.
+ */
+class GopCache(maxSize: Int = DEFAULT_MAX_SIZE) {
+
+  companion object {
+    const val DEFAULT_MAX_SIZE = 4 * 1024 * 1024
+  }
+
+  private val sync = Any()
+  //sequence headers by type and track
+  private val configs = LinkedHashMap<Pair<FlvType, Int>, FlvPacket>()
+  private val packets = ArrayDeque<FlvPacket>()
+  private var size = 0
+
+  var maxSize = maxSize
+    set(value) {
+      if (value <= 0) throw IllegalArgumentException("max size must be greater than 0")
+      synchronized(sync) {
+        field = value
+        if (size > value) clearGop()
+      }
+    }
+
+  fun add(flvPacket: FlvPacket) {
+    synchronized(sync) {
+      if (flvPacket.isSequenceHeader()) {
+        configs.put(Pair(flvPacket.type, flvPacket.getTrackId()), flvPacket.retain())?.release()
+        return
+      }
+      if (flvPacket.isKeyFrame() && !flvPacket.isMultitrack()) clearGop()
+      //nothing can be decoded before the first keyframe
+      else if (packets.isEmpty()) return
+      if (size + flvPacket.length > maxSize) {
+        clearGop()
+        return
+      }
+      packets.addLast(flvPacket.retain())
+      size += flvPacket.length
+    }
+  }
+
+  /**
+   * @return sequence headers followed by the GOP. Each packet is retained for the caller so it
+   * must be released after use.
+   */
+  fun getPackets(): List<FlvPacket> {
+    synchronized(sync) {
+      val result = ArrayList<FlvPacket>(packets.size + configs.size)
+      configs.values.forEach { result.add(it.retain()) }
+      packets.forEach { result.add(it.retain()) }
+      return result
+    }
+  }
+
+  fun hasGop(): Boolean = synchronized(sync) { packets.isNotEmpty() }
+
+  /**
+   * @return size in bytes of the packets since the last keyframe
+   */
+  fun getSize(): Int = synchronized(sync) { size }
+
+  fun clear() {
+    synchronized(sync) {
+      configs.values.forEach { it.release() }
+      configs.clear()
+      clearGop()
+    }
+  }
+
+  private fun clearGop() {
+    packets.forEach { it.release() }
+    packets.clear()
+    size = 0
+  }
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright (C) 2024 pedroSG94.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.pedro.rtmp.rtmp.queue
+
+import com.pedro.rtmp.flv.FlvPacket
+import com.pedro.rtmp.flv.FlvType
+
+/**
+ * Discard video frames keeping the stream decodable:
+ * - Audio is only discarded if the queue has no video frames to discard.
+ * - When the queue is full, the last video frames of the GOP are discarded.
+ * - After discard a video frame, the rest of the GOP is discarded because it can't be decoded.
+ * - If the queue duration exceed maxBacklogMs, all packets until the next keyframe are discarded.
+ * Sequence headers are never discarded.
+ *
+ * Each video track of a multitrack stream has its own GOP, video packets only discard frames of
+ * the same track and a broken GOP only discard frames of its track. Audio can discard video of any
+ * track.
+ *
+ * @param maxBacklogMs max duration of the queue in milliseconds, 0 to disable it.
+ */
+class KeyFrameAwarePolicy(private val maxBacklogMs: Long = 0): QueuePolicy {
+
+  //GOP broken of each video track, the track id is 1 byte
+  private val waitingKeyFrame = BooleanArray(256)
+
+  override fun offer(queue: PacketQueue, packet: FlvPacket) {
+    val isVideoFrame = packet.type == FlvType.VIDEO && !packet.isSequenceHeader()
+    val trackId = packet.getTrackId()
+    if (maxBacklogMs > 0) {
+      val oldest = firstIndexOf(queue) { !it.isSequenceHeader() && isBacklogOf(packet, it) }
+      if (oldest >= 0 && packet.timeStamp - queue.get(oldest).timeStamp > maxBacklogMs) {
+        dropBacklog(queue, packet)
+      }
+    }
+    if (isVideoFrame) {
+      if (packet.isKeyFrame()) {
+        waitingKeyFrame[trackId] = false
+      } else if (waitingKeyFrame[trackId]) {
+        queue.drop(packet, DropReason.BROKEN_GOP)
+        return
+      }
+    }
+    if (!queue.isFull()) {
+      queue.add(packet)
+      return
+    }
+    if (isVideoFrame && !packet.isKeyFrame()) {
+      //the new frame is the tail of the GOP
+      queue.drop(packet, DropReason.GOP_TAIL)
+      waitingKeyFrame[trackId] = true
+      return
+    }
+    //keyframes, audio and sequence headers replace the last video frame queued of the same track
+    val index = lastIndexOf(queue) {
+      it.type == FlvType.VIDEO && !it.isSequenceHeader() && (packet.type == FlvType.AUDIO || it.getTrackId() == trackId)
+    }
+    if (index >= 0) {
+      val droppedTrackId = queue.get(index).getTrackId()
+      queue.dropAt(index, DropReason.GOP_TAIL)
+      //frames received after it depend on it, a keyframe start a new GOP
+      if (!packet.isKeyFrame()) waitingKeyFrame[droppedTrackId] = true
+      queue.add(packet)
+    } else if (packet.isSequenceHeader()) {
+      //codec config is needed to decode, discard the oldest audio instead
+      val audioIndex = firstIndexOf(queue) { !it.isSequenceHeader() }
+      if (audioIndex >= 0) queue.dropAt(audioIndex, DropReason.QUEUE_FULL)
+      queue.add(packet)
+    } else {
+      queue.drop(packet, DropReason.QUEUE_FULL)
+      if (isVideoFrame) waitingKeyFrame[trackId] = true
+    }
+  }
+
+  override fun reset() {
+    waitingKeyFrame.fill(false)
+  }
+
+  /**
+   * Packets checked in the backlog of a packet: audio with audio, video with audio and video of
+   * the same track.
+   */
+  private fun isBacklogOf(packet: FlvPacket, queued: FlvPacket): Boolean {
+    return queued.type == FlvType.AUDIO ||
+        (packet.type == FlvType.VIDEO && queued.getTrackId() == packet.getTrackId())
+  }
+
+  /**
+   * Keep packets from the newest keyframe of the track if it is inside the backlog, discard all
+   * packets of the backlog otherwise
+   */
+  private fun dropBacklog(queue: PacketQueue, packet: FlvPacket) {
+    val trackId = packet.getTrackId()
+    var keyFrameIndex = if (packet.isKeyFrame()) queue.size else lastIndexOf(queue) {
+      it.isKeyFrame() && !it.isSequenceHeader() && packet.type == FlvType.VIDEO && it.getTrackId() == trackId
+    }
+    if (keyFrameIndex in 0 until queue.size && packet.timeStamp - queue.get(keyFrameIndex).timeStamp > maxBacklogMs) {
+      keyFrameIndex = -1
+    }
+    val end = if (keyFrameIndex >= 0) keyFrameIndex else queue.size
+    var index = 0
+    var removed = 0
+    while (index < end - removed) {
+      val queued = queue.get(index)
+      if (queued.isSequenceHeader() || !isBacklogOf(packet, queued)) index++
+      else {
+        queue.dropAt(index, DropReason.BACKLOG)
+        removed++
+      }
+    }
+    if (keyFrameIndex < 0 && packet.type == FlvType.VIDEO) waitingKeyFrame[trackId] = true
+  }
+
+  private fun lastIndexOf(queue: PacketQueue, predicate: (FlvPacket) -> Boolean): Int {
+    for (i in queue.size - 1 downTo 0) {
+      if (predicate(queue.get(i))) return i
+    }
+    return -1
+  }
+
+  private fun firstIndexOf(queue: PacketQueue, predicate: (FlvPacket) -> Boolean): Int {
+    for (i in 0 until queue.size) {
+      if (predicate(queue.get(i))) return i
+    }
+    return -1
+  }
+}
@@ -0,0 +1,153 @@
+/*
+ * Copyright (C) 2024 pedroSG94.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.pedro.rtmp.rtmp.queue
+
+import com.pedro.rtmp.flv.FlvPacket
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.locks.ReentrantLock
+import kotlin.concurrent.withLock
+
+/**
+ * Blocking queue of packets waiting to be sent. The QueuePolicy decide which packets are discarded
+ * when the queue is congested. Discarded packets are released and counted by reason.
+ *
+ * The queue is full when the capacity in packets is reached or, if maxDurationMs is set, when the
+ * media buffered reach that duration.
+ */
+class PacketQueue(
+  capacity: Int,
+  policy: QueuePolicy = KeyFrameAwarePolicy()
+) {
+
+  private val lock = ReentrantLock()
+  private val notEmpty = lock.newCondition()
+  private val packets = ArrayDeque<FlvPacket>()
+  private val droppedFrames = LongArray(DropReason.entries.size)
+  var capacity = capacity
+    private set
+  var policy: QueuePolicy = policy
+    set(value) = lock.withLock {
+      field = value
+      value.reset()
+    }
+  /**
+   * Max media duration buffered in milliseconds. 0 to only use capacity
+   */
+  @Volatile
+  var maxDurationMs = 0L
+    set(value) {
+      if (value < 0) throw IllegalArgumentException("duration must be 0 or greater")
+      field = value
+    }
+  var onDrop: ((FlvPacket, DropReason) -> Unit)? = null
+
+  /**
+   * @return false if the packet was discarded
+   */
+  fun offer(packet: FlvPacket): Boolean = lock.withLock {
+    policy.offer(this, packet)
+    val added = packets.lastOrNull() === packet
+    if (added) notEmpty.signal()
+    added
+  }
+
+  fun poll(timeout: Long, unit: TimeUnit): FlvPacket? = lock.withLock {
+    var nanos = unit.toNanos(timeout)
+    while (packets.isEmpty()) {
+      if (nanos <= 0) return null
+      nanos = notEmpty.awaitNanos(nanos)
+    }
+    packets.removeFirst()
+  }
+
+  /**
+   * Remove the first packet that match the predicate
+   */
+  fun poll(predicate: (FlvPacket) -> Boolean): FlvPacket? = lock.withLock {
+    val index = packets.indexOfFirst(predicate)
+    if (index >= 0) packets.removeAt(index) else null
+  }
+
+  fun clear() = lock.withLock {
+    packets.forEach { it.release() }
+    packets.clear()
+    policy.reset()
+  }
+
+  @Throws(IllegalArgumentException::class)
+  fun resize(capacity: Int) = lock.withLock {
+    if (capacity < packets.size) throw IllegalArgumentException("Can't fit current cache inside new cache size")
+    this.capacity = capacity
+  }
+
+  fun getDroppedFrames(reason: DropReason): Long = lock.withLock { droppedFrames[reason.ordinal] }
+
+  fun resetDroppedFrames() = lock.withLock { droppedFrames.fill(0) }
+
+  val size: Int
+    get() = lock.withLock { packets.size }
+
+  fun remainingCapacity(): Int = lock.withLock { capacity - packets.size }
+
+  /**
+   * @return media duration buffered in milliseconds, from the oldest packet to the newest
+   */
+  fun getDelayMs(): Long = lock.withLock { getDelay() }
+
+  /**
+   * @return the higher usage of the queue in percent, by packets or by duration if maxDurationMs is set
+   */
+  fun getUsage(): Float = lock.withLock {
+    val packetsUsage = packets.size * 100f / capacity
+    val maxDurationMs = maxDurationMs
+    if (maxDurationMs <= 0) packetsUsage else maxOf(packetsUsage, getDelay() * 100f / maxDurationMs)
+  }
+
+  private fun getDelay(): Long {
+    return if (packets.isEmpty()) 0 else (packets.last().timeStamp - packets.first().timeStamp).coerceAtLeast(0)
+  }
+
+  /*
+   * Methods used by QueuePolicy, the queue is locked
+   */
+
+  fun isFull(): Boolean {
+    val maxDurationMs = maxDurationMs
+    return packets.size >= capacity || (maxDurationMs > 0 && getDelay() >= maxDurationMs)
+  }
+
+  fun isEmpty(): Boolean = packets.isEmpty()
+
+  fun get(index: Int): FlvPacket = packets[index]
+
+  fun add(packet: FlvPacket) {
+    packets.addLast(packet)
+  }
+
+  fun drop(packet: FlvPacket, reason: DropReason) {
+    droppedFrames[reason.ordinal]++
+    onDrop?.invoke(packet, reason)
+    packet.release()
+  }
+
+  /**
+   * Drop the queued packet in the index
+   */
+  fun dropAt(index: Int, reason: DropReason) {
+    drop(packets.removeAt(index), reason)
+  }
+}
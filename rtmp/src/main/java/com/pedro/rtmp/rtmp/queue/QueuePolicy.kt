@@ -0,0 +1,37 @@
+/*
+ * Copyright (C) 2024 pedroSG94.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.pedro.rtmp.rtmp.queue
+
+import com.pedro.rtmp.flv.FlvPacket
+
+/**
+ * Decide how a packet is added to the queue and which packets are discarded.
+ * Methods are called with the queue locked.
+ */
+interface QueuePolicy {
+
+  /**
+   * Add the packet to the queue using PacketQueue.add or discard packets using PacketQueue.drop.
+   * The queue can't exceed the capacity so drop packets or the packet received if the queue is full.
+   */
+  fun offer(queue: PacketQueue, packet: FlvPacket)
+
+  /**
+   * Called when the queue is cleared
+   */
+  fun reset() {}
+}
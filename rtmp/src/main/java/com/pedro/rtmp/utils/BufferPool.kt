@@ -0,0 +1,70 @@
+/*
+ * Copyright (C) 2024 pedroSG94.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.pedro.rtmp.utils
+
+import kotlin.math.max
+
+/**
+ * Pool of byte arrays grouped by power of 2 sizes to avoid allocate a new array for each frame.
+ * Arrays obtained can be bigger than the requested size so the requested size must be used as
+ * valid length.
+ */
+class BufferPool(private val maxBuffersPerSize: Int = 8) {
+
+  companion object {
+    //512 bytes
+    private const val MIN_SIZE_SHIFT = 9
+    //8 MB, bigger arrays are allocated and discarded without pool
+    private const val MAX_SIZE_SHIFT = 23
+  }
+
+  private val buffers = Array(MAX_SIZE_SHIFT - MIN_SIZE_SHIFT + 1) { ArrayDeque<ByteArray>() }
+  private val sync = Any()
+
+  fun obtain(size: Int): ByteArray {
+    val index = getIndex(size)
+    if (index < 0) return ByteArray(size)
+    val buffer = synchronized(sync) {
+      buffers[index].removeLastOrNull()
+    }
+    return buffer ?: ByteArray(1 shl (index + MIN_SIZE_SHIFT))
+  }
+
+  fun recycle(buffer: ByteArray) {
+    val index = getIndex(buffer.size)
+    //discard arrays that was not created by the pool
+    if (index < 0 || buffer.size != 1 shl (index + MIN_SIZE_SHIFT)) return
+    synchronized(sync) {
+      val queue = buffers[index]
+      if (queue.size < maxBuffersPerSize) queue.addLast(buffer)
+    }
+  }
+
+  fun getPooledBuffers(): Int = synchronized(sync) { buffers.sumOf { it.size } }
+
+  fun clear() {
+    synchronized(sync) {
+      buffers.forEach { it.clear() }
+    }
+  }
+
+  private fun getIndex(size: Int): Int {
+    if (size > 1 shl MAX_SIZE_SHIFT) return -1
+    val shift = if (size <= 1) 0 else 32 - Integer.numberOfLeadingZeros(size - 1)
+    return max(shift, MIN_SIZE_SHIFT) - MIN_SIZE_SHIFT
+  }
+}
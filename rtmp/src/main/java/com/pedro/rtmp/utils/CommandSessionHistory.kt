@@ -20,24 +20,37 @@ import com.pedro.rtmp.rtmp.message.RtmpHeader
 
 /**
  * Created by pedro on 22/04/21.
+ *
+ * Only the last header of each chunk stream id is needed to resolve or create TYPE_1, TYPE_2 and
+ * TYPE_3 headers so we keep one header per chunk stream id instead of all headers of the session.
  */
-class CommandSessionHistory(private val commandHistory: HashMap<Int, String> = HashMap(),
-    private val headerHistory: MutableList<RtmpHeader> = ArrayList()) {
+class CommandSessionHistory(private val commandHistory: HashMap<Int, String> = HashMap()) {
+
+  companion object {
+    //chunk stream ids that can be encoded in a 1 byte basic header
+    private const val MAX_SHORT_CHUNK_STREAM_ID = 63
+  }
+
+  private val readHeaders = HeaderTable()
+  private val writeHeaders = HeaderTable()
 
   fun setReadHeader(header: RtmpHeader) {
-    headerHistory.add(header)
+    readHeaders[header.basicHeader.chunkStreamId] = header
   }
 
-  fun getLastReadHeader(chunkStreamId: Int): RtmpHeader? {
-    val reverseList = headerHistory
-    reverseList.reversed().forEach {
-      if (it.basicHeader.chunkStreamId == chunkStreamId) {
-        return it
-      }
-    }
-    return null
+  fun getLastReadHeader(chunkStreamId: Int): RtmpHeader? = readHeaders[chunkStreamId]
+
+  fun setWriteHeader(header: RtmpHeader) {
+    writeHeaders[header.basicHeader.chunkStreamId] = header
   }
 
+  fun getLastWriteHeader(chunkStreamId: Int): RtmpHeader? = writeHeaders[chunkStreamId]
+
+  /**
+   * @return number of chunk streams with a read header stored
+   */
+  fun getStoredHeaders(): Int = readHeaders.size()
+
   fun getName(id: Int): String? {
     return commandHistory[id]
   }
@@ -48,6 +61,36 @@ class CommandSessionHistory(private val commandHistory: HashMap<Int, String> = H
 
   fun reset() {
     commandHistory.clear()
-    headerHistory.clear()
+    readHeaders.clear()
+    writeHeaders.clear()
+  }
+
+  private class HeaderTable {
+    private val headers = arrayOfNulls<RtmpHeader>(MAX_SHORT_CHUNK_STREAM_ID + 1)
+    //chunk stream ids encoded in 2 or 3 bytes basic header, rarely used
+    private val extendedHeaders = HashMap<Int, RtmpHeader>()
+
+    operator fun get(chunkStreamId: Int): RtmpHeader? {
+      return if (chunkStreamId in 0..MAX_SHORT_CHUNK_STREAM_ID) {
+        headers[chunkStreamId]
+      } else {
+        extendedHeaders[chunkStreamId]
+      }
+    }
+
+    operator fun set(chunkStreamId: Int, header: RtmpHeader) {
+      if (chunkStreamId in 0..MAX_SHORT_CHUNK_STREAM_ID) {
+        headers[chunkStreamId] = header
+      } else {
+        extendedHeaders[chunkStreamId] = header
+      }
+    }
+
+    fun size(): Int = headers.count { it != null } + extendedHeaders.size
+
+    fun clear() {
+      headers.fill(null)
+      extendedHeaders.clear()
+    }
   }
-}
\ No newline at end of file
+}
@@ -21,6 +21,8 @@ package com.pedro.rtmp.utils
  */
 object RtmpConfig {
   const val DEFAULT_CHUNK_SIZE = 128
-  var writeChunkSize = DEFAULT_CHUNK_SIZE
-  var acknowledgementWindowSize = Int.MAX_VALUE
+  //small enough to receive some acknowledgements per second with common bitrates
+  const val DEFAULT_ACKNOWLEDGEMENT_WINDOW_SIZE = 256 * 1024
+  //Enhanced RTMP capsEx flag of connect command
+  const val CAPS_EX_MULTITRACK = 0x02
 }
\ No newline at end of file
@@ -16,6 +16,8 @@
 
 package com.pedro.rtmp.utils
 
+import java.io.EOFException
+import java.io.IOException
 import java.io.InputStream
 import java.io.OutputStream
 import java.nio.ByteBuffer
@@ -32,6 +34,16 @@ fun InputStream.readUntil(byteArray: ByteArray) {
   }
 }
 
+@Throws(IOException::class)
+fun InputStream.readUntil(byteArray: ByteArray, offset: Int, length: Int) {
+  var bytesRead = 0
+  while (bytesRead < length) {
+    val result = read(byteArray, offset + bytesRead, length - bytesRead)
+    if (result == -1) throw EOFException("End of stream")
+    bytesRead += result
+  }
+}
+
 fun InputStream.readUInt32(): Int {
   return read() and 0xff shl 24 or (read() and 0xff shl 16) or (read() and 0xff shl 8) or (read() and 0xff)
 }
@@ -0,0 +1,266 @@
+/*
+ * Copyright (C) 2024 pedroSG94.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.pedro.rtmp.utils.socket
+
+import com.pedro.common.TLSSocketFactory
+import com.pedro.rtmp.utils.readUntil
+import java.io.ByteArrayOutputStream
+import java.io.EOFException
+import java.io.IOException
+import java.io.InputStream
+import java.io.OutputStream
+import java.net.InetSocketAddress
+import java.net.Proxy
+import java.net.ProxySelector
+import java.net.Socket
+import java.net.URI
+import java.security.GeneralSecurityException
+import javax.net.ssl.HttpsURLConnection
+import javax.net.ssl.SSLPeerUnverifiedException
+import javax.net.ssl.SSLSocket
+
+/**
+ * Keep-alive HTTP/1.1 connection used to tunnel RTMP. Requests can be pipelined, responses are
+ * read in the same order that requests were written. Requests can be written by a thread while
+ * other thread read the responses.
+ * The system proxy is used if configured. Secured connections use a CONNECT tunnel through HTTP
+ * proxies and verify the server hostname like HttpsURLConnection.
+ */
+class HttpTunnelConnection(
+  private val host: String,
+  private val port: Int,
+  private val secured: Boolean,
+  private val timeout: Int
+) {
+
+  @Volatile
+  private var socket: Socket? = null
+  @Volatile
+  private var input: InputStream? = null
+  @Volatile
+  private var output: OutputStream? = null
+  @Volatile
+  private var keepAlive = true
+  //absolute uri is needed when requests are sent to a HTTP proxy
+  private var requestPrefix = ""
+  //only modified by the writer and the reader respectively
+  @Volatile
+  var requestsSent = 0L
+    private set
+  @Volatile
+  var responsesRead = 0L
+    private set
+  val pendingResponses: Int
+    get() = (requestsSent - responsesRead).toInt()
+
+  @Throws(IOException::class)
+  fun connect() {
+    val proxy = selectProxy()
+    val address = when (proxy.type()) {
+      Proxy.Type.SOCKS -> InetSocketAddress.createUnresolved(host, port)
+      Proxy.Type.HTTP -> proxy.address()
+      else -> InetSocketAddress(host, port)
+    }
+    var socket = if (proxy.type() == Proxy.Type.SOCKS) Socket(proxy) else Socket()
+    try {
+      socket.connect(address, timeout)
+      socket.tcpNoDelay = true
+      socket.soTimeout = timeout
+      requestPrefix = ""
+      if (secured) {
+        if (proxy.type() == Proxy.Type.HTTP) openTunnel(socket)
+        socket = createSecureSocket(socket)
+      } else if (proxy.type() == Proxy.Type.HTTP) {
+        requestPrefix = "http://$host:$port"
+      }
+    } catch (e: IOException) {
+      socket.close()
+      throw e
+    }
+    input = socket.getInputStream().buffered()
+    output = socket.getOutputStream().buffered(16 * 1024)
+    this.socket = socket
+    keepAlive = true
+    requestsSent = 0
+    responsesRead = 0
+  }
+
+  /**
+   * Write a POST request without wait the response
+   * @return number of the request in the connection, the response is read when responsesRead reach it
+   */
+  @Throws(IOException::class)
+  fun sendRequest(path: String, body: ByteArray, offset: Int = 0, length: Int = body.size): Long {
+    val output = output ?: throw IOException("connection closed")
+    val header = "POST $requestPrefix/$path HTTP/1.1\r\n" +
+        "Host: $host:$port\r\n" +
+        "Content-Type: application/x-fcs\r\n" +
+        "User-Agent: Shockwave Flash\r\n" +
+        "Connection: Keep-Alive\r\n" +
+        "Cache-Control: no-cache\r\n" +
+        "Content-Length: $length\r\n\r\n"
+    output.write(header.toByteArray(Charsets.US_ASCII))
+    output.write(body, offset, length)
+    output.flush()
+    return ++requestsSent
+  }
+
+  /**
+   * Read the response of the oldest request written
+   * @return response body
+   */
+  @Throws(IOException::class)
+  fun readResponse(): ByteArray {
+    val input = input ?: throw IOException("connection closed")
+    if (pendingResponses <= 0) throw IOException("no requests pending")
+    val statusLine = readLine(input)
+    val code = statusLine.split(" ").getOrNull(1)?.toIntOrNull()
+      ?: throw IOException("invalid status line: $statusLine")
+    var contentLength = -1
+    var chunked = false
+    while (true) {
+      val line = readLine(input)
+      if (line.isEmpty()) break
+      val separator = line.indexOf(':')
+      if (separator < 0) continue
+      val value = line.substring(separator + 1).trim()
+      when (line.substring(0, separator).trim().lowercase()) {
+        "content-length" -> contentLength = value.toIntOrNull() ?: throw IOException("invalid content length: $value")
+        "transfer-encoding" -> chunked = value.equals("chunked", true)
+        "connection" -> keepAlive = !value.equals("close", true)
+      }
+    }
+    val body = if (chunked) {
+      readChunked(input)
+    } else if (contentLength >= 0) {
+      ByteArray(contentLength).also { input.readUntil(it) }
+    } else {
+      //without length the body end when the connection is closed
+      keepAlive = false
+      input.readBytes()
+    }
+    responsesRead++
+    if (!keepAlive && pendingResponses == 0) close()
+    if (code != 200) throw IOException("request failed: $statusLine")
+    return body
+  }
+
+  /**
+   * @return true if the response of the oldest request can be read without block
+   */
+  fun hasResponse(): Boolean {
+    return try {
+      pendingResponses > 0 && (input?.available() ?: 0) > 0
+    } catch (e: IOException) {
+      false
+    }
+  }
+
+  /**
+   * @return true if the connection can be used to write more requests
+   */
+  fun isOpen(): Boolean = socket?.isClosed == false && keepAlive
+
+  /**
+   * @return false if the server doesn't support keep-alive connections
+   */
+  fun isKeepAlive(): Boolean = keepAlive
+
+  fun close() {
+    try {
+      socket?.close()
+    } catch (ignored: IOException) { }
+    socket = null
+    input = null
+    output = null
+  }
+
+  private fun selectProxy(): Proxy {
+    val schema = if (secured) "https" else "http"
+    return try {
+      ProxySelector.getDefault()?.select(URI("$schema://$host:$port"))?.firstOrNull() ?: Proxy.NO_PROXY
+    } catch (e: IllegalArgumentException) {
+      Proxy.NO_PROXY
+    }
+  }
+
+  /**
+   * Ask the HTTP proxy to open a TCP tunnel to the server
+   */
+  @Throws(IOException::class)
+  private fun openTunnel(socket: Socket) {
+    val request = "CONNECT $host:$port HTTP/1.1\r\n" +
+        "Host: $host:$port\r\n" +
+        "Proxy-Connection: Keep-Alive\r\n\r\n"
+    socket.getOutputStream().write(request.toByteArray(Charsets.US_ASCII))
+    socket.getOutputStream().flush()
+    //read without buffer, the next bytes are part of the TLS handshake
+    val input = socket.getInputStream()
+    val statusLine = readLine(input)
+    while (readLine(input).isNotEmpty()) { }
+    val code = statusLine.split(" ").getOrNull(1)?.toIntOrNull()
+    if (code != 200) throw IOException("proxy tunnel failed: $statusLine")
+  }
+
+  @Throws(IOException::class)
+  private fun createSecureSocket(socket: Socket): Socket {
+    //the hostname is used for SNI
+    val sslSocket = try {
+      TLSSocketFactory().createSocket(socket, host, port, true) as SSLSocket
+    } catch (e: GeneralSecurityException) {
+      throw IOException("Create SSL socket failed: ${e.message}")
+    }
+    try {
+      sslSocket.startHandshake()
+      if (!HttpsURLConnection.getDefaultHostnameVerifier().verify(host, sslSocket.session)) {
+        throw SSLPeerUnverifiedException("hostname $host not verified")
+      }
+    } catch (e: IOException) {
+      sslSocket.close()
+      throw e
+    }
+    return sslSocket
+  }
+
+  private fun readLine(input: InputStream): String {
+    val line = StringBuilder()
+    while (true) {
+      val b = input.read()
+      if (b == -1) throw EOFException("connection closed by server")
+      if (b == '\n'.code) break
+      if (b != '\r'.code) line.append(b.toChar())
+    }
+    return line.toString()
+  }
+
+  private fun readChunked(input: InputStream): ByteArray {
+    val body = ByteArrayOutputStream()
+    while (true) {
+      val size = readLine(input).substringBefore(';').trim().toIntOrNull(16)
+        ?: throw IOException("invalid chunk size")
+      if (size == 0) break
+      val chunk = ByteArray(size)
+      input.readUntil(chunk)
+      body.write(chunk)
+      readLine(input)
+    }
+    //trailer headers
+    while (readLine(input).isNotEmpty()) { }
+    return body.toByteArray()
+  }
+}
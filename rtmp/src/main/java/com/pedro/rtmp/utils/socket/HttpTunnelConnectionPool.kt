@@ -0,0 +1,100 @@
+/*
+ * Copyright (C) 2024 pedroSG94.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.pedro.rtmp.utils.socket
+
+import java.io.IOException
+
+/**
+ * Keep idle keep-alive connections to reuse them in the next requests instead of do a TCP and
+ * TLS handshake per request.
+ */
+class HttpTunnelConnectionPool(
+  private val host: String,
+  private val port: Int,
+  private val secured: Boolean,
+  private val timeout: Int,
+  private val maxIdleConnections: Int = 2
+) {
+
+  private val idleConnections = ArrayDeque<HttpTunnelConnection>()
+  private val sync = Any()
+  @Volatile
+  var createdConnections = 0
+    private set
+  /**
+   * false if the server closed a connection after a response
+   */
+  @Volatile
+  var keepAliveSupported = true
+    private set
+
+  @Throws(IOException::class)
+  fun acquire(): HttpTunnelConnection {
+    synchronized(sync) {
+      while (idleConnections.isNotEmpty()) {
+        val connection = idleConnections.removeLast()
+        if (connection.isOpen()) return connection
+        connection.close()
+      }
+      createdConnections++
+    }
+    val connection = HttpTunnelConnection(host, port, secured, timeout)
+    connection.connect()
+    return connection
+  }
+
+  /**
+   * Return the connection to the pool if it can be reused, otherwise it is closed
+   */
+  fun release(connection: HttpTunnelConnection) {
+    synchronized(sync) {
+      if (connection.isOpen() && connection.pendingResponses == 0 && idleConnections.size < maxIdleConnections) {
+        idleConnections.addLast(connection)
+        return
+      }
+    }
+    connection.close()
+  }
+
+  /**
+   * Execute a request and wait the response using a connection of the pool
+   * @return response body
+   */
+  @Throws(IOException::class)
+  fun request(path: String, body: ByteArray): ByteArray {
+    val connection = acquire()
+    try {
+      connection.sendRequest(path, body)
+      return connection.readResponse().also {
+        if (!connection.isKeepAlive()) keepAliveSupported = false
+      }
+    } catch (e: IOException) {
+      connection.close()
+      throw e
+    } finally {
+      release(connection)
+    }
+  }
+
+  fun close() {
+    synchronized(sync) {
+      idleConnections.forEach { it.close() }
+      idleConnections.clear()
+    }
+  }
+}
@@ -0,0 +1,310 @@
+/*
+ * Copyright (C) 2024 pedroSG94.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.pedro.rtmp.utils.socket
+
+import java.io.ByteArrayInputStream
+import java.io.EOFException
+import java.io.IOException
+import java.io.InputStream
+import java.io.OutputStream
+import java.net.InetSocketAddress
+import java.nio.ByteBuffer
+import java.nio.channels.SocketChannel
+import java.security.GeneralSecurityException
+import java.security.SecureRandom
+import javax.net.ssl.SSLContext
+import javax.net.ssl.SSLEngine
+import javax.net.ssl.SSLEngineResult
+import javax.net.ssl.TrustManager
+
+/**
+ * Socket implementation using a SocketChannel. Chunk headers and payloads written between flushes
+ * are packed in a direct buffer and sent with a single write, avoiding the extra copies of a
+ * buffered socket stream. SSL/TLS is done using a SSLEngine that encrypt the direct buffer.
+ */
+class TcpNioSocket(
+  private val host: String,
+  private val port: Int,
+  private val secured: Boolean,
+  private val certificates: Array<TrustManager>?
+): RtmpSocket() {
+
+  private var channel: SocketChannel? = null
+  private var sslEngine: SSLEngine? = null
+  private var input: InputStream = ByteArrayInputStream(byteArrayOf()).buffered()
+  private val output = ChannelOutputStream { buffer -> writeBuffer(buffer) }
+  private val writeSync = Any()
+  //SSL buffers
+  private val emptyBuffer = ByteBuffer.allocate(0)
+  private var netInput = ByteBuffer.allocate(0)
+  private var netOutput = ByteBuffer.allocate(0)
+  private var appInput = ByteBuffer.allocate(0)
+
+  override fun getOutStream(): OutputStream = output
+
+  override fun getInputStream(): InputStream = input
+
+  override fun flush(isPacket: Boolean) {
+    output.flush()
+  }
+
+  override fun connect() {
+    val channel = SocketChannel.open()
+    this.channel = channel
+    val socket = channel.socket()
+    socket.connect(InetSocketAddress(host, port), timeout)
+    socket.soTimeout = timeout
+    val socketInput = socket.getInputStream()
+    if (secured) {
+      val sslEngine = try {
+        createSslEngine()
+      } catch (e: GeneralSecurityException) {
+        throw IOException("Create SSL engine failed: ${e.message}")
+      }
+      this.sslEngine = sslEngine
+      val session = sslEngine.session
+      netInput = ByteBuffer.allocate(session.packetBufferSize)
+      netOutput = ByteBuffer.allocateDirect(session.packetBufferSize)
+      appInput = ByteBuffer.allocate(session.applicationBufferSize)
+      appInput.flip()
+      sslEngine.beginHandshake()
+      doHandshake(sslEngine, socketInput)
+      input = SslInputStream(sslEngine, socketInput).buffered()
+    } else {
+      input = socketInput.buffered()
+    }
+  }
+
+  override fun close() {
+    try {
+      sslEngine?.let { sslEngine ->
+        synchronized(writeSync) {
+          sslEngine.closeOutbound()
+          wrap(sslEngine, emptyBuffer)
+        }
+      }
+    } catch (ignored: Exception) {}
+    try {
+      channel?.close()
+    } catch (ignored: Exception) {}
+    output.reset()
+  }
+
+  override fun isConnected(): Boolean = channel?.isConnected ?: false
+
+  override fun isReachable(): Boolean = channel?.socket()?.inetAddress?.isReachable(5000) ?: false
+
+  private fun createSslEngine(): SSLEngine {
+    val context = SSLContext.getInstance("TLS")
+    val secureRandom = if (certificates != null) SecureRandom() else null
+    context.init(null, certificates, secureRandom)
+    val sslEngine = context.createSSLEngine(host, port)
+    sslEngine.useClientMode = true
+    val protocols = sslEngine.supportedProtocols.filter { it == "TLSv1.1" || it == "TLSv1.2" }
+    if (protocols.isNotEmpty()) sslEngine.enabledProtocols = protocols.toTypedArray()
+    return sslEngine
+  }
+
+  @Throws(IOException::class)
+  private fun writeBuffer(buffer: ByteBuffer) {
+    val channel = channel ?: throw IOException("Socket not connected")
+    synchronized(writeSync) {
+      val sslEngine = sslEngine
+      if (sslEngine != null) {
+        wrap(sslEngine, buffer)
+      } else {
+        while (buffer.hasRemaining()) channel.write(buffer)
+      }
+    }
+  }
+
+  @Throws(IOException::class)
+  private fun wrap(sslEngine: SSLEngine, buffer: ByteBuffer) {
+    val channel = channel ?: throw IOException("Socket not connected")
+    do {
+      netOutput.clear()
+      val result = sslEngine.wrap(buffer, netOutput)
+      when (result.status) {
+        SSLEngineResult.Status.BUFFER_OVERFLOW -> {
+          netOutput = ByteBuffer.allocateDirect(netOutput.capacity() * 2)
+          continue
+        }
+        SSLEngineResult.Status.CLOSED -> if (!sslEngine.isOutboundDone) throw IOException("SSL engine closed")
+        else -> {}
+      }
+      netOutput.flip()
+      while (netOutput.hasRemaining()) channel.write(netOutput)
+      runDelegatedTasks(sslEngine, result)
+    } while (buffer.hasRemaining() && result.status != SSLEngineResult.Status.CLOSED)
+  }
+
+  /**
+   * Read from network until we can unwrap data into appInput.
+   * appInput must be in write mode.
+   */
+  @Throws(IOException::class)
+  private fun unwrap(sslEngine: SSLEngine, socketInput: InputStream): SSLEngineResult {
+    while (true) {
+      netInput.flip()
+      val result = sslEngine.unwrap(netInput, appInput)
+      netInput.compact()
+      when (result.status) {
+        SSLEngineResult.Status.BUFFER_UNDERFLOW -> {
+          if (!netInput.hasRemaining()) {
+            netInput.flip()
+            netInput = ByteBuffer.allocate(netInput.capacity() * 2).put(netInput)
+          }
+          val read = socketInput.read(netInput.array(), netInput.arrayOffset() + netInput.position(), netInput.remaining())
+          if (read == -1) throw EOFException("Connection closed")
+          netInput.position(netInput.position() + read)
+        }
+        SSLEngineResult.Status.BUFFER_OVERFLOW -> {
+          appInput.flip()
+          appInput = ByteBuffer.allocate(appInput.capacity() * 2).put(appInput)
+        }
+        SSLEngineResult.Status.CLOSED -> throw EOFException("SSL connection closed")
+        else -> {
+          runDelegatedTasks(sslEngine, result)
+          return result
+        }
+      }
+    }
+  }
+
+  @Throws(IOException::class)
+  private fun doHandshake(sslEngine: SSLEngine, socketInput: InputStream) {
+    var status = sslEngine.handshakeStatus
+    while (status != SSLEngineResult.HandshakeStatus.FINISHED && status != SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING) {
+      status = when (status) {
+        SSLEngineResult.HandshakeStatus.NEED_WRAP -> {
+          synchronized(writeSync) {
+            wrap(sslEngine, emptyBuffer)
+          }
+          sslEngine.handshakeStatus
+        }
+        SSLEngineResult.HandshakeStatus.NEED_UNWRAP -> {
+          appInput.compact()
+          try {
+            unwrap(sslEngine, socketInput)
+          } finally {
+            appInput.flip()
+          }
+          sslEngine.handshakeStatus
+        }
+        SSLEngineResult.HandshakeStatus.NEED_TASK -> {
+          runDelegatedTasks(sslEngine, null)
+          sslEngine.handshakeStatus
+        }
+        else -> throw IOException("Unexpected SSL handshake status: $status")
+      }
+    }
+  }
+
+  private fun runDelegatedTasks(sslEngine: SSLEngine, result: SSLEngineResult?) {
+    if (result == null || result.handshakeStatus == SSLEngineResult.HandshakeStatus.NEED_TASK) {
+      while (true) {
+        val task = sslEngine.delegatedTask ?: break
+        task.run()
+      }
+    }
+  }
+
+  /**
+   * Decrypt data read from the socket
+   */
+  private inner class SslInputStream(
+    private val sslEngine: SSLEngine,
+    private val socketInput: InputStream
+  ): InputStream() {
+
+    override fun read(): Int {
+      val byte = ByteArray(1)
+      val result = read(byte, 0, 1)
+      return if (result == -1) -1 else byte[0].toInt() and 0xff
+    }
+
+    override fun read(b: ByteArray, off: Int, len: Int): Int {
+      if (len == 0) return 0
+      while (!appInput.hasRemaining()) {
+        appInput.clear()
+        try {
+          unwrap(sslEngine, socketInput)
+          //renegotiation or key update
+          if (sslEngine.handshakeStatus != SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING) {
+            doHandshake(sslEngine, socketInput)
+          }
+        } finally {
+          appInput.flip()
+        }
+      }
+      val length = minOf(len, appInput.remaining())
+      appInput.get(b, off, length)
+      return length
+    }
+
+    override fun available(): Int = appInput.remaining()
+  }
+
+  /**
+   * Store all bytes written until flush in a direct buffer so the channel can send it without
+   * intermediate copies. The buffer is only sent before flush if it is full.
+   */
+  private class ChannelOutputStream(
+    private val onWrite: (ByteBuffer) -> Unit
+  ): OutputStream() {
+
+    companion object {
+      private const val BUFFER_SIZE = 64 * 1024
+    }
+
+    private val buffer = ByteBuffer.allocateDirect(BUFFER_SIZE)
+
+    override fun write(b: Int) {
+      if (!buffer.hasRemaining()) send()
+      buffer.put(b.toByte())
+    }
+
+    override fun write(b: ByteArray, off: Int, len: Int) {
+      var offset = off
+      var remaining = len
+      while (remaining > 0) {
+        if (!buffer.hasRemaining()) send()
+        val length = minOf(remaining, buffer.remaining())
+        buffer.put(b, offset, length)
+        offset += length
+        remaining -= length
+      }
+    }
+
+    override fun flush() {
+      if (buffer.position() > 0) send()
+    }
+
+    fun reset() {
+      buffer.clear()
+    }
+
+    private fun send() {
+      buffer.flip()
+      try {
+        onWrite(buffer)
+      } finally {
+        buffer.clear()
+      }
+    }
+  }
+}
@@ -19,75 +19,130 @@ package com.pedro.rtmp.utils.socket
 import android.util.Log
 import com.pedro.common.TimeUtils
 import java.io.*
-import java.net.HttpURLConnection
 import java.net.SocketTimeoutException
-import java.net.URL
+import java.util.concurrent.Executors
+import java.util.concurrent.ScheduledExecutorService
+import java.util.concurrent.TimeUnit
 import java.util.concurrent.atomic.AtomicLong
-import javax.net.ssl.HttpsURLConnection
+import java.util.concurrent.locks.ReentrantLock
+import kotlin.concurrent.withLock
 
 /**
  * Created by pedro on 5/4/22.
+ *
+ * RTMP tunneled over HTTP (RTMPT). Requests are sent using keep-alive connections and send
+ * requests are pipelined so we don't wait a round trip per request. Responses are read without
+ * hold the write lock so writers are not blocked by idle requests.
+ *
+ * @param maxBatchSize bytes of video/audio packets stored before send them in a HTTP request.
+ * @param maxBatchDelay max time in milliseconds that video/audio packets are stored, a timer send
+ * the batch if no more packets are flushed.
+ * @param maxPipelinedRequests send requests written without read the response.
  */
-class TcpTunneledSocket(private val host: String, private val port: Int, private val secured: Boolean): RtmpSocket() {
+class TcpTunneledSocket(
+  private val host: String,
+  private val port: Int,
+  private val secured: Boolean,
+  private val maxBatchSize: Int = 16 * 1024,
+  private val maxBatchDelay: Long = 50,
+  private val maxPipelinedRequests: Int = 4
+): RtmpSocket() {
 
   private val TAG = "TcpTunneledSocket"
 
-  private val headers = mapOf(
-    "Content-Type" to "application/x-fcs",
-    "User-Agent" to "Shockwave Flash"
-  )
+  private val pool = HttpTunnelConnectionPool(host, port, secured, timeout)
   private var connectionId: String = ""
+  @Volatile
   private var connected = false
   private var index = AtomicLong(0)
   private var output = ByteArrayOutputStream()
-  private var input = ByteArrayInputStream(byteArrayOf())
+  private val input = TunnelInputStream()
   private val sync = Any()
-  private var storedPackets = 0
-  //send video/audio packets in packs of 10 on each HTTP request.
-  private val maxStoredPackets = 10
+  //responses of the write connection are read holding only this lock
+  private val readLock = ReentrantLock()
+  @Volatile
+  private var writeConnection: HttpTunnelConnection? = null
+  private var batchStartTs = 0L
+  private var scheduler: ScheduledExecutorService? = null
+  //error sending a batch from the timer, reported in the next flush
+  private var flushError: IOException? = null
+  //disabled if the server close the connection after each response
+  private var pipelining = true
+  //time to wait before the next idle request if the server had nothing to send
+  @Volatile
+  private var idleDelay = 0L
+
+  companion object {
+    private const val MIN_IDLE_DELAY = 10L
+    private const val MAX_IDLE_DELAY = 500L
+  }
 
   override fun getOutStream(): OutputStream = output
 
-  override fun getInputStream(): InputStream {
+  override fun getInputStream(): InputStream = input
+
+  override fun flush(isPacket: Boolean) {
     synchronized(sync) {
-      val start = TimeUtils.getCurrentTimeMillis()
-      while (input.available() <= 1 && connected) {
-        val i = index.addAndGet(1)
-        val bytes = requestRead("idle/$connectionId/$i", secured)
-        input = ByteArrayInputStream(bytes, 1, bytes.size)
-        if (TimeUtils.getCurrentTimeMillis() - start >= timeout) {
-          throw SocketTimeoutException("couldn't receive a valid packet")
+      flushError?.let {
+        flushError = null
+        throw it
+      }
+      if (!connected || output.size() == 0) return
+      //store video/audio packets until we have enough bytes or the oldest is waiting too much
+      if (isPacket) {
+        val now = TimeUtils.getCurrentTimeMillis()
+        if (batchStartTs == 0L) {
+          batchStartTs = now
+          scheduler?.schedule({ flushAgedBatch() }, maxBatchDelay, TimeUnit.MILLISECONDS)
         }
+        if (output.size() < maxBatchSize && now - batchStartTs < maxBatchDelay) return
       }
+      sendBatch()
     }
-    return input
   }
 
-  override fun flush(isPacket: Boolean) {
+  /**
+   * Send the batch if it is waiting more than maxBatchDelay and no flush did it
+   */
+  private fun flushAgedBatch() {
     synchronized(sync) {
-      if (isPacket && storedPackets < maxStoredPackets) {
-        storedPackets++
+      if (!connected || batchStartTs == 0L || output.size() == 0) return
+      val delay = batchStartTs + maxBatchDelay - TimeUtils.getCurrentTimeMillis()
+      if (delay > 0) {
+        scheduler?.schedule({ flushAgedBatch() }, delay, TimeUnit.MILLISECONDS)
         return
       }
-      if (!connected) return
-      val i = index.addAndGet(1)
-      val bytes = output.toByteArray()
-      output.reset()
-      requestWrite("send/$connectionId/$i", secured, bytes)
-      storedPackets = 0
+      try {
+        sendBatch()
+      } catch (e: IOException) {
+        Log.e(TAG, "send batch failed: ${e.message}")
+        flushError = e
+      }
+    }
+  }
+
+  private fun sendBatch() {
+    //writers don't hold the lock, take the bytes and reset without other write in the middle
+    val bytes = synchronized(output) {
+      output.toByteArray().also { output.reset() }
     }
+    batchStartTs = 0
+    send(bytes)
   }
 
   override fun connect() {
     synchronized(sync) {
       try {
         //optional in few servers
-        requestWrite("fcs/ident2", secured, byteArrayOf(0x00))
+        pool.request("fcs/ident2", byteArrayOf(0x00))
       } catch (ignored: IOException) { }
       try {
-        val openResult = requestRead("open/1", secured)
+        val openResult = pool.request("open/1", byteArrayOf(0x00))
         connectionId = String(openResult).trimIndent()
-        requestWrite("idle/$connectionId/${index.get()}", secured, byteArrayOf(0x00))
+        onResponse(pool.request("idle/$connectionId/${index.get()}", byteArrayOf(0x00)))
+        pipelining = pool.keepAliveSupported
+        if (!pipelining) Log.i(TAG, "keep-alive not supported, pipelining disabled")
+        scheduler = Executors.newSingleThreadScheduledExecutor { Thread(it, TAG).apply { isDaemon = true } }
         connected = true
         Log.i(TAG, "Connection success")
       } catch (e: IOException) {
@@ -101,13 +156,19 @@ class TcpTunneledSocket(private val host: String, private val port: Int, private
     Log.i(TAG, "closing tunneled socket...")
     connected = false
     synchronized(sync) {
+      scheduler?.shutdownNow()
+      scheduler = null
+      batchStartTs = 0
+      writeConnection?.close()
+      writeConnection = null
       Thread {
         try {
-          requestWrite("close/$connectionId", secured, byteArrayOf(0x00))
+          pool.request("close/$connectionId", byteArrayOf(0x00))
           Log.i(TAG, "Close success")
         } catch (e: IOException) {
           Log.e(TAG, "Close request failed: ${e.message}")
         } finally {
+          pool.close()
           index.set(0)
           connectionId = ""
         }
@@ -120,50 +181,134 @@ class TcpTunneledSocket(private val host: String, private val port: Int, private
   override fun isReachable(): Boolean = connected
 
   @Throws(IOException::class)
-  private fun requestWrite(path: String, secured: Boolean, data: ByteArray) {
-    val socket = configureSocket(path, secured)
+  private fun send(bytes: ByteArray) {
+    val connection = writeConnection?.takeIf { it.isOpen() } ?: pool.acquire().also { writeConnection = it }
     try {
-      socket.connect()
-      socket.outputStream.write(data)
-      val bytes = socket.inputStream.readBytes()
-      if (bytes.size > 1) input = ByteArrayInputStream(bytes, 1, bytes.size)
-      val success = socket.responseCode == HttpURLConnection.HTTP_OK
-      if (!success) throw IOException("send packet failed: ${socket.responseMessage}")
-    } finally {
-      socket.disconnect()
+      connection.sendRequest("send/$connectionId/${index.incrementAndGet()}", bytes)
+      val maxPending = if (pipelining) maxPipelinedRequests else 1
+      //only wait responses if the pipeline is full, received responses are read if no poll is reading
+      if (connection.pendingResponses >= maxPending) readLock.lock()
+      else if (!readLock.tryLock()) return
+      try {
+        while (connection.pendingResponses >= maxPending || connection.hasResponse()) {
+          onResponse(connection.readResponse())
+          if (!connection.isKeepAlive()) {
+            if (connection.pendingResponses > 0) throw IOException("connection closed with pipelined requests")
+            Log.i(TAG, "keep-alive not supported, pipelining disabled")
+            pipelining = false
+          }
+        }
+      } finally {
+        readLock.unlock()
+      }
+    } catch (e: IOException) {
+      connection.close()
+      writeConnection = null
+      throw e
     }
   }
 
+  /**
+   * Read responses already received in the write connection and do an idle request to get data.
+   * The idle request is written in the same connection and lock than send requests so sequence
+   * numbers arrive to the server in order, the response is read after release the write lock.
+   */
   @Throws(IOException::class)
-  private fun requestRead(path: String, secured: Boolean): ByteArray {
-    val socket = configureSocket(path, secured)
+  private fun poll() {
+    var connection: HttpTunnelConnection? = null
     try {
-      socket.connect()
-      val data = socket.inputStream.readBytes()
-      val success = socket.responseCode == HttpURLConnection.HTTP_OK
-      if (!success) throw IOException("receive packet failed: ${socket.responseMessage}")
-      return data
-    } finally {
-      socket.disconnect()
+      connection = synchronized(sync) {
+        if (!connected) return
+        writeConnection?.takeIf { it.isOpen() } ?: pool.acquire().also { writeConnection = it }
+      }
+      readLock.withLock {
+        while (connection.hasResponse()) onResponse(connection.readResponse())
+      }
+      if (input.available() > 0) return
+      val request = synchronized(sync) {
+        //the connection was replaced by a writer, poll again later
+        if (!connected || connection !== writeConnection || !connection.isOpen()) return
+        connection.sendRequest("idle/$connectionId/${index.incrementAndGet()}", byteArrayOf(0x00))
+      }
+      //pipelined send responses are read before the idle response
+      readLock.withLock {
+        while (connection.responsesRead < request) onResponse(connection.readResponse())
+      }
+    } catch (e: IOException) {
+      //writers replace the connection when they see it closed
+      connection?.close()
+      throw e
+    }
+  }
+
+  private fun onResponse(body: ByteArray) {
+    //first byte is the polling interval suggested by the server
+    if (body.size > 1) {
+      input.append(body, 1)
+      idleDelay = 0
     }
   }
 
-  private fun configureSocket(path: String, secured: Boolean): HttpURLConnection {
-    val schema = if (secured) "https" else "http"
-    val url = URL("$schema://$host:$port/$path")
-    val socket = if (secured) {
-      url.openConnection() as HttpsURLConnection
-    } else {
-      url.openConnection() as HttpURLConnection
+  /**
+   * Data received in responses. Read block doing idle requests until data is received.
+   */
+  private inner class TunnelInputStream: InputStream() {
+
+    private val chunks = ArrayDeque<ByteArray>()
+    private var position = 0
+    private var available = 0
+    private val lock = Any()
+
+    fun append(bytes: ByteArray, offset: Int) {
+      synchronized(lock) {
+        chunks.addLast(bytes.copyOfRange(offset, bytes.size))
+        available += bytes.size - offset
+      }
     }
-    Log.i(TAG, "open: $url")
-    socket.requestMethod = "POST"
-    headers.forEach { (key, value) ->
-      socket.addRequestProperty(key, value)
+
+    override fun available(): Int = synchronized(lock) { available }
+
+    override fun read(): Int {
+      val byte = ByteArray(1)
+      return if (read(byte, 0, 1) < 0) -1 else byte[0].toInt() and 0xff
+    }
+
+    override fun read(b: ByteArray, off: Int, len: Int): Int {
+      if (len == 0) return 0
+      if (!waitData()) return -1
+      synchronized(lock) {
+        var read = 0
+        while (read < len && chunks.isNotEmpty()) {
+          val chunk = chunks.first()
+          val size = minOf(len - read, chunk.size - position)
+          System.arraycopy(chunk, position, b, off + read, size)
+          position += size
+          read += size
+          if (position == chunk.size) {
+            chunks.removeFirst()
+            position = 0
+          }
+        }
+        available -= read
+        return read
+      }
+    }
+
+    private fun waitData(): Boolean {
+      val start = TimeUtils.getCurrentTimeMillis()
+      while (available() == 0) {
+        if (!connected) return false
+        poll()
+        if (available() == 0) {
+          if (TimeUtils.getCurrentTimeMillis() - start >= timeout) {
+            throw SocketTimeoutException("couldn't receive a valid packet")
+          }
+          //nothing to read, wait more between idle requests
+          idleDelay = (idleDelay * 2).coerceIn(MIN_IDLE_DELAY, MAX_IDLE_DELAY)
+          Thread.sleep(idleDelay)
+        }
+      }
+      return true
     }
-    socket.doOutput = true
-    socket.connectTimeout = timeout
-    socket.readTimeout = timeout
-    return socket
   }
-}
\ No newline at end of file
+}
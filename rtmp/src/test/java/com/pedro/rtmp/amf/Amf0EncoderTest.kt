@@ -0,0 +1,178 @@
+/*
+ * Copyright (C) 2024 pedroSG94.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.pedro.rtmp.amf
+
+import com.pedro.rtmp.amf.v0.Amf0Decoder
+import com.pedro.rtmp.amf.v0.Amf0Encoder
+import com.pedro.rtmp.amf.v0.AmfBoolean
+import com.pedro.rtmp.amf.v0.AmfData
+import com.pedro.rtmp.amf.v0.AmfDate
+import com.pedro.rtmp.amf.v0.AmfEcmaArray
+import com.pedro.rtmp.amf.v0.AmfLongString
+import com.pedro.rtmp.amf.v0.AmfNull
+import com.pedro.rtmp.amf.v0.AmfNumber
+import com.pedro.rtmp.amf.v0.AmfObject
+import com.pedro.rtmp.amf.v0.AmfStrictArray
+import com.pedro.rtmp.amf.v0.AmfString
+import com.pedro.rtmp.amf.v0.AmfUndefined
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertSame
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import java.io.ByteArrayOutputStream
+import java.io.IOException
+import java.lang.management.ManagementFactory
+import java.nio.ByteBuffer
+
+class Amf0EncoderTest {
+
+  @Test
+  fun `GIVEN amf values WHEN write using encoder THEN get the same bytes that writing amf values`() {
+    val values = createValues()
+    val expected = ByteArrayOutputStream()
+    values.forEach {
+      it.writeHeader(expected)
+      it.writeBody(expected)
+    }
+    val encoder = Amf0Encoder(AmfBuffer(16))
+    values.forEach { encoder.write(it) }
+
+    assertArrayEquals(expected.toByteArray(), encoder.toByteArray())
+  }
+
+  @Test
+  fun `GIVEN a buffer WHEN read using decoder THEN get the same values`() {
+    val values = createValues()
+    val encoder = Amf0Encoder()
+    values.forEach { encoder.write(it) }
+    val bytes = encoder.toByteArray()
+
+    val decoder = Amf0Decoder(ByteBuffer.wrap(bytes))
+    val result = mutableListOf<AmfData>()
+    while (decoder.hasRemaining()) result.add(decoder.read())
+
+    assertEquals(values.size, result.size)
+    val output = ByteArrayOutputStream()
+    result.forEach {
+      assertEquals(values[result.indexOf(it)].getSize(), it.getSize())
+      it.writeHeader(output)
+      it.writeBody(output)
+    }
+    assertArrayEquals(bytes, output.toByteArray())
+    val amfObject = result[2] as AmfObject
+    assertEquals("FMLE/3.0", (amfObject.getProperty("flashVer") as AmfString).value)
+    assertEquals(3.0, (amfObject.getProperty("objectEncoding") as AmfNumber).value, 0.0)
+  }
+
+  @Test
+  fun `GIVEN a object WHEN set properties after get property THEN find new properties`() {
+    val amfObject = AmfObject()
+    amfObject.setProperty("code", "NetStream.Publish.Start")
+    assertEquals("NetStream.Publish.Start", (amfObject.getProperty("code") as AmfString).value)
+    amfObject.setProperty("description", "published")
+    assertEquals("published", (amfObject.getProperty("description") as AmfString).value)
+    assertEquals(null, amfObject.getProperty("level"))
+  }
+
+  @Test
+  fun `GIVEN non ascii strings WHEN write using encoder THEN use UTF-8`() {
+    val value = "añ€😀\uD800"
+    val encoder = Amf0Encoder()
+    encoder.writeString(value)
+    val expected = ByteArrayOutputStream()
+    AmfString(value).apply {
+      writeHeader(expected)
+      writeBody(expected)
+    }
+    assertArrayEquals(expected.toByteArray(), encoder.toByteArray())
+  }
+
+  @Test
+  fun `GIVEN a truncated buffer WHEN read using decoder THEN throw IOException`() {
+    val encoder = Amf0Encoder()
+    createValues().forEach { encoder.write(it) }
+    val bytes = encoder.toByteArray()
+    for (size in 1 until bytes.size) {
+      val decoder = Amf0Decoder(ByteBuffer.wrap(bytes, 0, size))
+      val failed = try {
+        while (decoder.hasRemaining()) decoder.read()
+        false
+      } catch (e: IOException) {
+        true
+      }
+      //cut between values is a valid buffer
+      if (!failed) assertFalse(decoder.hasRemaining())
+    }
+    assertTrue(bytes.isNotEmpty())
+  }
+
+  @Test
+  fun `GIVEN many messages WHEN write reusing encoder THEN buffer is reused and allocate less than using streams`() {
+    val values = createValues()
+    val iterations = 20_000
+    fun writeStreams(): ByteArray {
+      val output = ByteArrayOutputStream()
+      values.forEach {
+        it.writeHeader(output)
+        it.writeBody(output)
+      }
+      return output.toByteArray()
+    }
+    val encoder = Amf0Encoder()
+    fun writeEncoder(): Int {
+      encoder.reset()
+      values.forEach { encoder.write(it) }
+      return encoder.buffer.size
+    }
+    //warm up and grow the buffer to the size needed
+    repeat(100) { writeStreams(); writeEncoder() }
+    val buffer = encoder.buffer.buffer
+    val threadMXBean = ManagementFactory.getThreadMXBean() as com.sun.management.ThreadMXBean
+    val threadId = Thread.currentThread().id
+    var start = threadMXBean.getThreadAllocatedBytes(threadId)
+    repeat(iterations) { writeStreams() }
+    val streamsAllocated = threadMXBean.getThreadAllocatedBytes(threadId) - start
+    start = threadMXBean.getThreadAllocatedBytes(threadId)
+    repeat(iterations) { writeEncoder() }
+    val encoderAllocated = threadMXBean.getThreadAllocatedBytes(threadId) - start
+
+    assertSame(buffer, encoder.buffer.buffer)
+    assertTrue(encoderAllocated < streamsAllocated / 10)
+    assertArrayEquals(writeStreams(), encoder.toByteArray())
+  }
+
+  private fun createValues(): List<AmfData> {
+    val amfObject = AmfObject()
+    amfObject.setProperty("app", "live")
+    amfObject.setProperty("flashVer", "FMLE/3.0")
+    amfObject.setProperty("fourCcList", AmfStrictArray(mutableListOf(AmfString("hvc1"), AmfString("av01"))))
+    amfObject.setProperty("objectEncoding", 3.0)
+    amfObject.setProperty("fpad", false)
+    amfObject.setProperty("capabilities")
+    val ecmaArray = AmfEcmaArray()
+    ecmaArray.setProperty("width", 1920.0)
+    ecmaArray.setProperty("height", 1080.0)
+    ecmaArray.setProperty("stereo", true)
+    return listOf(
+      AmfString("connect"), AmfNumber(1.0), amfObject, AmfNull(), ecmaArray,
+      AmfBoolean(true), AmfUndefined(), AmfDate(1234.0), AmfLongString("long string")
+    )
+  }
+}
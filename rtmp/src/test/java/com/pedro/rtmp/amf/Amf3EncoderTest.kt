@@ -0,0 +1,145 @@
+/*
+ * Copyright (C) 2024 pedroSG94.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.pedro.rtmp.amf
+
+import com.pedro.rtmp.amf.v3.Amf3Array
+import com.pedro.rtmp.amf.v3.Amf3Decoder
+import com.pedro.rtmp.amf.v3.Amf3Double
+import com.pedro.rtmp.amf.v3.Amf3Encoder
+import com.pedro.rtmp.amf.v3.Amf3Integer
+import com.pedro.rtmp.amf.v3.Amf3Null
+import com.pedro.rtmp.amf.v3.Amf3Object
+import com.pedro.rtmp.amf.v3.Amf3String
+import com.pedro.rtmp.amf.v3.Amf3True
+import com.pedro.rtmp.rtmp.message.command.CommandAmf3
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertSame
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import java.io.ByteArrayInputStream
+import java.io.ByteArrayOutputStream
+import java.nio.ByteBuffer
+
+class Amf3EncoderTest {
+
+  @Test
+  fun `GIVEN integers WHEN write using encoder THEN get U29 bytes`() {
+    val values = mapOf(
+      0 to byteArrayOf(0x00),
+      0x7F to byteArrayOf(0x7F),
+      0x80 to byteArrayOf(0x81.toByte(), 0x00),
+      0x3FFF to byteArrayOf(0xFF.toByte(), 0x7F),
+      0x4000 to byteArrayOf(0x81.toByte(), 0x80.toByte(), 0x00),
+      0x1FFFFF to byteArrayOf(0xFF.toByte(), 0xFF.toByte(), 0x7F),
+      0x200000 to byteArrayOf(0x80.toByte(), 0xC0.toByte(), 0x80.toByte(), 0x00),
+      -1 to byteArrayOf(0xFF.toByte(), 0xFF.toByte(), 0xFF.toByte(), 0xFF.toByte()),
+    )
+    values.forEach { (value, expected) ->
+      val encoder = Amf3Encoder()
+      encoder.writeBody(Amf3Integer(value))
+      assertArrayEquals("value $value", expected, encoder.toByteArray())
+      assertEquals(expected.size, Amf3Integer(value).getSize())
+      val output = ByteArrayOutputStream()
+      Amf3Integer(value).writeBody(output)
+      assertArrayEquals(expected, output.toByteArray())
+      val result = Amf3Integer()
+      result.readBody(ByteArrayInputStream(expected))
+      assertEquals(value, result.value)
+      assertEquals(value, (Amf3Decoder(ByteBuffer.wrap(byteArrayOf(0x04) + expected)).read() as Amf3Integer).value)
+    }
+  }
+
+  @Test
+  fun `GIVEN an integer out of range WHEN write using encoder THEN write a double`() {
+    val encoder = Amf3Encoder()
+    encoder.write(Amf3Integer(1 shl 28))
+    val result = Amf3Decoder(ByteBuffer.wrap(encoder.toByteArray())).read()
+    assertTrue(result is Amf3Double)
+    assertEquals((1 shl 28).toDouble(), (result as Amf3Double).value, 0.0)
+  }
+
+  @Test
+  fun `GIVEN objects with the same keys WHEN write using encoder THEN keys and traits are sent as references`() {
+    val encoder = Amf3Encoder()
+    encoder.write(createObject())
+    val firstSize = encoder.buffer.size
+    encoder.write(createObject())
+    val secondSize = encoder.buffer.size - firstSize
+    assertTrue(secondSize < firstSize)
+
+    val bytes = encoder.toByteArray()
+    val key = "videocodecid".toByteArray()
+    var count = 0
+    for (i in 0..bytes.size - key.size) {
+      if (bytes.copyOfRange(i, i + key.size).contentEquals(key)) count++
+    }
+    assertEquals(1, count)
+  }
+
+  @Test
+  fun `GIVEN a buffer with references WHEN read using decoder THEN resolve references`() {
+    val amfObject = createObject()
+    val array = Amf3Array(mutableListOf(amfObject, amfObject, createObject()))
+    val encoder = Amf3Encoder()
+    encoder.write(array)
+
+    val decoder = Amf3Decoder(ByteBuffer.wrap(encoder.toByteArray()))
+    val result = decoder.read() as Amf3Array
+    assertEquals(3, result.items.size)
+    assertSame(result.items[0], result.items[1])
+    (result.items[2] as Amf3Object).let {
+      assertEquals("avc1", (it.getProperty("videocodecid") as Amf3String).value)
+      assertEquals(1920, (it.getProperty("width") as Amf3Integer).value)
+      assertTrue(it.getProperty("stereo") is Amf3True)
+    }
+    assertTrue(!decoder.hasRemaining())
+  }
+
+  @Test
+  fun `GIVEN a amf3 command WHEN store and read body THEN get the same command`() {
+    val command = CommandAmf3("onStatus", 2)
+    command.addData(Amf3Null())
+    command.addData(Amf3Object().apply {
+      setProperty("level", "status")
+      setProperty("code", "NetStream.Publish.Start")
+      setProperty("description", "Start publishing")
+    })
+    command.addData(createObject())
+    val bytes = command.storeBody()
+    assertEquals(0, bytes[0].toInt())
+
+    val result = CommandAmf3()
+    result.header.messageLength = bytes.size
+    result.readBody(ByteArrayInputStream(bytes))
+    assertEquals("onStatus", result.name)
+    assertEquals(2, result.commandId)
+    assertEquals("NetStream.Publish.Start", result.getCode())
+    assertArrayEquals(bytes, result.storeBody())
+  }
+
+  private fun createObject(): Amf3Object {
+    return Amf3Object().apply {
+      setProperty("videocodecid", "avc1")
+      setProperty("width", Amf3Integer(1920))
+      setProperty("height", Amf3Integer(1080))
+      setProperty("framerate", 30.0)
+      setProperty("stereo", true)
+    }
+  }
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright (C) 2024 pedroSG94.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.pedro.rtmp.flv
+
+import android.media.MediaCodec
+import com.pedro.rtmp.flv.audio.packet.AacPacket
+import com.pedro.rtmp.flv.audio.packet.G711Packet
+import com.pedro.rtmp.flv.video.packet.H264Packet
+import com.pedro.rtmp.flv.video.packet.H265Packet
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import java.nio.ByteBuffer
+
+class MultitrackPacketTest {
+
+  private val sps = byteArrayOf(103, 100, 0, 30, -84, -76, 15, 2, -115, 53, 2, 2, 2, 7, -117, 23, 8)
+  private val pps = byteArrayOf(104, -18, 13, -117)
+
+  @Test
+  fun `GIVEN a h264 packetizer WHEN create multitrack packets THEN use avc1 fourCC and track id`() {
+    val h264Packet = H264Packet().apply { sendVideoInfo(ByteBuffer.wrap(sps), ByteBuffer.wrap(pps)) }
+    val expected = mutableListOf<FlvPacket>()
+    createVideo(h264Packet, 0x05) { expected.add(it) }
+    val multitrackPacket = MultitrackPacket(2, H264Packet().apply { sendVideoInfo(ByteBuffer.wrap(sps), ByteBuffer.wrap(pps)) })
+    val frames = mutableListOf<FlvPacket>()
+    createVideo(multitrackPacket, 0x05) { frames.add(it) }
+
+    assertEquals(2, frames.size)
+    val config = frames[0]
+    //keyframe, multitrack. One track, sequence start. avc1. track 2
+    assertArrayEquals(byteArrayOf(0x96.toByte(), 0x00, 0x61, 0x76, 0x63, 0x31, 2), config.buffer.copyOf(7))
+    //avc config without legacy header and cts
+    assertArrayEquals(expected[0].buffer.copyOfRange(5, expected[0].length), config.buffer.copyOfRange(7, config.length))
+    assertTrue(config.isSequenceHeader())
+    assertTrue(config.isMultitrack())
+    assertEquals(2, config.getTrackId())
+
+    val frame = frames[1]
+    assertArrayEquals(byteArrayOf(0x96.toByte(), 0x01, 0x61, 0x76, 0x63, 0x31, 2), frame.buffer.copyOf(7))
+    //cts and nalu
+    assertArrayEquals(expected[1].buffer.copyOfRange(2, expected[1].length), frame.buffer.copyOfRange(7, frame.length))
+    assertTrue(frame.isKeyFrame())
+    assertFalse(frame.isSequenceHeader())
+    assertEquals(expected[1].timeStamp, frame.timeStamp)
+  }
+
+  @Test
+  fun `GIVEN a h265 packetizer WHEN create multitrack packets THEN keep fourCC and body`() {
+    val vps = byteArrayOf(64, 1, 12, 1, -1, -1, 1, 96, 0, 0, 3, 0, 0, 3, 0, 0, 3, 0, 0, 3, 0, -103, 44, 9)
+    val h265Sps = byteArrayOf(66, 1, 1, 1, 96, 0, 0, 3, 0, 0, 3, 0, 0, 3, 0, 0, 3, 0, -103, -96, 15, 8, 2, -127, 104, -76, -82, -55, 46, -26, -96, -64, -64, -64, 16)
+    val h265Pps = byteArrayOf(68, 1, -64, 102, 124, 12, -58, 64)
+    val expected = mutableListOf<FlvPacket>()
+    createVideo(H265Packet().apply { sendVideoInfo(ByteBuffer.wrap(h265Sps), ByteBuffer.wrap(h265Pps), ByteBuffer.wrap(vps)) }, 0x02) { expected.add(it) }
+    val multitrackPacket = MultitrackPacket(1, H265Packet().apply { sendVideoInfo(ByteBuffer.wrap(h265Sps), ByteBuffer.wrap(h265Pps), ByteBuffer.wrap(vps)) })
+    val frames = mutableListOf<FlvPacket>()
+    createVideo(multitrackPacket, 0x02) { frames.add(it) }
+
+    assertEquals(2, frames.size)
+    frames.forEachIndexed { i, frame ->
+      //hvc1
+      assertArrayEquals(byteArrayOf(0x68, 0x76, 0x63, 0x31, 1), frame.buffer.copyOfRange(2, 7))
+      assertEquals(expected[i].buffer[0].toInt() and 0x0F, frame.buffer[1].toInt() and 0x0F)
+      assertArrayEquals(expected[i].buffer.copyOfRange(5, expected[i].length), frame.buffer.copyOfRange(7, frame.length))
+    }
+    assertTrue(frames[0].isSequenceHeader())
+  }
+
+  @Test
+  fun `GIVEN an aac packetizer WHEN create multitrack packets THEN use mp4a fourCC and track id`() {
+    val multitrackPacket = MultitrackPacket(3, AacPacket().apply { sendAudioInfo(48000, true) })
+    val buffer = ByteArray(100) { it.toByte() }
+    val frames = mutableListOf<FlvPacket>()
+    val info = MediaCodec.BufferInfo()
+    info.presentationTimeUs = 1_000_000
+    info.size = buffer.size
+    //first frame is replaced by the config
+    repeat(2) { multitrackPacket.createFlvPacket(ByteBuffer.wrap(buffer), info) { frames.add(it) } }
+
+    assertEquals(2, frames.size)
+    //ex header, multitrack. One track, sequence start. mp4a. track 3
+    assertArrayEquals(byteArrayOf(0x95.toByte(), 0x00, 0x6D, 0x70, 0x34, 0x61, 3), frames[0].buffer.copyOf(7))
+    assertTrue(frames[0].isSequenceHeader())
+    assertArrayEquals(byteArrayOf(0x95.toByte(), 0x01, 0x6D, 0x70, 0x34, 0x61, 3), frames[1].buffer.copyOf(7))
+    assertArrayEquals(buffer, frames[1].buffer.copyOfRange(7, frames[1].length))
+    assertFalse(frames[1].isSequenceHeader())
+    assertEquals(3, frames[1].getTrackId())
+    assertEquals(1000L, frames[1].timeStamp)
+  }
+
+  @Test(expected = IllegalArgumentException::class)
+  fun `GIVEN a g711 packetizer WHEN create multitrack packets THEN throw unsupported codec`() {
+    val multitrackPacket = MultitrackPacket(1, G711Packet().apply { sendAudioInfo() })
+    val info = MediaCodec.BufferInfo()
+    info.size = 100
+    multitrackPacket.createFlvPacket(ByteBuffer.wrap(ByteArray(100)), info) { }
+  }
+
+  private fun createVideo(packet: BasePacket, nalHeader: Byte, callback: (FlvPacket) -> Unit) {
+    val buffer = byteArrayOf(0x00, 0x00, 0x00, 0x01, nalHeader).plus(ByteArray(200) { it.toByte() })
+    val info = MediaCodec.BufferInfo()
+    info.presentationTimeUs = 2_000_000
+    info.size = buffer.size
+    info.flags = MediaCodec.BUFFER_FLAG_KEY_FRAME
+    packet.createFlvPacket(ByteBuffer.wrap(buffer), info, callback)
+  }
+}
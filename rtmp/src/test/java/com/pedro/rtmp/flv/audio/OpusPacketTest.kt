@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2024 pedroSG94.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.pedro.rtmp.flv.audio
+
+import android.media.MediaCodec
+import com.pedro.rtmp.flv.FlvPacket
+import com.pedro.rtmp.flv.FlvType
+import com.pedro.rtmp.flv.audio.packet.OpusPacket
+import com.pedro.rtmp.rtmp.message.Audio
+import com.pedro.rtmp.utils.LoopbackRtmpServer
+import com.pedro.rtmp.utils.socket.TcpSocket
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+import kotlin.random.Random
+
+class OpusPacketTest {
+
+  @Test
+  fun `GIVEN opus buffers WHEN create opus packets THEN return OpusHead sequence start and coded frames`() {
+    val opusPacket = OpusPacket()
+    opusPacket.sendAudioInfo(48000, true)
+    val frames = createFrames(opusPacket, listOf(ByteArray(120) { it.toByte() }))
+
+    assertEquals(2, frames.size)
+    val config = frames[0]
+    //ex header and sequence start. Opus
+    assertArrayEquals(byteArrayOf(0x90.toByte(), 0x4F, 0x70, 0x75, 0x73), config.buffer.copyOf(5))
+    assertTrue(config.isSequenceHeader())
+    val head = parseOpusHead(config.buffer.copyOfRange(5, config.length))
+    assertEquals(listOf(1, 2, 312, 48000, 0, 0), head)
+
+    val frame = frames[1]
+    //ex header and coded frames. Opus
+    assertArrayEquals(byteArrayOf(0x91.toByte(), 0x4F, 0x70, 0x75, 0x73), frame.buffer.copyOf(5))
+    assertFalse(frame.isSequenceHeader())
+    assertArrayEquals(ByteArray(120) { it.toByte() }, frame.buffer.copyOfRange(5, frame.length))
+  }
+
+  @Test
+  fun `GIVEN a codec config buffer WHEN create opus packets THEN discard it`() {
+    val opusPacket = OpusPacket()
+    opusPacket.sendAudioInfo(48000, false)
+    val info = MediaCodec.BufferInfo()
+    info.size = 19
+    info.flags = MediaCodec.BUFFER_FLAG_CODEC_CONFIG
+    val frames = mutableListOf<FlvPacket>()
+    opusPacket.createFlvPacket(ByteBuffer.wrap(ByteArray(19)), info) { frames.add(it) }
+    assertTrue(frames.isEmpty())
+    frames.addAll(createFrames(opusPacket, listOf(ByteArray(60))))
+    assertEquals(2, frames.size)
+    assertEquals(1, parseOpusHead(frames[0].buffer.copyOfRange(5, frames[0].length))[1])
+  }
+
+  @Test
+  fun `GIVEN opus packets WHEN send to a server THEN server receive same opus packets`() {
+    val random = Random(1)
+    val opusFrames = List(50) { random.nextBytes(random.nextInt(20, 400)) }
+    val opusPacket = OpusPacket()
+    opusPacket.sendAudioInfo(48000, true)
+    val frames = createFrames(opusPacket, opusFrames)
+
+    val received = LoopbackRtmpServer().use { server ->
+      val socket = TcpSocket("127.0.0.1", server.port, false, null)
+      socket.connect()
+      frames.forEach {
+        val audio = Audio(it, 1)
+        audio.writeHeader(socket.getOutStream())
+        audio.writeBody(socket.getOutStream())
+      }
+      socket.flush(true)
+      socket.close()
+      server.getTracks(5000).getValue(Pair(FlvType.AUDIO, 0))
+    }
+
+    assertEquals(opusFrames.size + 1, received.size)
+    assertEquals(listOf(1, 2, 312, 48000, 0, 0), parseOpusHead(received[0].buffer.copyOfRange(5, received[0].length)))
+    received.drop(1).forEachIndexed { i, packet ->
+      assertEquals(AudioPacketType.CODED_FRAMES.value, packet.buffer[0].toInt() and 0x0F)
+      assertArrayEquals(opusFrames[i], packet.buffer.copyOfRange(5, packet.length))
+      assertEquals(i * 20L, packet.timeStamp)
+    }
+  }
+
+  //20ms frames
+  private fun createFrames(opusPacket: OpusPacket, opusFrames: List<ByteArray>): List<FlvPacket> {
+    val frames = mutableListOf<FlvPacket>()
+    opusFrames.forEachIndexed { i, opusFrame ->
+      val info = MediaCodec.BufferInfo()
+      info.presentationTimeUs = i * 20_000L
+      info.size = opusFrame.size
+      opusPacket.createFlvPacket(ByteBuffer.wrap(opusFrame), info) { frames.add(it) }
+    }
+    return frames
+  }
+
+  /**
+   * @return version, channels, pre skip, sample rate, gain and mapping family
+   */
+  private fun parseOpusHead(bytes: ByteArray): List<Int> {
+    assertEquals(19, bytes.size)
+    assertEquals("OpusHead", String(bytes, 0, 8, Charsets.US_ASCII))
+    val buffer = ByteBuffer.wrap(bytes, 8, 11).order(ByteOrder.LITTLE_ENDIAN)
+    return listOf(buffer.get().toInt(), buffer.get().toInt(), buffer.getShort().toInt(), buffer.getInt(),
+      buffer.getShort().toInt(), buffer.get().toInt())
+  }
+}
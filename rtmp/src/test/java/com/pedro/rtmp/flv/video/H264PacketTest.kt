@@ -22,6 +22,7 @@ import com.pedro.rtmp.flv.FlvType
 import com.pedro.rtmp.flv.video.packet.H264Packet
 import org.junit.Assert.assertArrayEquals
 import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
 import org.junit.Test
 import java.nio.ByteBuffer
 
@@ -58,4 +59,99 @@ class H264PacketTest {
     assertArrayEquals(expectedConfig, frames[0].buffer)
     assertArrayEquals(expectedFlvPacket, frames[1].buffer)
   }
-}
\ No newline at end of file
+
+  @Test
+  fun `GIVEN reordered IPBB frames WHEN create packets THEN use decode timestamp and composition time`() {
+    //IPBB GOP in decode order, presentation index of each frame
+    val decodeOrder = listOf(0, 3, 1, 2, 6, 4, 5, 9, 7, 8, 12, 10, 11)
+    val frameDuration = 33_333L
+    val packet = H264Packet()
+    val sps = byteArrayOf(103, 100, 0, 30, -84, -76, 15, 2, -115, 53, 2, 2, 2, 7, -117, 23, 8)
+    val pps = byteArrayOf(104, -18, 13, -117)
+    packet.sendVideoInfo(ByteBuffer.wrap(sps), ByteBuffer.wrap(pps))
+    val frames = mutableListOf<FlvPacket>()
+    decodeOrder.forEach {
+      val isKeyFrame = it == 0
+      val buffer = byteArrayOf(0x00, 0x00, 0x00, 0x01, if (isKeyFrame) 0x05 else 0x01).plus(ByteArray(100))
+      val info = MediaCodec.BufferInfo()
+      info.presentationTimeUs = it * frameDuration
+      info.offset = 0
+      info.size = buffer.size
+      info.flags = if (isKeyFrame) 1 else 0
+      packet.createFlvPacket(ByteBuffer.wrap(buffer), info) { flvPacket -> frames.add(flvPacket) }
+    }
+    //skip config
+    val videoFrames = frames.drop(1)
+    assertEquals(decodeOrder.size, videoFrames.size)
+    var lastTs = 0L
+    videoFrames.forEachIndexed { index, flvPacket ->
+      val cts = (flvPacket.buffer[2].toInt() shl 16) or ((flvPacket.buffer[2 + 1].toInt() and 0xFF) shl 8) or (flvPacket.buffer[2 + 2].toInt() and 0xFF)
+      assertEquals(flvPacket.compositionTime, cts)
+      assertEquals(decodeOrder[index] * frameDuration / 1000, flvPacket.getPresentationTimeStamp())
+      assertTrue(flvPacket.timeStamp >= lastTs)
+      //reorder is detected in the first GOP
+      if (index >= 4) assertTrue(cts >= 0)
+      lastTs = flvPacket.timeStamp
+    }
+  }
+
+  @Test
+  fun `GIVEN reordered IPBB frames and known reorder depth WHEN create packets THEN composition time is never negative`() {
+    val decodeOrder = listOf(0, 3, 1, 2, 6, 4, 5, 9, 7, 8)
+    val frameDuration = 33_333L
+    val packet = H264Packet(2)
+    val sps = byteArrayOf(103, 100, 0, 30, -84, -76, 15, 2, -115, 53, 2, 2, 2, 7, -117, 23, 8)
+    val pps = byteArrayOf(104, -18, 13, -117)
+    packet.sendVideoInfo(ByteBuffer.wrap(sps), ByteBuffer.wrap(pps))
+    val frames = mutableListOf<FlvPacket>()
+    decodeOrder.forEach {
+      val isKeyFrame = it == 0
+      val buffer = byteArrayOf(0x00, 0x00, 0x00, 0x01, if (isKeyFrame) 0x05 else 0x01).plus(ByteArray(100))
+      val info = MediaCodec.BufferInfo()
+      info.presentationTimeUs = it * frameDuration
+      info.offset = 0
+      info.size = buffer.size
+      info.flags = if (isKeyFrame) 1 else 0
+      packet.createFlvPacket(ByteBuffer.wrap(buffer), info) { flvPacket -> frames.add(flvPacket) }
+    }
+    val videoFrames = frames.drop(1)
+    videoFrames.forEachIndexed { index, flvPacket ->
+      assertTrue(flvPacket.compositionTime >= 0)
+      //P-frames are presented after the B-frames decoded after them
+      if (index > 0 && decodeOrder[index] % 3 == 0) assertTrue(flvPacket.compositionTime > 0)
+    }
+  }
+
+  @Test
+  fun `GIVEN a config buffer before reordered frames WHEN create packets THEN sequence header use the first frame decode timestamp`() {
+    val decodeOrder = listOf(0, 3, 1, 2, 6, 4, 5)
+    val frameDuration = 33_333L
+    val packet = H264Packet(2)
+    val sps = byteArrayOf(103, 100, 0, 30, -84, -76, 15, 2, -115, 53, 2, 2, 2, 7, -117, 23, 8)
+    val pps = byteArrayOf(104, -18, 13, -117)
+    packet.sendVideoInfo(ByteBuffer.wrap(sps), ByteBuffer.wrap(pps))
+    val frames = mutableListOf<FlvPacket>()
+    //codec config buffer with a timestamp bigger than the first frame
+    val configBuffer = byteArrayOf(0x00, 0x00, 0x00, 0x01, 0x67).plus(ByteArray(10))
+    val configInfo = MediaCodec.BufferInfo()
+    configInfo.presentationTimeUs = 2 * frameDuration
+    configInfo.size = configBuffer.size
+    configInfo.flags = MediaCodec.BUFFER_FLAG_CODEC_CONFIG
+    packet.createFlvPacket(ByteBuffer.wrap(configBuffer), configInfo) { flvPacket -> frames.add(flvPacket) }
+    assertEquals(0, frames.size)
+    decodeOrder.forEach {
+      val isKeyFrame = it == 0
+      val buffer = byteArrayOf(0x00, 0x00, 0x00, 0x01, if (isKeyFrame) 0x05 else 0x01).plus(ByteArray(100))
+      val info = MediaCodec.BufferInfo()
+      info.presentationTimeUs = it * frameDuration
+      info.offset = 0
+      info.size = buffer.size
+      info.flags = if (isKeyFrame) 1 else 0
+      packet.createFlvPacket(ByteBuffer.wrap(buffer), info) { flvPacket -> frames.add(flvPacket) }
+    }
+    assertTrue(frames[0].isSequenceHeader())
+    assertEquals(decodeOrder.size + 1, frames.size)
+    assertEquals(frames[1].timeStamp, frames[0].timeStamp)
+    frames.zipWithNext().forEach { (previous, next) -> assertTrue(next.timeStamp >= previous.timeStamp) }
+  }
+}
@@ -22,6 +22,7 @@ import com.pedro.rtmp.flv.FlvType
 import com.pedro.rtmp.flv.video.packet.H265Packet
 import org.junit.Assert.assertArrayEquals
 import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
 import org.junit.Test
 import java.nio.ByteBuffer
 
@@ -59,4 +60,74 @@ class H265PacketTest {
     assertArrayEquals(expectedConfig, frames[0].buffer)
     assertArrayEquals(expectedFlvPacket, frames[1].buffer)
   }
-}
\ No newline at end of file
+
+  @Test
+  fun `GIVEN reordered IPBB frames WHEN create packets THEN use decode timestamp and composition time`() {
+    //IPBB GOP in decode order, presentation index of each frame
+    val decodeOrder = listOf(0, 3, 1, 2, 6, 4, 5, 9, 7, 8, 12, 10, 11)
+    val frameDuration = 33_333L
+    val packet = H265Packet()
+    val vps = byteArrayOf(64, 1, 12, 1, -1, -1, 1, 96, 0, 0, 3, 0, 0, 3, 0, 0, 3, 0, 0, 3, 0, -103, 44, 9)
+    val sps = byteArrayOf(66, 1, 1, 1, 96, 0, 0, 3, 0, 0, 3, 0, 0, 3, 0, 0, 3, 0, -103, -96, 15, 8, 2, -127, 104, -76, -82, -55, 46, -26, -96, -64, -64, -64, 16)
+    val pps = byteArrayOf(68, 1, -64, 102, 124, 12, -58, 64)
+    packet.sendVideoInfo(ByteBuffer.wrap(sps), ByteBuffer.wrap(pps), ByteBuffer.wrap(vps))
+    val frames = mutableListOf<FlvPacket>()
+    decodeOrder.forEach {
+      val isKeyFrame = it == 0
+      val buffer = byteArrayOf(0x00, 0x00, 0x00, 0x01, if (isKeyFrame) 0x26 else 0x02).plus(ByteArray(100))
+      val info = MediaCodec.BufferInfo()
+      info.presentationTimeUs = it * frameDuration
+      info.offset = 0
+      info.size = buffer.size
+      info.flags = if (isKeyFrame) 1 else 0
+      packet.createFlvPacket(ByteBuffer.wrap(buffer), info) { flvPacket -> frames.add(flvPacket) }
+    }
+    //skip config
+    val videoFrames = frames.drop(1)
+    assertEquals(decodeOrder.size, videoFrames.size)
+    var lastTs = 0L
+    videoFrames.forEachIndexed { index, flvPacket ->
+      val cts = (flvPacket.buffer[5].toInt() shl 16) or ((flvPacket.buffer[5 + 1].toInt() and 0xFF) shl 8) or (flvPacket.buffer[5 + 2].toInt() and 0xFF)
+      assertEquals(flvPacket.compositionTime, cts)
+      assertEquals(decodeOrder[index] * frameDuration / 1000, flvPacket.getPresentationTimeStamp())
+      assertTrue(flvPacket.timeStamp >= lastTs)
+      //reorder is detected in the first GOP
+      if (index >= 4) assertTrue(cts >= 0)
+      lastTs = flvPacket.timeStamp
+    }
+  }
+
+  @Test
+  fun `GIVEN a config buffer before reordered frames WHEN create packets THEN sequence header use the first frame decode timestamp`() {
+    val decodeOrder = listOf(0, 3, 1, 2, 6, 4, 5)
+    val frameDuration = 33_333L
+    val packet = H265Packet(2)
+    val vps = byteArrayOf(64, 1, 12, 1, -1, -1, 1, 96, 0, 0, 3, 0, 0, 3, 0, 0, 3, 0, 0, 3, 0, -103, 44, 9)
+    val sps = byteArrayOf(66, 1, 1, 1, 96, 0, 0, 3, 0, 0, 3, 0, 0, 3, 0, 0, 3, 0, -103, -96, 15, 8, 2, -127, 104, -76, -82, -55, 46, -26, -96, -64, -64, -64, 16)
+    val pps = byteArrayOf(68, 1, -64, 102, 124, 12, -58, 64)
+    packet.sendVideoInfo(ByteBuffer.wrap(sps), ByteBuffer.wrap(pps), ByteBuffer.wrap(vps))
+    val frames = mutableListOf<FlvPacket>()
+    //codec config buffer with a timestamp bigger than the first frame
+    val configBuffer = byteArrayOf(0x00, 0x00, 0x00, 0x01, 0x42).plus(ByteArray(10))
+    val configInfo = MediaCodec.BufferInfo()
+    configInfo.presentationTimeUs = 2 * frameDuration
+    configInfo.size = configBuffer.size
+    configInfo.flags = MediaCodec.BUFFER_FLAG_CODEC_CONFIG
+    packet.createFlvPacket(ByteBuffer.wrap(configBuffer), configInfo) { flvPacket -> frames.add(flvPacket) }
+    assertEquals(0, frames.size)
+    decodeOrder.forEach {
+      val isKeyFrame = it == 0
+      val buffer = byteArrayOf(0x00, 0x00, 0x00, 0x01, if (isKeyFrame) 0x26 else 0x02).plus(ByteArray(100))
+      val info = MediaCodec.BufferInfo()
+      info.presentationTimeUs = it * frameDuration
+      info.offset = 0
+      info.size = buffer.size
+      info.flags = if (isKeyFrame) 1 else 0
+      packet.createFlvPacket(ByteBuffer.wrap(buffer), info) { flvPacket -> frames.add(flvPacket) }
+    }
+    assertTrue(frames[0].isSequenceHeader())
+    assertEquals(decodeOrder.size + 1, frames.size)
+    assertEquals(frames[1].timeStamp, frames[0].timeStamp)
+    frames.zipWithNext().forEach { (previous, next) -> assertTrue(next.timeStamp >= previous.timeStamp) }
+  }
+}
@@ -0,0 +1,209 @@
+/*
+ * Copyright (C) 2024 pedroSG94.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.pedro.rtmp.rtmp
+
+import android.media.MediaCodec
+import com.pedro.common.AudioCodec
+import com.pedro.common.VideoCodec
+import com.pedro.rtmp.flv.FlvPacket
+import com.pedro.rtmp.flv.FlvType
+import com.pedro.rtmp.flv.video.packet.H264Packet
+import com.pedro.rtmp.rtmp.message.MessageType
+import com.pedro.rtmp.rtmp.message.RtmpMessage
+import com.pedro.rtmp.rtmp.message.SetChunkSize
+import com.pedro.rtmp.rtmp.message.WindowAcknowledgementSize
+import com.pedro.rtmp.utils.CommandSessionHistory
+import com.pedro.rtmp.utils.RtmpConfig
+import com.pedro.rtmp.utils.socket.RtmpSocket
+import kotlinx.coroutines.runBlocking
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import java.io.ByteArrayInputStream
+import java.io.ByteArrayOutputStream
+import java.io.InputStream
+import java.io.OutputStream
+import java.nio.ByteBuffer
+import kotlin.random.Random
+
+class CommandsManagerTest {
+
+  @Test
+  fun `GIVEN a configured commands manager WHEN copy config to other amf version THEN keep chunk size, ack window, codecs and tracks`() {
+    val commandsManager = CommandsManagerAmf0().apply {
+      writeChunkSize = 8192
+      autoChunkSize = true
+      writeAcknowledgementWindowSize = 1_000_000
+      videoCodec = VideoCodec.H265
+      audioCodec = AudioCodec.OPUS
+      multitrack = true
+      audioDisabled = true
+      fps = 60
+      setAuth("user", "password")
+    }
+    val result = CommandsManagerAmf3()
+    result.copyConfig(commandsManager)
+
+    assertEquals(8192, result.writeChunkSize)
+    assertTrue(result.autoChunkSize)
+    assertEquals(1_000_000, result.writeAcknowledgementWindowSize)
+    assertEquals(VideoCodec.H265, result.videoCodec)
+    assertEquals(AudioCodec.OPUS, result.audioCodec)
+    assertTrue(result.multitrack)
+    assertTrue(result.audioDisabled)
+    assertFalse(result.videoDisabled)
+    assertEquals(60, result.fps)
+    assertEquals("user", result.user)
+    assertEquals("password", result.password)
+  }
+
+  @Test
+  fun `GIVEN two clients with different chunk size WHEN send video THEN each client use its own chunk size`() = runBlocking {
+    val video = FlvPacket(Random.nextBytes(10_000), 0, 10_000, FlvType.VIDEO)
+    val commandsManager1 = CommandsManagerAmf0().apply { writeChunkSize = 4096 }
+    val commandsManager2 = CommandsManagerAmf0()
+    val socket1 = FakeSocket()
+    val socket2 = FakeSocket()
+
+    commandsManager1.sendChunkSize(socket1)
+    commandsManager2.sendChunkSize(socket2)
+    commandsManager1.sendVideoPacket(video, socket1)
+    commandsManager2.sendVideoPacket(video, socket2)
+
+    val messages1 = readMessages(socket1.getBytes())
+    assertEquals(4096, (messages1[0] as SetChunkSize).chunkSize)
+    assertEquals(MessageType.VIDEO, messages1[1].getType())
+    //10_000 bytes in 3 chunks of 4096
+    assertEquals(10_000 + 12 + 2, socket1.getBytes().size - messages1[0].header.getPacketLength())
+    val messages2 = readMessages(socket2.getBytes())
+    assertEquals(MessageType.VIDEO, messages2[0].getType())
+    //10_000 bytes in 79 chunks of 128
+    assertEquals(10_000 + 12 + 78, socket2.getBytes().size)
+  }
+
+  @Test
+  fun `GIVEN auto chunk size WHEN send video frames THEN update chunk size between messages`() = runBlocking {
+    val commandsManager = CommandsManagerAmf0().apply { autoChunkSize = true }
+    val socket = FakeSocket()
+    commandsManager.sendChunkSize(socket)
+    repeat(60) { i ->
+      val video = FlvPacket(ByteArray(10_000), i * 33L, 10_000, FlvType.VIDEO)
+      commandsManager.sendVideoPacket(video, socket)
+    }
+
+    val messages = readMessages(socket.getBytes())
+    val setChunkSize = messages.filterIsInstance<SetChunkSize>()
+    assertEquals(listOf(2048), setChunkSize.map { it.chunkSize })
+    //all messages are read using the chunk size announced
+    assertEquals(60, messages.count { it.getType() == MessageType.VIDEO })
+  }
+
+  @Test
+  fun `GIVEN a connect sent WHEN reconnect THEN reuse connect body until config change`() = runBlocking {
+    listOf(CommandsManagerAmf0(), CommandsManagerAmf3()).forEach { commandsManager ->
+      commandsManager.appName = "live"
+      commandsManager.tcUrl = "rtmp://localhost/live"
+      val socket1 = FakeSocket()
+      commandsManager.sendConnect("", socket1)
+      commandsManager.reset()
+      val socket2 = FakeSocket()
+      commandsManager.sendConnect("", socket2)
+      commandsManager.reset()
+      commandsManager.appName = "live2"
+      val socket3 = FakeSocket()
+      commandsManager.sendConnect("", socket3)
+
+      val body1 = readMessages(socket1.getBytes())[0].storeBody()
+      val body2 = readMessages(socket2.getBytes())[0].storeBody()
+      val body3 = readMessages(socket3.getBytes())[0].storeBody()
+      assertArrayEquals(body1, body2)
+      assertFalse(body1.contentEquals(body3))
+    }
+  }
+
+  @Test
+  fun `GIVEN reordered IPBB frames WHEN send video THEN send in decode order with monotonic timestamps`() = runBlocking {
+    val commandsManager = CommandsManagerAmf0()
+    val socket = FakeSocket()
+    val h264Packet = H264Packet()
+    h264Packet.sendVideoInfo(
+      ByteBuffer.wrap(byteArrayOf(103, 100, 0, 30, -84, -76, 15, 2, -115, 53, 2, 2, 2, 7, -117, 23, 8)),
+      ByteBuffer.wrap(byteArrayOf(104, -18, 13, -117))
+    )
+    val decodeOrder = listOf(0, 3, 1, 2, 6, 4, 5, 9, 7, 8)
+    val packets = mutableListOf<FlvPacket>()
+    decodeOrder.forEach {
+      val buffer = byteArrayOf(0x00, 0x00, 0x00, 0x01, if (it == 0) 0x05 else 0x01).plus(ByteArray(200))
+      val info = MediaCodec.BufferInfo()
+      info.presentationTimeUs = it * 33_333L
+      info.size = buffer.size
+      info.flags = if (it == 0) 1 else 0
+      h264Packet.createFlvPacket(ByteBuffer.wrap(buffer), info) { packets.add(it) }
+    }
+    packets.forEach { commandsManager.sendVideoPacket(it, socket) }
+
+    val timestamps = readMessages(socket.getBytes()).map { it.header.timeStamp.toLong() }
+    assertEquals(packets.map { it.timeStamp }, timestamps)
+    assertEquals(timestamps.sorted(), timestamps)
+  }
+
+  @Test
+  fun `GIVEN packets sent WHEN server acknowledge THEN track bytes in flight`() = runBlocking {
+    val commandsManager = CommandsManagerAmf0()
+    val socket = FakeSocket()
+    commandsManager.sendWindowAcknowledgementSize(socket)
+    repeat(10) {
+      commandsManager.sendVideoPacket(FlvPacket(ByteArray(10_000), it * 33L, 10_000, FlvType.VIDEO), socket)
+    }
+    val written = socket.getBytes().size.toLong()
+    assertEquals(written, commandsManager.deliveryTracker.getBytesInFlight())
+    commandsManager.deliveryTracker.onAcknowledgement(50_000)
+    assertEquals(written - 50_000, commandsManager.deliveryTracker.getBytesInFlight())
+
+    val windowAcknowledgementSize = readMessages(socket.getBytes())[0] as WindowAcknowledgementSize
+    assertEquals(RtmpConfig.DEFAULT_ACKNOWLEDGEMENT_WINDOW_SIZE, windowAcknowledgementSize.acknowledgementWindowSize)
+  }
+
+  private fun readMessages(bytes: ByteArray): List<RtmpMessage> {
+    val input = ByteArrayInputStream(bytes)
+    val history = CommandSessionHistory()
+    val messages = mutableListOf<RtmpMessage>()
+    var chunkSize = RtmpConfig.DEFAULT_CHUNK_SIZE
+    while (input.available() > 0) {
+      val message = RtmpMessage.getRtmpMessage(input, chunkSize, history)
+      if (message is SetChunkSize) chunkSize = message.chunkSize
+      messages.add(message)
+    }
+    return messages
+  }
+
+  private class FakeSocket: RtmpSocket() {
+    private val output = ByteArrayOutputStream()
+
+    fun getBytes(): ByteArray = output.toByteArray()
+
+    override fun getOutStream(): OutputStream = output
+    override fun getInputStream(): InputStream = ByteArrayInputStream(byteArrayOf())
+    override fun flush(isPacket: Boolean) {}
+    override fun connect() {}
+    override fun close() {}
+    override fun isConnected(): Boolean = true
+    override fun isReachable(): Boolean = true
+  }
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright (C) 2024 pedroSG94.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.pedro.rtmp.rtmp
+
+import com.pedro.common.TimeUtils
+import org.junit.After
+import org.junit.Assert.assertEquals
+import org.junit.Before
+import org.junit.Test
+import org.mockito.MockedStatic
+import org.mockito.Mockito
+
+class DeliveryTrackerTest {
+
+  private lateinit var timeUtilsMocked: MockedStatic<TimeUtils>
+  private var fakeTimeNs = 0L
+
+  @Before
+  fun setup() {
+    timeUtilsMocked = Mockito.mockStatic(TimeUtils::class.java)
+    timeUtilsMocked.`when`<Long>(TimeUtils::getCurrentTimeNano).then { fakeTimeNs }
+  }
+
+  @After
+  fun teardown() {
+    timeUtilsMocked.close()
+  }
+
+  @Test
+  fun `GIVEN bytes written WHEN receive acknowledgement THEN calculate bytes in flight and rtt`() {
+    val tracker = DeliveryTracker()
+    //10 writes of 10_000 bytes, 1 each 10ms
+    repeat(10) {
+      tracker.onBytesWritten(10_000)
+      fakeTimeNs += 10_000_000
+    }
+    assertEquals(100_000, tracker.getBytesInFlight())
+    //the byte 50_000 was written at 40ms, acknowledged at 150ms
+    fakeTimeNs = 150_000_000
+    tracker.onAcknowledgement(50_000)
+    assertEquals(50_000, tracker.getBytesInFlight())
+    assertEquals(110, tracker.getRtt())
+    assertEquals(110, tracker.getMinRtt())
+  }
+
+  @Test
+  fun `GIVEN acknowledgements WHEN bytes are delivered THEN calculate delivery rate and in flight delay`() {
+    val tracker = DeliveryTracker()
+    tracker.onBytesWritten(500_000)
+    tracker.onAcknowledgement(0)
+    fakeTimeNs += 1_000_000_000
+    tracker.onAcknowledgement(125_000)
+    //125_000 bytes in 1 second
+    assertEquals(1_000_000, tracker.getDeliveryRate())
+    //375_000 bytes at 1Mbps
+    assertEquals(3000, tracker.getInFlightDelay())
+  }
+
+  @Test
+  fun `GIVEN sequence number overflow WHEN receive acknowledgement THEN continue counting`() {
+    val tracker = DeliveryTracker()
+    val start = 0xFFFFFF00L
+    repeat(2) { tracker.onBytesWritten(Int.MAX_VALUE) }
+    tracker.onBytesWritten(1_000)
+    tracker.onAcknowledgement(start.toInt())
+    assertEquals(2L * Int.MAX_VALUE + 1_000 - start, tracker.getBytesInFlight())
+    //0x100 bytes after start wrap to 0
+    tracker.onAcknowledgement(0)
+    assertEquals(2L * Int.MAX_VALUE + 1_000 - start - 0x100, tracker.getBytesInFlight())
+  }
+
+  @Test
+  fun `GIVEN server counting handshake WHEN acknowledge more than written THEN no bytes in flight`() {
+    val tracker = DeliveryTracker()
+    tracker.onBytesWritten(1_000)
+    tracker.onAcknowledgement(1_000 + 3073)
+    assertEquals(0, tracker.getBytesInFlight())
+    tracker.reset()
+    assertEquals(0, tracker.getRtt())
+    assertEquals(0, tracker.getDeliveryRate())
+  }
+}
@@ -0,0 +1,269 @@
+/*
+ * Copyright (C) 2024 pedroSG94.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.pedro.rtmp.rtmp
+
+import android.media.MediaCodec
+import com.pedro.common.ConnectChecker
+import com.pedro.rtmp.flv.FlvType
+import com.pedro.rtmp.rtmp.message.RtmpMessage
+import com.pedro.rtmp.rtmp.message.Video
+import com.pedro.rtmp.utils.CommandSessionHistory
+import com.pedro.rtmp.utils.LoopbackRtmpServer
+import com.pedro.rtmp.utils.RtmpConfig
+import com.pedro.rtmp.utils.socket.TcpSocket
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.ExperimentalCoroutinesApi
+import kotlinx.coroutines.runBlocking
+import kotlinx.coroutines.test.UnconfinedTestDispatcher
+import kotlinx.coroutines.test.resetMain
+import kotlinx.coroutines.test.setMain
+import org.junit.After
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Before
+import org.junit.Test
+import org.mockito.kotlin.mock
+import java.net.ServerSocket
+import java.nio.ByteBuffer
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.TimeUnit
+
+@OptIn(ExperimentalCoroutinesApi::class)
+class RtmpSenderTest {
+
+  private val frameDurationMs = 33L
+  private val gopFrames = 30
+  private val keyFrameSize = 5000
+
+  @Before
+  fun setUp() {
+    Dispatchers.setMain(UnconfinedTestDispatcher())
+  }
+
+  @After
+  fun tearDown() {
+    Dispatchers.resetMain()
+  }
+
+  @Test
+  fun `GIVEN a reconnect in the middle of a GOP WHEN gop cache is enabled THEN first keyframe arrives before next encoder keyframe`() {
+    val withoutCache = measureTimeToFirstFrame(gopCache = false)
+    val withCache = measureTimeToFirstFrame(gopCache = true)
+    //reconnect 10 frames after a keyframe so the encoder need 20 frames more
+    assertTrue(withoutCache.first >= 10 * frameDurationMs)
+    assertTrue(withCache.first < withoutCache.first)
+    //timestamps of the new session start from the cached keyframe
+    assertEquals(0L, withCache.second)
+  }
+
+  @Test
+  fun `GIVEN gop cache enabled while streaming WHEN reconnect THEN sequence header is sent before frames`() {
+    val commandsManager = CommandsManagerAmf0()
+    val sender = RtmpSender(mock<ConnectChecker>(), commandsManager)
+    sender.setLogs(false)
+    val sps = byteArrayOf(103, 100, 0, 30, -84, -76, 15, 2, -115, 53, 2, 2, 2, 7, -117, 23, 8)
+    val pps = byteArrayOf(104, -18, 13, -117)
+    sender.setVideoInfo(ByteBuffer.wrap(sps), ByteBuffer.wrap(pps), null)
+
+    ServerSocket(0).use { server ->
+      val firstSocket = TcpSocket("127.0.0.1", server.localPort, false, null)
+      firstSocket.connect()
+      server.accept().use {
+        sender.socket = firstSocket
+        sender.start()
+        (0 until 35).forEach { sendFrame(sender, it) }
+        //sequence header already sent
+        sender.setGopCache(true)
+        (35 until 40).forEach { sendFrame(sender, it) }
+        runBlocking { sender.stop(false) }
+        commandsManager.reset()
+        firstSocket.close()
+      }
+      (40 until 45).forEach { sendFrame(sender, it) }
+      val secondSocket = TcpSocket("127.0.0.1", server.localPort, false, null)
+      secondSocket.connect()
+      server.accept().use { client ->
+        val firstVideo = CompletableFuture<Int>()
+        Thread {
+          runCatching {
+            val history = CommandSessionHistory()
+            while (true) {
+              val message = RtmpMessage.getRtmpMessage(client.getInputStream(), RtmpConfig.DEFAULT_CHUNK_SIZE, history)
+              if (message is Video) {
+                firstVideo.complete(message.header.messageLength)
+                break
+              }
+            }
+          }
+        }.start()
+        sender.socket = secondSocket
+        sender.start()
+        var index = 45
+        while (!firstVideo.isDone && index < 45 + gopFrames) {
+          sendFrame(sender, index++)
+        }
+        val length = firstVideo.get(5, TimeUnit.SECONDS)
+        runBlocking { sender.stop() }
+        secondSocket.close()
+        //video bodies are not kept by the reader, frames are bigger than the sequence header
+        assertTrue("first video length: $length", length < 100)
+      }
+    }
+  }
+
+  @Test
+  fun `GIVEN several renditions WHEN send them as tracks of one stream THEN server demultiplex all tracks`() {
+    val commandsManager = CommandsManagerAmf0()
+    val sender = RtmpSender(mock<ConnectChecker>(), commandsManager)
+    sender.setLogs(false)
+    val sps = byteArrayOf(103, 100, 0, 30, -84, -76, 15, 2, -115, 53, 2, 2, 2, 7, -117, 23, 8)
+    val pps = byteArrayOf(104, -18, 13, -117)
+    sender.setVideoInfo(ByteBuffer.wrap(sps), ByteBuffer.wrap(pps), null)
+    sender.setVideoTrackInfo(1, ByteBuffer.wrap(sps), ByteBuffer.wrap(pps), null)
+    sender.setVideoTrackInfo(2, ByteBuffer.wrap(sps), ByteBuffer.wrap(pps), null)
+    sender.setAudioInfo(44100, true)
+    sender.setAudioTrackInfo(1, 48000, false)
+    val frames = 20
+    LoopbackRtmpServer().use { server ->
+      val socket = TcpSocket("127.0.0.1", server.port, false, null)
+      socket.connect()
+      sender.socket = socket
+      sender.start()
+      repeat(frames) { i ->
+        //each rendition with a different size
+        listOf(0, 1, 2).forEach { trackId ->
+          val buffer = createVideoFrame(i, 3000 / (trackId + 1))
+          sender.sendVideoFrame(trackId, ByteBuffer.wrap(buffer), createInfo(i, buffer.size))
+        }
+        listOf(0, 1).forEach { trackId ->
+          val buffer = ByteArray(200 + trackId)
+          sender.sendAudioFrame(trackId, ByteBuffer.wrap(buffer), createInfo(i, buffer.size))
+        }
+      }
+      //wait until the queue is empty
+      val start = System.currentTimeMillis()
+      while (sender.getItemsInCache() > 0 && System.currentTimeMillis() - start < 5000) Thread.sleep(10)
+      runBlocking { sender.stop() }
+      socket.close()
+
+      val tracks = server.getTracks(5000)
+      assertEquals(setOf(Pair(FlvType.VIDEO, 0), Pair(FlvType.VIDEO, 1), Pair(FlvType.VIDEO, 2),
+        Pair(FlvType.AUDIO, 0), Pair(FlvType.AUDIO, 1)), tracks.keys)
+      tracks.forEach { (key, packets) ->
+        //config and frames, aac config replace the first frame
+        val timeStamps = List(frames) { it * frameDurationMs }
+        val expected = if (key.first == FlvType.VIDEO) listOf(0L) + timeStamps else timeStamps
+        assertEquals(expected, packets.map { it.timeStamp })
+        assertTrue(packets[0].isSequenceHeader())
+        assertEquals(key.second != 0, packets[0].isMultitrack())
+      }
+      //size of each rendition, header + nalu size + nalu
+      listOf(0, 1, 2).forEach { trackId ->
+        val headerSize = if (trackId == 0) 5 else 10
+        assertEquals(headerSize + 4 + 1 + 3000 / (trackId + 1), tracks.getValue(Pair(FlvType.VIDEO, trackId))[1].length)
+      }
+      assertEquals(7 + 201, tracks.getValue(Pair(FlvType.AUDIO, 1))[1].length)
+    }
+  }
+
+  private fun createVideoFrame(index: Int, size: Int): ByteArray {
+    val isKeyFrame = index % gopFrames == 0
+    return byteArrayOf(0x00, 0x00, 0x00, 0x01, if (isKeyFrame) 0x05 else 0x01).plus(ByteArray(size))
+  }
+
+  private fun createInfo(index: Int, size: Int): MediaCodec.BufferInfo {
+    val info = MediaCodec.BufferInfo()
+    info.presentationTimeUs = index * frameDurationMs * 1000
+    info.size = size
+    info.flags = if (index % gopFrames == 0) MediaCodec.BUFFER_FLAG_KEY_FRAME else 0
+    return info
+  }
+
+  /**
+   * Stream to a local server, reconnect in the middle of a GOP and measure the time from the start
+   * of the new session to the first keyframe received by the server.
+   * @return time to first keyframe in ms and timestamp of that keyframe
+   */
+  private fun measureTimeToFirstFrame(gopCache: Boolean): Pair<Long, Long> {
+    val commandsManager = CommandsManagerAmf0()
+    val sender = RtmpSender(mock<ConnectChecker>(), commandsManager)
+    sender.setLogs(false)
+    sender.setGopCache(gopCache)
+    val sps = byteArrayOf(103, 100, 0, 30, -84, -76, 15, 2, -115, 53, 2, 2, 2, 7, -117, 23, 8)
+    val pps = byteArrayOf(104, -18, 13, -117)
+    sender.setVideoInfo(ByteBuffer.wrap(sps), ByteBuffer.wrap(pps), null)
+
+    ServerSocket(0).use { server ->
+      val firstSocket = TcpSocket("127.0.0.1", server.localPort, false, null)
+      firstSocket.connect()
+      server.accept().use {
+        sender.socket = firstSocket
+        sender.start()
+        (0 until 40).forEach { sendFrame(sender, it) }
+        //connection lost
+        runBlocking { sender.stop(false) }
+        commandsManager.reset()
+        firstSocket.close()
+      }
+      //frames received while reconnecting
+      (40 until 45).forEach { sendFrame(sender, it) }
+      val secondSocket = TcpSocket("127.0.0.1", server.localPort, false, null)
+      secondSocket.connect()
+      server.accept().use { client ->
+        val keyFrame = CompletableFuture<Pair<Long, Long>>()
+        Thread {
+          runCatching {
+            val history = CommandSessionHistory()
+            while (true) {
+              val message = RtmpMessage.getRtmpMessage(client.getInputStream(), RtmpConfig.DEFAULT_CHUNK_SIZE, history)
+              //video bodies are not kept by the reader so keyframes are identified by size
+              if (message is Video && message.header.messageLength > keyFrameSize) {
+                keyFrame.complete(Pair(System.nanoTime(), message.header.timeStamp.toLong()))
+                break
+              }
+            }
+          }
+        }.start()
+        sender.socket = secondSocket
+        val startTime = System.nanoTime()
+        sender.start()
+        var index = 45
+        while (!keyFrame.isDone && index < 45 + 2 * gopFrames) {
+          sendFrame(sender, index++)
+        }
+        val (time, ts) = keyFrame.get(5, TimeUnit.SECONDS)
+        runBlocking { sender.stop() }
+        secondSocket.close()
+        return Pair((time - startTime) / 1_000_000, ts)
+      }
+    }
+  }
+
+  //frames produced in real time by the encoder
+  private fun sendFrame(sender: RtmpSender, index: Int) {
+    val isKeyFrame = index % gopFrames == 0
+    val size = if (isKeyFrame) keyFrameSize else 1000
+    val buffer = byteArrayOf(0x00, 0x00, 0x00, 0x01, if (isKeyFrame) 0x05 else 0x01).plus(ByteArray(size))
+    val info = MediaCodec.BufferInfo()
+    info.presentationTimeUs = index * frameDurationMs * 1000
+    info.offset = 0
+    info.size = buffer.size
+    info.flags = if (isKeyFrame) MediaCodec.BUFFER_FLAG_KEY_FRAME else 0
+    sender.sendVideoFrame(ByteBuffer.wrap(buffer), info)
+    Thread.sleep(frameDurationMs)
+  }
+}
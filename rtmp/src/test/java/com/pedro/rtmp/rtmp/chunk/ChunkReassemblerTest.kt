@@ -0,0 +1,196 @@
+/*
+ * Copyright (C) 2024 pedroSG94.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.pedro.rtmp.rtmp.chunk
+
+import com.pedro.rtmp.amf.v0.AmfString
+import com.pedro.rtmp.flv.FlvPacket
+import com.pedro.rtmp.flv.FlvType
+import com.pedro.rtmp.rtmp.message.Acknowledgement
+import com.pedro.rtmp.rtmp.message.Audio
+import com.pedro.rtmp.rtmp.message.BasicHeader
+import com.pedro.rtmp.rtmp.message.RtmpMessage
+import com.pedro.rtmp.rtmp.message.Video
+import com.pedro.rtmp.rtmp.message.command.CommandAmf0
+import com.pedro.rtmp.utils.CommandSessionHistory
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import java.io.ByteArrayInputStream
+import java.io.ByteArrayOutputStream
+import java.io.EOFException
+import java.lang.management.ManagementFactory
+import kotlin.random.Random
+
+class ChunkReassemblerTest {
+
+  @Test
+  fun `GIVEN random interleaved chunks WHEN read messages THEN get all messages in completion order`() {
+    repeat(200) { seed ->
+      val random = Random(seed)
+      val chunkSize = if (random.nextBoolean()) 128 else random.nextInt(1, 300)
+      val (bytes, expected) = writeInterleaved(random, createMessages(random), chunkSize)
+
+      val input = ByteArrayInputStream(bytes)
+      val reassembler = ChunkReassembler(CommandSessionHistory())
+      val messages = List(expected.size) { reassembler.readMessage(input, chunkSize) }
+
+      assertEquals("seed $seed", 0, input.available())
+      expected.zip(messages).forEach { (expectedMessage, message) ->
+        assertMessage("seed $seed, chunk size $chunkSize", expectedMessage, message)
+      }
+    }
+  }
+
+  @Test
+  fun `GIVEN a message with length multiple of chunk size WHEN read THEN next message is not consumed`() {
+    val output = ByteArrayOutputStream()
+    val history = CommandSessionHistory()
+    val messages = listOf(
+      Video(FlvPacket(ByteArray(256), 0, 256, FlvType.VIDEO), 1),
+      Acknowledgement(50)
+    )
+    messages.forEach {
+      it.header.compressHeader(history)
+      it.writeHeader(output)
+      it.writeBody(output, 128)
+    }
+
+    val input = ByteArrayInputStream(output.toByteArray())
+    val reassembler = ChunkReassembler(CommandSessionHistory())
+    messages.forEach { assertMessage("", it, reassembler.readMessage(input, 128)) }
+    assertEquals(0, input.available())
+  }
+
+  @Test
+  fun `GIVEN a 2 bytes basic header WHEN read THEN get chunk stream id bigger than 63`() {
+    //fmt 0, cs id 0 (2 bytes), cs id - 64 = 6, timestamp, length 4, ack type, stream id, sequence
+    val buffer = byteArrayOf(0, 6, 0, 0, 0, 0, 0, 4, 3, 0, 0, 0, 0, 0, 0, 0, 50)
+    val reassembler = ChunkReassembler(CommandSessionHistory())
+
+    val message = reassembler.readMessage(ByteArrayInputStream(buffer), 128)
+
+    assertEquals(70, message.header.basicHeader.chunkStreamId)
+    assertEquals(Acknowledgement(50).toString(), message.toString())
+  }
+
+  @Test(expected = EOFException::class)
+  fun `GIVEN an incomplete message WHEN read THEN throw end of stream`() {
+    val output = ByteArrayOutputStream()
+    val video = Video(FlvPacket(ByteArray(300), 0, 300, FlvType.VIDEO), 1)
+    video.writeHeader(output)
+    video.writeBody(output, 128)
+    val bytes = output.toByteArray()
+
+    ChunkReassembler(CommandSessionHistory()).readMessage(ByteArrayInputStream(bytes, 0, bytes.size - 10), 128)
+  }
+
+  @Test
+  fun `GIVEN video messages of 10KB WHEN read them THEN allocations are done per message`() {
+    val chunkSize = 128
+    val count = 2_000
+    val output = ByteArrayOutputStream()
+    val writeHistory = CommandSessionHistory()
+    repeat(count) { i ->
+      val video = Video(FlvPacket(ByteArray(10_000), i * 33L, 10_000, FlvType.VIDEO), 1)
+      video.header.compressHeader(writeHistory)
+      video.writeHeader(output)
+      video.writeBody(output, chunkSize)
+    }
+    val bytes = output.toByteArray()
+    val chunks = count.toLong() * ((10_000 + chunkSize - 1) / chunkSize)
+    val threadMXBean = ManagementFactory.getThreadMXBean() as com.sun.management.ThreadMXBean
+    val threadId = Thread.currentThread().id
+    var allocated = 0L
+    repeat(5) {
+      val input = ByteArrayInputStream(bytes)
+      val reassembler = ChunkReassembler(CommandSessionHistory())
+      val startAllocated = threadMXBean.getThreadAllocatedBytes(threadId)
+      repeat(count) { reassembler.readMessage(input, chunkSize) }
+      allocated = threadMXBean.getThreadAllocatedBytes(threadId) - startAllocated
+    }
+    //allocations are done per message, not per chunk
+    assertTrue(allocated / chunks < 32)
+  }
+
+  private fun createMessages(random: Random): List<RtmpMessage> {
+    val timeStamps = HashMap<Int, Long>()
+    return List(random.nextInt(10, 50)) {
+      val chunkStreamId = random.nextInt(2, 12)
+      val timeStamp = timeStamps.getOrElse(chunkStreamId) { 0L } + when (random.nextInt(10)) {
+        0 -> 0x1000000L //extended timestamp
+        else -> random.nextLong(0, 100)
+      }
+      timeStamps[chunkStreamId] = timeStamp
+      val message = when (random.nextInt(4)) {
+        0 -> {
+          val length = random.nextInt(0, 1000)
+          Video(FlvPacket(random.nextBytes(length), timeStamp, length, FlvType.VIDEO), 1)
+        }
+        1 -> {
+          val length = random.nextInt(0, 300)
+          Audio(FlvPacket(random.nextBytes(length), timeStamp, length, FlvType.AUDIO), 1)
+        }
+        2 -> CommandAmf0("command", random.nextInt(100), timeStamp.toInt(), 1).apply {
+          addData(AmfString("a".repeat(random.nextInt(0, 700))))
+        }
+        else -> Acknowledgement(random.nextInt()).apply { header.timeStamp = timeStamp.toInt() }
+      }
+      message.header.basicHeader = BasicHeader(message.header.basicHeader.chunkType, chunkStreamId)
+      message
+    }
+  }
+
+  /**
+   * Write chunks of messages selecting a random chunk stream for each chunk.
+   * @return bytes written and messages in the order they are completed
+   */
+  private fun writeInterleaved(random: Random, messages: List<RtmpMessage>, chunkSize: Int): Pair<ByteArray, List<RtmpMessage>> {
+    val writeHistory = CommandSessionHistory()
+    val streams = LinkedHashMap<Int, ArrayDeque<RtmpMessage>>()
+    messages.forEach {
+      it.header.compressHeader(writeHistory)
+      streams.getOrPut(it.header.basicHeader.chunkStreamId) { ArrayDeque() }.addLast(it)
+    }
+    val positions = HashMap<RtmpMessage, Int>()
+    val completed = mutableListOf<RtmpMessage>()
+    val output = ByteArrayOutputStream()
+    while (streams.isNotEmpty()) {
+      val chunkStreamId = streams.keys.elementAt(random.nextInt(streams.size))
+      val pending = streams.getValue(chunkStreamId)
+      val message = pending.first()
+      val position = message.writeChunk(output, positions[message] ?: 0, chunkSize)
+      positions[message] = position
+      if (position >= message.getSize()) {
+        completed.add(pending.removeFirst())
+        if (pending.isEmpty()) streams.remove(chunkStreamId)
+      }
+    }
+    return Pair(output.toByteArray(), completed)
+  }
+
+  private fun assertMessage(description: String, expected: RtmpMessage, message: RtmpMessage) {
+    assertEquals(description, expected.getType(), message.getType())
+    assertEquals(description, expected.header.basicHeader.chunkStreamId, message.header.basicHeader.chunkStreamId)
+    assertEquals(description, expected.header.messageLength, message.header.messageLength)
+    assertEquals(description, expected.header.timeStamp, message.header.timeStamp)
+    assertEquals(description, expected.header.messageStreamId, message.header.messageStreamId)
+    if (expected is CommandAmf0 || expected is Acknowledgement) {
+      assertArrayEquals(description, expected.storeBody(), message.storeBody())
+    }
+  }
+}
@@ -0,0 +1,239 @@
+/*
+ * Copyright (C) 2024 pedroSG94.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.pedro.rtmp.rtmp.chunk
+
+import com.pedro.rtmp.flv.FlvPacket
+import com.pedro.rtmp.flv.FlvType
+import com.pedro.rtmp.rtmp.message.Audio
+import com.pedro.rtmp.rtmp.message.RtmpHeader
+import com.pedro.rtmp.rtmp.message.RtmpMessage
+import com.pedro.rtmp.rtmp.message.Video
+import com.pedro.rtmp.utils.CommandSessionHistory
+import com.pedro.rtmp.utils.RtmpConfig
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertNull
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import java.io.ByteArrayInputStream
+import java.io.ByteArrayOutputStream
+import java.io.OutputStream
+import java.util.IdentityHashMap
+import kotlin.math.sqrt
+import kotlin.random.Random
+
+class ChunkSchedulerTest {
+
+  private val streamId = 1
+  private val chunkSize = RtmpConfig.DEFAULT_CHUNK_SIZE
+
+  @Test
+  fun `GIVEN audio added while writing a video WHEN write chunks THEN audio is written between video chunks`() {
+    val writeHistory = CommandSessionHistory()
+    val scheduler = ChunkScheduler()
+    val output = ByteArrayOutputStream()
+    val video = Video(FlvPacket(Random.nextBytes(chunkSize * 8), 0, chunkSize * 8, FlvType.VIDEO), streamId)
+    val audio = Audio(FlvPacket(Random.nextBytes(chunkSize + 10), 0, chunkSize + 10, FlvType.AUDIO), streamId)
+    var released = 0
+
+    video.header.compressHeader(writeHistory)
+    scheduler.add(video) { released++ }
+    assertNull(scheduler.writeChunk(output))
+    assertNull(scheduler.writeChunk(output))
+    audio.header.compressHeader(writeHistory)
+    scheduler.add(audio) { released++ }
+    val completed = mutableListOf<RtmpMessage>()
+    while (scheduler.hasPending()) {
+      scheduler.writeChunk(output)?.let { completed.add(it) }
+    }
+
+    assertEquals(listOf<RtmpMessage>(audio, video), completed)
+    assertEquals(2, released)
+    val chunks = readChunks(output.toByteArray())
+    val videoCsid = ChunkStreamId.VIDEO.mark
+    val audioCsid = ChunkStreamId.AUDIO.mark
+    assertEquals(listOf(videoCsid, videoCsid, audioCsid, audioCsid) + List(6) { videoCsid }, chunks.map { it.first })
+    assertArrayEquals(video.storeBody(), bodyOf(chunks, videoCsid))
+    assertArrayEquals(audio.storeBody(), bodyOf(chunks, audioCsid))
+  }
+
+  @Test
+  fun `GIVEN pending messages WHEN clear THEN all messages are released`() {
+    val scheduler = ChunkScheduler()
+    var released = 0
+    scheduler.add(Video(FlvPacket(ByteArray(1000), 0, 1000, FlvType.VIDEO), streamId)) { released++ }
+    scheduler.add(Audio(FlvPacket(ByteArray(10), 0, 10, FlvType.AUDIO), streamId)) { released++ }
+
+    scheduler.clear()
+
+    assertEquals(2, released)
+    assertFalse(scheduler.hasPending())
+    assertNull(scheduler.writeChunk(ByteArrayOutputStream()))
+  }
+
+  /**
+   * Simulate a 1 Mbps link sending 800 kbps of video with a 40 KB keyframe per second and
+   * 64 kbps of audio. Time advance with the bytes written so results are deterministic.
+   */
+  @Test
+  fun `GIVEN a throttled link WHEN send keyframes with and without interleaving THEN audio jitter is bounded by chunks`() {
+    val withoutScheduler = simulateAudioLatency(interleaving = false)
+    val withScheduler = simulateAudioLatency(interleaving = true)
+
+    assertEquals(withoutScheduler.size, withScheduler.size)
+    assertTrue(withoutScheduler.max() > 200.0)
+    //one video chunk and the audio frame
+    val chunkTime = (chunkSize + 12) * 1000.0 / LINK_BYTES_PER_SECOND
+    assertTrue(withScheduler.max() < chunkTime * 4)
+    assertTrue(jitter(withScheduler) < jitter(withoutScheduler) / 10)
+  }
+
+  private companion object {
+    const val LINK_BYTES_PER_SECOND = 125_000.0
+  }
+
+  private data class Frame(val time: Double, val packet: FlvPacket)
+
+  private fun createFrames(seconds: Int): List<Frame> {
+    val frames = mutableListOf<Frame>()
+    for (i in 0 until seconds * 30) {
+      val size = if (i % 30 == 0) 40_000 else 2_500
+      val time = i * 1000.0 / 30
+      frames.add(Frame(time, FlvPacket(ByteArray(size), time.toLong(), size, FlvType.VIDEO)))
+    }
+    for (i in 0 until seconds * 1000 / 23) {
+      val time = i * 23.0
+      frames.add(Frame(time, FlvPacket(ByteArray(180), time.toLong(), 180, FlvType.AUDIO)))
+    }
+    return frames.sortedBy { it.time }
+  }
+
+  private fun simulateAudioLatency(interleaving: Boolean): List<Double> {
+    val frames = createFrames(seconds = 5)
+    val writeHistory = CommandSessionHistory()
+    val scheduler = ChunkScheduler()
+    val link = CountOutputStream()
+    val queue = ArrayDeque<Frame>()
+    val sendTimes = IdentityHashMap<RtmpMessage, Frame>()
+    val latencies = mutableListOf<Double>()
+    var now = 0.0
+    var next = 0
+    fun receiveFrames() {
+      while (next < frames.size && frames[next].time <= now) queue.addLast(frames[next++])
+    }
+    fun createMessage(frame: Frame): RtmpMessage {
+      val message = if (frame.packet.type == FlvType.VIDEO) Video(frame.packet, streamId) else Audio(frame.packet, streamId)
+      message.header.compressHeader(writeHistory)
+      sendTimes[message] = frame
+      return message
+    }
+    fun onWritten(message: RtmpMessage) {
+      val frame = sendTimes.remove(message) ?: return
+      if (frame.packet.type == FlvType.AUDIO) latencies.add(now - frame.time)
+    }
+
+    while (next < frames.size || queue.isNotEmpty()) {
+      receiveFrames()
+      val frame = queue.removeFirstOrNull()
+      if (frame == null) {
+        now = frames[next].time
+        continue
+      }
+      val message = createMessage(frame)
+      if (!interleaving) {
+        message.writeHeader(link)
+        message.writeBody(link)
+        now += link.reset() * 1000.0 / LINK_BYTES_PER_SECOND
+        onWritten(message)
+      } else {
+        scheduler.add(message)
+        while (scheduler.hasPending()) {
+          receiveFrames()
+          val audio = queue.firstOrNull { it.packet.type == FlvType.AUDIO }
+          if (audio != null) {
+            queue.remove(audio)
+            scheduler.add(createMessage(audio))
+          }
+          val completed = scheduler.writeChunk(link)
+          now += link.reset() * 1000.0 / LINK_BYTES_PER_SECOND
+          completed?.let { onWritten(it) }
+        }
+      }
+    }
+    return latencies
+  }
+
+  /**
+   * @return standard deviation of the latencies in ms
+   */
+  private fun jitter(latencies: List<Double>): Double {
+    val mean = latencies.average()
+    return sqrt(latencies.sumOf { (it - mean) * (it - mean) } / latencies.size)
+  }
+
+  private class CountOutputStream: OutputStream() {
+    private var count = 0
+
+    override fun write(b: Int) {
+      count++
+    }
+
+    override fun write(b: ByteArray, off: Int, len: Int) {
+      count += len
+    }
+
+    fun reset(): Int {
+      val value = count
+      count = 0
+      return value
+    }
+  }
+
+  /**
+   * Read chunks of interleaved messages returning chunk stream id and chunk body
+   */
+  private fun readChunks(bytes: ByteArray): List<Pair<Int, ByteArray>> {
+    val input = ByteArrayInputStream(bytes)
+    val readHistory = CommandSessionHistory()
+    val remaining = HashMap<Int, Int>()
+    val chunks = mutableListOf<Pair<Int, ByteArray>>()
+    while (input.available() > 0) {
+      val header = RtmpHeader.readHeader(input, readHistory)
+      val chunkStreamId = header.basicHeader.chunkStreamId
+      val pending = remaining[chunkStreamId] ?: 0
+      val messageRemaining = if (pending > 0) {
+        assertEquals(ChunkType.TYPE_3, header.basicHeader.chunkType)
+        pending
+      } else {
+        readHistory.setReadHeader(header)
+        header.messageLength
+      }
+      val body = ByteArray(minOf(chunkSize, messageRemaining))
+      input.read(body)
+      remaining[chunkStreamId] = messageRemaining - body.size
+      chunks.add(Pair(chunkStreamId, body))
+    }
+    return chunks
+  }
+
+  private fun bodyOf(chunks: List<Pair<Int, ByteArray>>, chunkStreamId: Int): ByteArray {
+    val output = ByteArrayOutputStream()
+    chunks.filter { it.first == chunkStreamId }.forEach { output.write(it.second) }
+    return output.toByteArray()
+  }
+}
@@ -0,0 +1,61 @@
+/*
+ * Copyright (C) 2024 pedroSG94.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.pedro.rtmp.rtmp.chunk
+
+import org.junit.Assert.assertEquals
+import org.junit.Test
+
+class ChunkSizeTunerTest {
+
+  @Test
+  fun `GIVEN frames of 10KB WHEN two windows are completed THEN select chunk size of 2048`() {
+    val tuner = ChunkSizeTuner(windowSize = 10)
+    repeat(10) { tuner.addFrame(10_000) }
+    assertEquals(128, tuner.chunkSize)
+    repeat(10) { tuner.addFrame(10_000) }
+    assertEquals(2048, tuner.chunkSize)
+  }
+
+  @Test
+  fun `GIVEN big keyframes and small frames WHEN select chunk size THEN use typical frame size`() {
+    val tuner = ChunkSizeTuner(windowSize = 10)
+    repeat(2) {
+      tuner.addFrame(200_000)
+      repeat(9) { tuner.addFrame(2_000) }
+    }
+    assertEquals(256, tuner.chunkSize)
+  }
+
+  @Test
+  fun `GIVEN huge or tiny frames WHEN select chunk size THEN chunk size is limited`() {
+    val tuner = ChunkSizeTuner(windowSize = 10)
+    repeat(20) { tuner.addFrame(1_000_000) }
+    assertEquals(ChunkSizeTuner.MAX_CHUNK_SIZE, tuner.chunkSize)
+    repeat(20) { tuner.addFrame(10) }
+    assertEquals(ChunkSizeTuner.MIN_CHUNK_SIZE, tuner.chunkSize)
+  }
+
+  @Test
+  fun `GIVEN frame sizes changing each window WHEN select chunk size THEN keep current chunk size`() {
+    val tuner = ChunkSizeTuner(windowSize = 10)
+    repeat(5) {
+      repeat(10) { tuner.addFrame(10_000) }
+      repeat(10) { tuner.addFrame(5_000) }
+    }
+    assertEquals(128, tuner.chunkSize)
+  }
+}
@@ -0,0 +1,179 @@
+/*
+ * Copyright (C) 2024 pedroSG94.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.pedro.rtmp.rtmp.message
+
+import com.pedro.rtmp.flv.FlvPacket
+import com.pedro.rtmp.flv.FlvType
+import com.pedro.rtmp.rtmp.chunk.ChunkType
+import com.pedro.rtmp.utils.CommandSessionHistory
+import com.pedro.rtmp.utils.RtmpConfig
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import java.io.ByteArrayInputStream
+import java.io.ByteArrayOutputStream
+import java.io.InputStream
+
+class RtmpHeaderTest {
+
+  private val streamId = 1
+
+  @Test
+  fun `GIVEN audio packets with constant size and duration WHEN compress headers THEN use TYPE_2 and TYPE_3 headers`() {
+    val messages = listOf(
+      Audio(FlvPacket(ByteArray(100), 0, 100, FlvType.AUDIO), streamId),
+      Audio(FlvPacket(ByteArray(100), 23, 100, FlvType.AUDIO), streamId),
+      Audio(FlvPacket(ByteArray(100), 46, 100, FlvType.AUDIO), streamId),
+      Audio(FlvPacket(ByteArray(100), 69, 100, FlvType.AUDIO), streamId),
+      Audio(FlvPacket(ByteArray(100), 93, 100, FlvType.AUDIO), streamId),
+    )
+    val expectedTypes = listOf(ChunkType.TYPE_0, ChunkType.TYPE_2, ChunkType.TYPE_3, ChunkType.TYPE_3, ChunkType.TYPE_2)
+
+    val headers = writeAndRead(messages)
+
+    assertEquals(expectedTypes, headers.map { it.basicHeader.chunkType })
+    assertHeaders(messages, headers)
+  }
+
+  @Test
+  fun `GIVEN video packets with variable size WHEN compress headers THEN use TYPE_1 headers`() {
+    val messages = listOf(
+      Video(FlvPacket(ByteArray(300), 1000, 300, FlvType.VIDEO), streamId),
+      Video(FlvPacket(ByteArray(50), 1033, 50, FlvType.VIDEO), streamId),
+      Video(FlvPacket(ByteArray(70), 1066, 70, FlvType.VIDEO), streamId),
+      Video(FlvPacket(ByteArray(70), 1099, 70, FlvType.VIDEO), streamId),
+    )
+    val expectedTypes = listOf(ChunkType.TYPE_0, ChunkType.TYPE_1, ChunkType.TYPE_1, ChunkType.TYPE_3)
+
+    val headers = writeAndRead(messages)
+
+    assertEquals(expectedTypes, headers.map { it.basicHeader.chunkType })
+    assertHeaders(messages, headers)
+  }
+
+  @Test
+  fun `GIVEN interleaved audio and video packets WHEN compress headers THEN each chunk stream is compressed independently`() {
+    val messages = listOf(
+      Video(FlvPacket(ByteArray(200), 0, 200, FlvType.VIDEO), streamId),
+      Audio(FlvPacket(ByteArray(10), 0, 10, FlvType.AUDIO), streamId),
+      Audio(FlvPacket(ByteArray(10), 20, 10, FlvType.AUDIO), streamId),
+      Video(FlvPacket(ByteArray(200), 33, 200, FlvType.VIDEO), streamId),
+      Audio(FlvPacket(ByteArray(10), 40, 10, FlvType.AUDIO), streamId),
+      Video(FlvPacket(ByteArray(150), 66, 150, FlvType.VIDEO), streamId),
+    )
+    val expectedTypes = listOf(ChunkType.TYPE_0, ChunkType.TYPE_0, ChunkType.TYPE_2, ChunkType.TYPE_2,
+      ChunkType.TYPE_3, ChunkType.TYPE_1)
+
+    val headers = writeAndRead(messages)
+
+    assertEquals(expectedTypes, headers.map { it.basicHeader.chunkType })
+    assertHeaders(messages, headers)
+  }
+
+  @Test
+  fun `GIVEN a timestamp going backward or a new stream id WHEN compress headers THEN use TYPE_0 header`() {
+    val messages = listOf(
+      Audio(FlvPacket(ByteArray(10), 100, 10, FlvType.AUDIO), streamId),
+      Audio(FlvPacket(ByteArray(10), 50, 10, FlvType.AUDIO), streamId),
+      Audio(FlvPacket(ByteArray(10), 70, 10, FlvType.AUDIO), streamId + 1),
+    )
+    val expectedTypes = listOf(ChunkType.TYPE_0, ChunkType.TYPE_0, ChunkType.TYPE_0)
+
+    val headers = writeAndRead(messages)
+
+    assertEquals(expectedTypes, headers.map { it.basicHeader.chunkType })
+    assertHeaders(messages, headers)
+  }
+
+  @Test
+  fun `GIVEN packets with extended timestamp WHEN compress headers THEN read expected timestamps`() {
+    val start = 0xffffff + 10L
+    val messages = listOf(
+      Video(FlvPacket(ByteArray(300), start, 300, FlvType.VIDEO), streamId),
+      Video(FlvPacket(ByteArray(300), start + 33, 300, FlvType.VIDEO), streamId),
+      Video(FlvPacket(ByteArray(10), start + 66, 10, FlvType.VIDEO), streamId),
+      Video(FlvPacket(ByteArray(10), start + 99, 10, FlvType.VIDEO), streamId),
+    )
+    val expectedTypes = listOf(ChunkType.TYPE_0, ChunkType.TYPE_2, ChunkType.TYPE_1, ChunkType.TYPE_3)
+
+    val headers = writeAndRead(messages)
+
+    assertEquals(expectedTypes, headers.map { it.basicHeader.chunkType })
+    assertHeaders(messages, headers)
+  }
+
+  @Test
+  fun `GIVEN a stream of audio and video packets WHEN compress headers THEN write less bytes`() {
+    val compressed = ByteArrayOutputStream()
+    val uncompressed = ByteArrayOutputStream()
+    val writeHistory = CommandSessionHistory()
+    for (i in 0 until 100) {
+      val audio = Audio(FlvPacket(ByteArray(20), i * 20L, 20, FlvType.AUDIO), streamId)
+      audio.writeHeader(uncompressed)
+      audio.writeBody(uncompressed)
+      audio.header.compressHeader(writeHistory)
+      audio.writeHeader(compressed)
+      audio.writeBody(compressed)
+    }
+    //each TYPE_0 header is 12 bytes, a TYPE_3 header only 1 byte
+    assertEquals(uncompressed.size() - 98 * 11 - 8, compressed.size())
+  }
+
+  private fun writeAndRead(messages: List<RtmpMessage>): List<RtmpHeader> {
+    val output = ByteArrayOutputStream()
+    val writeHistory = CommandSessionHistory()
+    messages.forEach {
+      it.header.compressHeader(writeHistory)
+      it.writeHeader(output)
+      it.writeBody(output)
+    }
+    val input = ByteArrayInputStream(output.toByteArray())
+    val readHistory = CommandSessionHistory()
+    val headers = mutableListOf<RtmpHeader>()
+    while (input.available() > 0) {
+      val header = RtmpHeader.readHeader(input, readHistory)
+      readHistory.setReadHeader(header)
+      skipBody(input, header, readHistory)
+      headers.add(header)
+    }
+    return headers
+  }
+
+  private fun skipBody(input: InputStream, header: RtmpHeader, readHistory: CommandSessionHistory) {
+    var remaining = header.messageLength
+    while (remaining > 0) {
+      val chunk = minOf(remaining, RtmpConfig.DEFAULT_CHUNK_SIZE)
+      input.skip(chunk.toLong())
+      remaining -= chunk
+      if (remaining > 0) {
+        val continuation = RtmpHeader.readHeader(input, readHistory)
+        assertEquals(ChunkType.TYPE_3, continuation.basicHeader.chunkType)
+      }
+    }
+  }
+
+  private fun assertHeaders(messages: List<RtmpMessage>, headers: List<RtmpHeader>) {
+    assertEquals(messages.size, headers.size)
+    messages.zip(headers).forEach { (message, header) ->
+      assertEquals(message.header.timeStamp, header.timeStamp)
+      assertEquals(message.header.messageLength, header.messageLength)
+      assertEquals(message.getType(), header.messageType)
+      assertEquals(message.header.messageStreamId, header.messageStreamId)
+      assertTrue(header.basicHeader.chunkStreamId == message.header.basicHeader.chunkStreamId)
+    }
+  }
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright (C) 2024 pedroSG94.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.pedro.rtmp.rtmp.queue
+
+import com.pedro.rtmp.flv.FlvPacket
+import com.pedro.rtmp.flv.FlvType
+import com.pedro.rtmp.utils.BufferPool
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertTrue
+import org.junit.Test
+
+class GopCacheTest {
+
+  private val bufferPool = BufferPool()
+
+  @Test
+  fun `GIVEN packets before and after a keyframe WHEN get packets THEN return configs and last GOP`() {
+    val gopCache = GopCache()
+    gopCache.add(videoConfig())
+    gopCache.add(audioConfig())
+    gopCache.add(interFrame(0))
+    gopCache.add(keyFrame(33))
+    gopCache.add(audio(40))
+    gopCache.add(interFrame(66))
+    gopCache.add(keyFrame(100))
+    gopCache.add(interFrame(133))
+
+    val packets = gopCache.getPackets()
+    assertEquals(listOf(0L, 0L, 100L, 133L), packets.map { it.timeStamp })
+    assertTrue(packets[0].isSequenceHeader())
+    assertEquals(FlvType.AUDIO, packets[1].type)
+    assertTrue(gopCache.hasGop())
+  }
+
+  @Test
+  fun `GIVEN a GOP bigger than max size WHEN add packets THEN discard the GOP until next keyframe`() {
+    val gopCache = GopCache(maxSize = 250)
+    gopCache.add(keyFrame(0))
+    gopCache.add(interFrame(33))
+    assertEquals(200, gopCache.getSize())
+    gopCache.add(interFrame(66))
+    assertFalse(gopCache.hasGop())
+    gopCache.add(interFrame(100))
+    assertFalse(gopCache.hasGop())
+    gopCache.add(keyFrame(133))
+    assertEquals(listOf(133L), gopCache.getPackets().map { it.timeStamp })
+  }
+
+  @Test
+  fun `GIVEN cached packets WHEN released by sender and cache is cleared THEN buffers return to the pool`() {
+    val gopCache = GopCache()
+    val packets = listOf(videoConfig(), keyFrame(0), interFrame(33))
+    packets.forEach {
+      gopCache.add(it)
+      //sender release the packet after write it
+      it.release()
+    }
+    assertEquals(0, bufferPool.getPooledBuffers())
+    val replay = gopCache.getPackets()
+    replay.forEach { it.release() }
+    assertEquals(0, bufferPool.getPooledBuffers())
+    gopCache.clear()
+    assertEquals(3, bufferPool.getPooledBuffers())
+  }
+
+  @Test
+  fun `GIVEN multitrack packets WHEN get packets THEN keep a config per track and GOP start in default track`() {
+    val gopCache = GopCache()
+    gopCache.add(videoConfig())
+    gopCache.add(trackPacket(0, 0x96, 0x00, 1))
+    gopCache.add(keyFrame(0))
+    gopCache.add(trackPacket(0, 0x96, 0x01, 1))
+    gopCache.add(interFrame(33))
+    //keyframe of other track doesn't start a new GOP
+    gopCache.add(trackPacket(33, 0x96, 0x01, 1))
+
+    val packets = gopCache.getPackets()
+    assertEquals(listOf(0, 1, 0, 1, 0, 1), packets.map { it.getTrackId() })
+    assertTrue(packets[1].isSequenceHeader())
+    assertEquals(listOf(0L, 0L, 0L, 0L, 33L, 33L), packets.map { it.timeStamp })
+  }
+
+  //multitrack video packet with avc1 fourCC
+  private fun trackPacket(ts: Long, first: Int, packetType: Int, trackId: Int): FlvPacket {
+    val buffer = bufferPool.obtain(100)
+    byteArrayOf(first.toByte(), packetType.toByte(), 0x61, 0x76, 0x63, 0x31, trackId.toByte()).copyInto(buffer)
+    return FlvPacket(buffer, ts, 100, FlvType.VIDEO, bufferPool)
+  }
+
+  private fun packet(ts: Long, type: FlvType, first: Int, second: Int): FlvPacket {
+    val buffer = bufferPool.obtain(100)
+    buffer[0] = first.toByte()
+    buffer[1] = second.toByte()
+    return FlvPacket(buffer, ts, 100, type, bufferPool)
+  }
+
+  private fun videoConfig() = packet(0, FlvType.VIDEO, 0x17, 0)
+  private fun audioConfig() = packet(0, FlvType.AUDIO, 0xAF, 0)
+  private fun keyFrame(ts: Long) = packet(ts, FlvType.VIDEO, 0x17, 1)
+  private fun interFrame(ts: Long) = packet(ts, FlvType.VIDEO, 0x27, 1)
+  private fun audio(ts: Long) = packet(ts, FlvType.AUDIO, 0xAF, 1)
+}
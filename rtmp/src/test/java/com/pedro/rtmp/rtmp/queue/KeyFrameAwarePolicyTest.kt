@@ -0,0 +1,207 @@
+/*
+ * Copyright (C) 2024 pedroSG94.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.pedro.rtmp.rtmp.queue
+
+import com.pedro.rtmp.flv.AvMultitrackType
+import com.pedro.rtmp.flv.FlvPacket
+import com.pedro.rtmp.flv.FlvType
+import com.pedro.rtmp.flv.video.FourCCPacketType
+import com.pedro.rtmp.flv.video.VideoDataType
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import java.util.concurrent.TimeUnit
+
+class KeyFrameAwarePolicyTest {
+
+  @Test
+  fun `GIVEN a full queue WHEN receive audio THEN discard the last video frame and the rest of the GOP`() {
+    val queue = PacketQueue(3, KeyFrameAwarePolicy())
+    queue.offer(keyFrame(0))
+    queue.offer(interFrame(33))
+    queue.offer(interFrame(66))
+
+    assertTrue(queue.offer(audio(70)))
+    assertFalse(queue.offer(interFrame(100)))
+    assertTrue(queue.offer(keyFrame(133)))
+
+    //keyframe replace the tail of the previous GOP
+    assertEquals(listOf(0L, 70L, 133L), drain(queue).map { it.timeStamp })
+    assertEquals(2, queue.getDroppedFrames(DropReason.GOP_TAIL))
+    assertEquals(1, queue.getDroppedFrames(DropReason.BROKEN_GOP))
+  }
+
+  @Test
+  fun `GIVEN a full queue WHEN receive an inter frame THEN discard frames until next keyframe`() {
+    val queue = PacketQueue(3, KeyFrameAwarePolicy())
+    queue.offer(keyFrame(0))
+    queue.offer(interFrame(33))
+    queue.offer(interFrame(66))
+
+    assertFalse(queue.offer(interFrame(100)))
+    queue.poll(0, TimeUnit.MILLISECONDS)
+    //there is room but the frame depend on a discarded frame
+    assertFalse(queue.offer(interFrame(133)))
+    assertTrue(queue.offer(keyFrame(166)))
+    queue.poll(0, TimeUnit.MILLISECONDS)
+    assertTrue(queue.offer(interFrame(200)))
+
+    assertEquals(listOf(66L, 166L, 200L), drain(queue).map { it.timeStamp })
+    assertEquals(1, queue.getDroppedFrames(DropReason.GOP_TAIL))
+    assertEquals(1, queue.getDroppedFrames(DropReason.BROKEN_GOP))
+  }
+
+  @Test
+  fun `GIVEN a queue with max duration WHEN the media buffered reach the duration THEN the queue is full`() {
+    val queue = PacketQueue(200, KeyFrameAwarePolicy())
+    queue.maxDurationMs = 100
+    queue.offer(keyFrame(0))
+    queue.offer(interFrame(33))
+    queue.offer(interFrame(66))
+    assertTrue(queue.offer(interFrame(100)))
+    assertEquals(100, queue.getDelayMs())
+    assertEquals(100f, queue.getUsage(), 0.01f)
+
+    assertFalse(queue.offer(interFrame(133)))
+    assertEquals(4, queue.size)
+    assertEquals(1, queue.getDroppedFrames(DropReason.GOP_TAIL))
+  }
+
+  @Test
+  fun `GIVEN a queue full of audio WHEN receive audio THEN discard the audio received`() {
+    val queue = PacketQueue(2, KeyFrameAwarePolicy())
+    queue.offer(audio(0))
+    queue.offer(audio(23))
+
+    assertFalse(queue.offer(audio(46)))
+    assertTrue(queue.offer(sequenceHeader(46)))
+
+    assertEquals(listOf(23L, 46L), drain(queue).map { it.timeStamp })
+    assertEquals(2, queue.getDroppedFrames(DropReason.QUEUE_FULL))
+  }
+
+  @Test
+  fun `GIVEN a sequence header WHEN queue is full of video THEN sequence header is not discarded`() {
+    val queue = PacketQueue(2, KeyFrameAwarePolicy())
+    queue.offer(sequenceHeader(0))
+    queue.offer(keyFrame(0))
+
+    assertTrue(queue.offer(audio(10)))
+
+    val packets = drain(queue)
+    assertTrue(packets[0].isSequenceHeader())
+    assertEquals(FlvType.AUDIO, packets[1].type)
+  }
+
+  @Test
+  fun `GIVEN a backlog bigger than max WHEN queue has a recent keyframe THEN discard packets before it`() {
+    val queue = PacketQueue(100, KeyFrameAwarePolicy(maxBacklogMs = 1000))
+    queue.offer(keyFrame(0))
+    for (ts in 100L..900L step 100) queue.offer(interFrame(ts))
+    queue.offer(audio(950))
+    queue.offer(keyFrame(1000))
+    queue.offer(audio(1050))
+    queue.offer(interFrame(1100))
+
+    assertTrue(queue.offer(interFrame(1200)))
+
+    assertEquals(listOf(1000L, 1050L, 1100L, 1200L), drain(queue).map { it.timeStamp })
+    assertEquals(11, queue.getDroppedFrames(DropReason.BACKLOG))
+  }
+
+  @Test
+  fun `GIVEN a backlog bigger than max WHEN queue has no recent keyframe THEN discard all until next keyframe`() {
+    val queue = PacketQueue(100, KeyFrameAwarePolicy(maxBacklogMs = 1000))
+    queue.offer(sequenceHeader(0))
+    queue.offer(keyFrame(0))
+    for (ts in 100L..1000L step 100) queue.offer(interFrame(ts))
+
+    assertFalse(queue.offer(interFrame(1100)))
+    assertTrue(queue.offer(audio(1110)))
+    assertFalse(queue.offer(interFrame(1200)))
+    assertTrue(queue.offer(keyFrame(2000)))
+
+    val packets = drain(queue)
+    assertTrue(packets[0].isSequenceHeader())
+    assertEquals(listOf(1110L, 2000L), packets.drop(1).map { it.timeStamp })
+    assertEquals(11, queue.getDroppedFrames(DropReason.BACKLOG))
+    assertEquals(2, queue.getDroppedFrames(DropReason.BROKEN_GOP))
+  }
+
+  @Test
+  fun `GIVEN two video tracks WHEN only one track overflow THEN only discard frames of that track`() {
+    val queue = PacketQueue(4, KeyFrameAwarePolicy())
+    queue.offer(trackFrame(0, 1, true))
+    queue.offer(trackFrame(0, 2, true))
+    queue.offer(trackFrame(33, 1, false))
+    queue.offer(trackFrame(33, 2, false))
+
+    assertFalse(queue.offer(trackFrame(66, 1, false)))
+    queue.poll(0, TimeUnit.MILLISECONDS)
+    //the GOP of the other track is not broken
+    assertTrue(queue.offer(trackFrame(66, 2, false)))
+    assertFalse(queue.offer(trackFrame(100, 1, false)))
+    //keyframe only replace a frame of its track
+    assertTrue(queue.offer(trackFrame(133, 1, true)))
+
+    val packets = drain(queue)
+    assertEquals(listOf(2, 2, 2, 1), packets.map { it.getTrackId() })
+    assertEquals(listOf(0L, 33L, 66L, 133L), packets.map { it.timeStamp })
+    assertEquals(2, queue.getDroppedFrames(DropReason.GOP_TAIL))
+    assertEquals(1, queue.getDroppedFrames(DropReason.BROKEN_GOP))
+    assertTrue(queue.offer(trackFrame(166, 1, false)))
+    assertTrue(queue.offer(trackFrame(100, 2, false)))
+  }
+
+  @Test
+  fun `GIVEN drop newest policy WHEN queue is full THEN discard packet received`() {
+    val queue = PacketQueue(1, DropNewestPolicy())
+    queue.offer(interFrame(0))
+
+    assertFalse(queue.offer(keyFrame(33)))
+    assertFalse(queue.offer(audio(33)))
+
+    assertEquals(listOf(0L), drain(queue).map { it.timeStamp })
+    assertEquals(2, queue.getDroppedFrames(DropReason.QUEUE_FULL))
+  }
+
+  private fun drain(queue: PacketQueue): List<FlvPacket> {
+    val packets = mutableListOf<FlvPacket>()
+    while (true) packets.add(queue.poll(0, TimeUnit.MILLISECONDS) ?: break)
+    return packets
+  }
+
+  //AVC video header: frame type and codec id, packet type
+  private fun keyFrame(ts: Long) = FlvPacket(byteArrayOf(0x17, 1, 0, 0, 0), ts, 5, FlvType.VIDEO)
+
+  private fun interFrame(ts: Long) = FlvPacket(byteArrayOf(0x27, 1, 0, 0, 0), ts, 5, FlvType.VIDEO)
+
+  private fun sequenceHeader(ts: Long) = FlvPacket(byteArrayOf(0x17, 0, 0, 0, 0), ts, 5, FlvType.VIDEO)
+
+  //enhanced multitrack header: frame type and packet type, track type and packet type, fourCC, track id
+  private fun trackFrame(ts: Long, trackId: Int, isKeyFrame: Boolean): FlvPacket {
+    val frameType = if (isKeyFrame) VideoDataType.KEYFRAME.value else VideoDataType.INTER_FRAME.value
+    val buffer = byteArrayOf((0x80 or (frameType shl 4) or FourCCPacketType.MULTITRACK.value).toByte(),
+      ((AvMultitrackType.ONE_TRACK.value shl 4) or FourCCPacketType.CODED_FRAMES.value).toByte(),
+      'a'.code.toByte(), 'v'.code.toByte(), 'c'.code.toByte(), '1'.code.toByte(), trackId.toByte())
+    return FlvPacket(buffer, ts, buffer.size, FlvType.VIDEO)
+  }
+
+  //AAC audio header: sound format and flags, packet type
+  private fun audio(ts: Long) = FlvPacket(byteArrayOf(0xAF.toByte(), 1), ts, 2, FlvType.AUDIO)
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright (C) 2024 pedroSG94.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.pedro.rtmp.utils
+
+import android.media.MediaCodec
+import com.pedro.rtmp.flv.FlvPacket
+import com.pedro.rtmp.flv.FlvType
+import com.pedro.rtmp.flv.audio.packet.AacPacket
+import com.pedro.rtmp.rtmp.message.Audio
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNotSame
+import org.junit.Assert.assertSame
+import org.junit.Test
+import java.io.ByteArrayOutputStream
+import java.nio.ByteBuffer
+
+class BufferPoolTest {
+
+  @Test
+  fun `GIVEN a buffer pool WHEN obtain a buffer THEN return a power of 2 buffer that can be reused`() {
+    val bufferPool = BufferPool()
+    val buffer = bufferPool.obtain(1000)
+    assertEquals(1024, buffer.size)
+    assertEquals(512, bufferPool.obtain(10).size)
+
+    bufferPool.recycle(buffer)
+    assertEquals(1, bufferPool.getPooledBuffers())
+    assertSame(buffer, bufferPool.obtain(600))
+    assertEquals(0, bufferPool.getPooledBuffers())
+    //arrays not created by the pool are ignored
+    bufferPool.recycle(ByteArray(1000))
+    assertEquals(0, bufferPool.getPooledBuffers())
+  }
+
+  @Test
+  fun `GIVEN a buffer pool with max buffers WHEN recycle more buffers THEN discard extra buffers`() {
+    val bufferPool = BufferPool(maxBuffersPerSize = 2)
+    val buffers = List(4) { bufferPool.obtain(2000) }
+    buffers.forEach { bufferPool.recycle(it) }
+    assertEquals(2, bufferPool.getPooledBuffers())
+  }
+
+  @Test
+  fun `GIVEN a packet retained WHEN release it once THEN buffer is not returned to the pool`() {
+    val bufferPool = BufferPool()
+    val flvPacket = FlvPacket(bufferPool.obtain(100), 0, 100, FlvType.AUDIO, bufferPool)
+    flvPacket.retain()
+    flvPacket.release()
+    assertEquals(0, bufferPool.getPooledBuffers())
+    flvPacket.release()
+    assertEquals(1, bufferPool.getPooledBuffers())
+  }
+
+  @Test
+  fun `GIVEN a packetizer using a pool WHEN packets are released THEN reuse buffers and write same bytes`() {
+    val bufferPool = BufferPool()
+    val pooledPacket = AacPacket().apply { setBufferPool(bufferPool) }
+    val aacPacket = AacPacket()
+    val info = MediaCodec.BufferInfo()
+    info.size = 300
+
+    val buffers = mutableSetOf<ByteArray>()
+    for (i in 0 until 100) {
+      val frame = ByteArray(300) { (it + i).toByte() }
+      info.presentationTimeUs = i * 23000L
+      var expected: ByteArray? = null
+      aacPacket.createFlvPacket(ByteBuffer.wrap(frame), info) { flvPacket ->
+        expected = writeAudio(flvPacket)
+      }
+      pooledPacket.createFlvPacket(ByteBuffer.wrap(frame), info) { flvPacket ->
+        assertArrayEquals(expected, writeAudio(flvPacket))
+        buffers.add(flvPacket.buffer)
+        flvPacket.release()
+      }
+    }
+    //config is not pooled and all frames reuse the same buffer
+    assertEquals(2, buffers.size)
+    assertEquals(1, bufferPool.getPooledBuffers())
+  }
+
+  @Test
+  fun `GIVEN a packet not released WHEN obtain a buffer THEN buffer is not reused`() {
+    val bufferPool = BufferPool()
+    val first = bufferPool.obtain(100)
+    val second = bufferPool.obtain(100)
+    assertNotSame(first, second)
+  }
+
+  private fun writeAudio(flvPacket: FlvPacket): ByteArray {
+    val output = ByteArrayOutputStream()
+    val audio = Audio(flvPacket)
+    audio.writeHeader(output)
+    audio.writeBody(output)
+    return output.toByteArray()
+  }
+}
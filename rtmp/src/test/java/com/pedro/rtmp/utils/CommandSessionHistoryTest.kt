@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) 2024 pedroSG94.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.pedro.rtmp.utils
+
+import com.pedro.rtmp.rtmp.chunk.ChunkStreamId
+import com.pedro.rtmp.rtmp.chunk.ChunkType
+import com.pedro.rtmp.rtmp.message.Acknowledgement
+import com.pedro.rtmp.rtmp.message.BasicHeader
+import com.pedro.rtmp.rtmp.message.MessageType
+import com.pedro.rtmp.rtmp.message.RtmpHeader
+import com.pedro.rtmp.rtmp.message.RtmpMessage
+import com.pedro.rtmp.rtmp.message.control.Event
+import com.pedro.rtmp.rtmp.message.control.Type
+import com.pedro.rtmp.rtmp.message.control.UserControl
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNull
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import java.io.ByteArrayInputStream
+import java.io.ByteArrayOutputStream
+
+class CommandSessionHistoryTest {
+
+  @Test
+  fun `GIVEN headers from multiple chunk streams WHEN get last read header THEN return last header of that chunk stream`() {
+    val commandSessionHistory = CommandSessionHistory()
+    val audio = RtmpHeader(BasicHeader(ChunkType.TYPE_0, ChunkStreamId.AUDIO.mark)).apply { timeStamp = 1 }
+    val video = RtmpHeader(BasicHeader(ChunkType.TYPE_0, ChunkStreamId.VIDEO.mark)).apply { timeStamp = 2 }
+    val lastAudio = RtmpHeader(BasicHeader(ChunkType.TYPE_1, ChunkStreamId.AUDIO.mark)).apply { timeStamp = 3 }
+    val extended = RtmpHeader(BasicHeader(ChunkType.TYPE_0, 300)).apply { timeStamp = 4 }
+    commandSessionHistory.setReadHeader(audio)
+    commandSessionHistory.setReadHeader(video)
+    commandSessionHistory.setReadHeader(lastAudio)
+    commandSessionHistory.setReadHeader(extended)
+
+    assertEquals(lastAudio, commandSessionHistory.getLastReadHeader(ChunkStreamId.AUDIO.mark))
+    assertEquals(video, commandSessionHistory.getLastReadHeader(ChunkStreamId.VIDEO.mark))
+    assertEquals(extended, commandSessionHistory.getLastReadHeader(300))
+    assertNull(commandSessionHistory.getLastReadHeader(ChunkStreamId.PROTOCOL_CONTROL.mark))
+    assertEquals(3, commandSessionHistory.getStoredHeaders())
+
+    commandSessionHistory.reset()
+    assertNull(commandSessionHistory.getLastReadHeader(ChunkStreamId.AUDIO.mark))
+    assertEquals(0, commandSessionHistory.getStoredHeaders())
+  }
+
+  @Test
+  fun `GIVEN a 10 hours session of server control messages WHEN read all messages THEN stored headers stay constant`() {
+    val commandSessionHistory = CommandSessionHistory()
+    val sessionSeconds = 10 * 60 * 60
+    val output = ByteArrayOutputStream()
+    //ping each second using TYPE_2 headers and acknowledgement each 10 seconds using TYPE_3 headers
+    for (second in 0 until sessionSeconds) {
+      val ping = UserControl(Type.PING_REQUEST, Event(second))
+      ping.header.timeStamp = second * 1000
+      if (second > 0) ping.header.basicHeader = BasicHeader(ChunkType.TYPE_2, ChunkStreamId.PROTOCOL_CONTROL.mark)
+      ping.writeHeader(output)
+      ping.writeBody(output)
+      if (second % 10 == 0) {
+        val acknowledgement = Acknowledgement(second)
+        val chunkType = if (second == 0) ChunkType.TYPE_0 else ChunkType.TYPE_3
+        acknowledgement.header.basicHeader = BasicHeader(chunkType, ChunkStreamId.OVER_CONNECTION.mark)
+        acknowledgement.writeHeader(output)
+        acknowledgement.writeBody(output)
+      }
+    }
+    val input = ByteArrayInputStream(output.toByteArray())
+
+    var pings = 0
+    var acknowledgements = 0
+    var maxStoredHeaders = 0
+    var lastPing: UserControl? = null
+    while (input.available() > 0) {
+      val message = RtmpMessage.getRtmpMessage(input, RtmpConfig.DEFAULT_CHUNK_SIZE, commandSessionHistory)
+      commandSessionHistory.setReadHeader(message.header)
+      maxStoredHeaders = maxOf(maxStoredHeaders, commandSessionHistory.getStoredHeaders())
+      when (message.getType()) {
+        MessageType.USER_CONTROL -> {
+          lastPing = message as UserControl
+          pings++
+        }
+        MessageType.ACKNOWLEDGEMENT -> acknowledgements++
+        else -> throw AssertionError("unexpected message $message")
+      }
+    }
+
+    assertEquals(sessionSeconds, pings)
+    assertEquals(sessionSeconds / 10, acknowledgements)
+    assertEquals(2, maxStoredHeaders)
+    assertTrue(lastPing != null)
+    assertEquals(Event(sessionSeconds - 1), lastPing?.event)
+  }
+}
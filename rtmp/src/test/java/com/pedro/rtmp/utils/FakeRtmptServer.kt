@@ -0,0 +1,162 @@
+/*
+ * Copyright (C) 2024 pedroSG94.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.pedro.rtmp.utils
+
+import java.io.ByteArrayOutputStream
+import java.io.Closeable
+import java.io.InputStream
+import java.io.OutputStream
+import java.net.ServerSocket
+import java.net.Socket
+import java.net.URI
+import java.util.Collections
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * Local RTMPT server. Responses are delayed to simulate network latency and the first response of
+ * each connection is delayed to simulate TCP/TLS handshake.
+ * Requests with absolute uri are accepted so it can be used as HTTP proxy.
+ */
+class FakeRtmptServer(
+  private val latency: Long = 0,
+  private val handshakeLatency: Long = 0,
+  private val keepAlive: Boolean = true
+): Closeable {
+
+  private val serverSocket = ServerSocket(0)
+  private val sockets = mutableListOf<Socket>()
+  private val received = ByteArrayOutputStream()
+  private val pending = ByteArrayOutputStream()
+  val connections = AtomicInteger()
+  val requests = AtomicInteger()
+  val requestTargets: MutableList<String> = Collections.synchronizedList(mutableListOf())
+  //sequence numbers of send and idle requests in arrival order
+  val sequences: MutableList<Long> = Collections.synchronizedList(mutableListOf())
+  val port: Int
+    get() = serverSocket.localPort
+
+  init {
+    Thread {
+      while (!serverSocket.isClosed) {
+        val socket = runCatching { serverSocket.accept() }.getOrNull() ?: break
+        connections.incrementAndGet()
+        synchronized(sockets) { sockets.add(socket) }
+        Thread { handle(socket) }.start()
+      }
+    }.start()
+  }
+
+  /**
+   * Data sent to the client in the next response
+   */
+  fun write(bytes: ByteArray) {
+    synchronized(pending) { pending.write(bytes) }
+  }
+
+  fun getReceived(): ByteArray = synchronized(received) { received.toByteArray() }
+
+  override fun close() {
+    serverSocket.close()
+    synchronized(sockets) { sockets.forEach { runCatching { it.close() } } }
+  }
+
+  private fun handle(socket: Socket) {
+    val responder = Executors.newSingleThreadScheduledExecutor()
+    val input = socket.getInputStream().buffered()
+    val output = socket.getOutputStream()
+    val start = System.currentTimeMillis()
+    try {
+      while (true) {
+        val requestLine = readLine(input) ?: break
+        var length = 0
+        while (true) {
+          val line = readLine(input) ?: return
+          if (line.isEmpty()) break
+          if (line.startsWith("Content-Length:", true)) length = line.substringAfter(':').trim().toInt()
+        }
+        val body = ByteArray(length)
+        var read = 0
+        while (read < length) {
+          val result = input.read(body, read, length - read)
+          if (result < 0) return
+          read += result
+        }
+        requests.incrementAndGet()
+        val target = requestLine.split(" ")[1]
+        requestTargets.add(target)
+        val path = if (target.startsWith("/")) target else URI(target).rawPath ?: target
+        if (path.startsWith("/send/") || path.startsWith("/idle/")) {
+          sequences.add(path.substringAfterLast('/').toLong())
+        }
+        val response = when {
+          path.startsWith("/open/") -> 200 to "fakeId\n".toByteArray()
+          path.startsWith("/send/") -> {
+            synchronized(received) { received.write(body) }
+            200 to pendingResponse()
+          }
+          path.startsWith("/idle/") -> 200 to pendingResponse()
+          path.startsWith("/close/") -> 200 to byteArrayOf(0x00)
+          else -> 404 to byteArrayOf()
+        }
+        //the response is sent after the latency and after the handshake of the connection
+        val delay = maxOf(latency, start + handshakeLatency - System.currentTimeMillis())
+        responder.schedule({ writeResponse(output, response.first, response.second) }, delay, TimeUnit.MILLISECONDS)
+        if (!keepAlive) break
+      }
+    } catch (ignored: Exception) {
+    } finally {
+      responder.shutdown()
+      responder.awaitTermination(5, TimeUnit.SECONDS)
+      runCatching { socket.close() }
+    }
+  }
+
+  private fun pendingResponse(): ByteArray {
+    synchronized(pending) {
+      val response = byteArrayOf(0x01) + pending.toByteArray()
+      pending.reset()
+      return response
+    }
+  }
+
+  private fun writeResponse(output: OutputStream, code: Int, body: ByteArray) {
+    val status = if (code == 200) "200 OK" else "$code Not Found"
+    val header = "HTTP/1.1 $status\r\n" +
+        "Content-Type: application/x-fcs\r\n" +
+        "Content-Length: ${body.size}\r\n" +
+        (if (keepAlive) "Connection: Keep-Alive\r\n" else "Connection: close\r\n") +
+        "\r\n"
+    runCatching {
+      output.write(header.toByteArray() + body)
+      output.flush()
+    }
+  }
+
+  private fun readLine(input: InputStream): String? {
+    val line = StringBuilder()
+    while (true) {
+      val b = input.read()
+      if (b == -1) return null
+      if (b == '\n'.code) break
+      if (b != '\r'.code) line.append(b.toChar())
+    }
+    return line.toString()
+  }
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright (C) 2024 pedroSG94.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.pedro.rtmp.utils
+
+import com.pedro.rtmp.flv.FlvPacket
+import com.pedro.rtmp.flv.FlvType
+import com.pedro.rtmp.rtmp.chunk.ChunkType
+import com.pedro.rtmp.rtmp.message.BasicHeader
+import com.pedro.rtmp.rtmp.message.MessageType
+import com.pedro.rtmp.rtmp.message.RtmpHeader
+import java.io.Closeable
+import java.io.EOFException
+import java.io.InputStream
+import java.net.ServerSocket
+
+/**
+ * Local server that read audio and video messages of one connection keeping the body, unlike
+ * ChunkReassembler, and demultiplex Enhanced RTMP multitrack packets by track.
+ * The chunk size is the default because no connect command is expected.
+ */
+class LoopbackRtmpServer: Closeable {
+
+  private class PartialMessage(val header: RtmpHeader) {
+    val buffer = ByteArray(header.messageLength)
+    var length = 0
+  }
+
+  private val serverSocket = ServerSocket(0)
+  private val packets = mutableListOf<FlvPacket>()
+  private val thread: Thread
+  val port: Int
+    get() = serverSocket.localPort
+
+  init {
+    thread = Thread {
+      runCatching {
+        serverSocket.accept().use { read(it.getInputStream()) }
+      }
+    }
+    thread.start()
+  }
+
+  /**
+   * Wait until the client close the connection and return the received packets by type and track
+   */
+  fun getTracks(timeout: Long): Map<Pair<FlvType, Int>, List<FlvPacket>> {
+    thread.join(timeout)
+    return synchronized(packets) { packets.groupBy { Pair(it.type, it.getTrackId()) } }
+  }
+
+  private fun read(input: InputStream) {
+    val history = CommandSessionHistory()
+    val partialMessages = HashMap<Int, PartialMessage>()
+    while (true) {
+      val byte = input.read()
+      if (byte == -1) throw EOFException("End of stream")
+      val chunkType = ChunkType.entries.first { it.mark.toInt() == byte ushr 6 }
+      val chunkStreamId = byte and 0x3F
+      var partialMessage = partialMessages[chunkStreamId]
+      if (partialMessage == null || chunkType != ChunkType.TYPE_3) {
+        val header = RtmpHeader.readHeader(BasicHeader(chunkType, chunkStreamId), input, history)
+        history.setReadHeader(header)
+        partialMessage = PartialMessage(header)
+        partialMessages[chunkStreamId] = partialMessage
+      }
+      val header = partialMessage.header
+      val length = minOf(RtmpConfig.DEFAULT_CHUNK_SIZE, header.messageLength - partialMessage.length)
+      input.readUntil(partialMessage.buffer, partialMessage.length, length)
+      partialMessage.length += length
+      if (partialMessage.length == header.messageLength) {
+        partialMessages.remove(chunkStreamId)
+        val type = when (header.messageType) {
+          MessageType.VIDEO -> FlvType.VIDEO
+          MessageType.AUDIO -> FlvType.AUDIO
+          else -> continue
+        }
+        synchronized(packets) {
+          packets.add(FlvPacket(partialMessage.buffer, header.timeStamp.toLong(), header.messageLength, type))
+        }
+      }
+    }
+  }
+
+  override fun close() {
+    serverSocket.close()
+  }
+}
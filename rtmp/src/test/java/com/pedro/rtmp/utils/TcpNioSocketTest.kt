@@ -0,0 +1,119 @@
+/*
+ * Copyright (C) 2024 pedroSG94.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.pedro.rtmp.utils
+
+import com.pedro.rtmp.flv.FlvPacket
+import com.pedro.rtmp.flv.FlvType
+import com.pedro.rtmp.rtmp.message.Video
+import com.pedro.rtmp.utils.socket.RtmpSocket
+import com.pedro.rtmp.utils.socket.TcpNioSocket
+import com.pedro.rtmp.utils.socket.TcpSocket
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import java.io.ByteArrayOutputStream
+import java.lang.management.ManagementFactory
+import java.net.ServerSocket
+import java.util.concurrent.Executors
+import java.util.concurrent.Future
+import java.util.concurrent.TimeUnit
+import kotlin.random.Random
+
+class TcpNioSocketTest {
+
+  @Test
+  fun `GIVEN a nio socket not connected WHEN write and close THEN no error`() {
+    val socket = TcpNioSocket("127.0.0.1", 1935, false, null)
+    socket.getOutStream().write(0)
+    socket.getInputStream()
+    socket.close()
+  }
+
+  @Test
+  fun `GIVEN video packets WHEN send using nio socket THEN server receive same bytes that using tcp socket`() {
+    val packets = createPackets(50, 20_000)
+    val expected = sendToServer(packets, keepBytes = true) { port -> TcpSocket("127.0.0.1", port, false, null) }
+    val result = sendToServer(packets, keepBytes = true) { port -> TcpNioSocket("127.0.0.1", port, false, null) }
+    assertEquals(expected.bytes.size, result.bytes.size)
+    assertArrayEquals(expected.bytes, result.bytes)
+  }
+
+  @Test
+  fun `GIVEN loopback server WHEN send 16MB several times THEN nio socket use less cpu per megabyte`() {
+    val packets = createPackets(200, 80_000)
+    val tcp = List(5) { sendToServer(packets) { port -> TcpSocket("127.0.0.1", port, false, null) } }
+    val nio = List(5) { sendToServer(packets) { port -> TcpNioSocket("127.0.0.1", port, false, null) } }
+    //ignore warm up iterations
+    val tcpCpu = tcp.drop(2).minOf { it.cpuNanosPerMb() }
+    val nioCpu = nio.drop(2).minOf { it.cpuNanosPerMb() }
+    assertEquals(tcp.last().received, nio.last().received)
+    assertTrue(nio.last().received > 200L * 80_000)
+    //a copy to the staging buffer and a write per flush cost less than the buffered stream writes
+    assertTrue("nio: $nioCpu ns/MB, tcp: $tcpCpu ns/MB", nioCpu < tcpCpu)
+  }
+
+  private class Result(val bytes: ByteArray, val received: Long, val cpuNanos: Long) {
+    fun cpuNanosPerMb(): Long = cpuNanos * 1024 * 1024 / received
+  }
+
+  private fun createPackets(count: Int, size: Int): List<FlvPacket> {
+    val random = Random(1)
+    return List(count) { i ->
+      FlvPacket(random.nextBytes(size), i * 33L, size, FlvType.VIDEO)
+    }
+  }
+
+  private fun sendToServer(packets: List<FlvPacket>, keepBytes: Boolean = false, createSocket: (Int) -> RtmpSocket): Result {
+    val server = ServerSocket(0)
+    val executor = Executors.newSingleThreadExecutor()
+    try {
+      val receiver: Future<Pair<ByteArray, Long>> = executor.submit<Pair<ByteArray, Long>> {
+        server.accept().use { client ->
+          val input = client.getInputStream()
+          val output = ByteArrayOutputStream()
+          val buffer = ByteArray(64 * 1024)
+          var received = 0L
+          while (true) {
+            val read = input.read(buffer)
+            if (read == -1) break
+            received += read
+            if (keepBytes) output.write(buffer, 0, read)
+          }
+          Pair(output.toByteArray(), received)
+        }
+      }
+      val socket = createSocket(server.localPort)
+      socket.connect()
+      val threadMXBean = ManagementFactory.getThreadMXBean()
+      val startCpu = threadMXBean.currentThreadCpuTime
+      packets.forEach { packet ->
+        val video = Video(packet, 1)
+        video.writeHeader(socket.getOutStream())
+        video.writeBody(socket.getOutStream())
+        socket.flush(true)
+      }
+      val cpuNanos = threadMXBean.currentThreadCpuTime - startCpu
+      socket.close()
+      val (bytes, received) = receiver.get(10, TimeUnit.SECONDS)
+      return Result(bytes, received, cpuNanos)
+    } finally {
+      executor.shutdownNow()
+      server.close()
+    }
+  }
+}
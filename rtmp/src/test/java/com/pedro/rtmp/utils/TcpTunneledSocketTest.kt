@@ -0,0 +1,273 @@
+/*
+ * Copyright (C) 2024 pedroSG94.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.pedro.rtmp.utils
+
+import com.pedro.rtmp.utils.socket.HttpTunnelConnection
+import com.pedro.rtmp.utils.socket.TcpTunneledSocket
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import java.io.IOException
+import java.net.InetSocketAddress
+import java.net.Proxy
+import java.net.ProxySelector
+import java.net.SocketAddress
+import java.net.URI
+import kotlin.random.Random
+
+class TcpTunneledSocketTest {
+
+  @Test
+  fun `GIVEN a rtmpt server WHEN send packets THEN server receive the same bytes using few connections`() {
+    FakeRtmptServer(latency = 5).use { server ->
+      val socket = TcpTunneledSocket("127.0.0.1", server.port, false)
+      socket.connect()
+      assertTrue(socket.isConnected())
+      val packets = createPackets(300, 1500)
+      packets.forEach {
+        socket.getOutStream().write(it)
+        socket.flush(true)
+      }
+      socket.getOutStream().write(byteArrayOf(1, 2, 3))
+      socket.flush()
+      waitReceived(server, packets.sumOf { it.size } + 3)
+      assertArrayEquals(packets.reduce { acc, bytes -> acc + bytes } + byteArrayOf(1, 2, 3), server.getReceived())
+      assertTrue("connections: ${server.connections.get()}", server.connections.get() <= 3)
+      assertTrue("requests: ${server.requests.get()}", server.requests.get() < 50)
+      socket.close()
+    }
+  }
+
+  @Test
+  fun `GIVEN a rtmpt server WHEN server send data THEN read it doing idle requests`() {
+    FakeRtmptServer().use { server ->
+      val socket = TcpTunneledSocket("127.0.0.1", server.port, false)
+      socket.connect()
+      server.write(byteArrayOf(1, 2, 3, 4))
+      val data = ByteArray(4)
+      socket.getInputStream().readUntil(data)
+      assertArrayEquals(byteArrayOf(1, 2, 3, 4), data)
+      Thread { Thread.sleep(200); server.write(byteArrayOf(5)) }.start()
+      assertEquals(5, socket.getInputStream().read())
+      val requests = server.requests.get()
+      //idle requests are delayed while there is nothing to read
+      assertTrue("requests: $requests", requests < 30)
+      socket.close()
+    }
+  }
+
+  @Test
+  fun `GIVEN a rtmpt server sending data WHEN send and read at the same time THEN sequence numbers arrive in order`() {
+    FakeRtmptServer(latency = 5).use { server ->
+      val socket = TcpTunneledSocket("127.0.0.1", server.port, false)
+      socket.connect()
+      val reader = Thread {
+        val data = ByteArray(1)
+        repeat(20) {
+          server.write(byteArrayOf(it.toByte()))
+          socket.getInputStream().readUntil(data)
+        }
+      }
+      reader.start()
+      val packets = createPackets(200, 1500)
+      packets.forEach {
+        socket.getOutStream().write(it)
+        socket.flush(true)
+        Thread.sleep(1)
+      }
+      socket.flush()
+      reader.join(10_000)
+      waitReceived(server, packets.sumOf { it.size })
+      val sequences = server.sequences.toList()
+      assertTrue(sequences.any { it > 1 })
+      assertEquals(sequences.sorted(), sequences)
+      assertEquals(sequences.size, sequences.toSet().size)
+      socket.close()
+    }
+  }
+
+  @Test
+  fun `GIVEN a http proxy WHEN send packets THEN requests go through the proxy with absolute uri`() {
+    FakeRtmptServer().use { proxyServer ->
+      val defaultSelector = ProxySelector.getDefault()
+      ProxySelector.setDefault(object : ProxySelector() {
+        override fun select(uri: URI): List<Proxy> {
+          //selector is global, connections of other tests must not use the proxy
+          if (uri.host != "rtmpt.invalid") return listOf(Proxy.NO_PROXY)
+          return listOf(Proxy(Proxy.Type.HTTP, InetSocketAddress("127.0.0.1", proxyServer.port)))
+        }
+
+        override fun connectFailed(uri: URI, sa: SocketAddress, ioe: IOException) {}
+      })
+      try {
+        //unresolvable host, only reachable using the proxy
+        val socket = TcpTunneledSocket("rtmpt.invalid", 1935, false)
+        socket.connect()
+        assertTrue(socket.isConnected())
+        val packets = createPackets(20, 1500)
+        packets.forEach {
+          socket.getOutStream().write(it)
+          socket.flush(true)
+        }
+        socket.flush()
+        waitReceived(proxyServer, packets.sumOf { it.size })
+        assertArrayEquals(packets.reduce { acc, bytes -> acc + bytes }, proxyServer.getReceived())
+        assertTrue(proxyServer.requestTargets.all { it.startsWith("http://rtmpt.invalid:1935/") })
+        socket.close()
+      } finally {
+        ProxySelector.setDefault(defaultSelector)
+      }
+    }
+  }
+
+  @Test
+  fun `GIVEN a http proxy WHEN connect secured THEN open a tunnel before the TLS handshake`() {
+    FakeRtmptServer().use { proxyServer ->
+      val defaultSelector = ProxySelector.getDefault()
+      ProxySelector.setDefault(object : ProxySelector() {
+        override fun select(uri: URI): List<Proxy> {
+          //selector is global, connections of other tests must not use the proxy
+          if (uri.host != "rtmpt.invalid") return listOf(Proxy.NO_PROXY)
+          return listOf(Proxy(Proxy.Type.HTTP, InetSocketAddress("127.0.0.1", proxyServer.port)))
+        }
+
+        override fun connectFailed(uri: URI, sa: SocketAddress, ioe: IOException) {}
+      })
+      try {
+        val connection = HttpTunnelConnection("rtmpt.invalid", 443, true, 2000)
+        //fake proxy doesn't support CONNECT
+        val result = runCatching { connection.connect() }
+        assertTrue(result.exceptionOrNull() is IOException)
+        assertEquals(listOf("rtmpt.invalid:443"), proxyServer.requestTargets.toList())
+      } finally {
+        ProxySelector.setDefault(defaultSelector)
+      }
+    }
+  }
+
+  @Test
+  fun `GIVEN a rtmpt server without keep-alive WHEN send packets THEN server receive the same bytes`() {
+    FakeRtmptServer(keepAlive = false).use { server ->
+      val socket = TcpTunneledSocket("127.0.0.1", server.port, false)
+      socket.connect()
+      val packets = createPackets(100, 1500)
+      packets.forEach {
+        socket.getOutStream().write(it)
+        socket.flush(true)
+      }
+      socket.flush()
+      waitReceived(server, packets.sumOf { it.size })
+      assertArrayEquals(packets.reduce { acc, bytes -> acc + bytes }, server.getReceived())
+      socket.close()
+    }
+  }
+
+  @Test
+  fun `GIVEN a rtmpt server with latency WHEN send 1MB THEN keep-alive is faster than a connection per request`() {
+    val packets = createPackets(700, 1500)
+    val size = packets.sumOf { it.size }
+    //a connection per request with packs of 10 packets
+    val perRequest = FakeRtmptServer(latency = 10, handshakeLatency = 20).use { server ->
+      measure {
+        packets.chunked(10).forEachIndexed { i, pack ->
+          val connection = HttpTunnelConnection("127.0.0.1", server.port, false, 5000)
+          connection.connect()
+          connection.sendRequest("send/fakeId/$i", pack.reduce { acc, bytes -> acc + bytes })
+          connection.readResponse()
+          connection.close()
+        }
+        waitReceived(server, size)
+      }
+    }
+    val keepAlive = FakeRtmptServer(latency = 10, handshakeLatency = 20).use { server ->
+      val socket = TcpTunneledSocket("127.0.0.1", server.port, false)
+      socket.connect()
+      val time = measure {
+        packets.forEach {
+          socket.getOutStream().write(it)
+          socket.flush(true)
+        }
+        socket.flush()
+        waitReceived(server, size)
+      }
+      socket.close()
+      time
+    }
+    assertTrue(keepAlive < perRequest)
+  }
+
+  @Test
+  fun `GIVEN a rtmpt server WHEN store a packet and stop flushing THEN the batch is sent after max batch delay`() {
+    FakeRtmptServer().use { server ->
+      val socket = TcpTunneledSocket("127.0.0.1", server.port, false, maxBatchDelay = 50)
+      socket.connect()
+      socket.getOutStream().write(byteArrayOf(1, 2, 3))
+      socket.flush(true)
+      assertEquals(0, server.getReceived().size)
+      waitReceived(server, 3)
+      assertArrayEquals(byteArrayOf(1, 2, 3), server.getReceived())
+      socket.close()
+    }
+  }
+
+  @Test
+  fun `GIVEN a rtmpt server with latency WHEN send while reading THEN writes are not blocked by idle requests`() {
+    val latency = 300L
+    FakeRtmptServer(latency = latency).use { server ->
+      //pipeline big enough to never wait responses of send requests
+      val socket = TcpTunneledSocket("127.0.0.1", server.port, false, maxPipelinedRequests = 32)
+      socket.connect()
+      val reader = Thread { socket.getInputStream().read() }.apply { start() }
+      var flushTime = 0L
+      repeat(10) {
+        Thread.sleep(100)
+        val time = measure {
+          socket.getOutStream().write(byteArrayOf(it.toByte()))
+          socket.flush()
+        }
+        flushTime += time
+      }
+      waitReceived(server, 10)
+      assertArrayEquals(ByteArray(10) { it.toByte() }, server.getReceived())
+      //waiting idle responses in the write lock block around 200ms per flush
+      assertTrue("flush time: $flushTime", flushTime < latency)
+      server.write(byteArrayOf(1))
+      reader.join(5000)
+      socket.close()
+    }
+  }
+
+  private fun createPackets(count: Int, size: Int): List<ByteArray> {
+    val random = Random(1)
+    return List(count) { random.nextBytes(size) }
+  }
+
+  private fun waitReceived(server: FakeRtmptServer, size: Int) {
+    val start = System.currentTimeMillis()
+    while (server.getReceived().size < size && System.currentTimeMillis() - start < 5000) {
+      Thread.sleep(1)
+    }
+  }
+
+  private fun measure(block: () -> Unit): Long {
+    val start = System.currentTimeMillis()
+    block()
+    return (System.currentTimeMillis() - start).coerceAtLeast(1)
+  }
+}
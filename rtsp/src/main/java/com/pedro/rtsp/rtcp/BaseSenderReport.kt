@@ -86,6 +86,17 @@ abstract class BaseSenderReport internal constructor() {
 
   @Throws(IOException::class)
   suspend fun update(rtpFrame: RtpFrame): Boolean {
+    val report = updateReport(rtpFrame) ?: return false
+    sendReport(report, rtpFrame)
+    return true
+  }
+
+  /**
+   * Update counters with the frame without send the report.
+   *
+   * @return report of REPORT_PACKET_LENGTH bytes if it must be sent now, null otherwise
+   */
+  fun updateReport(rtpFrame: RtpFrame): ByteArray? {
     return if (rtpFrame.channelIdentifier == RtpConstants.trackVideo) {
       updateVideo(rtpFrame)
     } else {
@@ -96,8 +107,7 @@ abstract class BaseSenderReport internal constructor() {
   @Throws(IOException::class)
   abstract suspend fun sendReport(buffer: ByteArray, rtpFrame: RtpFrame)
 
-  @Throws(IOException::class)
-  private suspend fun updateVideo(rtpFrame: RtpFrame): Boolean {
+  private fun updateVideo(rtpFrame: RtpFrame): ByteArray? {
     videoPacketCount++
     videoOctetCount += rtpFrame.length
     videoBuffer.setLong(videoPacketCount, 20, 24)
@@ -105,14 +115,12 @@ abstract class BaseSenderReport internal constructor() {
     if (TimeUtils.getCurrentTimeMillis() - videoTime >= interval) {
       videoTime = TimeUtils.getCurrentTimeMillis()
       setData(videoBuffer, TimeUtils.getCurrentTimeNano(), rtpFrame.timeStamp)
-      sendReport(videoBuffer, rtpFrame)
-      return true
+      return videoBuffer
     }
-    return false
+    return null
   }
 
-  @Throws(IOException::class)
-  private suspend fun updateAudio(rtpFrame: RtpFrame): Boolean {
+  private fun updateAudio(rtpFrame: RtpFrame): ByteArray? {
     audioPacketCount++
     audioOctetCount += rtpFrame.length
     audioBuffer.setLong(audioPacketCount, 20, 24)
@@ -120,10 +128,9 @@ abstract class BaseSenderReport internal constructor() {
     if (TimeUtils.getCurrentTimeMillis() - audioTime >= interval) {
       audioTime = TimeUtils.getCurrentTimeMillis()
       setData(audioBuffer, TimeUtils.getCurrentTimeNano(), rtpFrame.timeStamp)
-      sendReport(audioBuffer, rtpFrame)
-      return true
+      return audioBuffer
     }
-    return false
+    return null
   }
 
   fun reset() {
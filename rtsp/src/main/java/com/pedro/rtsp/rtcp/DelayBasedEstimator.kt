@@ -0,0 +1,277 @@
+/*
+ * Copyright (C) 2024 pedroSG94.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.pedro.rtsp.rtcp
+
+import kotlin.math.abs
+import kotlin.math.pow
+
+/**
+ * Bandwidth estimation based on the delay reported with transport-cc feedback, like Google
+ * Congestion Control. Packets are grouped in bursts of 5ms, the variation of the delay between
+ * groups is filtered with a trendline and compared with an adaptive threshold to detect overuse.
+ * The target bitrate is updated with AIMD: decreased to 85% of the bitrate received by the server
+ * on overuse, kept on underuse and increased 8% per second otherwise.
+ */
+class DelayBasedEstimator(
+  startBitrate: Long,
+  private val minBitrate: Long,
+  private val maxBitrate: Long
+) {
+
+  companion object {
+    private const val BURST_US = 5_000L
+    private const val WINDOW_SIZE = 20
+    private const val SMOOTHING = 0.9
+    private const val TREND_GAIN = 4.0
+    private const val MAX_DELTAS = 60
+    private const val K_UP = 0.0087
+    private const val K_DOWN = 0.039
+    private const val OVERUSE_TIME_MS = 10.0
+    private const val BETA = 0.85
+    private const val INCREASE_PER_SECOND = 1.08
+    private const val ACKED_WINDOW_US = 500_000L
+    //min time between decreases to see the effect of the previous one
+    private const val DECREASE_INTERVAL_US = 300_000L
+  }
+
+  enum class Usage {
+    NORMAL, OVERUSE, UNDERUSE
+  }
+
+  @Volatile
+  var targetBitrate = startBitrate.coerceIn(minBitrate, maxBitrate)
+    private set
+  /**
+   * Bitrate received by the server in bits per second, 0 if unknown
+   */
+  @Volatile
+  var ackedBitrate = 0L
+    private set
+  var usage = Usage.NORMAL
+    private set
+
+  //current and previous group of packets
+  private var groupFirstSend = -1L
+  private var groupLastSend = -1L
+  private var groupLastArrival = -1L
+  private var previousSend = -1L
+  private var previousArrival = -1L
+  private var firstArrival = -1L
+  //trendline filter
+  private val times = DoubleArray(WINDOW_SIZE)
+  private val delays = DoubleArray(WINDOW_SIZE)
+  private var samples = 0
+  private var deltas = 0
+  private var accumulatedDelay = 0.0
+  private var smoothedDelay = 0.0
+  private var previousTrend = 0.0
+  //overuse detector
+  private var threshold = 12.5
+  private var lastThresholdUpdate = -1L
+  private var lastDetection = -1L
+  private var overuseTime = -1.0
+  private var overuseCounter = 0
+  //received bitrate
+  private var ackedStart = -1L
+  private var ackedBytes = 0L
+  //rate control
+  private var lastUpdate = -1L
+  private var lastDecrease = -1L
+
+  /**
+   * Process a transport-cc feedback.
+   *
+   * @param arrivalTimesUs arrival time of each packet since baseSequence, -1 if not received
+   * @return target bitrate updated
+   */
+  fun onFeedback(history: SendTimeHistory, baseSequence: Int, arrivalTimesUs: LongArray, count: Int, nowUs: Long): Long {
+    for (i in 0 until count) {
+      val arrival = arrivalTimesUs[i]
+      if (arrival < 0) continue
+      val sequence = (baseSequence + i) and 0xFFFF
+      val sendTime = history.getSendTime(sequence)
+      if (sendTime < 0) continue
+      onPacket(sendTime, arrival, history.getSize(sequence))
+    }
+    return update(nowUs)
+  }
+
+  fun onPacket(sendTimeUs: Long, arrivalTimeUs: Long, size: Int) {
+    updateAckedBitrate(arrivalTimeUs, size)
+    if (firstArrival < 0) firstArrival = arrivalTimeUs
+    if (groupFirstSend < 0) {
+      startGroup(sendTimeUs, arrivalTimeUs)
+      return
+    }
+    //reordered packet of a previous group
+    if (sendTimeUs < groupFirstSend) return
+    if (sendTimeUs - groupFirstSend > BURST_US) {
+      if (previousSend >= 0) {
+        val sendDelta = groupLastSend - previousSend
+        val arrivalDelta = groupLastArrival - previousArrival
+        onDelta((arrivalDelta - sendDelta) / 1000.0, groupLastArrival)
+      }
+      previousSend = groupLastSend
+      previousArrival = groupLastArrival
+      startGroup(sendTimeUs, arrivalTimeUs)
+    } else {
+      groupLastSend = maxOf(groupLastSend, sendTimeUs)
+      groupLastArrival = maxOf(groupLastArrival, arrivalTimeUs)
+    }
+  }
+
+  /**
+   * Update the target bitrate with the last usage detected.
+   */
+  fun update(nowUs: Long): Long {
+    val elapsed = if (lastUpdate < 0) 0L else (nowUs - lastUpdate).coerceIn(0, 1_000_000)
+    lastUpdate = nowUs
+    var target = targetBitrate
+    when (usage) {
+      Usage.OVERUSE -> {
+        if (lastDecrease < 0 || nowUs - lastDecrease >= DECREASE_INTERVAL_US) {
+          //based on the bitrate received and not the target to avoid decrease in cascade while queues drain
+          val acked = ackedBitrate
+          target = if (acked > 0) minOf(target, (BETA * acked).toLong()) else (BETA * target).toLong()
+          lastDecrease = nowUs
+        }
+      }
+      Usage.UNDERUSE -> {
+        //queues in the path are draining, wait to know the real capacity
+      }
+      Usage.NORMAL -> {
+        target = (target * INCREASE_PER_SECOND.pow(elapsed / 1_000_000.0)).toLong()
+        //never go too far from the bitrate that the path can deliver
+        val acked = ackedBitrate
+        if (acked > 0) target = minOf(target, (acked * 1.5).toLong() + 10_000)
+      }
+    }
+    targetBitrate = target.coerceIn(minBitrate, maxBitrate)
+    return targetBitrate
+  }
+
+  fun reset(startBitrate: Long) {
+    targetBitrate = startBitrate.coerceIn(minBitrate, maxBitrate)
+    ackedBitrate = 0
+    usage = Usage.NORMAL
+    groupFirstSend = -1
+    groupLastSend = -1
+    groupLastArrival = -1
+    previousSend = -1
+    previousArrival = -1
+    firstArrival = -1
+    samples = 0
+    deltas = 0
+    accumulatedDelay = 0.0
+    smoothedDelay = 0.0
+    previousTrend = 0.0
+    threshold = 12.5
+    lastThresholdUpdate = -1
+    lastDetection = -1
+    overuseTime = -1.0
+    overuseCounter = 0
+    ackedStart = -1
+    ackedBytes = 0
+    lastUpdate = -1
+    lastDecrease = -1
+  }
+
+  private fun startGroup(sendTimeUs: Long, arrivalTimeUs: Long) {
+    groupFirstSend = sendTimeUs
+    groupLastSend = sendTimeUs
+    groupLastArrival = arrivalTimeUs
+  }
+
+  private fun updateAckedBitrate(arrivalTimeUs: Long, size: Int) {
+    if (ackedStart < 0) ackedStart = arrivalTimeUs
+    ackedBytes += size
+    val elapsed = arrivalTimeUs - ackedStart
+    if (elapsed >= ACKED_WINDOW_US) {
+      ackedBitrate = ackedBytes * 8 * 1_000_000 / elapsed
+      ackedStart = arrivalTimeUs
+      ackedBytes = 0
+    }
+  }
+
+  private fun onDelta(delayMs: Double, arrivalTimeUs: Long) {
+    deltas = minOf(deltas + 1, 1000)
+    accumulatedDelay += delayMs
+    smoothedDelay = SMOOTHING * smoothedDelay + (1 - SMOOTHING) * accumulatedDelay
+    val index = samples % WINDOW_SIZE
+    times[index] = (arrivalTimeUs - firstArrival) / 1000.0
+    delays[index] = smoothedDelay
+    samples++
+    if (samples < WINDOW_SIZE) return
+    detect(getTrend(), arrivalTimeUs)
+  }
+
+  /**
+   * @return slope of the linear regression of the smoothed delay over the arrival time
+   */
+  private fun getTrend(): Double {
+    val meanTime = times.average()
+    val meanDelay = delays.average()
+    var numerator = 0.0
+    var denominator = 0.0
+    for (i in 0 until WINDOW_SIZE) {
+      val time = times[i] - meanTime
+      numerator += time * (delays[i] - meanDelay)
+      denominator += time * time
+    }
+    return if (denominator != 0.0) numerator / denominator else previousTrend
+  }
+
+  private fun detect(trend: Double, nowUs: Long) {
+    val elapsedMs = if (lastDetection < 0) 0.0 else (nowUs - lastDetection) / 1000.0
+    lastDetection = nowUs
+    val modifiedTrend = minOf(deltas, MAX_DELTAS) * trend * TREND_GAIN
+    if (modifiedTrend > threshold) {
+      overuseTime = if (overuseTime < 0) elapsedMs / 2 else overuseTime + elapsedMs
+      overuseCounter++
+      if (overuseTime > OVERUSE_TIME_MS && overuseCounter > 1 && trend >= previousTrend) {
+        overuseTime = 0.0
+        overuseCounter = 0
+        usage = Usage.OVERUSE
+      }
+    } else if (modifiedTrend < -threshold) {
+      overuseTime = -1.0
+      overuseCounter = 0
+      usage = Usage.UNDERUSE
+    } else {
+      overuseTime = -1.0
+      overuseCounter = 0
+      usage = Usage.NORMAL
+    }
+    previousTrend = trend
+    updateThreshold(modifiedTrend, nowUs)
+  }
+
+  private fun updateThreshold(modifiedTrend: Double, nowUs: Long) {
+    if (lastThresholdUpdate < 0) lastThresholdUpdate = nowUs
+    val value = abs(modifiedTrend)
+    //big spikes are not used to adapt the threshold
+    if (value > threshold + 15) {
+      lastThresholdUpdate = nowUs
+      return
+    }
+    val k = if (value < threshold) K_DOWN else K_UP
+    val elapsedMs = minOf((nowUs - lastThresholdUpdate) / 1000.0, 100.0)
+    threshold = (threshold + k * (value - threshold) * elapsedMs).coerceIn(6.0, 600.0)
+    lastThresholdUpdate = nowUs
+  }
+}
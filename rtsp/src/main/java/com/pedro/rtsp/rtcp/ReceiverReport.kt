@@ -0,0 +1,35 @@
+/*
+ * Copyright (C) 2024 pedroSG94.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.pedro.rtsp.rtcp
+
+/**
+ * Reception statistics of a track reported by the server using RTCP.
+ *
+ * @param fractionLost packets lost since the previous report, from 0 to 1
+ * @param packetsLost cumulative number of packets lost
+ * @param highestSequence extended highest sequence number received
+ * @param jitter interarrival jitter in milliseconds
+ * @param rtt round trip time in milliseconds of this report, 0 if unknown
+ */
+data class ReceiverReport(
+  val fractionLost: Float,
+  val packetsLost: Long,
+  val highestSequence: Long,
+  val jitter: Long,
+  val rtt: Long
+)
@@ -0,0 +1,415 @@
+/*
+ * Copyright (C) 2024 pedroSG94.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.pedro.rtsp.rtcp
+
+import com.pedro.common.TimeUtils
+import com.pedro.rtsp.utils.RtpConstants
+import java.io.EOFException
+import java.io.IOException
+import java.io.InputStream
+
+/**
+ * Read RTCP packets sent by the server (RFC 3550 RR/SR report blocks and RFC 3611 XR statistics
+ * summary and VoIP metrics blocks) about the tracks sent by us to calculate loss, jitter and
+ * round trip time. RFC 4585 generic NACK requests are notified to the NackListener and
+ * transport-cc feedback (draft-holmer-rmcat-transport-wide-cc-extensions) to the TransportFeedbackListener.
+ */
+class RtcpReceiver {
+
+  companion object {
+    private const val SR = 200
+    private const val RR = 201
+    private const val XR = 207
+    private const val RTPFB = 205
+    private const val GENERIC_NACK = 1
+    private const val TRANSPORT_CC = 15
+    private const val XR_STATISTICS_SUMMARY = 6
+    private const val XR_VOIP_METRICS = 7
+    private const val REPORT_BLOCK_LENGTH = 24
+    private const val RTT_FACTOR = 0.125
+
+    /**
+     * @return middle 32 bits of a NTP timestamp created using nanoseconds like in BaseSenderReport
+     */
+    fun getNtpMiddle(nanos: Long): Long {
+      val hb = nanos / 1000000000
+      val lb = (nanos - hb * 1000000000) * 4294967296L / 1000000000
+      return ((hb and 0xFFFF) shl 16) or (lb shr 16)
+    }
+  }
+
+  private val sync = Any()
+  private var videoSsrc = 0L
+  private var audioSsrc = 0L
+  private var audioClock = 0L
+  private var videoReport: ReceiverReport? = null
+  private var audioReport: ReceiverReport? = null
+  private var smoothedRtt = 0.0
+  private val header = ByteArray(4)
+  private var buffer = ByteArray(RtpConstants.MTU)
+  @Volatile
+  private var nackListener: NackListener? = null
+
+  fun interface NackListener {
+    fun onNack(isVideo: Boolean, sequenceNumber: Int)
+  }
+
+  fun setNackListener(nackListener: NackListener?) {
+    this.nackListener = nackListener
+  }
+
+  @Volatile
+  private var transportFeedbackListener: TransportFeedbackListener? = null
+  //reused between feedbacks
+  private var arrivalTimes = LongArray(256)
+  private val feedbackSync = Any()
+
+  fun interface TransportFeedbackListener {
+    /**
+     * @param arrivalTimesUs arrival time in microseconds in the receiver clock of each packet since
+     * baseSequence or -1 if the packet was not received. Only valid during the call
+     */
+    fun onTransportFeedback(baseSequence: Int, arrivalTimesUs: LongArray, count: Int)
+  }
+
+  fun setTransportFeedbackListener(transportFeedbackListener: TransportFeedbackListener?) {
+    this.transportFeedbackListener = transportFeedbackListener
+  }
+
+  fun setSSRC(ssrcVideo: Long, ssrcAudio: Long) {
+    synchronized(sync) {
+      videoSsrc = ssrcVideo and 0xFFFFFFFFL
+      audioSsrc = ssrcAudio and 0xFFFFFFFFL
+    }
+  }
+
+  fun setAudioClock(sampleRate: Int) {
+    audioClock = sampleRate.toLong()
+  }
+
+  /**
+   * Parse a compound RTCP packet. Invalid or unknown packets are ignored.
+   */
+  fun onRtcpPacket(data: ByteArray, offset: Int, length: Int) {
+    var position = offset
+    val end = offset + length
+    while (end - position >= 8) {
+      val version = (data[position].toInt() and 0xFF) shr 6
+      if (version != 2) return
+      val count = data[position].toInt() and 0x1F
+      val type = data[position + 1].toInt() and 0xFF
+      val size = (readInt(data, position + 2, 2).toInt() + 1) * 4
+      if (position + size > end) return
+      when (type) {
+        RR -> readReportBlocks(data, position + 8, count, position + size)
+        SR -> readReportBlocks(data, position + 28, count, position + size)
+        XR -> readExtendedBlocks(data, position + 8, position + size)
+        RTPFB -> when (count) {
+          GENERIC_NACK -> readNack(data, position, position + size)
+          TRANSPORT_CC -> readTransportFeedback(data, position, position + size)
+        }
+      }
+      position += size
+    }
+  }
+
+  /**
+   * Read a message of the rtsp connection when rtp is sent interleaved with TCP. RTCP packets are
+   * parsed and rtsp messages are discarded.
+   *
+   * @return interleaved channel read or -1 if it was a rtsp message
+   */
+  @Throws(IOException::class)
+  fun readInterleaved(input: InputStream): Int {
+    val first = input.read()
+    if (first < 0) throw EOFException("connection closed")
+    if (first == '$'.code) {
+      readFully(input, header, 0, 3)
+      val channel = header[0].toInt() and 0xFF
+      val length = readInt(header, 1, 2).toInt()
+      if (buffer.size < length) buffer = ByteArray(length)
+      readFully(input, buffer, 0, length)
+      //odd channels are rtcp
+      if (channel % 2 == 1) onRtcpPacket(buffer, 0, length)
+      return channel
+    }
+    //rtsp message, read headers until empty line and skip the body
+    var contentLength = 0
+    var line = readLine(input, first)
+    while (line.isNotEmpty()) {
+      if (line.startsWith("Content-Length:", ignoreCase = true)) {
+        contentLength = line.substringAfter(":").trim().toIntOrNull() ?: 0
+      }
+      line = readLine(input, input.read())
+    }
+    var skipped = 0L
+    while (skipped < contentLength) {
+      val result = input.skip(contentLength - skipped)
+      if (result <= 0) break
+      skipped += result
+    }
+    return -1
+  }
+
+  fun getVideoReport(): ReceiverReport? = synchronized(sync) { videoReport }
+
+  fun getAudioReport(): ReceiverReport? = synchronized(sync) { audioReport }
+
+  /**
+   * @return smoothed round trip time in milliseconds, 0 if unknown
+   */
+  fun getRtt(): Long = synchronized(sync) { smoothedRtt.toLong() }
+
+  /**
+   * @return max fraction of packets lost reported in the last report of each track, from 0 to 1
+   */
+  fun getPacketLoss(): Float = synchronized(sync) {
+    maxOf(videoReport?.fractionLost ?: 0f, audioReport?.fractionLost ?: 0f)
+  }
+
+  fun reset() {
+    synchronized(sync) {
+      videoReport = null
+      audioReport = null
+      smoothedRtt = 0.0
+    }
+  }
+
+  private fun readReportBlocks(data: ByteArray, start: Int, count: Int, end: Int) {
+    for (i in 0 until count) {
+      val position = start + i * REPORT_BLOCK_LENGTH
+      if (position + REPORT_BLOCK_LENGTH > end) return
+      val ssrc = readInt(data, position, 4)
+      val fractionLost = (data[position + 4].toInt() and 0xFF) / 256f
+      //24 bits signed
+      val packetsLost = (readInt(data, position + 5, 3).toInt() shl 8 shr 8).toLong()
+      val highestSequence = readInt(data, position + 8, 4)
+      val jitter = readInt(data, position + 12, 4)
+      val lsr = readInt(data, position + 16, 4)
+      val dlsr = readInt(data, position + 20, 4)
+      synchronized(sync) {
+        val isVideo = when (ssrc) {
+          videoSsrc -> true
+          audioSsrc -> false
+          else -> return@synchronized
+        }
+        val rtt = if (lsr != 0L) getRtt(lsr, dlsr) else 0L
+        val report = ReceiverReport(fractionLost, packetsLost, highestSequence, toMillis(jitter, isVideo), rtt)
+        if (isVideo) videoReport = report else audioReport = report
+      }
+    }
+  }
+
+  /**
+   * Each FCI entry has a lost packet id (PID) and a bitmask of the following 16 lost packets (BLP)
+   */
+  private fun readNack(data: ByteArray, start: Int, end: Int) {
+    val listener = nackListener ?: return
+    if (end - start < 16) return
+    val ssrc = readInt(data, start + 8, 4)
+    val isVideo = synchronized(sync) {
+      when (ssrc) {
+        videoSsrc -> true
+        audioSsrc -> false
+        else -> return
+      }
+    }
+    var position = start + 12
+    while (end - position >= 4) {
+      val pid = readInt(data, position, 2).toInt()
+      val blp = readInt(data, position + 2, 2).toInt()
+      listener.onNack(isVideo, pid)
+      for (i in 0 until 16) {
+        if (blp and (1 shl i) != 0) listener.onNack(isVideo, (pid + i + 1) and 0xFFFF)
+      }
+      position += 4
+    }
+  }
+
+  /**
+   * Packet status chunks are run length (same status for N packets) or status vectors (14 packets
+   * of 1 bit or 7 of 2 bits). Received packets have a delta in 250us units of 1 byte (small) or
+   * 2 signed bytes (large) after the chunks.
+   */
+  private fun readTransportFeedback(data: ByteArray, start: Int, end: Int) {
+    val listener = transportFeedbackListener ?: return
+    if (end - start < 20) return
+    //video and audio rtcp are received in different threads
+    synchronized(feedbackSync) { readTransportFeedback(data, start, end, listener) }
+  }
+
+  private fun readTransportFeedback(data: ByteArray, start: Int, end: Int, listener: TransportFeedbackListener) {
+    val baseSequence = readInt(data, start + 12, 2).toInt()
+    val count = readInt(data, start + 14, 2).toInt()
+    //24 bits signed in 64ms units
+    val referenceTime = (readInt(data, start + 16, 3).toInt() shl 8 shr 8) * 64_000L
+    if (arrivalTimes.size < count) arrivalTimes = LongArray(count)
+    val status = arrivalTimes
+    //read the status of each packet, saved temporally in the arrival times array
+    var position = start + 20
+    var packets = 0
+    while (packets < count) {
+      if (end - position < 2) return
+      val chunk = readInt(data, position, 2).toInt()
+      position += 2
+      if (chunk and 0x8000 == 0) {
+        val symbol = (chunk shr 13) and 0x03
+        val length = chunk and 0x1FFF
+        for (i in 0 until length) {
+          if (packets == count) break
+          status[packets++] = symbol.toLong()
+        }
+      } else if (chunk and 0x4000 == 0) {
+        for (i in 13 downTo 0) {
+          if (packets == count) break
+          status[packets++] = ((chunk shr i) and 0x01).toLong()
+        }
+      } else {
+        for (i in 6 downTo 0) {
+          if (packets == count) break
+          status[packets++] = ((chunk shr (i * 2)) and 0x03).toLong()
+        }
+      }
+    }
+    var time = referenceTime
+    for (i in 0 until count) {
+      when (status[i].toInt()) {
+        1 -> {
+          if (end - position < 1) return
+          time += (data[position].toLong() and 0xFF) * 250
+          position += 1
+          arrivalTimes[i] = time
+        }
+        2 -> {
+          if (end - position < 2) return
+          time += (readInt(data, position, 2).toInt() shl 16 shr 16) * 250L
+          position += 2
+          arrivalTimes[i] = time
+        }
+        else -> arrivalTimes[i] = -1
+      }
+    }
+    listener.onTransportFeedback(baseSequence, arrivalTimes, count)
+  }
+
+  private fun readExtendedBlocks(data: ByteArray, start: Int, end: Int) {
+    var position = start
+    while (end - position >= 4) {
+      val blockType = data[position].toInt() and 0xFF
+      val flags = data[position + 1].toInt() and 0xFF
+      val size = (readInt(data, position + 2, 2).toInt() + 1) * 4
+      if (position + size > end) return
+      when (blockType) {
+        XR_STATISTICS_SUMMARY -> if (size >= 40) readStatisticsSummary(data, position, flags)
+        XR_VOIP_METRICS -> if (size >= 36) readVoipMetrics(data, position)
+      }
+      position += size
+    }
+  }
+
+  private fun readStatisticsSummary(data: ByteArray, position: Int, flags: Int) {
+    val ssrc = readInt(data, position + 4, 4)
+    val beginSeq = readInt(data, position + 8, 2)
+    val endSeq = readInt(data, position + 10, 2)
+    val lost = readInt(data, position + 12, 4)
+    val meanJitter = readInt(data, position + 28, 4)
+    val expected = (endSeq - beginSeq) and 0xFFFF
+    val hasLost = flags and 0x80 != 0
+    val hasJitter = flags and 0x20 != 0
+    updateReport(ssrc) { report, isVideo ->
+      report.copy(
+        fractionLost = if (hasLost && expected > 0) (lost.toFloat() / expected).coerceAtMost(1f) else report.fractionLost,
+        jitter = if (hasJitter) toMillis(meanJitter, isVideo) else report.jitter
+      )
+    }
+  }
+
+  private fun readVoipMetrics(data: ByteArray, position: Int) {
+    val ssrc = readInt(data, position + 4, 4)
+    val lossRate = (data[position + 8].toInt() and 0xFF) / 256f
+    val roundTripDelay = readInt(data, position + 16, 2)
+    updateReport(ssrc) { report, _ ->
+      val rtt = if (roundTripDelay > 0) {
+        updateRtt(roundTripDelay.toDouble())
+        roundTripDelay
+      } else report.rtt
+      report.copy(fractionLost = lossRate, rtt = rtt)
+    }
+  }
+
+  private fun updateReport(ssrc: Long, update: (ReceiverReport, Boolean) -> ReceiverReport) {
+    synchronized(sync) {
+      val isVideo = when (ssrc) {
+        videoSsrc -> true
+        audioSsrc -> false
+        else -> return
+      }
+      val report = (if (isVideo) videoReport else audioReport) ?: ReceiverReport(0f, 0, 0, 0, 0)
+      val result = update(report, isVideo)
+      if (isVideo) videoReport = result else audioReport = result
+    }
+  }
+
+  /**
+   * RTT = A - LSR - DLSR where A is the time when the report is received. Values in 1/65536 seconds
+   */
+  private fun getRtt(lsr: Long, dlsr: Long): Long {
+    val now = getNtpMiddle(TimeUtils.getCurrentTimeNano())
+    val rtt = (now - lsr - dlsr) and 0xFFFFFFFFL
+    //negative values are invalid reports or clock errors
+    if (rtt > 0x7FFFFFFFL) return 0
+    val rttMs = (rtt * 1000 + 32768) / 65536
+    updateRtt(rttMs.toDouble())
+    return rttMs
+  }
+
+  private fun updateRtt(rtt: Double) {
+    smoothedRtt = if (smoothedRtt == 0.0) rtt else smoothedRtt + (rtt - smoothedRtt) * RTT_FACTOR
+  }
+
+  private fun toMillis(rtpUnits: Long, isVideo: Boolean): Long {
+    val clock = if (isVideo) RtpConstants.clockVideoFrequency else audioClock
+    return if (clock > 0) rtpUnits * 1000 / clock else 0
+  }
+
+  private fun readInt(data: ByteArray, position: Int, bytes: Int): Long {
+    var value = 0L
+    for (i in 0 until bytes) value = (value shl 8) or (data[position + i].toLong() and 0xFF)
+    return value
+  }
+
+  private fun readFully(input: InputStream, data: ByteArray, offset: Int, length: Int) {
+    var read = 0
+    while (read < length) {
+      val result = input.read(data, offset + read, length - read)
+      if (result < 0) throw EOFException("connection closed")
+      read += result
+    }
+  }
+
+  private fun readLine(input: InputStream, first: Int): String {
+    val builder = StringBuilder()
+    var value = first
+    while (value >= 0 && value != '\n'.code) {
+      if (value != '\r'.code) builder.append(value.toChar())
+      value = input.read()
+    }
+    if (value < 0) throw EOFException("connection closed")
+    return builder.toString()
+  }
+}
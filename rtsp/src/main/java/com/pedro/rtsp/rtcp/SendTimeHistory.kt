@@ -0,0 +1,74 @@
+/*
+ * Copyright (C) 2024 pedroSG94.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.pedro.rtsp.rtcp
+
+/**
+ * Assign transport-wide sequence numbers and save send time and size of each packet to match
+ * transport-cc feedback. Ring indexed by sequence number, around 4 seconds at 20 Mbps.
+ */
+class SendTimeHistory {
+
+  companion object {
+    //power of 2
+    private const val SIZE = 8192
+  }
+
+  private val sequences = IntArray(SIZE) { -1 }
+  private val sendTimes = LongArray(SIZE)
+  private val sizes = IntArray(SIZE)
+  private var sequence = 0
+  private val sync = Any()
+
+  /**
+   * @return transport-wide sequence number of the packet
+   */
+  fun add(sendTimeUs: Long, size: Int): Int {
+    synchronized(sync) {
+      val result = sequence
+      val index = result and (SIZE - 1)
+      sequences[index] = result
+      sendTimes[index] = sendTimeUs
+      sizes[index] = size
+      sequence = (sequence + 1) and 0xFFFF
+      return result
+    }
+  }
+
+  /**
+   * @return send time in microseconds or -1 if the packet is not in the history
+   */
+  fun getSendTime(sequence: Int): Long = synchronized(sync) {
+    val index = sequence and (SIZE - 1)
+    if (sequences[index] == sequence) sendTimes[index] else -1
+  }
+
+  /**
+   * @return size in bytes or 0 if the packet is not in the history
+   */
+  fun getSize(sequence: Int): Int = synchronized(sync) {
+    val index = sequence and (SIZE - 1)
+    if (sequences[index] == sequence) sizes[index] else 0
+  }
+
+  fun reset() {
+    synchronized(sync) {
+      sequences.fill(-1)
+      sequence = 0
+    }
+  }
+}
@@ -43,11 +43,13 @@ class SenderReportTcp : BaseSenderReport() {
 
   @Throws(IOException::class)
   private fun sendReportTCP(buffer: ByteArray, channelIdentifier: Int) {
-    synchronized(RtpConstants.lock) {
+    val outputStream = outputStream ?: return
+    //the stream is shared with RtpSocketTcp of the same connection
+    synchronized(outputStream) {
       tcpHeader[1] = (2 * channelIdentifier + 1).toByte()
-      outputStream?.write(tcpHeader)
-      outputStream?.write(buffer, 0, RtpConstants.REPORT_PACKET_LENGTH)
-      outputStream?.flush()
+      outputStream.write(tcpHeader)
+      outputStream.write(buffer, 0, RtpConstants.REPORT_PACKET_LENGTH)
+      outputStream.flush()
     }
   }
 }
\ No newline at end of file
@@ -34,6 +34,7 @@ class SenderReportUdp(
 ) : BaseSenderReport() {
 
   private val datagramPacket = DatagramPacket(byteArrayOf(0), 1)
+  private val lock = Any()
 
   init {
     if (multicastSocketVideo == null) multicastSocketVideo = MulticastSocket(videoSourcePort)
@@ -52,6 +53,15 @@ class SenderReportUdp(
     sendReportUDP(buffer, rtpFrame.rtcpPort, rtpFrame.isVideoFrame())
   }
 
+  /**
+   * Wait for a rtcp packet sent by the server to the video or audio rtcp port.
+   */
+  @Throws(IOException::class)
+  fun receive(isVideo: Boolean, packet: DatagramPacket) {
+    val socket = if (isVideo) multicastSocketVideo else multicastSocketAudio
+    socket?.receive(packet)
+  }
+
   override fun close() {
     multicastSocketVideo?.close()
     multicastSocketAudio?.close()
@@ -59,7 +69,7 @@ class SenderReportUdp(
 
   @Throws(IOException::class)
   private fun sendReportUDP(buffer: ByteArray, port: Int, isVideo: Boolean) {
-    synchronized(RtpConstants.lock) {
+    synchronized(lock) {
       datagramPacket.data = buffer
       datagramPacket.port = port
       datagramPacket.length = RtpConstants.REPORT_PACKET_LENGTH
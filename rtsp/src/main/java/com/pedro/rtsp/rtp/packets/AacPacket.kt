@@ -47,35 +47,35 @@ class AacPacket(
   ) {
     val fixedBuffer = byteBuffer.removeInfo(bufferInfo)
     val length = fixedBuffer.remaining()
-    val maxPayload = maxPacketSize - (RtpConstants.RTP_HEADER_LENGTH + 4)
+    val maxPayload = maxPacketSize - (rtpHeaderLength + 4)
     val ts = bufferInfo.presentationTimeUs * 1000
     var sum = 0
-    val frames = mutableListOf<RtpFrame>()
+    val arena = obtainArena(length, rtpHeaderLength + 4)
+    val buffer = arena.buffer
     while (sum < length) {
       val size = if (length - sum < maxPayload) length - sum else maxPayload
-      val buffer = getBuffer(size + RtpConstants.RTP_HEADER_LENGTH + 4)
-      fixedBuffer.get(buffer, RtpConstants.RTP_HEADER_LENGTH + 4, size)
-      markPacket(buffer)
-      val rtpTs = updateTimeStamp(buffer, ts)
+      val offset = getBuffer(arena, size + rtpHeaderLength + 4)
+      fixedBuffer.get(buffer, offset + rtpHeaderLength + 4, size)
+      markPacket(buffer, offset)
+      val rtpTs = updateTimeStamp(buffer, ts, offset)
 
       // AU-headers-length field: contains the size in bits of a AU-header
       // 13+3 = 16 bits -> 13bits for AU-size and 3bits for AU-Index / AU-Index-delta
       // 13 bits will be enough because ADTS uses 13 bits for frame length
-      buffer[RtpConstants.RTP_HEADER_LENGTH] = 0.toByte()
-      buffer[RtpConstants.RTP_HEADER_LENGTH + 1] = 0x10.toByte()
+      buffer[offset + rtpHeaderLength] = 0.toByte()
+      buffer[offset + rtpHeaderLength + 1] = 0x10.toByte()
 
       // AU-size
-      buffer[RtpConstants.RTP_HEADER_LENGTH + 2] = (size shr 5).toByte()
-      buffer[RtpConstants.RTP_HEADER_LENGTH + 3] = (size shl 3).toByte()
+      buffer[offset + rtpHeaderLength + 2] = (size shr 5).toByte()
+      buffer[offset + rtpHeaderLength + 3] = (size shl 3).toByte()
 
       // AU-Index
-      buffer[RtpConstants.RTP_HEADER_LENGTH + 3] = buffer[RtpConstants.RTP_HEADER_LENGTH + 3] and 0xF8.toByte()
-      buffer[RtpConstants.RTP_HEADER_LENGTH + 3] = buffer[RtpConstants.RTP_HEADER_LENGTH + 3] or 0x00
-      updateSeq(buffer)
-      val rtpFrame = RtpFrame(buffer, rtpTs, RtpConstants.RTP_HEADER_LENGTH + size + 4, rtpPort, rtcpPort, channelIdentifier)
+      buffer[offset + rtpHeaderLength + 3] = buffer[offset + rtpHeaderLength + 3] and 0xF8.toByte()
+      buffer[offset + rtpHeaderLength + 3] = buffer[offset + rtpHeaderLength + 3] or 0x00
+      updateSeq(buffer, offset)
+      arena.addFrame(offset, rtpHeaderLength + size + 4, rtpTs, rtpPort, rtcpPort, channelIdentifier)
       sum += size
-      frames.add(rtpFrame)
     }
-    callback(frames)
+    sendArena(arena, callback)
   }
 }
\ No newline at end of file
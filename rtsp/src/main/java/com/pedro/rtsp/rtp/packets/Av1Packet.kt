@@ -75,31 +75,31 @@ class Av1Packet: BasePacket(
     fixedBuffer = ByteBuffer.wrap(data)
     val size = fixedBuffer.remaining()
     var sum = 0
-    val frames = mutableListOf<RtpFrame>()
+    val arena = obtainArena(size, rtpHeaderLength + 1)
+    val buffer = arena.buffer
     while (sum < size) {
       val isFirstPacket = sum == 0
       var isLastPacket = false
-      val length = if (size - sum > maxPacketSize - RtpConstants.RTP_HEADER_LENGTH - 1) {
-        maxPacketSize - RtpConstants.RTP_HEADER_LENGTH - 1
+      val length = if (size - sum > maxPacketSize - rtpHeaderLength - 1) {
+        maxPacketSize - rtpHeaderLength - 1
       } else {
         fixedBuffer.remaining()
       }
-      val buffer = getBuffer(length + RtpConstants.RTP_HEADER_LENGTH + 1)
-      val rtpTs = updateTimeStamp(buffer, ts)
-      fixedBuffer.get(buffer, RtpConstants.RTP_HEADER_LENGTH + 1, length)
+      val offset = getBuffer(arena, length + rtpHeaderLength + 1)
+      val rtpTs = updateTimeStamp(buffer, ts, offset)
+      fixedBuffer.get(buffer, offset + rtpHeaderLength + 1, length)
       sum += length
       // Last packet before next NAL
       if (sum >= size) {
         isLastPacket = true
-        markPacket(buffer) //mark end frame
+        markPacket(buffer, offset) //mark end frame
       }
       val oSize = if (isFirstPacket) obuList.size else 1
-      buffer[RtpConstants.RTP_HEADER_LENGTH] = generateAv1AggregationHeader(bufferInfo.isKeyframe(), isFirstPacket, isLastPacket, oSize)
-      updateSeq(buffer)
-      val rtpFrame = RtpFrame(buffer, rtpTs, buffer.size, rtpPort, rtcpPort, channelIdentifier)
-      frames.add(rtpFrame)
+      buffer[offset + rtpHeaderLength] = generateAv1AggregationHeader(bufferInfo.isKeyframe(), isFirstPacket, isLastPacket, oSize)
+      updateSeq(buffer, offset)
+      arena.addFrame(offset, length + rtpHeaderLength + 1, rtpTs, rtpPort, rtcpPort, channelIdentifier)
     }
-    callback(frames)
+    sendArena(arena, callback)
   }
 
   override fun reset() {
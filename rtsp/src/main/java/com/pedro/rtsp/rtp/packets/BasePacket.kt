@@ -34,8 +34,17 @@ abstract class BasePacket(private val clock: Long, private val payloadType: Int)
   protected var rtcpPort = 0
   private var seq = 0L
   private var ssrc = 0L
-  protected val maxPacketSize = RtpConstants.MTU - 28
+  protected var maxPacketSize = RtpConstants.MTU - 28
+    private set
   protected val TAG = "BasePacket"
+  //rtp header and header extension if used
+  protected var rtpHeaderLength = RtpConstants.RTP_HEADER_LENGTH
+    private set
+  private var extensionId = 0
+  //arenas released by all frames ready to be reused
+  private val arenas = ArrayDeque<RtpArena>()
+  private val sync = Any()
+  private val maxArenas = 8
 
   abstract fun createAndSendPacket(
     byteBuffer: ByteBuffer,
@@ -57,34 +66,103 @@ abstract class BasePacket(private val clock: Long, private val payloadType: Int)
     this.ssrc = ssrc
   }
 
-  protected fun getBuffer(size: Int): ByteArray {
-    val buffer = ByteArray(size)
-    buffer[0] = 0x80.toByte()
-    buffer[1] = payloadType.toByte()
-    setLongSSRC(buffer, ssrc)
-    requestBuffer(buffer)
-    return buffer
+  /**
+   * Add RFC 8285 one-byte header extension with a transport-wide sequence number to each packet.
+   * The sequence number is written by the sender before send the packet.
+   *
+   * @param extensionId id of the extension announced in the sdp, from 1 to 14
+   */
+  fun setTransportSequence(enabled: Boolean, extensionId: Int = RtpConstants.transportCcExtensionId) {
+    this.extensionId = extensionId
+    rtpHeaderLength = if (enabled) {
+      RtpConstants.RTP_HEADER_LENGTH + RtpConstants.TRANSPORT_CC_EXTENSION_LENGTH
+    } else RtpConstants.RTP_HEADER_LENGTH
   }
 
-  protected fun updateTimeStamp(buffer: ByteArray, timestamp: Long): Long {
+  /**
+   * Reduce the packet size to leave space for bytes added after packetization like FEC headers.
+   */
+  fun setReservedSize(size: Int) {
+    maxPacketSize = RtpConstants.MTU - 28 - size
+  }
+
+  /**
+   * Get an arena with enough space to write all packets of an access unit.
+   *
+   * @param length payload size of the access unit
+   * @param headerSize bytes added to each packet (rtp header and payload header)
+   * @param extraSize bytes of packets that are not part of the payload like STAP-A
+   */
+  protected fun obtainArena(length: Int, headerSize: Int, extraSize: Int = 0): RtpArena {
+    val packets = length / (maxPacketSize - headerSize) + 1
+    val arena = synchronized(sync) { arenas.removeLastOrNull() } ?: RtpArena { recycleArena(it) }
+    arena.reset(extraSize + length + packets * headerSize)
+    return arena
+  }
+
+  /**
+   * Send all frames of the arena and release the reference of the packetizer.
+   */
+  protected fun sendArena(arena: RtpArena, callback: (List<RtpFrame>) -> Unit) {
+    try {
+      callback(arena.frames)
+    } finally {
+      arena.release()
+    }
+  }
+
+  /**
+   * @return offset of the packet in the arena buffer with the rtp header written
+   */
+  protected fun getBuffer(arena: RtpArena, size: Int): Int {
+    val offset = arena.allocate(size)
+    val buffer = arena.buffer
+    buffer[offset] = 0x80.toByte()
+    buffer[offset + 1] = payloadType.toByte()
+    buffer.setLong(0, offset + 2, offset + 8)
+    setLongSSRC(buffer, offset, ssrc)
+    requestBuffer(buffer, offset)
+    if (rtpHeaderLength > RtpConstants.RTP_HEADER_LENGTH) {
+      //X bit, profile 0xBEDE, 1 word of extension, id and L = 1 (2 bytes). Last byte is padding
+      buffer[offset] = 0x90.toByte()
+      val extension = offset + RtpConstants.RTP_HEADER_LENGTH
+      buffer[extension] = 0xBE.toByte()
+      buffer[extension + 1] = 0xDE.toByte()
+      buffer[extension + 2] = 0
+      buffer[extension + 3] = 1
+      buffer[extension + 4] = ((extensionId shl 4) or 1).toByte()
+      buffer[extension + 5] = 0
+      buffer[extension + 6] = 0
+      buffer[extension + 7] = 0
+    }
+    return offset
+  }
+
+  protected fun updateTimeStamp(buffer: ByteArray, timestamp: Long, offset: Int = 0): Long {
     val ts = timestamp * clock / 1000000000L
-    buffer.setLong(ts, 4, 8)
+    buffer.setLong(ts, offset + 4, offset + 8)
     return ts
   }
 
-  protected fun updateSeq(buffer: ByteArray) {
-    buffer.setLong(++seq, 2, 4)
+  protected fun updateSeq(buffer: ByteArray, offset: Int = 0) {
+    buffer.setLong(++seq, offset + 2, offset + 4)
+  }
+
+  protected fun markPacket(buffer: ByteArray, offset: Int = 0) {
+    buffer[offset + 1] = buffer[offset + 1] or 0x80.toByte()
   }
 
-  protected fun markPacket(buffer: ByteArray) {
-    buffer[1] = buffer[1] or 0x80.toByte()
+  private fun setLongSSRC(buffer: ByteArray, offset: Int, ssrc: Long) {
+    buffer.setLong(ssrc, offset + 8, offset + 12)
   }
 
-  private fun setLongSSRC(buffer: ByteArray, ssrc: Long) {
-    buffer.setLong(ssrc, 8, 12)
+  private fun requestBuffer(buffer: ByteArray, offset: Int) {
+    buffer[offset + 1] = buffer[offset + 1] and 0x7F
   }
 
-  private fun requestBuffer(buffer: ByteArray) {
-    buffer[1] = buffer[1] and 0x7F
+  private fun recycleArena(arena: RtpArena) {
+    synchronized(sync) {
+      if (arenas.size < maxArenas) arenas.addLast(arena)
+    }
   }
 }
\ No newline at end of file
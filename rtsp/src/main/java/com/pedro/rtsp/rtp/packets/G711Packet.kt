@@ -43,21 +43,21 @@ class G711Packet(
     callback: (List<RtpFrame>) -> Unit
   ) {
     val length = bufferInfo.size - byteBuffer.position()
-    val maxPayload = maxPacketSize - RtpConstants.RTP_HEADER_LENGTH
+    val maxPayload = maxPacketSize - rtpHeaderLength
     val ts = bufferInfo.presentationTimeUs * 1000
     var sum = 0
-    val frames = mutableListOf<RtpFrame>()
+    val arena = obtainArena(length, rtpHeaderLength)
+    val buffer = arena.buffer
     while (sum < length) {
       val size = if (length - sum < maxPayload) length - sum else maxPayload
-      val buffer = getBuffer(size + RtpConstants.RTP_HEADER_LENGTH)
-      byteBuffer.get(buffer, RtpConstants.RTP_HEADER_LENGTH, size)
-      markPacket(buffer)
-      val rtpTs = updateTimeStamp(buffer, ts)
-      updateSeq(buffer)
-      val rtpFrame = RtpFrame(buffer, rtpTs, RtpConstants.RTP_HEADER_LENGTH + size , rtpPort, rtcpPort, channelIdentifier)
+      val offset = getBuffer(arena, size + rtpHeaderLength)
+      byteBuffer.get(buffer, offset + rtpHeaderLength, size)
+      markPacket(buffer, offset)
+      val rtpTs = updateTimeStamp(buffer, ts, offset)
+      updateSeq(buffer, offset)
+      arena.addFrame(offset, rtpHeaderLength + size, rtpTs, rtpPort, rtcpPort, channelIdentifier)
       sum += size
-      frames.add(rtpFrame)
     }
-    callback(frames)
+    sendArena(arena, callback)
   }
 }
\ No newline at end of file
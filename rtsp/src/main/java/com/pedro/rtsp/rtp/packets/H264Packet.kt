@@ -40,8 +40,9 @@ class H264Packet(
 
   private var stapA: ByteArray? = null
   private var sendKeyFrame = false
-  private var sps: ByteArray? = null
-  private var pps: ByteArray? = null
+  //positions of the NAL units of the access unit
+  private var nalStarts = IntArray(16)
+  private var nalEnds = IntArray(16)
 
   init {
     channelIdentifier = RtpConstants.trackVideo
@@ -54,83 +55,214 @@ class H264Packet(
     callback: (List<RtpFrame>) -> Unit
   ) {
     val fixedBuffer = byteBuffer.removeInfo(bufferInfo)
-    // We read a NAL units from ByteBuffer and we send them
-    // NAL units are preceded with 0x00000001
-    val header = ByteArray(getHeaderSize(fixedBuffer) + 1)
-    if (header.size == 1) return //invalid buffer or waiting for sps/pps
-    fixedBuffer.rewind()
-    fixedBuffer.get(header, 0, header.size)
+    // We read NAL units from ByteBuffer and we send them
+    // NAL units are preceded with 0x00000001 or 0x000001
+    if (fixedBuffer.remaining() < 4 || fixedBuffer.getVideoStartCodeSize() == 0) return //invalid buffer
+    var nalCount = splitNalUnits(fixedBuffer)
+    if (nalCount == 0) return
     val ts = bufferInfo.presentationTimeUs * 1000L
-    val naluLength = fixedBuffer.remaining()
-    val type: Int = (header[header.size - 1] and 0x1F).toInt()
-    val frames = mutableListOf<RtpFrame>()
-    if (type == RtpConstants.IDR || bufferInfo.isKeyframe()) {
+    var isKeyFrame = bufferInfo.isKeyframe()
+    for (i in 0 until nalCount) {
+      if (getType(fixedBuffer, i) == RtpConstants.IDR) isKeyFrame = true
+    }
+    val stapA = if (isKeyFrame) stapA else null
+    //sps and pps in the buffer are already sent in the STAP-A
+    if (stapA != null) nalCount = removeParameterSets(fixedBuffer, nalCount)
+    var length = 0
+    for (i in 0 until nalCount) length += nalEnds[i] - nalStarts[i]
+    val stapASize = stapA?.let { it.size + rtpHeaderLength } ?: 0
+    //each NAL could add a packet with rtp header and STAP-A or FU-A header
+    val arena = obtainArena(length, rtpHeaderLength + 2, stapASize + nalCount * (rtpHeaderLength + 3))
+    val buffer = arena.buffer
+    if (isKeyFrame) {
       stapA?.let {
-        val buffer = getBuffer(it.size + RtpConstants.RTP_HEADER_LENGTH)
-        val rtpTs = updateTimeStamp(buffer, ts)
-        markPacket(buffer) //mark end frame
-        System.arraycopy(it, 0, buffer, RtpConstants.RTP_HEADER_LENGTH, it.size)
-        updateSeq(buffer)
-        val rtpFrame = RtpFrame(buffer, rtpTs, it.size + RtpConstants.RTP_HEADER_LENGTH, rtpPort, rtcpPort, channelIdentifier)
-        frames.add(rtpFrame)
+        val offset = getBuffer(arena, stapASize)
+        val rtpTs = updateTimeStamp(buffer, ts, offset)
+        if (nalCount == 0) markPacket(buffer, offset) //mark end frame
+        System.arraycopy(it, 0, buffer, offset + rtpHeaderLength, it.size)
+        updateSeq(buffer, offset)
+        arena.addFrame(offset, stapASize, rtpTs, rtpPort, rtcpPort, channelIdentifier)
         sendKeyFrame = true
       } ?: run {
         Log.i(TAG, "can't create key frame because setSpsPps was not called")
       }
     }
     if (sendKeyFrame) {
-      // Small NAL unit => Single NAL unit
-      if (naluLength <= maxPacketSize - RtpConstants.RTP_HEADER_LENGTH - 1) {
-        val buffer = getBuffer(naluLength + RtpConstants.RTP_HEADER_LENGTH + 1)
-        buffer[RtpConstants.RTP_HEADER_LENGTH] = header[header.size - 1]
-        fixedBuffer.get(buffer, RtpConstants.RTP_HEADER_LENGTH + 1, naluLength)
-        val rtpTs = updateTimeStamp(buffer, ts)
-        markPacket(buffer) //mark end frame
-        updateSeq(buffer)
-        val rtpFrame = RtpFrame(buffer, rtpTs, buffer.size, rtpPort, rtcpPort, channelIdentifier)
-        frames.add(rtpFrame)
-      } else {
-        // Set FU-A header
-        header[1] = header[header.size - 1] and 0x1F // FU header type
-        header[1] = header[1].plus(0x80).toByte()  // set start bit to 1
-        // Set FU-A indicator
-        header[0] = header[header.size - 1] and 0x60 and 0xFF.toByte() // FU indicator NRI
-        header[0] = header[0].plus(28).toByte()
-        var sum = 0
-        while (sum < naluLength) {
-          val length = if (naluLength - sum > maxPacketSize - RtpConstants.RTP_HEADER_LENGTH - 2) {
-            maxPacketSize - RtpConstants.RTP_HEADER_LENGTH - 2
-          } else {
-            fixedBuffer.remaining()
-          }
-          val buffer = getBuffer(length + RtpConstants.RTP_HEADER_LENGTH + 2)
-          buffer[RtpConstants.RTP_HEADER_LENGTH] = header[0]
-          buffer[RtpConstants.RTP_HEADER_LENGTH + 1] = header[1]
-          val rtpTs = updateTimeStamp(buffer, ts)
-          fixedBuffer.get(buffer, RtpConstants.RTP_HEADER_LENGTH + 2, length)
-          sum += length
-          // Last packet before next NAL
-          if (sum >= naluLength) {
-            // End bit on
-            buffer[RtpConstants.RTP_HEADER_LENGTH + 1] = buffer[RtpConstants.RTP_HEADER_LENGTH + 1].plus(0x40).toByte()
-            markPacket(buffer) //mark end frame
-          }
-          updateSeq(buffer)
-          val rtpFrame = RtpFrame(buffer, rtpTs, buffer.size, rtpPort, rtcpPort, channelIdentifier)
-          frames.add(rtpFrame)
-          // Switch start bit
-          header[1] = header[1] and 0x7F
+      val maxPayloadSize = maxPacketSize - rtpHeaderLength
+      var i = 0
+      while (i < nalCount) {
+        val size = nalEnds[i] - nalStarts[i]
+        if (size > maxPayloadSize) {
+          writeFuA(arena, fixedBuffer, i, ts, i == nalCount - 1)
+          i++
+          continue
+        }
+        // Small NAL units are aggregated in the same packet
+        var end = i + 1
+        var stapSize = 1 + 2 + size
+        while (end < nalCount && stapSize + 2 + nalEnds[end] - nalStarts[end] <= maxPayloadSize) {
+          stapSize += 2 + nalEnds[end] - nalStarts[end]
+          end++
+        }
+        if (end - i == 1) {
+          writeSingle(arena, fixedBuffer, i, ts, i == nalCount - 1)
+        } else {
+          writeStapA(arena, fixedBuffer, i, end, stapSize, ts, end == nalCount)
         }
+        i = end
       }
     } else {
       Log.i(TAG, "waiting for keyframe")
     }
-    callback(frames)
+    sendArena(arena, callback)
+  }
+
+  /**
+   * Single NAL unit packet
+   */
+  private fun writeSingle(arena: RtpArena, fixedBuffer: ByteBuffer, nal: Int, ts: Long, last: Boolean) {
+    val buffer = arena.buffer
+    val naluLength = nalEnds[nal] - nalStarts[nal]
+    val size = naluLength + rtpHeaderLength
+    val offset = getBuffer(arena, size)
+    fixedBuffer.position(nalStarts[nal])
+    fixedBuffer.get(buffer, offset + rtpHeaderLength, naluLength)
+    val rtpTs = updateTimeStamp(buffer, ts, offset)
+    if (last) markPacket(buffer, offset) //mark end frame
+    updateSeq(buffer, offset)
+    arena.addFrame(offset, size, rtpTs, rtpPort, rtcpPort, channelIdentifier)
+  }
+
+  /**
+   * STAP-A packet with NAL units from first to end (not included)
+   */
+  private fun writeStapA(arena: RtpArena, fixedBuffer: ByteBuffer, first: Int, end: Int, stapSize: Int, ts: Long, last: Boolean) {
+    val buffer = arena.buffer
+    val size = stapSize + rtpHeaderLength
+    val offset = getBuffer(arena, size)
+    // STAP-A NAL header is 24 with the highest F and NRI of the aggregated NAL units
+    var forbidden = 0
+    var nri = 0
+    var position = offset + rtpHeaderLength + 1
+    for (i in first until end) {
+      val naluLength = nalEnds[i] - nalStarts[i]
+      val nalHeader = fixedBuffer.get(nalStarts[i]).toInt()
+      forbidden = forbidden or (nalHeader and 0x80)
+      nri = maxOf(nri, nalHeader and 0x60)
+      buffer[position] = (naluLength shr 8).toByte()
+      buffer[position + 1] = (naluLength and 0xFF).toByte()
+      fixedBuffer.position(nalStarts[i])
+      fixedBuffer.get(buffer, position + 2, naluLength)
+      position += 2 + naluLength
+    }
+    buffer[offset + rtpHeaderLength] = (forbidden or nri or 24).toByte()
+    val rtpTs = updateTimeStamp(buffer, ts, offset)
+    if (last) markPacket(buffer, offset) //mark end frame
+    updateSeq(buffer, offset)
+    arena.addFrame(offset, size, rtpTs, rtpPort, rtcpPort, channelIdentifier)
+  }
+
+  /**
+   * FU-A packets of a NAL unit bigger than the max packet size
+   */
+  private fun writeFuA(arena: RtpArena, fixedBuffer: ByteBuffer, nal: Int, ts: Long, last: Boolean) {
+    val buffer = arena.buffer
+    val nalHeader = fixedBuffer.get(nalStarts[nal])
+    fixedBuffer.position(nalStarts[nal] + 1)
+    val naluLength = nalEnds[nal] - nalStarts[nal] - 1
+    // Set FU-A header
+    var fuHeader = nalHeader and 0x1F // FU header type
+    fuHeader = fuHeader.plus(0x80).toByte()  // set start bit to 1
+    // Set FU-A indicator
+    var fuIndicator = nalHeader and 0x60 and 0xFF.toByte() // FU indicator NRI
+    fuIndicator = fuIndicator.plus(28).toByte()
+    var sum = 0
+    while (sum < naluLength) {
+      val length = minOf(naluLength - sum, maxPacketSize - rtpHeaderLength - 2)
+      val size = length + rtpHeaderLength + 2
+      val offset = getBuffer(arena, size)
+      buffer[offset + rtpHeaderLength] = fuIndicator
+      buffer[offset + rtpHeaderLength + 1] = fuHeader
+      val rtpTs = updateTimeStamp(buffer, ts, offset)
+      fixedBuffer.get(buffer, offset + rtpHeaderLength + 2, length)
+      sum += length
+      // Last packet before next NAL
+      if (sum >= naluLength) {
+        // End bit on
+        buffer[offset + rtpHeaderLength + 1] = buffer[offset + rtpHeaderLength + 1].plus(0x40).toByte()
+        if (last) markPacket(buffer, offset) //mark end frame
+      }
+      updateSeq(buffer, offset)
+      arena.addFrame(offset, size, rtpTs, rtpPort, rtcpPort, channelIdentifier)
+      // Switch start bit
+      fuHeader = fuHeader and 0x7F
+    }
+  }
+
+  /**
+   * Find the NAL units of the access unit. Positions are saved in nalStarts and nalEnds without
+   * start codes to avoid allocations.
+   *
+   * @return number of NAL units found
+   */
+  private fun splitNalUnits(byteBuffer: ByteBuffer): Int {
+    val limit = byteBuffer.limit()
+    var count = 0
+    var start = findStartCode(byteBuffer, 0, limit)
+    while (start < limit) {
+      val nalStart = start + 3
+      val next = findStartCode(byteBuffer, nalStart, limit)
+      var nalEnd = next
+      //zeros before a start code are part of a 4 bytes start code or trailing zeros
+      if (next < limit) while (nalEnd > nalStart && byteBuffer.get(nalEnd - 1).toInt() == 0) nalEnd--
+      if (nalEnd > nalStart) {
+        if (count == nalStarts.size) {
+          nalStarts = nalStarts.copyOf(count * 2)
+          nalEnds = nalEnds.copyOf(count * 2)
+        }
+        nalStarts[count] = nalStart
+        nalEnds[count] = nalEnd
+        count++
+      }
+      start = next
+    }
+    return count
+  }
+
+  /**
+   * @return position of the next 0x000001 or limit if not found
+   */
+  private fun findStartCode(byteBuffer: ByteBuffer, from: Int, limit: Int): Int {
+    var i = from + 2
+    while (i < limit) {
+      val value = byteBuffer.get(i).toInt() and 0xFF
+      if (value > 1) {
+        //a start code can't finish in the next 2 bytes
+        i += 3
+      } else if (value == 1 && byteBuffer.get(i - 1).toInt() == 0 && byteBuffer.get(i - 2).toInt() == 0) {
+        return i - 2
+      } else {
+        i++
+      }
+    }
+    return limit
+  }
+
+  private fun removeParameterSets(byteBuffer: ByteBuffer, nalCount: Int): Int {
+    var count = 0
+    for (i in 0 until nalCount) {
+      val type = getType(byteBuffer, i)
+      if (type == RtpConstants.SPS || type == RtpConstants.PPS) continue
+      nalStarts[count] = nalStarts[i]
+      nalEnds[count] = nalEnds[i]
+      count++
+    }
+    return count
   }
 
+  private fun getType(byteBuffer: ByteBuffer, nal: Int): Int = byteBuffer.get(nalStarts[nal]).toInt() and 0x1F
+
   private fun setSpsPps(sps: ByteArray, pps: ByteArray) {
-    this.sps = sps
-    this.pps = pps
     stapA = ByteArray(sps.size + pps.size + 5)
     stapA?.let {
       // STAP-A NAL header is 24
@@ -150,30 +282,6 @@ class H264Packet(
     }
   }
 
-  private fun getHeaderSize(byteBuffer: ByteBuffer): Int {
-    if (byteBuffer.remaining() < 4) return 0
-
-    val sps = this.sps
-    val pps = this.pps
-    if (sps != null && pps != null) {
-      val startCodeSize = byteBuffer.getVideoStartCodeSize()
-      if (startCodeSize == 0) return 0
-      val startCode = ByteArray(startCodeSize) { 0x00 }
-      startCode[startCodeSize - 1] = 0x01
-      val avcHeader = startCode.plus(sps).plus(startCode).plus(pps).plus(startCode)
-      if (byteBuffer.remaining() < avcHeader.size) return startCodeSize
-
-      val possibleAvcHeader = ByteArray(avcHeader.size)
-      byteBuffer.get(possibleAvcHeader, 0, possibleAvcHeader.size)
-      return if (avcHeader.contentEquals(possibleAvcHeader)) {
-        avcHeader.size
-      } else {
-        startCodeSize
-      }
-    }
-    return 0
-  }
-
   override fun reset() {
     super.reset()
     sendKeyFrame = false
@@ -46,65 +46,66 @@ class H265Packet: BasePacket(
     val fixedBuffer = byteBuffer.removeInfo(bufferInfo)
     // We read a NAL units from ByteBuffer and we send them
     // NAL units are preceded with 0x00000001
-    val header = ByteArray(fixedBuffer.getVideoStartCodeSize() + 2)
-    if (header.size == 2) return //invalid buffer or waiting for sps/pps/vps
-    fixedBuffer.get(header, 0, header.size)
+    val startCodeSize = fixedBuffer.getVideoStartCodeSize()
+    if (startCodeSize == 0) return //invalid buffer or waiting for sps/pps/vps
+    fixedBuffer.position(startCodeSize)
+    val nalHeader0 = fixedBuffer.get()
+    val nalHeader1 = fixedBuffer.get()
     val ts = bufferInfo.presentationTimeUs * 1000L
     val naluLength = fixedBuffer.remaining()
-    val type: Int = header[header.size - 2].toInt().shr(1 and 0x3f)
-    val frames = mutableListOf<RtpFrame>()
+    val type: Int = nalHeader0.toInt().shr(1 and 0x3f)
+    val arena = obtainArena(naluLength, rtpHeaderLength + 3)
+    val buffer = arena.buffer
     // Small NAL unit => Single NAL unit
-    if (naluLength <= maxPacketSize - RtpConstants.RTP_HEADER_LENGTH - 2) {
-      val buffer = getBuffer(naluLength + RtpConstants.RTP_HEADER_LENGTH + 2)
+    if (naluLength <= maxPacketSize - rtpHeaderLength - 2) {
+      val offset = getBuffer(arena, naluLength + rtpHeaderLength + 2)
       //Set PayloadHdr (exact copy of nal unit header)
-      buffer[RtpConstants.RTP_HEADER_LENGTH] = header[header.size - 2]
-      buffer[RtpConstants.RTP_HEADER_LENGTH + 1] = header[header.size - 1]
-      fixedBuffer.get(buffer, RtpConstants.RTP_HEADER_LENGTH + 2, naluLength)
-      val rtpTs = updateTimeStamp(buffer, ts)
-      markPacket(buffer) //mark end frame
-      updateSeq(buffer)
-      val rtpFrame = RtpFrame(buffer, rtpTs, buffer.size, rtpPort, rtcpPort, channelIdentifier)
-      frames.add(rtpFrame)
+      buffer[offset + rtpHeaderLength] = nalHeader0
+      buffer[offset + rtpHeaderLength + 1] = nalHeader1
+      fixedBuffer.get(buffer, offset + rtpHeaderLength + 2, naluLength)
+      val rtpTs = updateTimeStamp(buffer, ts, offset)
+      markPacket(buffer, offset) //mark end frame
+      updateSeq(buffer, offset)
+      arena.addFrame(offset, naluLength + rtpHeaderLength + 2, rtpTs, rtpPort, rtcpPort, channelIdentifier)
     } else {
       //Set PayloadHdr (16bit type=49)
-      header[0] = (49 shl 1).toByte()
-      header[1] = 1
+      val payloadHeader0 = (49 shl 1).toByte()
+      val payloadHeader1: Byte = 1
       // Set FU header
       //   +---------------+
       //   |0|1|2|3|4|5|6|7|
       //   +-+-+-+-+-+-+-+-+
       //   |S|E|  FuType   |
       //   +---------------+
-      header[2] = type.toByte() // FU header type
-      header[2] = header[2].plus(0x80).toByte() // Start bit
+      var fuHeader = type.toByte() // FU header type
+      fuHeader = fuHeader.plus(0x80).toByte() // Start bit
       var sum = 0
       while (sum < naluLength) {
-        val length = if (naluLength - sum > maxPacketSize - RtpConstants.RTP_HEADER_LENGTH - 3) {
-          maxPacketSize - RtpConstants.RTP_HEADER_LENGTH - 3
+        val length = if (naluLength - sum > maxPacketSize - rtpHeaderLength - 3) {
+          maxPacketSize - rtpHeaderLength - 3
         } else {
           fixedBuffer.remaining()
         }
-        val buffer = getBuffer(length + RtpConstants.RTP_HEADER_LENGTH + 3)
-        buffer[RtpConstants.RTP_HEADER_LENGTH] = header[0]
-        buffer[RtpConstants.RTP_HEADER_LENGTH + 1] = header[1]
-        buffer[RtpConstants.RTP_HEADER_LENGTH + 2] = header[2]
-        val rtpTs = updateTimeStamp(buffer, ts)
-        fixedBuffer.get(buffer, RtpConstants.RTP_HEADER_LENGTH + 3, length)
+        val offset = getBuffer(arena, length + rtpHeaderLength + 3)
+        buffer[offset + rtpHeaderLength] = payloadHeader0
+        buffer[offset + rtpHeaderLength + 1] = payloadHeader1
+        buffer[offset + rtpHeaderLength + 2] = fuHeader
+        val rtpTs = updateTimeStamp(buffer, ts, offset)
+        fixedBuffer.get(buffer, offset + rtpHeaderLength + 3, length)
         sum += length
         // Last packet before next NAL
         if (sum >= naluLength) {
           // End bit on
-          buffer[RtpConstants.RTP_HEADER_LENGTH + 2] = buffer[RtpConstants.RTP_HEADER_LENGTH + 2].plus(0x40).toByte()
-          markPacket(buffer) //mark end frame
+          buffer[offset + rtpHeaderLength + 2] = buffer[offset + rtpHeaderLength + 2].plus(0x40).toByte()
+          markPacket(buffer, offset) //mark end frame
         }
-        updateSeq(buffer)
-        val rtpFrame = RtpFrame(buffer, rtpTs, buffer.size, rtpPort, rtcpPort, channelIdentifier)
-        frames.add(rtpFrame)
+        updateSeq(buffer, offset)
+        arena.addFrame(offset, length + rtpHeaderLength + 3, rtpTs, rtpPort, rtcpPort, channelIdentifier)
         // Switch start bit
-        header[2] = header[2] and 0x7F
+        fuHeader = fuHeader and 0x7F
       }
     }
-    callback(frames)
+    sendArena(arena, callback)
   }
 
   override fun reset() {
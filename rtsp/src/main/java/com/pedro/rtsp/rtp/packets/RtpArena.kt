@@ -0,0 +1,79 @@
+/*
+ * Copyright (C) 2024 pedroSG94.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.pedro.rtsp.rtp.packets
+
+import com.pedro.rtsp.rtsp.RtpFrame
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * Contiguous buffer where all rtp packets of an access unit are written.
+ * RtpFrames created by the arena are views of the buffer and the arena is recycled when all of them
+ * are released.
+ */
+class RtpArena(private val recycler: ((RtpArena) -> Unit)? = null) {
+
+  companion object {
+    private const val MIN_SIZE = 2048
+  }
+
+  var buffer = ByteArray(0)
+    private set
+  val frames = ArrayList<RtpFrame>()
+  private var position = 0
+  private val refCount = AtomicInteger(0)
+
+  /**
+   * Prepare the arena to write a new access unit. The arena start with a reference that must be
+   * released after send the frames.
+   */
+  fun reset(capacity: Int) {
+    if (buffer.size < capacity) {
+      var size = MIN_SIZE
+      while (size < capacity) size = size shl 1
+      buffer = ByteArray(size)
+    }
+    position = 0
+    frames.clear()
+    refCount.set(1)
+  }
+
+  /**
+   * @return offset in the buffer of the allocated bytes
+   */
+  fun allocate(size: Int): Int {
+    if (position + size > buffer.size) throw IndexOutOfBoundsException("arena capacity exceeded, ${position + size} > ${buffer.size}")
+    val offset = position
+    position += size
+    return offset
+  }
+
+  fun addFrame(offset: Int, length: Int, timeStamp: Long, rtpPort: Int, rtcpPort: Int, channelIdentifier: Int) {
+    retain()
+    frames.add(RtpFrame(buffer, timeStamp, length, rtpPort, rtcpPort, channelIdentifier, offset, this))
+  }
+
+  fun getSize(): Int = position
+
+  fun retain() {
+    refCount.incrementAndGet()
+  }
+
+  fun release() {
+    if (refCount.decrementAndGet() == 0) recycler?.invoke(this)
+  }
+}
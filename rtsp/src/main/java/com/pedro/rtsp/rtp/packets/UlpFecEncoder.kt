@@ -0,0 +1,230 @@
+/*
+ * Copyright (C) 2024 pedroSG94.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.pedro.rtsp.rtp.packets
+
+import com.pedro.rtsp.rtsp.RtpFrame
+import com.pedro.rtsp.utils.RtpConstants
+import com.pedro.rtsp.utils.setLong
+import kotlin.experimental.xor
+
+/**
+ * RFC 5109 ULPFEC generator for video packets already packetized. Packets of each access unit are
+ * protected in blocks of rowSize x depth packets: a FEC packet per row (consecutive packets) and,
+ * if depth > 1, a FEC packet per column (packets at rowSize distance) so burst losses of a row
+ * can be recovered. Keyframes use their own level. Blocks never cross an access unit so the FEC
+ * packets can be sent with the frame.
+ *
+ * FEC packets are sent as other RTP stream in the video port using own SSRC, sequence number and
+ * payload type. XOR is done in buffers allocated once and FEC packets are written in recycled arenas.
+ * The transport-wide sequence number is excluded from the protection because it is written after
+ * protect the packets, so recovered packets have a meaningless transport sequence.
+ */
+class UlpFecEncoder(private val payloadType: Int) {
+
+  companion object {
+    //FEC header and level 0 header with 48 bits mask
+    const val FEC_HEADER_LENGTH = 10 + 8
+    const val MAX_BLOCK_SIZE = 48
+
+    private fun readInt(buffer: ByteArray, offset: Int): Long {
+      return ((buffer[offset].toLong() and 0xFF) shl 24) or ((buffer[offset + 1].toLong() and 0xFF) shl 16) or
+          ((buffer[offset + 2].toLong() and 0xFF) shl 8) or (buffer[offset + 3].toLong() and 0xFF)
+    }
+  }
+
+  private class Accumulator {
+    val payload = ByteArray(RtpConstants.MTU)
+    var header0 = 0
+    var header1 = 0
+    var timeStamp = 0L
+    var length = 0
+    var protectionLength = 0
+    var mask = 0L
+    var count = 0
+
+    fun add(rtpFrame: RtpFrame, bit: Int) {
+      val buffer = rtpFrame.buffer
+      val offset = rtpFrame.offset
+      val payloadLength = rtpFrame.length - RtpConstants.RTP_HEADER_LENGTH
+      header0 = header0 xor (buffer[offset].toInt() and 0xFF)
+      header1 = header1 xor (buffer[offset + 1].toInt() and 0xFF)
+      timeStamp = timeStamp xor readInt(buffer, offset + 4)
+      length = length xor payloadLength
+      val start = offset + RtpConstants.RTP_HEADER_LENGTH
+      for (i in 0 until payloadLength) payload[i] = payload[i] xor buffer[start + i]
+      if (buffer[offset].toInt() and 0x10 != 0) {
+        //transport sequence is written when the packet is sent, protect it as 0 like other mutable extensions
+        val sequence = RtpConstants.TRANSPORT_CC_SEQUENCE_OFFSET - RtpConstants.RTP_HEADER_LENGTH
+        payload[sequence] = payload[sequence] xor buffer[start + sequence]
+        payload[sequence + 1] = payload[sequence + 1] xor buffer[start + sequence + 1]
+      }
+      if (payloadLength > protectionLength) protectionLength = payloadLength
+      mask = mask or (1L shl (MAX_BLOCK_SIZE - 1 - bit))
+      count++
+    }
+
+    fun reset() {
+      payload.fill(0, 0, protectionLength)
+      header0 = 0
+      header1 = 0
+      timeStamp = 0
+      length = 0
+      protectionLength = 0
+      mask = 0
+      count = 0
+    }
+  }
+
+  private var rowSize = 10
+  private var depth = 1
+  private var keyframeRowSize = 5
+  private var keyframeDepth = 4
+  private var rtpPort = 0
+  private var rtcpPort = 0
+  private var seq = 0L
+  private var ssrc = 0L
+  private val row = Accumulator()
+  private val columns = Array(MAX_BLOCK_SIZE) { Accumulator() }
+  private val arenas = ArrayDeque<RtpArena>()
+  private val sync = Any()
+  private val maxArenas = 8
+
+  /**
+   * @param rowSize packets protected by each row FEC packet, from 2 to 48
+   * @param depth rows of a block. 1 to only send row FEC packets
+   */
+  @Throws(IllegalArgumentException::class)
+  fun setLevel(rowSize: Int, depth: Int, keyframeRowSize: Int, keyframeDepth: Int) {
+    checkLevel(rowSize, depth)
+    checkLevel(keyframeRowSize, keyframeDepth)
+    this.rowSize = rowSize
+    this.depth = depth
+    this.keyframeRowSize = keyframeRowSize
+    this.keyframeDepth = keyframeDepth
+  }
+
+  fun setPorts(rtpPort: Int, rtcpPort: Int) {
+    this.rtpPort = rtpPort
+    this.rtcpPort = rtcpPort
+  }
+
+  fun setSSRC(ssrc: Long) {
+    this.ssrc = ssrc
+  }
+
+  fun reset() {
+    seq = 0
+    ssrc = 0
+  }
+
+  fun isFecPacket(rtpFrame: RtpFrame): Boolean {
+    return (rtpFrame.buffer[rtpFrame.offset + 1].toInt() and 0x7F) == payloadType
+  }
+
+  /**
+   * Create FEC packets of all packets of an access unit. The callback is always called, with an
+   * empty list if there is nothing to protect.
+   */
+  fun protect(rtpFrames: List<RtpFrame>, isKeyFrame: Boolean, callback: (List<RtpFrame>) -> Unit) {
+    val size = rtpFrames.size
+    val rowSize = if (isKeyFrame) keyframeRowSize else rowSize
+    val depth = if (isKeyFrame) keyframeDepth else depth
+    var maxLength = 0
+    for (i in 0 until size) maxLength = maxOf(maxLength, rtpFrames[i].length - RtpConstants.RTP_HEADER_LENGTH)
+    val blockSize = rowSize * depth
+    val rows = (size + rowSize - 1) / rowSize
+    val columns = if (depth > 1) (size + blockSize - 1) / blockSize * rowSize else 0
+    val arena = synchronized(sync) { arenas.removeLastOrNull() } ?: RtpArena { recycleArena(it) }
+    arena.reset((rows + columns) * (RtpConstants.RTP_HEADER_LENGTH + FEC_HEADER_LENGTH + maxLength))
+    val timeStamp = if (size > 0) rtpFrames[size - 1].timeStamp else 0
+    var index = 0
+    while (index < size) {
+      val packets = minOf(blockSize, size - index)
+      val baseSeq = getSequence(rtpFrames[index])
+      for (i in 0 until packets) {
+        val rtpFrame = rtpFrames[index + i]
+        val bit = (getSequence(rtpFrame) - baseSeq) and 0xFFFF
+        if (bit < MAX_BLOCK_SIZE) {
+          row.add(rtpFrame, bit)
+          if (depth > 1) this.columns[i % rowSize].add(rtpFrame, bit)
+        }
+        if ((i + 1) % rowSize == 0 || i == packets - 1) {
+          writeFec(arena, row, baseSeq, timeStamp)
+          row.reset()
+        }
+      }
+      if (depth > 1) {
+        for (c in 0 until minOf(rowSize, packets)) {
+          val column = this.columns[c]
+          //a column of 1 packet is the same that the row packet
+          if (column.count > 1) writeFec(arena, column, baseSeq, timeStamp)
+          column.reset()
+        }
+      }
+      index += packets
+    }
+    try {
+      callback(arena.frames)
+    } finally {
+      arena.release()
+    }
+  }
+
+  private fun writeFec(arena: RtpArena, accumulator: Accumulator, baseSeq: Int, timeStamp: Long) {
+    if (accumulator.count == 0) return
+    val length = RtpConstants.RTP_HEADER_LENGTH + FEC_HEADER_LENGTH + accumulator.protectionLength
+    val offset = arena.allocate(length)
+    val buffer = arena.buffer
+    buffer[offset] = 0x80.toByte()
+    buffer[offset + 1] = payloadType.toByte()
+    buffer.setLong(++seq, offset + 2, offset + 4)
+    buffer.setLong(timeStamp, offset + 4, offset + 8)
+    buffer.setLong(ssrc, offset + 8, offset + 12)
+    //FEC header, E = 0, L = 1 (48 bits mask) and P, X, CC, M, PT recovery
+    val fec = offset + RtpConstants.RTP_HEADER_LENGTH
+    buffer[fec] = (0x40 or (accumulator.header0 and 0x3F)).toByte()
+    buffer[fec + 1] = accumulator.header1.toByte()
+    buffer.setLong(baseSeq.toLong(), fec + 2, fec + 4)
+    buffer.setLong(accumulator.timeStamp, fec + 4, fec + 8)
+    buffer.setLong(accumulator.length.toLong(), fec + 8, fec + 10)
+    //level 0 header
+    buffer.setLong(accumulator.protectionLength.toLong(), fec + 10, fec + 12)
+    buffer.setLong(accumulator.mask, fec + 12, fec + 18)
+    System.arraycopy(accumulator.payload, 0, buffer, fec + FEC_HEADER_LENGTH, accumulator.protectionLength)
+    arena.addFrame(offset, length, timeStamp, rtpPort, rtcpPort, RtpConstants.trackVideo)
+  }
+
+  private fun checkLevel(rowSize: Int, depth: Int) {
+    if (rowSize < 2 || depth < 1 || rowSize * depth > MAX_BLOCK_SIZE) {
+      throw IllegalArgumentException("rowSize must be 2 or greater, depth 1 or greater and rowSize * depth max $MAX_BLOCK_SIZE")
+    }
+  }
+
+  private fun getSequence(rtpFrame: RtpFrame): Int {
+    val buffer = rtpFrame.buffer
+    val offset = rtpFrame.offset
+    return ((buffer[offset + 2].toInt() and 0xFF) shl 8) or (buffer[offset + 3].toInt() and 0xFF)
+  }
+
+  private fun recycleArena(arena: RtpArena) {
+    synchronized(sync) {
+      if (arenas.size < maxArenas) arenas.addLast(arena)
+    }
+  }
+}
+
@@ -16,6 +16,7 @@
 
 package com.pedro.rtsp.rtp.sockets
 
+import com.pedro.rtsp.rtcp.BaseSenderReport
 import com.pedro.rtsp.rtsp.Protocol
 import com.pedro.rtsp.rtsp.RtpFrame
 import java.io.IOException
@@ -43,5 +44,26 @@ abstract class BaseRtpSocket {
   @Throws(IOException::class)
   abstract suspend fun sendFrame(rtpFrame: RtpFrame)
 
+  /**
+   * Send all packets of an access unit and sender reports that must be sent after each packet.
+   *
+   * @return number of sender reports sent
+   */
+  @Throws(IOException::class)
+  open suspend fun sendFrames(rtpFrames: List<RtpFrame>, senderReport: BaseSenderReport?): Int {
+    var reports = 0
+    rtpFrames.forEach { rtpFrame ->
+      sendFrame(rtpFrame)
+      if (senderReport?.update(rtpFrame) == true) reports++
+    }
+    return reports
+  }
+
+  /**
+   * Send again a packet requested by the server. Only supported by UDP sockets.
+   */
+  @Throws(IOException::class)
+  open fun retransmitFrame(rtpFrame: RtpFrame) { }
+
   abstract fun close()
 }
\ No newline at end of file
@@ -16,6 +16,7 @@
 
 package com.pedro.rtsp.rtp.sockets
 
+import com.pedro.rtsp.rtcp.BaseSenderReport
 import com.pedro.rtsp.rtsp.RtpFrame
 import com.pedro.rtsp.utils.RtpConstants
 import java.io.IOException
@@ -23,11 +24,19 @@ import java.io.OutputStream
 
 /**
  * Created by pedro on 7/11/18.
+ *
+ * Packets are written interleaved (RFC 2326 section 10.12) in the rtsp connection.
  */
 class RtpSocketTcp : BaseRtpSocket() {
 
+  companion object {
+    private const val TCP_HEADER_LENGTH = 4
+  }
+
   private var outputStream: OutputStream? = null
   private val tcpHeader: ByteArray = byteArrayOf('$'.code.toByte(), 0, 0, 0)
+  //all packets of an access unit are copied here to write them with a single call
+  private var batch = ByteArray(64 * 1024)
 
   @Throws(IOException::class)
   override fun setDataStream(outputStream: OutputStream, host: String) {
@@ -39,18 +48,58 @@ class RtpSocketTcp : BaseRtpSocket() {
     sendFrameTCP(rtpFrame)
   }
 
+  @Throws(IOException::class)
+  override suspend fun sendFrames(rtpFrames: List<RtpFrame>, senderReport: BaseSenderReport?): Int {
+    val outputStream = outputStream ?: return 0
+    var reports = 0
+    var size = 0
+    rtpFrames.forEach { rtpFrame ->
+      size = addPacket(size, rtpFrame.buffer, rtpFrame.offset, rtpFrame.length, 2 * rtpFrame.channelIdentifier)
+      senderReport?.updateReport(rtpFrame)?.let { report ->
+        size = addPacket(size, report, 0, RtpConstants.REPORT_PACKET_LENGTH, 2 * rtpFrame.channelIdentifier + 1)
+        reports++
+      }
+    }
+    if (size == 0) return 0
+    //the stream is shared with SenderReportTcp of the same connection
+    synchronized(outputStream) {
+      outputStream.write(batch, 0, size)
+      outputStream.flush()
+    }
+    return reports
+  }
+
   override fun close() {}
 
   @Throws(IOException::class)
   private fun sendFrameTCP(rtpFrame: RtpFrame) {
-    synchronized(RtpConstants.lock) {
+    val outputStream = outputStream ?: return
+    synchronized(outputStream) {
       val len = rtpFrame.length
       tcpHeader[1] = (2 * rtpFrame.channelIdentifier).toByte()
       tcpHeader[2] = (len shr 8).toByte()
       tcpHeader[3] = (len and 0xFF).toByte()
-      outputStream?.write(tcpHeader)
-      outputStream?.write(rtpFrame.buffer, 0, len)
-      outputStream?.flush()
+      outputStream.write(tcpHeader)
+      outputStream.write(rtpFrame.buffer, rtpFrame.offset, len)
+      outputStream.flush()
+    }
+  }
+
+  /**
+   * @return size of the batch after add the packet
+   */
+  private fun addPacket(position: Int, buffer: ByteArray, offset: Int, length: Int, channel: Int): Int {
+    val size = position + TCP_HEADER_LENGTH + length
+    if (size > batch.size) {
+      var newSize = batch.size
+      while (newSize < size) newSize = newSize shl 1
+      batch = batch.copyOf(newSize)
     }
+    batch[position] = '$'.code.toByte()
+    batch[position + 1] = channel.toByte()
+    batch[position + 2] = (length shr 8).toByte()
+    batch[position + 3] = (length and 0xFF).toByte()
+    System.arraycopy(buffer, offset, batch, position + TCP_HEADER_LENGTH, length)
+    return size
   }
-}
\ No newline at end of file
+}
@@ -17,7 +17,6 @@
 package com.pedro.rtsp.rtp.sockets
 
 import com.pedro.rtsp.rtsp.RtpFrame
-import com.pedro.rtsp.utils.RtpConstants
 import java.io.IOException
 import java.io.OutputStream
 import java.net.DatagramPacket
@@ -34,6 +33,7 @@ class RtpSocketUdp(
 ) : BaseRtpSocket() {
 
   private val datagramPacket = DatagramPacket(byteArrayOf(0), 1)
+  private val lock = Any()
 
   init {
     if (multicastSocketVideo == null) multicastSocketVideo = MulticastSocket(videoSourcePort)
@@ -52,6 +52,11 @@ class RtpSocketUdp(
     sendFrameUDP(rtpFrame)
   }
 
+  @Throws(IOException::class)
+  override fun retransmitFrame(rtpFrame: RtpFrame) {
+    sendFrameUDP(rtpFrame)
+  }
+
   override fun close() {
     multicastSocketVideo?.close()
     multicastSocketAudio?.close()
@@ -59,10 +64,9 @@ class RtpSocketUdp(
 
   @Throws(IOException::class)
   private fun sendFrameUDP(rtpFrame: RtpFrame) {
-    synchronized(RtpConstants.lock) {
-      datagramPacket.data = rtpFrame.buffer
+    synchronized(lock) {
+      datagramPacket.setData(rtpFrame.buffer, rtpFrame.offset, rtpFrame.length)
       datagramPacket.port = rtpFrame.rtpPort
-      datagramPacket.length = rtpFrame.length
       if (rtpFrame.isVideoFrame()) {
         multicastSocketVideo?.send(datagramPacket)
       } else {
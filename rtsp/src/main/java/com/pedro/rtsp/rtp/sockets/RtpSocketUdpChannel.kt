@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) 2024 pedroSG94.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.pedro.rtsp.rtp.sockets
+
+import com.pedro.rtsp.rtcp.BaseSenderReport
+import com.pedro.rtsp.rtsp.RtpFrame
+import com.pedro.rtsp.utils.RtpConstants
+import java.io.IOException
+import java.io.OutputStream
+import java.net.InetAddress
+import java.net.InetSocketAddress
+import java.net.PortUnreachableException
+import java.nio.ByteBuffer
+import java.nio.channels.DatagramChannel
+
+/**
+ * Udp transport using a connected DatagramChannel per track and direct buffers.
+ * Each track is synchronized independently so video and audio never wait for each other.
+ *
+ * @param sendBufferSize socket send buffer size in bytes. 0 to use the system default
+ * @param dscp differentiated services code point (0 to 63) used to mark packets. -1 to not mark
+ */
+class RtpSocketUdpChannel(
+  videoSourcePort: Int, audioSourcePort: Int,
+  sendBufferSize: Int = 0, dscp: Int = -1,
+  videoChannel: DatagramChannel = DatagramChannel.open(),
+  audioChannel: DatagramChannel = DatagramChannel.open()
+) : BaseRtpSocket() {
+
+  private val video = Track(videoChannel)
+  private val audio = Track(audioChannel)
+  private var host: InetAddress? = null
+
+  init {
+    if (dscp !in -1..63) throw IllegalArgumentException("dscp must be in range 0 to 63 or -1 to disable it")
+    video.configure(videoSourcePort, sendBufferSize, dscp)
+    audio.configure(audioSourcePort, sendBufferSize, dscp)
+  }
+
+  @Throws(IOException::class)
+  override fun setDataStream(outputStream: OutputStream, host: String) {
+    this.host = InetAddress.getByName(host)
+  }
+
+  @Throws(IOException::class)
+  override suspend fun sendFrame(rtpFrame: RtpFrame) {
+    val track = if (rtpFrame.isVideoFrame()) video else audio
+    track.send(rtpFrame)
+  }
+
+  @Throws(IOException::class)
+  override suspend fun sendFrames(rtpFrames: List<RtpFrame>, senderReport: BaseSenderReport?): Int {
+    var reports = 0
+    for (i in rtpFrames.indices) {
+      val rtpFrame = rtpFrames[i]
+      val track = if (rtpFrame.isVideoFrame()) video else audio
+      track.send(rtpFrame)
+      if (senderReport?.update(rtpFrame) == true) reports++
+    }
+    return reports
+  }
+
+  @Throws(IOException::class)
+  override fun retransmitFrame(rtpFrame: RtpFrame) {
+    val track = if (rtpFrame.isVideoFrame()) video else audio
+    track.send(rtpFrame)
+  }
+
+  override fun close() {
+    video.channel.close()
+    audio.channel.close()
+  }
+
+  private inner class Track(val channel: DatagramChannel) {
+
+    private var buffer = ByteBuffer.allocateDirect(RtpConstants.MTU)
+    private var port = -1
+
+    fun configure(sourcePort: Int, sendBufferSize: Int, dscp: Int) {
+      val socket = channel.socket()
+      socket.reuseAddress = true
+      if (!socket.isBound) socket.bind(InetSocketAddress(sourcePort))
+      if (sendBufferSize > 0) socket.sendBufferSize = sendBufferSize
+      //TOS byte is DSCP (6 bits) + ECN (2 bits)
+      if (dscp >= 0) socket.trafficClass = dscp shl 2
+    }
+
+    @Throws(IOException::class)
+    fun send(rtpFrame: RtpFrame) {
+      synchronized(this) {
+        if (port != rtpFrame.rtpPort) connect(rtpFrame.rtpPort)
+        if (buffer.capacity() < rtpFrame.length) buffer = ByteBuffer.allocateDirect(rtpFrame.length)
+        buffer.clear()
+        buffer.put(rtpFrame.buffer, rtpFrame.offset, rtpFrame.length)
+        buffer.flip()
+        try {
+          channel.write(buffer)
+        } catch (ignored: PortUnreachableException) {
+          //server port is not ready yet, same behaviour as an unconnected socket
+        }
+      }
+    }
+
+    private fun connect(port: Int) {
+      val host = host ?: throw IOException("destination host not set")
+      if (channel.isConnected) channel.disconnect()
+      channel.connect(InetSocketAddress(host, port))
+      this.port = port
+    }
+  }
+}
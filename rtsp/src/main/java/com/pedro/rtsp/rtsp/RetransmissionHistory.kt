@@ -0,0 +1,145 @@
+/*
+ * Copyright (C) 2024 pedroSG94.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.pedro.rtsp.rtsp
+
+import com.pedro.common.TimeUtils
+import com.pedro.rtsp.utils.RtpConstants
+import com.pedro.rtsp.utils.setLong
+
+/**
+ * Ring of the last packets sent in a track indexed by sequence number to answer NACK requests.
+ * Packets are retained while they are in the history so the arena buffer is not reused.
+ *
+ * @param historyMs time that packets are kept after being sent
+ */
+class RetransmissionHistory(var historyMs: Long = DEFAULT_HISTORY_MS) {
+
+  companion object {
+    const val DEFAULT_HISTORY_MS = 1000L
+    //power of 2, more than 1 second of a 4K stream
+    private const val SIZE = 4096
+  }
+
+  private val frames = arrayOfNulls<RtpFrame>(SIZE)
+  private val times = LongArray(SIZE)
+  private var oldest = -1
+  private var newest = -1
+  private val sync = Any()
+  private var rtxSequence = 0L
+  private var rtxSsrc = 0L
+
+  fun setRtxSSRC(ssrc: Long) {
+    rtxSsrc = ssrc
+  }
+
+  fun add(rtpFrame: RtpFrame) {
+    val sequence = getSequence(rtpFrame)
+    val now = TimeUtils.getCurrentTimeMillis()
+    rtpFrame.retain()
+    synchronized(sync) {
+      val index = sequence and (SIZE - 1)
+      frames[index]?.release()
+      frames[index] = rtpFrame
+      times[index] = now
+      if (oldest < 0 || ((sequence - oldest) and 0xFFFF) >= SIZE) oldest = sequence
+      newest = sequence
+      //discard expired packets
+      while (oldest != newest) {
+        val oldestIndex = oldest and (SIZE - 1)
+        val frame = frames[oldestIndex]
+        if (frame != null && now - times[oldestIndex] <= historyMs) break
+        frame?.release()
+        frames[oldestIndex] = null
+        oldest = (oldest + 1) and 0xFFFF
+      }
+    }
+  }
+
+  /**
+   * @return the packet with the sequence number retained or null if it is not in the history.
+   * The packet must be released after use it.
+   */
+  fun obtain(sequence: Int): RtpFrame? {
+    synchronized(sync) {
+      val index = sequence and (SIZE - 1)
+      val frame = frames[index] ?: return null
+      if (getSequence(frame) != sequence) return null
+      if (TimeUtils.getCurrentTimeMillis() - times[index] > historyMs) return null
+      frame.retain()
+      return frame
+    }
+  }
+
+  /**
+   * Create a RTX packet (RFC 4588) with its own sequence number and SSRC. The payload is the
+   * original sequence number followed by the original payload.
+   */
+  fun createRtxFrame(rtpFrame: RtpFrame, payloadType: Int): RtpFrame {
+    val buffer = ByteArray(rtpFrame.length + 2)
+    val offset = rtpFrame.offset
+    //header extensions are kept before the original sequence number
+    val headerLength = getHeaderLength(rtpFrame)
+    System.arraycopy(rtpFrame.buffer, offset, buffer, 0, headerLength)
+    //keep marker bit
+    buffer[1] = ((rtpFrame.buffer[offset + 1].toInt() and 0x80) or payloadType).toByte()
+    buffer.setLong(synchronized(sync) { ++rtxSequence } and 0xFFFF, 2, 4)
+    buffer.setLong(rtxSsrc, 8, 12)
+    //original sequence number
+    buffer[headerLength] = rtpFrame.buffer[offset + 2]
+    buffer[headerLength + 1] = rtpFrame.buffer[offset + 3]
+    System.arraycopy(rtpFrame.buffer, offset + headerLength, buffer,
+      headerLength + 2, rtpFrame.length - headerLength)
+    return RtpFrame(buffer, rtpFrame.timeStamp, buffer.size, rtpFrame.rtpPort, rtpFrame.rtcpPort, rtpFrame.channelIdentifier)
+  }
+
+  /**
+   * Create a copy of the packet not shared with the history to modify it before resend it.
+   */
+  fun createCopy(rtpFrame: RtpFrame): RtpFrame {
+    val buffer = rtpFrame.buffer.copyOfRange(rtpFrame.offset, rtpFrame.offset + rtpFrame.length)
+    return RtpFrame(buffer, rtpFrame.timeStamp, buffer.size, rtpFrame.rtpPort, rtpFrame.rtcpPort, rtpFrame.channelIdentifier)
+  }
+
+  fun getSize(): Int = synchronized(sync) { frames.count { it != null } }
+
+  fun clear() {
+    synchronized(sync) {
+      for (i in frames.indices) {
+        frames[i]?.release()
+        frames[i] = null
+      }
+      oldest = -1
+      newest = -1
+      rtxSequence = 0
+    }
+  }
+
+  private fun getHeaderLength(rtpFrame: RtpFrame): Int {
+    val buffer = rtpFrame.buffer
+    val offset = rtpFrame.offset
+    if (buffer[offset].toInt() and 0x10 == 0) return RtpConstants.RTP_HEADER_LENGTH
+    val words = ((buffer[offset + 14].toInt() and 0xFF) shl 8) or (buffer[offset + 15].toInt() and 0xFF)
+    return RtpConstants.RTP_HEADER_LENGTH + 4 + words * 4
+  }
+
+  private fun getSequence(rtpFrame: RtpFrame): Int {
+    val buffer = rtpFrame.buffer
+    val offset = rtpFrame.offset
+    return ((buffer[offset + 2].toInt() and 0xFF) shl 8) or (buffer[offset + 3].toInt() and 0xFF)
+  }
+}
@@ -16,25 +16,40 @@
 
 package com.pedro.rtsp.rtsp
 
+import com.pedro.rtsp.rtp.packets.RtpArena
 import com.pedro.rtsp.utils.RtpConstants
 
 /**
  * Created by pedro on 7/11/18.
+ *
+ * The packet is located in buffer from offset to offset + length. Frames created by an arena must
+ * be released after send them to allow reuse the buffer.
  */
 data class RtpFrame(val buffer: ByteArray, val timeStamp: Long, val length: Int,
-                    val rtpPort: Int, val rtcpPort: Int, val channelIdentifier: Int) {
+                    val rtpPort: Int, val rtcpPort: Int, val channelIdentifier: Int,
+                    val offset: Int = 0, private val arena: RtpArena? = null) {
 
   fun isVideoFrame(): Boolean = channelIdentifier == RtpConstants.trackVideo
 
+  fun retain() {
+    arena?.retain()
+  }
+
+  fun release() {
+    arena?.release()
+  }
+
   override fun equals(other: Any?): Boolean {
     if (this === other) return true
     if (javaClass != other?.javaClass) return false
 
     other as RtpFrame
 
-    if (!buffer.contentEquals(other.buffer)) return false
-    if (timeStamp != other.timeStamp) return false
     if (length != other.length) return false
+    for (i in 0 until length) {
+      if (buffer[offset + i] != other.buffer[other.offset + i]) return false
+    }
+    if (timeStamp != other.timeStamp) return false
     if (rtpPort != other.rtpPort) return false
     if (rtcpPort != other.rtcpPort) return false
     if (channelIdentifier != other.channelIdentifier) return false
@@ -43,7 +58,8 @@ data class RtpFrame(val buffer: ByteArray, val timeStamp: Long, val length: Int,
   }
 
   override fun hashCode(): Int {
-    var result = buffer.contentHashCode()
+    var result = 1
+    for (i in 0 until length) result = 31 * result + buffer[offset + i]
     result = 31 * result + timeStamp.hashCode()
     result = 31 * result + length
     result = 31 * result + rtpPort
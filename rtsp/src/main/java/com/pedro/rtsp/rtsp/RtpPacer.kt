@@ -0,0 +1,120 @@
+/*
+ * Copyright (C) 2024 pedroSG94.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.pedro.rtsp.rtsp
+
+import com.pedro.rtsp.utils.RtpConstants
+
+/**
+ * Token bucket used to spread video packets of big access units (like keyframes) instead of send
+ * all of them at the same time. Packets are sent at a multiple of the video bitrate with a small
+ * burst allowed. Not thread safe, it is used only by the sender thread.
+ */
+class RtpPacer {
+
+  companion object {
+    const val DEFAULT_FACTOR = 2.5f
+    //burst allowed in time at pacing rate
+    private const val BURST_MS = 5L
+    //packets delayed more than this are sent without wait to avoid increase the delay forever
+    private const val MAX_DELAY_MS = 500L
+  }
+
+  private class Packet(val rtpFrame: RtpFrame, val timeNanos: Long)
+
+  private val packets = ArrayDeque<Packet>()
+  //bytes per second
+  @Volatile
+  private var rate = 0L
+  private var tokens = 0.0
+  private var lastNanos = 0L
+  /**
+   * Time in milliseconds that the last packet sent was waiting in the pacer
+   */
+  @Volatile
+  var delay = 0L
+    private set
+
+  /**
+   * @param bitrate video bitrate in bits per second. 0 to disable pacing
+   * @param factor multiple of the bitrate used to send packets
+   */
+  fun setBitrate(bitrate: Long, factor: Float) {
+    rate = (bitrate * factor / 8).toLong()
+  }
+
+  fun isEnabled(): Boolean = rate > 0
+
+  fun isEmpty(): Boolean = packets.isEmpty()
+
+  /**
+   * Enqueue all packets of an access unit. The list is not stored so it can be reused.
+   */
+  fun add(rtpFrames: List<RtpFrame>, nowNanos: Long) {
+    if (packets.isEmpty()) refill(nowNanos)
+    for (i in rtpFrames.indices) packets.addLast(Packet(rtpFrames[i], nowNanos))
+  }
+
+  /**
+   * @return nanoseconds to wait until the next packet can be sent, 0 if it can be sent now
+   */
+  fun getWaitNanos(nowNanos: Long): Long {
+    val packet = packets.firstOrNull() ?: return Long.MAX_VALUE
+    refill(nowNanos)
+    if (canSend(packet, nowNanos)) return 0
+    return ((packet.rtpFrame.length - tokens) * 1_000_000_000 / rate).toLong().coerceAtLeast(1)
+  }
+
+  /**
+   * Move to output the packets that can be sent now.
+   */
+  fun poll(nowNanos: Long, output: MutableList<RtpFrame>) {
+    refill(nowNanos)
+    while (packets.isNotEmpty()) {
+      val packet = packets.first()
+      if (!canSend(packet, nowNanos)) break
+      packets.removeFirst()
+      //late packets are sent without tokens but never leave more debt than a burst
+      tokens = (tokens - packet.rtpFrame.length).coerceAtLeast(-getCapacity())
+      delay = (nowNanos - packet.timeNanos) / 1_000_000
+      output.add(packet.rtpFrame)
+    }
+  }
+
+  fun clear() {
+    packets.forEach { it.rtpFrame.release() }
+    packets.clear()
+    tokens = 0.0
+    lastNanos = 0
+    delay = 0
+  }
+
+  private fun canSend(packet: Packet, nowNanos: Long): Boolean {
+    return rate <= 0 || tokens >= packet.rtpFrame.length || nowNanos - packet.timeNanos >= MAX_DELAY_MS * 1_000_000
+  }
+
+  private fun refill(nowNanos: Long) {
+    if (lastNanos == 0L) {
+      tokens = getCapacity()
+    } else {
+      tokens = (tokens + rate * (nowNanos - lastNanos) / 1_000_000_000.0).coerceAtMost(getCapacity())
+    }
+    lastNanos = nowNanos
+  }
+
+  private fun getCapacity(): Double = maxOf(RtpConstants.MTU.toLong(), rate * BURST_MS / 1000).toDouble()
+}
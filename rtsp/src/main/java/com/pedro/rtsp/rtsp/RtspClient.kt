@@ -24,6 +24,7 @@ import com.pedro.common.TLSSocketFactory
 import com.pedro.common.UrlParser
 import com.pedro.common.VideoCodec
 import com.pedro.common.onMainThread
+import com.pedro.rtsp.rtcp.ReceiverReport
 import com.pedro.rtsp.rtsp.commands.CommandsManager
 import com.pedro.rtsp.rtsp.commands.Method
 import com.pedro.rtsp.utils.RtpConstants
@@ -35,6 +36,7 @@ import kotlinx.coroutines.cancelAndJoin
 import kotlinx.coroutines.delay
 import kotlinx.coroutines.isActive
 import kotlinx.coroutines.launch
+import kotlinx.coroutines.runInterruptible
 import kotlinx.coroutines.sync.Mutex
 import kotlinx.coroutines.withTimeoutOrNull
 import java.io.*
@@ -58,7 +60,8 @@ class RtspClient(private val connectChecker: ConnectChecker) {
 
   //sockets objects
   private var connectionSocket: Socket? = null
-  private var reader: BufferedReader? = null
+  //rtsp responses and interleaved packets are read from the same buffered stream
+  private var input: InputStream? = null
   private var writer: BufferedWriter? = null
   private var scope = CoroutineScope(Dispatchers.IO)
   private var scopeRetry = CoroutineScope(Dispatchers.IO)
@@ -136,6 +139,78 @@ class RtspClient(private val connectChecker: ConnectChecker) {
     commandsManager.protocol = protocol
   }
 
+  /**
+   * Send rtp packets over udp using a DatagramChannel per track instead of MulticastSocket.
+   * Only used with Protocol.UDP. Must be called before connect.
+   *
+   * @param sendBufferSize socket send buffer size in bytes. 0 to use the system default
+   * @param dscp value (0 to 63) used to mark packets, for example 46 (expedited forwarding). -1 to not mark
+   */
+  @JvmOverloads
+  @Throws(IllegalArgumentException::class)
+  fun setUdpChannel(enabled: Boolean, sendBufferSize: Int = 0, dscp: Int = -1) {
+    rtspSender.setUdpChannel(enabled, sendBufferSize, dscp)
+  }
+
+  /**
+   * Keep packets sent to resend them when the server request it using RTCP NACK. NACK feedback
+   * and RTX payloads are advertised in the SDP. Only used with Protocol.UDP. Must be called before connect.
+   *
+   * @param historyMs time that packets are kept to be resent
+   * @param rtx resend packets using RTX (RFC 4588) payload and SSRC instead of the original packet
+   */
+  @JvmOverloads
+  @Throws(IllegalArgumentException::class)
+  fun setRetransmission(enabled: Boolean, historyMs: Long = RetransmissionHistory.DEFAULT_HISTORY_MS, rtx: Boolean = false) {
+    rtspSender.setRetransmission(enabled, historyMs, rtx)
+    commandsManager.retransmission = enabled
+    commandsManager.rtx = rtx
+  }
+
+  /**
+   * Spread video packets of each frame at a multiple of the video bitrate instead of send them in a
+   * burst, useful with keyframes on networks with small buffers. Audio is not paced.
+   * Can be called while streaming to update the bitrate.
+   *
+   * @param bitrate video bitrate in bits per second
+   * @param factor multiple of the bitrate used to send video packets
+   */
+  @JvmOverloads
+  @Throws(IllegalArgumentException::class)
+  fun setPacing(enabled: Boolean, bitrate: Long, factor: Float = RtpPacer.DEFAULT_FACTOR) {
+    rtspSender.setPacing(enabled, bitrate, factor)
+  }
+
+  /**
+   * Send ULPFEC (RFC 5109) packets after each video frame so the server can recover lost packets
+   * without retransmission. Only used with Protocol.UDP. Must be called before connect.
+   *
+   * @param rowSize video packets protected by each FEC packet
+   * @param depth rows protected by column FEC packets (packets at rowSize distance), 1 to disable them
+   * @param keyframeRowSize rowSize used with keyframes
+   * @param keyframeDepth depth used with keyframes
+   */
+  @JvmOverloads
+  @Throws(IllegalArgumentException::class)
+  fun setFec(enabled: Boolean, rowSize: Int = 10, depth: Int = 1, keyframeRowSize: Int = 5, keyframeDepth: Int = 4) {
+    rtspSender.setFec(enabled, rowSize, depth, keyframeRowSize, keyframeDepth)
+    commandsManager.fec = enabled
+  }
+
+  /**
+   * Add transport-wide sequence numbers to the packets and estimate the bandwidth with the delay
+   * reported by the server using transport-cc feedback. The estimation detect congestion before
+   * packets are lost or the cache grows. Use getTargetBitrate, for example in onNewBitrate, to
+   * update the video bitrate with setVideoBitrateOnFly. Must be called before connect.
+   *
+   * @param startBitrate bitrate used until the first estimation in bits per second, usually the video bitrate
+   */
+  @Throws(IllegalArgumentException::class)
+  fun setCongestionControl(enabled: Boolean, startBitrate: Long, minBitrate: Long, maxBitrate: Long) {
+    rtspSender.setCongestionControl(enabled, startBitrate, minBitrate, maxBitrate)
+    commandsManager.transportCc = enabled
+  }
+
   fun setAuthorization(user: String?, password: String?) {
     commandsManager.setAuth(user, password)
   }
@@ -255,18 +330,18 @@ class RtspClient(private val connectChecker: ConnectChecker) {
             }
           }
           connectionSocket?.soTimeout = 5000
-          val reader = BufferedReader(InputStreamReader(connectionSocket?.getInputStream()))
+          val input = BufferedInputStream(connectionSocket?.getInputStream())
           val outputStream = connectionSocket?.getOutputStream()
           val writer = BufferedWriter(OutputStreamWriter(outputStream))
-          this@RtspClient.reader = reader
+          this@RtspClient.input = input
           this@RtspClient.writer = writer
           writer.write(commandsManager.createOptions())
           writer.flush()
-          commandsManager.getResponse(reader, Method.OPTIONS)
+          commandsManager.getResponse(input, Method.OPTIONS)
           writer.write(commandsManager.createAnnounce())
           writer.flush()
           //check if you need credential for stream, if you need try connect with credential
-          val announceResponse = commandsManager.getResponse(reader, Method.ANNOUNCE)
+          val announceResponse = commandsManager.getResponse(input, Method.ANNOUNCE)
           when (announceResponse.status) {
             403 -> {
               onMainThread {
@@ -284,7 +359,7 @@ class RtspClient(private val connectChecker: ConnectChecker) {
               } else {
                 writer.write(commandsManager.createAnnounceWithAuth(announceResponse.text))
                 writer.flush()
-                when (commandsManager.getResponse(reader, Method.ANNOUNCE).status) {
+                when (commandsManager.getResponse(input, Method.ANNOUNCE).status) {
                   401 -> {
                     onMainThread {
                       connectChecker.onAuthError()
@@ -318,7 +393,7 @@ class RtspClient(private val connectChecker: ConnectChecker) {
           if (!commandsManager.videoDisabled) {
             writer.write(commandsManager.createSetup(RtpConstants.trackVideo))
             writer.flush()
-            val setupVideoStatus = commandsManager.getResponse(reader, Method.SETUP).status
+            val setupVideoStatus = commandsManager.getResponse(input, Method.SETUP).status
             if (setupVideoStatus != 200) {
               onMainThread {
                 connectChecker.onConnectionFailed("Error configure stream, setup video $setupVideoStatus")
@@ -329,7 +404,7 @@ class RtspClient(private val connectChecker: ConnectChecker) {
           if (!commandsManager.audioDisabled) {
             writer.write(commandsManager.createSetup(RtpConstants.trackAudio))
             writer.flush()
-            val setupAudioStatus = commandsManager.getResponse(reader, Method.SETUP).status
+            val setupAudioStatus = commandsManager.getResponse(input, Method.SETUP).status
             if (setupAudioStatus != 200) {
               onMainThread {
                 connectChecker.onConnectionFailed("Error configure stream, setup audio $setupAudioStatus")
@@ -339,7 +414,7 @@ class RtspClient(private val connectChecker: ConnectChecker) {
           }
           writer.write(commandsManager.createRecord())
           writer.flush()
-          val recordStatus = commandsManager.getResponse(reader, Method.RECORD).status
+          val recordStatus = commandsManager.getResponse(input, Method.RECORD).status
           if (recordStatus != 200) {
             onMainThread {
               connectChecker.onConnectionFailed("Error configure stream, record $recordStatus")
@@ -362,6 +437,9 @@ class RtspClient(private val connectChecker: ConnectChecker) {
           onMainThread {
             connectChecker.onConnectionSuccess()
           }
+          if (commandsManager.protocol == Protocol.TCP) {
+            scope.launch { handleInterleavedData(input) }
+          }
           handleServerCommands()
         }.exceptionOrNull()
         if (error != null) {
@@ -381,9 +459,10 @@ class RtspClient(private val connectChecker: ConnectChecker) {
       val error = runCatching {
         if (isAlive()) {
           delay(2000)
-          reader?.let { r ->
-            if (r.ready()) {
-              val command = commandsManager.getResponse(r)
+          //with tcp the connection is read in handleInterleavedData
+          input?.takeIf { commandsManager.protocol != Protocol.TCP }?.let { i ->
+            if (i.available() > 0) {
+              val command = commandsManager.getResponse(i)
               //Do something depend of command if required
             }
           }
@@ -400,6 +479,19 @@ class RtspClient(private val connectChecker: ConnectChecker) {
     }
   }
 
+  /**
+   * With TCP the server send rtcp packets interleaved with rtsp commands in the connection.
+   */
+  private suspend fun handleInterleavedData(input: InputStream) {
+    while (scope.isActive && isStreaming) {
+      val error = runCatching {
+        runInterruptible { rtspSender.readInterleaved(input) }
+      }.exceptionOrNull()
+      //connection closed, handled by handleServerCommands and the sender
+      if (error != null && error !is SocketTimeoutException) return
+    }
+  }
+
   /*
     Send a heartbeat to know if server is alive using Echo Protocol.
     Your firewall could block it.
@@ -425,8 +517,8 @@ class RtspClient(private val connectChecker: ConnectChecker) {
         writer?.flush()
       }
       connectionSocket?.close()
-      reader?.close()
-      reader = null
+      input?.close()
+      input = null
       writer?.close()
       writer = null
       connectionSocket = null
@@ -517,6 +609,22 @@ class RtspClient(private val connectChecker: ConnectChecker) {
 
   fun getItemsInCache(): Int = rtspSender.getItemsInCache()
 
+  /**
+   * Limit the cache by media duration instead of only by size.
+   * @param durationMs max media duration in the cache. 0 to limit the cache only by size
+   */
+  @Throws(IllegalArgumentException::class)
+  fun setMaxCacheDuration(durationMs: Long) {
+    rtspSender.setMaxCacheDuration(durationMs)
+  }
+
+  fun getMaxCacheDuration(): Long = rtspSender.getMaxCacheDuration()
+
+  /**
+   * @return media duration in the cache in milliseconds
+   */
+  fun getCacheDelay(): Long = rtspSender.getCacheDelay()
+
   /**
    * @param factor values from 0.1f to 1f
    * Set an exponential factor to the bitrate calculation to avoid bitrate spikes
@@ -529,4 +637,40 @@ class RtspClient(private val connectChecker: ConnectChecker) {
    * Get the exponential factor used to calculate the bitrate. Default 1f
    */
   fun getBitrateExponentialFactor() = rtspSender.getBitrateExponentialFactor()
+
+  /**
+   * @return last reception statistics of the video track reported by the server with RTCP, null if not received
+   */
+  fun getVideoReceiverReport(): ReceiverReport? = rtspSender.getVideoReceiverReport()
+
+  /**
+   * @return last reception statistics of the audio track reported by the server with RTCP, null if not received
+   */
+  fun getAudioReceiverReport(): ReceiverReport? = rtspSender.getAudioReceiverReport()
+
+  /**
+   * @return smoothed round trip time in milliseconds calculated with RTCP reports, 0 if unknown
+   */
+  fun getRtt(): Long = rtspSender.getRtt()
+
+  /**
+   * @return fraction of packets lost (0 to 1) in the last RTCP report of the server.
+   * Max value of video and audio tracks
+   */
+  fun getPacketLoss(): Float = rtspSender.getPacketLoss()
+
+  /**
+   * @return packets resent after a NACK request of the server
+   */
+  fun getRetransmittedPackets(): Long = rtspSender.retransmittedPackets
+
+  /**
+   * @return time in milliseconds that the last video packet was waiting in the pacer
+   */
+  fun getPacingDelay(): Long = rtspSender.getPacingDelay()
+
+  /**
+   * @return bitrate in bits per second estimated with transport-cc feedback, 0 if disabled
+   */
+  fun getTargetBitrate(): Long = rtspSender.getTargetBitrate()
 }
\ No newline at end of file
@@ -21,13 +21,20 @@ import android.util.Log
 import com.pedro.common.AudioCodec
 import com.pedro.common.BitrateManager
 import com.pedro.common.ConnectChecker
+import com.pedro.common.TimeUtils
+import com.pedro.common.TimedBlockingQueue
 import com.pedro.common.VideoCodec
 import com.pedro.common.onMainThread
-import com.pedro.common.trySend
 import com.pedro.rtsp.rtcp.BaseSenderReport
+import com.pedro.rtsp.rtcp.DelayBasedEstimator
+import com.pedro.rtsp.rtcp.ReceiverReport
+import com.pedro.rtsp.rtcp.RtcpReceiver
+import com.pedro.rtsp.rtcp.SendTimeHistory
+import com.pedro.rtsp.rtcp.SenderReportUdp
 import com.pedro.rtsp.rtp.packets.*
 import com.pedro.rtsp.rtp.sockets.BaseRtpSocket
 import com.pedro.rtsp.rtp.sockets.RtpSocketTcp
+import com.pedro.rtsp.rtp.sockets.RtpSocketUdpChannel
 import com.pedro.rtsp.rtsp.commands.CommandsManager
 import com.pedro.rtsp.utils.RtpConstants
 import kotlinx.coroutines.CoroutineScope
@@ -40,7 +47,9 @@ import kotlinx.coroutines.isActive
 import kotlinx.coroutines.launch
 import kotlinx.coroutines.runInterruptible
 import java.io.IOException
+import java.io.InputStream
 import java.io.OutputStream
+import java.net.DatagramPacket
 import java.nio.ByteBuffer
 import java.util.*
 import java.util.concurrent.*
@@ -63,9 +72,10 @@ class RtspSender(
   private var running = false
 
   private var job: Job? = null
+  private var receiveJobs: List<Job> = emptyList()
+  private val rtcpReceiver = RtcpReceiver()
   private val scope = CoroutineScope(Dispatchers.IO)
-  @Volatile
-  private var queue: BlockingQueue<List<RtpFrame>> = LinkedBlockingQueue(cacheSize)
+  private val queue = TimedBlockingQueue<List<RtpFrame>>(cacheSize)
 
   private var audioFramesSent: Long = 0
   private var videoFramesSent: Long = 0
@@ -75,6 +85,41 @@ class RtspSender(
     private set
   private val bitrateManager: BitrateManager = BitrateManager(connectChecker)
   private var isEnableLogs = true
+  private var udpChannel = false
+  private var udpSendBufferSize = 0
+  private var udpDscp = -1
+  @Volatile
+  private var retransmission = false
+  @Volatile
+  private var rtx = false
+  private val videoHistory = RetransmissionHistory()
+  private val audioHistory = RetransmissionHistory()
+  private val pacer = RtpPacer()
+  private val fecEncoder = UlpFecEncoder(RtpConstants.payloadTypeFec + RtpConstants.trackVideo)
+  private var fec = false
+  //fec is only used with udp
+  @Volatile
+  private var fecActive = false
+  @Volatile
+  private var transportCc = false
+  private val sendTimeHistory = SendTimeHistory()
+  private var estimator = DelayBasedEstimator(0, 0, 0)
+  private var startBitrate = 0L
+  @Volatile
+  var retransmittedPackets: Long = 0
+    private set
+
+  init {
+    rtcpReceiver.setNackListener { isVideo, sequenceNumber -> retransmit(isVideo, sequenceNumber) }
+    rtcpReceiver.setTransportFeedbackListener { baseSequence, arrivalTimesUs, count ->
+      if (transportCc) {
+        val estimator = estimator
+        synchronized(estimator) {
+          estimator.onFeedback(sendTimeHistory, baseSequence, arrivalTimesUs, count, TimeUtils.getCurrentTimeNano() / 1000)
+        }
+      }
+    }
+  }
 
   companion object {
     private const val TAG = "RtspSender"
@@ -82,10 +127,97 @@ class RtspSender(
 
   @Throws(IOException::class)
   fun setSocketsInfo(protocol: Protocol, videoSourcePorts: IntArray, audioSourcePorts: IntArray) {
-    rtpSocket = BaseRtpSocket.getInstance(protocol, videoSourcePorts[0], audioSourcePorts[0])
+    rtpSocket = if (protocol == Protocol.UDP && udpChannel) {
+      RtpSocketUdpChannel(videoSourcePorts[0], audioSourcePorts[0], udpSendBufferSize, udpDscp)
+    } else {
+      BaseRtpSocket.getInstance(protocol, videoSourcePorts[0], audioSourcePorts[0])
+    }
     baseSenderReport = BaseSenderReport.getInstance(protocol, videoSourcePorts[1], audioSourcePorts[1])
+    fecActive = fec && protocol == Protocol.UDP
+  }
+
+  /**
+   * Send rtp packets over udp using a DatagramChannel per track. Must be called before connect.
+   *
+   * @param sendBufferSize socket send buffer size in bytes. 0 to use the system default
+   * @param dscp value (0 to 63) used to mark packets, for example 46 (expedited forwarding). -1 to not mark
+   */
+  @Throws(IllegalArgumentException::class)
+  fun setUdpChannel(enabled: Boolean, sendBufferSize: Int, dscp: Int) {
+    if (dscp !in -1..63) throw IllegalArgumentException("dscp must be in range 0 to 63 or -1 to disable it")
+    udpChannel = enabled
+    udpSendBufferSize = sendBufferSize
+    udpDscp = dscp
+  }
+
+  /**
+   * Keep packets sent with udp to resend them when the server request it using RTCP NACK.
+   *
+   * @param historyMs time that packets are kept to be resent
+   * @param rtx resend packets using RTX payload and SSRC instead of the original packet
+   */
+  @Throws(IllegalArgumentException::class)
+  fun setRetransmission(enabled: Boolean, historyMs: Long, rtx: Boolean) {
+    if (historyMs <= 0) throw IllegalArgumentException("historyMs must be greater than 0")
+    retransmission = enabled
+    this.rtx = rtx
+    videoHistory.historyMs = historyMs
+    audioHistory.historyMs = historyMs
+  }
+
+  /**
+   * Spread video packets of each access unit at a multiple of the video bitrate instead of send
+   * them in a burst. Audio packets are not paced. Can be called while streaming to update the bitrate.
+   *
+   * @param bitrate video bitrate in bits per second
+   * @param factor multiple of the bitrate used to send video packets
+   */
+  @Throws(IllegalArgumentException::class)
+  fun setPacing(enabled: Boolean, bitrate: Long, factor: Float) {
+    if (factor < 1f) throw IllegalArgumentException("factor must be 1 or greater")
+    pacer.setBitrate(if (enabled) bitrate else 0, factor)
+  }
+
+  /**
+   * @return time in milliseconds that the last video packet was waiting in the pacer
+   */
+  fun getPacingDelay(): Long = pacer.delay
+
+  /**
+   * Send ULPFEC packets after each video frame. Must be called before connect.
+   *
+   * @param rowSize video packets protected by each FEC packet
+   * @param depth rows protected by column FEC packets, 1 to send only row FEC packets
+   * @param keyframeRowSize rowSize used with keyframes
+   * @param keyframeDepth depth used with keyframes
+   */
+  @Throws(IllegalArgumentException::class)
+  fun setFec(enabled: Boolean, rowSize: Int, depth: Int, keyframeRowSize: Int, keyframeDepth: Int) {
+    fecEncoder.setLevel(rowSize, depth, keyframeRowSize, keyframeDepth)
+    fec = enabled
   }
 
+  /**
+   * Add transport-wide sequence numbers to the packets and estimate the bandwidth using the delay
+   * reported by the server with transport-cc feedback. Must be called before connect.
+   *
+   * @param startBitrate bitrate used until the first estimation in bits per second, usually the video bitrate
+   * @param minBitrate min target bitrate
+   * @param maxBitrate max target bitrate
+   */
+  @Throws(IllegalArgumentException::class)
+  fun setCongestionControl(enabled: Boolean, startBitrate: Long, minBitrate: Long, maxBitrate: Long) {
+    if (minBitrate <= 0 || minBitrate > maxBitrate) throw IllegalArgumentException("minBitrate must be greater than 0 and lower than maxBitrate")
+    transportCc = enabled
+    this.startBitrate = startBitrate
+    estimator = DelayBasedEstimator(startBitrate, minBitrate, maxBitrate)
+  }
+
+  /**
+   * @return bitrate in bits per second estimated with transport-cc feedback, 0 if disabled
+   */
+  fun getTargetBitrate(): Long = if (transportCc) estimator.targetBitrate else 0
+
   fun setVideoInfo(sps: ByteArray, pps: ByteArray?, vps: ByteArray?) {
     videoPacket = when (commandsManager.videoCodec) {
       VideoCodec.H264 -> {
@@ -98,6 +230,9 @@ class RtspSender(
       }
       VideoCodec.AV1 -> Av1Packet()
     }
+    //keep fec packets inside the MTU
+    videoPacket?.setReservedSize(if (fecActive) UlpFecEncoder.FEC_HEADER_LENGTH else 0)
+    videoPacket?.setTransportSequence(transportCc)
   }
 
   fun setAudioInfo(sampleRate: Int) {
@@ -106,6 +241,8 @@ class RtspSender(
       AudioCodec.AAC -> AacPacket(sampleRate)
       AudioCodec.OPUS -> OpusPacket(sampleRate)
     }
+    audioPacket?.setTransportSequence(transportCc)
+    rtcpReceiver.setAudioClock(sampleRate)
   }
 
   @Throws(IOException::class)
@@ -116,6 +253,7 @@ class RtspSender(
 
   fun setVideoPorts(rtpPort: Int, rtcpPort: Int) {
     videoPacket?.setPorts(rtpPort, rtcpPort)
+    fecEncoder.setPorts(rtpPort, rtcpPort)
   }
 
   fun setAudioPorts(rtpPort: Int, rtcpPort: Int) {
@@ -125,22 +263,39 @@ class RtspSender(
   fun sendVideoFrame(h264Buffer: ByteBuffer, info: MediaCodec.BufferInfo) {
     if (running) {
       videoPacket?.createAndSendPacket(h264Buffer, info) { rtpFrame ->
-        val result = queue.trySend(rtpFrame)
-        if (!result) {
-          Log.i(TAG, "Video frame discarded")
-          droppedVideoFrames++
+        if (fecActive) {
+          val isKeyFrame = info.flags and MediaCodec.BUFFER_FLAG_KEY_FRAME != 0
+          //media is queued inside the callback because the fec packets are only valid on it
+          fecEncoder.protect(rtpFrame, isKeyFrame) { fecFrames ->
+            if (offerVideoFrames(rtpFrame, info.presentationTimeUs) && fecFrames.isNotEmpty()) {
+              if (!queue.offer(fecFrames, info.presentationTimeUs)) releaseFrames(fecFrames)
+            }
+          }
+        } else {
+          offerVideoFrames(rtpFrame, info.presentationTimeUs)
         }
       }
     }
   }
 
+  private fun offerVideoFrames(rtpFrames: List<RtpFrame>, timestampUs: Long): Boolean {
+    val result = queue.offer(rtpFrames, timestampUs)
+    if (!result) {
+      Log.i(TAG, "Video frame discarded")
+      droppedVideoFrames++
+      releaseFrames(rtpFrames)
+    }
+    return result
+  }
+
   fun sendAudioFrame(aacBuffer: ByteBuffer, info: MediaCodec.BufferInfo) {
     if (running) {
       audioPacket?.createAndSendPacket(aacBuffer, info) { rtpFrame ->
-        val result = queue.trySend(rtpFrame)
+        val result = queue.offer(rtpFrame, info.presentationTimeUs)
         if (!result) {
           Log.i(TAG, "Audio frame discarded")
           droppedAudioFrames++
+          releaseFrames(rtpFrame)
         }
       }
     }
@@ -148,15 +303,28 @@ class RtspSender(
 
   fun start() {
     bitrateManager.reset()
-    queue.clear()
+    queue.clear { releaseFrames(it) }
     val ssrcVideo = Random().nextInt().toLong()
     val ssrcAudio = Random().nextInt().toLong()
     baseSenderReport?.setSSRC(ssrcVideo, ssrcAudio)
     videoPacket?.setSSRC(ssrcVideo)
+    fecEncoder.setSSRC(Random().nextInt().toLong())
     audioPacket?.setSSRC(ssrcAudio)
+    rtcpReceiver.reset()
+    rtcpReceiver.setSSRC(ssrcVideo, ssrcAudio)
+    sendTimeHistory.reset()
+    synchronized(estimator) { estimator.reset(startBitrate) }
+    videoHistory.setRtxSSRC(Random().nextInt().toLong())
+    audioHistory.setRtxSSRC(Random().nextInt().toLong())
     running = true
+    (baseSenderReport as? SenderReportUdp)?.let { senderReport ->
+      receiveJobs = listOf(true, false).map { isVideo ->
+        scope.launch { receiveReports(senderReport, isVideo) }
+      }
+    }
     job = scope.launch {
       val isTcp = rtpSocket is RtpSocketTcp
+      val keepHistory = retransmission && !isTcp
       var bytesSend = 0L
       val bitrateTask = async {
         while (scope.isActive && running) {
@@ -166,35 +334,29 @@ class RtspSender(
           delay(timeMillis = 1000)
         }
       }
+      val pacedFrames = ArrayList<RtpFrame>()
       while (scope.isActive && running) {
         val error = runCatching {
-          val frames = runInterruptible {
-            queue.poll(1, TimeUnit.SECONDS)
-          }
-          var size = 0
-          var isVideo = false
-          frames?.forEach { rtpFrame ->
-            rtpSocket?.sendFrame(rtpFrame)
-            //4 is tcp header length
-            val packetSize = if (isTcp) rtpFrame.length + 4 else rtpFrame.length
-            bytesSend += packetSize
-            size += packetSize
-            isVideo = rtpFrame.isVideoFrame()
-            if (isVideo) {
-              videoFramesSent++
+          //wait for new frames only until the next paced packet can be sent
+          val waitNanos = if (pacer.isEmpty()) TimeUnit.SECONDS.toNanos(1) else pacer.getWaitNanos(TimeUtils.getCurrentTimeNano())
+          val frames = if (waitNanos > 0) {
+            runInterruptible { queue.poll(waitNanos, TimeUnit.NANOSECONDS) }
+          } else null
+          frames?.let {
+            //audio is never paced
+            //pending paced packets are sent first to keep the order if pacing is disabled
+            if ((pacer.isEnabled() || !pacer.isEmpty()) && it.isNotEmpty() && it[0].isVideoFrame()) {
+              pacer.add(it, TimeUtils.getCurrentTimeNano())
             } else {
-              audioFramesSent++
-            }
-            if (baseSenderReport?.update(rtpFrame) == true) {
-              //4 is tcp header length
-              val reportSize = if (isTcp) RtpConstants.REPORT_PACKET_LENGTH + 4 else RtpConstants.REPORT_PACKET_LENGTH
-              bytesSend += reportSize
-              if (isEnableLogs) Log.i(TAG, "wrote report")
+              bytesSend += writeFrames(it, isTcp, keepHistory)
             }
           }
-          if (isEnableLogs) {
-            val type = if (isVideo) "Video" else "Audio"
-            Log.i(TAG, "wrote $type packet, size $size")
+          if (!pacer.isEmpty()) {
+            pacer.poll(TimeUtils.getCurrentTimeNano(), pacedFrames)
+            if (pacedFrames.isNotEmpty()) {
+              bytesSend += writeFrames(pacedFrames, isTcp, keepHistory)
+              pacedFrames.clear()
+            }
           }
         }.exceptionOrNull()
         if (error != null) {
@@ -215,31 +377,163 @@ class RtspSender(
     rtpSocket?.close()
     audioPacket?.reset()
     videoPacket?.reset()
+    fecEncoder.reset()
     resetSentAudioFrames()
     resetSentVideoFrames()
     resetDroppedAudioFrames()
     resetDroppedVideoFrames()
     job?.cancelAndJoin()
     job = null
-    queue.clear()
+    //sockets are closed so the receive loops finish
+    receiveJobs.forEach { it.cancel() }
+    receiveJobs = emptyList()
+    queue.clear { releaseFrames(it) }
+    videoHistory.clear()
+    audioHistory.clear()
+    pacer.clear()
+    retransmittedPackets = 0
+  }
+
+  /**
+   * Write frames, update counters and release them.
+   *
+   * @return bytes written
+   */
+  @Throws(IOException::class)
+  private suspend fun writeFrames(frames: List<RtpFrame>, isTcp: Boolean, keepHistory: Boolean): Long {
+    //saved before send because a nack can arrive before the access unit is written
+    if (keepHistory) {
+      frames.forEach { rtpFrame ->
+        if (fecActive && fecEncoder.isFecPacket(rtpFrame)) return@forEach
+        if (rtpFrame.isVideoFrame()) videoHistory.add(rtpFrame) else audioHistory.add(rtpFrame)
+      }
+    }
+    if (transportCc) {
+      val now = TimeUtils.getCurrentTimeNano() / 1000
+      frames.forEach { setTransportSequence(it, now) }
+    }
+    //all packets of the access unit and pending reports are sent together
+    val reports = if (fecActive) sendWithFec(frames) else rtpSocket?.sendFrames(frames, baseSenderReport) ?: 0
+    var size = 0L
+    var isVideo = false
+    frames.forEach { rtpFrame ->
+      //4 is tcp header length
+      size += if (isTcp) rtpFrame.length + 4 else rtpFrame.length
+      isVideo = rtpFrame.isVideoFrame()
+      if (isVideo) {
+        videoFramesSent++
+      } else {
+        audioFramesSent++
+      }
+    }
+    if (isEnableLogs) {
+      val type = if (isVideo) "Video" else "Audio"
+      Log.i(TAG, "wrote $type packet, size $size")
+    }
+    if (reports > 0) {
+      //4 is tcp header length
+      val reportSize = if (isTcp) RtpConstants.REPORT_PACKET_LENGTH + 4 else RtpConstants.REPORT_PACKET_LENGTH
+      size += reportSize * reports
+      if (isEnableLogs) Log.i(TAG, "wrote report")
+    }
+    //frames are written so the packetizer can reuse the buffer
+    releaseFrames(frames)
+    return size
+  }
+
+  /**
+   * Write a new transport-wide sequence number and save the send time. Packets without the
+   * extension, like fec packets, are not counted.
+   */
+  private fun setTransportSequence(rtpFrame: RtpFrame, sendTimeUs: Long) {
+    val buffer = rtpFrame.buffer
+    val offset = rtpFrame.offset
+    if (buffer[offset].toInt() and 0x10 == 0) return
+    val sequence = sendTimeHistory.add(sendTimeUs, rtpFrame.length)
+    buffer[offset + RtpConstants.TRANSPORT_CC_SEQUENCE_OFFSET] = (sequence shr 8).toByte()
+    buffer[offset + RtpConstants.TRANSPORT_CC_SEQUENCE_OFFSET + 1] = sequence.toByte()
+  }
+
+  /**
+   * Paced frames can mix media and fec packets. Fec packets have other SSRC so they are not
+   * counted in sender reports.
+   *
+   * @return number of sender reports sent
+   */
+  @Throws(IOException::class)
+  private suspend fun sendWithFec(frames: List<RtpFrame>): Int {
+    val rtpSocket = rtpSocket ?: return 0
+    var reports = 0
+    var start = 0
+    for (i in 1..frames.size) {
+      if (i == frames.size || fecEncoder.isFecPacket(frames[i]) != fecEncoder.isFecPacket(frames[start])) {
+        val isFec = fecEncoder.isFecPacket(frames[start])
+        reports += rtpSocket.sendFrames(frames.subList(start, i), if (isFec) null else baseSenderReport)
+        start = i
+      }
+    }
+    return reports
+  }
+
+  /**
+   * Read rtcp packets received in the rtsp connection when rtp is sent interleaved with TCP.
+   */
+  @Throws(IOException::class)
+  fun readInterleaved(input: InputStream) {
+    rtcpReceiver.readInterleaved(input)
+  }
+
+  private suspend fun receiveReports(senderReport: SenderReportUdp, isVideo: Boolean) {
+    val packet = DatagramPacket(ByteArray(RtpConstants.MTU), RtpConstants.MTU)
+    while (scope.isActive && running) {
+      val error = runCatching {
+        packet.setLength(RtpConstants.MTU)
+        runInterruptible { senderReport.receive(isVideo, packet) }
+        rtcpReceiver.onRtcpPacket(packet.data, packet.offset, packet.length)
+      }.exceptionOrNull()
+      if (error != null) {
+        if (running) Log.e(TAG, "rtcp receive error: ", error)
+        return
+      }
+    }
+  }
+
+  private fun retransmit(isVideo: Boolean, sequenceNumber: Int) {
+    if (!running || !retransmission) return
+    val history = if (isVideo) videoHistory else audioHistory
+    val rtpFrame = history.obtain(sequenceNumber) ?: return
+    try {
+      val frame = if (rtx) {
+        val track = if (isVideo) RtpConstants.trackVideo else RtpConstants.trackAudio
+        history.createRtxFrame(rtpFrame, RtpConstants.payloadTypeRtx + track)
+      } else if (transportCc) {
+        //the packet is shared with the history, a retransmission needs its own transport sequence
+        history.createCopy(rtpFrame)
+      } else rtpFrame
+      if (transportCc) setTransportSequence(frame, TimeUtils.getCurrentTimeNano() / 1000)
+      rtpSocket?.retransmitFrame(frame)
+      retransmittedPackets++
+    } catch (e: IOException) {
+      Log.e(TAG, "retransmission error: ", e)
+    } finally {
+      rtpFrame.release()
+    }
+  }
+
+  private fun releaseFrames(frames: List<RtpFrame>) {
+    //release using the size read before because the list is reused when the last frame is released
+    val size = frames.size
+    for (i in 0 until size) frames[i].release()
   }
 
   @Throws(IllegalArgumentException::class)
   fun hasCongestion(percentUsed: Float = 20f): Boolean {
     if (percentUsed < 0 || percentUsed > 100) throw IllegalArgumentException("the value must be in range 0 to 100")
-    val size = queue.size.toFloat()
-    val remaining = queue.remainingCapacity().toFloat()
-    val capacity = size + remaining
-    return size >= capacity * (percentUsed / 100f)
+    return queue.getUsage() >= percentUsed
   }
 
   fun resizeCache(newSize: Int) {
-    if (newSize < queue.size - queue.remainingCapacity()) {
-      throw RuntimeException("Can't fit current cache inside new cache size")
-    }
-    val tempQueue: BlockingQueue<List<RtpFrame>> = LinkedBlockingQueue(newSize)
-    queue.drainTo(tempQueue)
-    queue = tempQueue
+    queue.resize(newSize)
   }
 
   fun getCacheSize(): Int {
@@ -248,8 +542,23 @@ class RtspSender(
 
   fun getItemsInCache(): Int = queue.size
 
+  /**
+   * @param durationMs max media duration in the cache. 0 to limit the cache only by size
+   */
+  @Throws(IllegalArgumentException::class)
+  fun setMaxCacheDuration(durationMs: Long) {
+    queue.maxDurationMs = durationMs
+  }
+
+  fun getMaxCacheDuration(): Long = queue.maxDurationMs
+
+  /**
+   * @return media duration in the cache in milliseconds
+   */
+  fun getCacheDelay(): Long = queue.getDelayMs()
+
   fun clearCache() {
-    queue.clear()
+    queue.clear { releaseFrames(it) }
   }
 
   fun getSentAudioFrames(): Long {
@@ -285,4 +594,12 @@ class RtspSender(
   }
 
   fun getBitrateExponentialFactor() = bitrateManager.exponentialFactor
+
+  fun getVideoReceiverReport(): ReceiverReport? = rtcpReceiver.getVideoReport()
+
+  fun getAudioReceiverReport(): ReceiverReport? = rtcpReceiver.getAudioReport()
+
+  fun getRtt(): Long = rtcpReceiver.getRtt()
+
+  fun getPacketLoss(): Float = rtcpReceiver.getPacketLoss()
 }
\ No newline at end of file
@@ -22,6 +22,9 @@ import com.pedro.common.TimeUtils
 import com.pedro.common.VideoCodec
 import com.pedro.common.getMd5Hash
 import com.pedro.rtsp.rtsp.Protocol
+import com.pedro.rtsp.rtsp.commands.SdpBody.addFec
+import com.pedro.rtsp.rtsp.commands.SdpBody.addRetransmission
+import com.pedro.rtsp.rtsp.commands.SdpBody.addTransportCc
 import com.pedro.rtsp.rtsp.commands.SdpBody.createAV1Body
 import com.pedro.rtsp.rtsp.commands.SdpBody.createAacBody
 import com.pedro.rtsp.rtsp.commands.SdpBody.createG711Body
@@ -31,8 +34,9 @@ import com.pedro.rtsp.rtsp.commands.SdpBody.createOpusBody
 import com.pedro.rtsp.utils.RtpConstants
 import com.pedro.rtsp.utils.encodeToString
 import com.pedro.rtsp.utils.getData
-import java.io.BufferedReader
+import com.pedro.rtsp.utils.readLine
 import java.io.IOException
+import java.io.InputStream
 import java.nio.ByteBuffer
 import java.util.regex.Pattern
 
@@ -61,6 +65,13 @@ open class CommandsManager {
   var protocol: Protocol = Protocol.TCP
   var videoDisabled = false
   var audioDisabled = false
+  //advertise nack feedback and rtx payloads in the sdp
+  var retransmission = false
+  var rtx = false
+  //advertise ulpfec payload in the sdp
+  var fec = false
+  //advertise transport-wide sequence numbers and transport-cc feedback in the sdp
+  var transportCc = false
   private val commandParser = CommandParser()
   var videoCodec = VideoCodec.H264
   var audioCodec = AudioCodec.AAC
@@ -169,6 +180,32 @@ open class CommandsManager {
         AudioCodec.OPUS -> createOpusBody(RtpConstants.trackAudio)
       }
     }
+    //packets are never lost with tcp
+    if (retransmission && protocol == Protocol.UDP) {
+      if (videoBody.isNotEmpty()) {
+        val rtxPayload = if (rtx) RtpConstants.payloadTypeRtx + RtpConstants.trackVideo else -1
+        videoBody = addRetransmission(videoBody, RtpConstants.payloadType + RtpConstants.trackVideo,
+          RtpConstants.clockVideoFrequency, rtxPayload)
+      }
+      if (audioBody.isNotEmpty()) {
+        val payload = if (audioCodec == AudioCodec.G711) RtpConstants.payloadTypeG711 else RtpConstants.payloadType + RtpConstants.trackAudio
+        val clock = if (audioCodec == AudioCodec.OPUS) 48000L else sampleRate.toLong()
+        val rtxPayload = if (rtx) RtpConstants.payloadTypeRtx + RtpConstants.trackAudio else -1
+        audioBody = addRetransmission(audioBody, payload, clock, rtxPayload)
+      }
+    }
+    if (transportCc) {
+      if (videoBody.isNotEmpty()) {
+        videoBody = addTransportCc(videoBody, RtpConstants.payloadType + RtpConstants.trackVideo, RtpConstants.transportCcExtensionId)
+      }
+      if (audioBody.isNotEmpty()) {
+        val payload = if (audioCodec == AudioCodec.G711) RtpConstants.payloadTypeG711 else RtpConstants.payloadType + RtpConstants.trackAudio
+        audioBody = addTransportCc(audioBody, payload, RtpConstants.transportCcExtensionId)
+      }
+    }
+    if (fec && protocol == Protocol.UDP && videoBody.isNotEmpty()) {
+      videoBody = addFec(videoBody, RtpConstants.payloadTypeFec + RtpConstants.trackVideo, RtpConstants.clockVideoFrequency)
+    }
     return "v=0\r\n" +
         "o=- $timeStamp $timeStamp IN IP4 127.0.0.1\r\n" +
         "s=Unnamed\r\n" +
@@ -251,15 +288,33 @@ open class CommandsManager {
     return teardown
   }
 
+  /**
+   * Read a response byte by byte, including the body, so rtp and rtcp packets interleaved in the
+   * same connection can be read after it.
+   */
   @Throws(IOException::class)
-  fun getResponse(reader: BufferedReader, method: Method = Method.UNKNOWN): Command {
+  fun getResponse(input: InputStream, method: Method = Method.UNKNOWN): Command {
     var response = ""
+    var contentLength = 0
     var line: String?
-    while (reader.readLine().also { line = it } != null) {
+    while (input.readLine().also { line = it } != null) {
       response += "${line ?: ""}\n"
+      if (line?.startsWith("Content-Length:", ignoreCase = true) == true) {
+        contentLength = line?.substringAfter(":")?.trim()?.toIntOrNull() ?: 0
+      }
       //end of response
       if ((line?.length ?: 0) < 3) break
     }
+    if (contentLength > 0) {
+      val body = ByteArray(contentLength)
+      var read = 0
+      while (read < contentLength) {
+        val result = input.read(body, read, contentLength - read)
+        if (result < 0) break
+        read += result
+      }
+      response += String(body, 0, read)
+    }
     Log.i(TAG, response)
     return if (method == Method.UNKNOWN) {
       commandParser.parseCommand(response)
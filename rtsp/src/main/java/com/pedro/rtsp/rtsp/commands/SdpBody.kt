@@ -95,4 +95,39 @@ object SdpBody {
         "a=fmtp:$payload packetization-mode=1; sprop-sps=$sps; sprop-pps=$pps; sprop-vps=$vps\r\n" +
         "a=control:streamid=$trackVideo\r\n"
   }
-}
\ No newline at end of file
+
+  /**
+   * Advertise RFC 4585 generic NACK feedback and optionally a RFC 4588 RTX payload for a media body.
+   *
+   * @param rtxPayload payload type used to retransmit packets, -1 to retransmit with the original payload
+   */
+  fun addRetransmission(body: String, payload: Int, clock: Long, rtxPayload: Int = -1): String {
+    val mediaLine = body.substringBefore("\r\n")
+    val attributes = body.substringAfter("\r\n")
+    return if (rtxPayload >= 0) {
+      "$mediaLine $rtxPayload\r\n" + attributes +
+          "a=rtcp-fb:$payload nack\r\n" +
+          "a=rtpmap:$rtxPayload rtx/$clock\r\n" +
+          "a=fmtp:$rtxPayload apt=$payload\r\n"
+    } else {
+      "$mediaLine\r\n" + attributes + "a=rtcp-fb:$payload nack\r\n"
+    }
+  }
+
+  /**
+   * Advertise a RFC 5109 ULPFEC payload sent in the same port that the media.
+   */
+  fun addFec(body: String, fecPayload: Int, clock: Long): String {
+    val mediaLine = body.substringBefore("\r\n")
+    val attributes = body.substringAfter("\r\n")
+    return "$mediaLine $fecPayload\r\n" + attributes + "a=rtpmap:$fecPayload ulpfec/$clock\r\n"
+  }
+
+  /**
+   * Advertise the transport-wide sequence number header extension and transport-cc feedback.
+   */
+  fun addTransportCc(body: String, payload: Int, extensionId: Int): String {
+    return body + "a=rtcp-fb:$payload transport-cc\r\n" +
+        "a=extmap:$extensionId http://www.ietf.org/id/draft-holmer-rmcat-transport-wide-cc-extensions-01\r\n"
+  }
+}
@@ -16,6 +16,8 @@
 
 package com.pedro.rtsp.utils
 
+import java.io.IOException
+import java.io.InputStream
 import java.nio.ByteBuffer
 import kotlin.io.encoding.Base64
 import kotlin.io.encoding.ExperimentalEncodingApi
@@ -53,4 +55,21 @@ fun ByteBuffer.getVideoStartCodeSize(): Int {
     startCodeSize = 3
   }
   return startCodeSize
-}
\ No newline at end of file
+}
+
+/**
+ * Read a line byte by byte, the stream can be read as binary data after it.
+ *
+ * @return the line without line terminators or null if the stream is finished
+ */
+@Throws(IOException::class)
+fun InputStream.readLine(): String? {
+  var value = read()
+  if (value < 0) return null
+  val builder = StringBuilder()
+  while (value >= 0 && value != '\n'.code) {
+    if (value != '\r'.code) builder.append(value.toChar())
+    value = read()
+  }
+  return builder.toString()
+}
@@ -21,8 +21,6 @@ package com.pedro.rtsp.utils
  */
 object RtpConstants {
 
-  @JvmField
-  val lock = Any()
   var trackAudio = 1
   var trackVideo = 0
   const val clockVideoFrequency = 90000L
@@ -30,10 +28,21 @@ object RtpConstants {
   const val MTU = 1500
   const val REPORT_PACKET_LENGTH = 28
   const val payloadType = 96
+  //RFC 4588 retransmission payload, added to track like payloadType
+  const val payloadTypeRtx = 98
+  //RFC 5109 ulpfec payload, added to track like payloadType
+  const val payloadTypeFec = 100
+  //RFC 8285 one-byte header with the transport-wide sequence number
+  const val transportCcExtensionId = 3
+  const val TRANSPORT_CC_EXTENSION_LENGTH = 8
+  //position of the transport-wide sequence number in packets with the extension
+  const val TRANSPORT_CC_SEQUENCE_OFFSET = RTP_HEADER_LENGTH + 5
   //PCMA, https://blog.csdn.net/hiwubihe/article/details/84569152
   const val payloadTypeG711 = 8
   //H264 IDR
   const val IDR = 5
+  const val SPS = 7
+  const val PPS = 8
 
   //H265 IDR
   const val IDR_N_LP = 20
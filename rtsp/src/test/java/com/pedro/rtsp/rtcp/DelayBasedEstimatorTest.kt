@@ -0,0 +1,173 @@
+/*
+ * Copyright (C) 2024 pedroSG94.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.pedro.rtsp.rtcp
+
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import java.io.ByteArrayOutputStream
+import java.nio.ByteBuffer
+
+class DelayBasedEstimatorTest {
+
+  private class Packet(val sequence: Int, val size: Int, val arrivalUs: Long)
+
+  /**
+   * Sender produce a frame of the target bitrate each 33ms, the packets cross a bottleneck with a
+   * FIFO queue and the receiver send transport-cc feedback each 100ms.
+   */
+  private class Simulation(startBitrate: Long) {
+    val history = SendTimeHistory()
+    val estimator = DelayBasedEstimator(startBitrate, 300_000, 10_000_000)
+    val receiver = RtcpReceiver()
+    var capacity = 0L
+    var now = 0L
+    var maxQueueDelayMs = 0L
+    var queueDelayMs = 0L
+    var lastDecreaseUs = -1L
+    private var lastDeparture = 0L
+    private val pending = ArrayList<Packet>()
+    private var nextFrame = 0L
+    private var nextFeedback = 100_000L
+    private var feedbackCount = 0
+
+    init {
+      receiver.setTransportFeedbackListener { baseSequence, arrivalTimesUs, count ->
+        val previous = estimator.targetBitrate
+        val target = estimator.onFeedback(history, baseSequence, arrivalTimesUs, count, now)
+        if (target < previous) lastDecreaseUs = now
+      }
+    }
+
+    fun run(durationUs: Long) {
+      val end = now + durationUs
+      while (now < end) {
+        if (now >= nextFrame) {
+          var bytes = (estimator.targetBitrate / 8 / 30).toInt()
+          while (bytes > 0) {
+            val size = minOf(1200, bytes)
+            bytes -= size
+            val sequence = history.add(now, size)
+            //20ms of propagation
+            val departure = maxOf(now, lastDeparture) + size * 8 * 1_000_000L / capacity
+            lastDeparture = departure
+            queueDelayMs = (departure - now) / 1000
+            maxQueueDelayMs = maxOf(maxQueueDelayMs, queueDelayMs)
+            pending.add(Packet(sequence, size, departure + 20_000))
+          }
+          nextFrame += 33_333
+        }
+        if (now >= nextFeedback) {
+          val arrived = pending.filter { it.arrivalUs <= now }
+          if (arrived.isNotEmpty()) {
+            val feedback = createFeedback(arrived, feedbackCount++)
+            receiver.onRtcpPacket(feedback, 0, feedback.size)
+            pending.removeAll(arrived.toSet())
+          }
+          nextFeedback += 100_000
+        }
+        now += 1_000
+      }
+    }
+  }
+
+  @Test
+  fun `GIVEN a bottleneck WHEN receive transport feedback THEN target bitrate follow the capacity without queue delay`() {
+    val simulation = Simulation(1_000_000)
+    simulation.capacity = 2_000_000
+    simulation.run(20_000_000)
+    var target = simulation.estimator.targetBitrate
+    assertTrue(target in 1_400_000..2_400_000)
+    assertTrue(simulation.maxQueueDelayMs < 300)
+
+    simulation.capacity = 1_000_000
+    simulation.maxQueueDelayMs = 0
+    val dropTime = simulation.now
+    simulation.run(15_000_000)
+    target = simulation.estimator.targetBitrate
+    assertTrue(simulation.lastDecreaseUs > dropTime)
+    assertTrue(target in 600_000..1_200_000)
+    //the queue is drained after the estimation
+    assertTrue(simulation.queueDelayMs < 200)
+
+    simulation.capacity = 4_000_000
+    simulation.maxQueueDelayMs = 0
+    simulation.run(30_000_000)
+    target = simulation.estimator.targetBitrate
+    assertTrue(target in 2_800_000..4_800_000)
+    assertTrue(simulation.maxQueueDelayMs < 500)
+  }
+
+  @Test
+  fun `GIVEN a path without congestion WHEN receive transport feedback THEN increase target bitrate`() {
+    val simulation = Simulation(1_000_000)
+    simulation.capacity = 50_000_000
+    simulation.run(10_000_000)
+    val target = simulation.estimator.targetBitrate
+    //8% per second
+    assertTrue(target in 1_800_000..2_400_000)
+  }
+
+  companion object {
+    /**
+     * Transport-cc feedback with 2 bits status vector chunks of received packets
+     */
+    private fun createFeedback(packets: List<Packet>, feedbackCount: Int): ByteArray {
+      val base = packets.first().sequence
+      val count = ((packets.last().sequence - base) and 0xFFFF) + 1
+      val arrivals = LongArray(count) { -1 }
+      packets.forEach { arrivals[(it.sequence - base) and 0xFFFF] = it.arrivalUs }
+      val referenceTime = arrivals.first() / 64_000
+      val chunks = ByteArrayOutputStream()
+      val deltas = ByteArrayOutputStream()
+      var time = referenceTime * 64_000
+      val symbols = IntArray(count) { i ->
+        val arrival = arrivals[i]
+        if (arrival < 0) return@IntArray 0
+        val delta = (arrival - time) / 250
+        time += delta * 250
+        if (delta in 0..255) {
+          deltas.write(delta.toInt())
+          1
+        } else {
+          deltas.write((delta shr 8).toInt())
+          deltas.write(delta.toInt())
+          2
+        }
+      }
+      for (i in 0 until count step 7) {
+        var chunk = 0xC000
+        for (j in 0 until 7) {
+          val symbol = if (i + j < count) symbols[i + j] else 0
+          chunk = chunk or (symbol shl ((6 - j) * 2))
+        }
+        chunks.write(chunk shr 8)
+        chunks.write(chunk)
+      }
+      val length = 20 + chunks.size() + deltas.size()
+      val padding = (4 - length % 4) % 4
+      val buffer = ByteBuffer.allocate(length + padding)
+      buffer.put((0x80 or 15).toByte()).put(205.toByte()).putShort(((length + padding) / 4 - 1).toShort())
+      buffer.putInt(1).putInt(2)
+      buffer.putShort(base.toShort()).putShort(count.toShort())
+      buffer.put((referenceTime shr 16).toByte()).put((referenceTime shr 8).toByte()).put(referenceTime.toByte())
+      buffer.put(feedbackCount.toByte())
+      buffer.put(chunks.toByteArray()).put(deltas.toByteArray())
+      return buffer.array()
+    }
+  }
+}
@@ -0,0 +1,203 @@
+/*
+ * Copyright (C) 2024 pedroSG94.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.pedro.rtsp.rtcp
+
+import com.pedro.common.TimeUtils
+import com.pedro.rtsp.rtsp.Protocol
+import com.pedro.rtsp.rtsp.RtpFrame
+import com.pedro.rtsp.rtsp.commands.CommandsManager
+import com.pedro.rtsp.rtsp.commands.Method
+import com.pedro.rtsp.utils.RtpConstants
+import kotlinx.coroutines.test.runTest
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNull
+import org.junit.Test
+import org.mockito.Mockito
+import java.io.BufferedInputStream
+import java.io.ByteArrayInputStream
+import java.io.ByteArrayOutputStream
+import java.nio.ByteBuffer
+
+class RtcpReceiverTest {
+
+  private val videoSsrc = 0x11223344L
+  private val audioSsrc = 0xAABBCCDDL
+
+  @Test
+  fun `GIVEN a receiver report of our sender report WHEN parse it THEN calculate loss jitter and rtt`() = runTest {
+    Mockito.mockStatic(TimeUtils::class.java).use { timeUtils ->
+      var nanos = 7_502_849_023_000_000L
+      timeUtils.`when`<Long> { TimeUtils.getCurrentTimeNano() }.then { nanos }
+      timeUtils.`when`<Long> { TimeUtils.getCurrentTimeMillis() }.then { nanos / 1_000_000 }
+      //create a sender report like in a real stream to get the LSR
+      val output = ByteArrayOutputStream()
+      val senderReport = BaseSenderReport.getInstance(Protocol.TCP, 0, 1)
+      senderReport.setDataStream(output, "127.0.0.1")
+      senderReport.setSSRC(videoSsrc, audioSsrc)
+      senderReport.update(RtpFrame(ByteArray(3), 0, 3, 0, 0, RtpConstants.trackVideo))
+      val sr = output.toByteArray()
+      val lsr = ByteBuffer.wrap(sr, 4 + 10, 4).int.toLong() and 0xFFFFFFFFL
+      assertEquals(RtcpReceiver.getNtpMiddle(nanos), lsr)
+
+      val receiver = RtcpReceiver()
+      receiver.setSSRC(videoSsrc, audioSsrc)
+      receiver.setAudioClock(48000)
+      //server hold the report 500ms and the network add 100ms
+      nanos += 600_000_000L
+      val rr = createReceiverReport(
+        reportBlock(videoSsrc, 64, 120, 1000, 9000, lsr, 32768),
+        reportBlock(audioSsrc, 0, -1, 500, 480, 0, 0),
+        reportBlock(0x01020304, 255, 10, 10, 10, 0, 0)
+      )
+      receiver.onRtcpPacket(rr, 0, rr.size)
+
+      val videoReport = receiver.getVideoReport()
+      val audioReport = receiver.getAudioReport()
+      assertEquals(ReceiverReport(0.25f, 120, 1000, 100, 100), videoReport)
+      assertEquals(ReceiverReport(0f, -1, 500, 10, 0), audioReport)
+      assertEquals(100, receiver.getRtt())
+      assertEquals(0.25f, receiver.getPacketLoss())
+    }
+  }
+
+  @Test
+  fun `GIVEN extended reports WHEN parse them THEN update loss jitter and rtt`() {
+    val receiver = RtcpReceiver()
+    receiver.setSSRC(videoSsrc, audioSsrc)
+    val xr = ByteBuffer.allocate(8 + 40 + 36)
+    xr.put(0x80.toByte()).put(207.toByte()).putShort(((xr.capacity() / 4) - 1).toShort()).putInt(1)
+    //statistics summary: loss and jitter flags, 10 lost of 200, mean jitter 4500 (50ms)
+    xr.put(6).put(0xA0.toByte()).putShort(9).putInt(videoSsrc.toInt())
+    xr.putShort(100).putShort(300).putInt(10).putInt(0)
+    xr.putInt(0).putInt(0).putInt(4500).putInt(0).putInt(0)
+    //voip metrics: loss rate 128/256, round trip delay 80ms
+    xr.put(7).put(0).putShort(8).putInt(audioSsrc.toInt())
+    xr.put(128.toByte()).put(0).put(0).put(0).putShort(0).putShort(0)
+    xr.putShort(80).putShort(0).put(ByteArray(16))
+    val data = xr.array()
+    receiver.onRtcpPacket(data, 0, data.size)
+
+    assertEquals(ReceiverReport(0.05f, 0, 0, 50, 0), receiver.getVideoReport())
+    assertEquals(ReceiverReport(0.5f, 0, 0, 0, 80), receiver.getAudioReport())
+    assertEquals(80, receiver.getRtt())
+    assertEquals(0.5f, receiver.getPacketLoss())
+    receiver.reset()
+    assertNull(receiver.getVideoReport())
+    assertEquals(0, receiver.getRtt())
+  }
+
+  @Test
+  fun `GIVEN rtsp messages and interleaved packets WHEN read the connection THEN parse only rtcp packets`() {
+    val receiver = RtcpReceiver()
+    receiver.setSSRC(videoSsrc, audioSsrc)
+    val rr = createReceiverReport(reportBlock(videoSsrc, 26, 5, 2000, 0, 0, 0))
+    val rtp = ByteArray(20) { 0x24 }
+    val output = ByteArrayOutputStream()
+    output.write("RTSP/1.0 200 OK\r\nCSeq: 7\r\nContent-Length: 4\r\n\r\n\$\$\$\$".toByteArray())
+    output.write(byteArrayOf(0x24, 0, 0, rtp.size.toByte()))
+    output.write(rtp)
+    output.write(byteArrayOf(0x24, 1, 0, rr.size.toByte()))
+    output.write(rr)
+    val input = ByteArrayInputStream(output.toByteArray())
+
+    assertEquals(-1, receiver.readInterleaved(input))
+    assertEquals(0, receiver.readInterleaved(input))
+    assertNull(receiver.getVideoReport())
+    assertEquals(1, receiver.readInterleaved(input))
+    assertEquals(ReceiverReport(26 / 256f, 5, 2000, 0, 0), receiver.getVideoReport())
+    assertEquals(0, input.available())
+  }
+
+  @Test
+  fun `GIVEN a rtsp response followed by interleaved packets WHEN read the response THEN rtcp packets are read from the same stream`() {
+    val receiver = RtcpReceiver()
+    receiver.setSSRC(videoSsrc, audioSsrc)
+    val rr = createReceiverReport(reportBlock(videoSsrc, 26, 5, 2000, 0, 0, 0))
+    val output = ByteArrayOutputStream()
+    output.write("RTSP/1.0 200 OK\r\nCSeq: 5\r\nSession: 1234\r\nContent-Length: 4\r\n\r\nbody".toByteArray())
+    output.write(byteArrayOf(0x24, 1, 0, rr.size.toByte()))
+    output.write(rr)
+    val input = BufferedInputStream(ByteArrayInputStream(output.toByteArray()))
+
+    val response = CommandsManager().getResponse(input, Method.RECORD)
+    assertEquals(200, response.status)
+    assertEquals(5, response.cSeq)
+    assertEquals(1, receiver.readInterleaved(input))
+    assertEquals(ReceiverReport(26 / 256f, 5, 2000, 0, 0), receiver.getVideoReport())
+    assertEquals(0, input.available())
+  }
+
+  @Test
+  fun `GIVEN generic nack WHEN parse it THEN notify each lost packet of the track`() {
+    val receiver = RtcpReceiver()
+    receiver.setSSRC(videoSsrc, audioSsrc)
+    val result = mutableListOf<Pair<Boolean, Int>>()
+    receiver.setNackListener { isVideo, sequenceNumber -> result.add(isVideo to sequenceNumber) }
+    //PID 65534 with BLP lost 65535 and 2 (wrap)
+    val nack = ByteBuffer.allocate(16)
+    nack.put((0x80 or 1).toByte()).put(205.toByte()).putShort(3).putInt(0x55555555).putInt(videoSsrc.toInt())
+    nack.putShort(65534.toShort()).putShort(0b101)
+    val unknownSsrc = nack.array().copyOf().also { ByteBuffer.wrap(it).putInt(8, 0x01020304) }
+    receiver.onRtcpPacket(nack.array(), 0, nack.capacity())
+    receiver.onRtcpPacket(unknownSsrc, 0, unknownSsrc.size)
+
+    assertEquals(listOf(true to 65534, true to 65535, true to 1), result)
+  }
+
+  @Test
+  fun `GIVEN transport feedback with run length and status vector WHEN parse it THEN get arrival times`() {
+    val receiver = RtcpReceiver()
+    var result = listOf<Long>()
+    var base = -1
+    receiver.setTransportFeedbackListener { baseSequence, arrivalTimesUs, count ->
+      base = baseSequence
+      result = arrivalTimesUs.copyOf(count).toList()
+    }
+    val feedback = ByteBuffer.allocate(28)
+    feedback.put((0x80 or 15).toByte()).put(205.toByte()).putShort(6).putInt(1).putInt(2)
+    //base 65534, 5 packets, reference time 2 (128ms), feedback count 0
+    feedback.putShort(65534.toShort()).putShort(5).put(0).put(0).put(2).put(0)
+    //run length of 2 packets with small delta, 1 bit vector: lost, received, received
+    feedback.putShort(0x2002).putShort(0x9800.toShort())
+    //deltas: 1ms, 2ms, 0.25ms, 3ms
+    feedback.put(4).put(8).put(1).put(12)
+    receiver.onRtcpPacket(feedback.array(), 0, 28)
+
+    assertEquals(65534, base)
+    assertEquals(listOf(129_000L, 131_000L, -1L, 131_250L, 134_250L), result)
+  }
+
+  private fun createReceiverReport(vararg blocks: ByteArray): ByteArray {
+    val buffer = ByteBuffer.allocate(8 + blocks.size * 24)
+    buffer.put((0x80 or blocks.size).toByte()).put(201.toByte())
+    buffer.putShort(((buffer.capacity() / 4) - 1).toShort()).putInt(0x55555555)
+    blocks.forEach { buffer.put(it) }
+    return buffer.array()
+  }
+
+  private fun reportBlock(
+    ssrc: Long, fractionLost: Int, packetsLost: Int, highestSequence: Int,
+    jitter: Int, lsr: Long, dlsr: Long
+  ): ByteArray {
+    val buffer = ByteBuffer.allocate(24)
+    buffer.putInt(ssrc.toInt())
+    buffer.putInt((fractionLost shl 24) or (packetsLost and 0xFFFFFF))
+    buffer.putInt(highestSequence).putInt(jitter).putInt(lsr.toInt()).putInt(dlsr.toInt())
+    return buffer.array()
+  }
+}
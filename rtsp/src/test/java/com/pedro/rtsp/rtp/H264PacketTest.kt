@@ -25,12 +25,15 @@ import org.junit.Assert.assertNotEquals
 import org.junit.Assert.assertTrue
 import org.junit.Test
 import java.nio.ByteBuffer
+import kotlin.random.Random
 
 /**
  * Created by pedro on 15/4/22.
  */
 class H264PacketTest {
 
+  private var seed = 0L
+
   @Test
   fun `GIVEN a small ByteBuffer raw h264 WHEN create a packet THEN get a RTP h264 packet`() {
     val timestamp = 123456789L
@@ -54,7 +57,7 @@ class H264PacketTest {
     }
 
     val expectedRtp = byteArrayOf(-128, -32, 0, 2, 0, -87, -118, -57, 7, 91, -51, 21, 5).plus(fakeH264.copyOfRange(header.size, fakeH264.size))
-    val expectedStapA = byteArrayOf(-128, -32, 0, 1, 0, -87, -118, -57, 7, 91, -51, 21, 24, 0, 7, 0, 0, 0, 1, 2, 3, 4, 0, 7, 0, 0, 0, 1, 10, 11, 12)
+    val expectedStapA = byteArrayOf(-128, 96, 0, 1, 0, -87, -118, -57, 7, 91, -51, 21, 24, 0, 7, 0, 0, 0, 1, 2, 3, 4, 0, 7, 0, 0, 0, 1, 10, 11, 12)
     val expectedTimeStamp = 11111111L
     val expectedSize = RtpConstants.RTP_HEADER_LENGTH + 1 + info.size - header.size
     val expectedStapAResult = RtpFrame(expectedStapA, expectedTimeStamp, fakePps.size + fakePps.size + 5 + RtpConstants.RTP_HEADER_LENGTH, 1, 2, RtpConstants.trackVideo)
@@ -94,7 +97,7 @@ class H264PacketTest {
     val expectedRtp = byteArrayOf(-128, 96, 0, 2, 0, -87, -118, -57, 7, 91, -51, 21, 28, -123).plus(chunk1)
     val expectedRtp2 = byteArrayOf(-128, -32, 0, 3, 0, -87, -118, -57, 7, 91, -51, 21, 28, 69).plus(chunk2)
 
-    val expectedStapA = byteArrayOf(-128, -32, 0, 1, 0, -87, -118, -57, 7, 91, -51, 21, 24, 0, 7, 0, 0, 0, 1, 2, 3, 4, 0, 7, 0, 0, 0, 1, 10, 11, 12)
+    val expectedStapA = byteArrayOf(-128, 96, 0, 1, 0, -87, -118, -57, 7, 91, -51, 21, 24, 0, 7, 0, 0, 0, 1, 2, 3, 4, 0, 7, 0, 0, 0, 1, 10, 11, 12)
     val expectedTimeStamp = 11111111L
     val expectedSize = chunk1.size + RtpConstants.RTP_HEADER_LENGTH + 2
     val expectedSize2 = chunk2.size + RtpConstants.RTP_HEADER_LENGTH + 2
@@ -109,4 +112,163 @@ class H264PacketTest {
     assertEquals(expectedPacketResult, frames[1])
     assertEquals(expectedPacketResult2, frames[2])
   }
-}
\ No newline at end of file
+
+  @Test
+  fun `GIVEN transport sequence enabled WHEN create a packet THEN get RTP packets with header extension`() {
+    val fakeH264 = byteArrayOf(0x00, 0x00, 0x00, 0x01, 0x05).plus(ByteArray(3000) { 0x00 })
+    val info = MediaCodec.BufferInfo()
+    info.presentationTimeUs = 123456789L
+    info.offset = 0
+    info.size = fakeH264.size
+    info.flags = 1
+
+    val h264Packet = H264Packet(byteArrayOf(0x00, 0x00, 0x00, 0x01, 0x02), byteArrayOf(0x00, 0x00, 0x00, 0x01, 0x0A))
+    h264Packet.setPorts(1, 2)
+    h264Packet.setSSRC(123456789)
+    h264Packet.setTransportSequence(true)
+    val frames = mutableListOf<RtpFrame>()
+    h264Packet.createAndSendPacket(ByteBuffer.wrap(fakeH264), info) {
+      frames.addAll(it)
+    }
+
+    val headerLength = RtpConstants.RTP_HEADER_LENGTH + RtpConstants.TRANSPORT_CC_EXTENSION_LENGTH
+    val profile = byteArrayOf(0xBE.toByte(), 0xDE.toByte(), 0, 1, (RtpConstants.transportCcExtensionId shl 4 or 1).toByte())
+    assertTrue(frames.size > 2)
+    var payloadSize = 0
+    frames.forEach { frame ->
+      assertEquals(0x90.toByte(), frame.buffer[0])
+      assertEquals(RtpConstants.payloadType, frame.buffer[1].toInt() and 0x7F)
+      assertEquals(profile.toList(), frame.buffer.copyOfRange(12, 17).toList())
+      assertTrue(frame.length <= RtpConstants.MTU - 28)
+      payloadSize += frame.length - headerLength
+    }
+    //stap-a with sps and pps, fu-a header in each fragment and nal header once
+    val stapA = 1 + 2 + 5 + 2 + 5
+    val fragments = frames.size - 1
+    assertEquals(stapA + info.size - 4 + fragments * 2 - 1, payloadSize)
+  }
+
+  @Test
+  fun `GIVEN a multi slice key frame with aud and sei WHEN create a packet THEN aggregate small NAL units in STAP-A`() {
+    val aud = byteArrayOf(0x09, 0xF0.toByte())
+    val sps = byteArrayOf(0x67, 0x42, 0x00, 0x1F)
+    val pps = byteArrayOf(0x68, 0xCE.toByte(), 0x3C, 0x80.toByte())
+    val sei = createNal(0x06, 20)
+    val slices = List(3) { createNal(0x65, 500) }
+    val accessUnit = listOf(aud, sps, pps, sei).plus(slices)
+    val h264Packet = H264Packet(sps, pps)
+    h264Packet.setPorts(1, 2)
+    h264Packet.setSSRC(123456789)
+    val frames = createFrames(h264Packet, accessUnit, keyFrame = true)
+
+    //sps and pps, aud + sei + 2 slices and the last slice alone
+    assertEquals(3, frames.size)
+    assertEquals(24, frames[1].buffer[RtpConstants.RTP_HEADER_LENGTH].toInt() and 0x1F)
+    //highest NRI of the aggregated NAL units
+    assertEquals(0x60, frames[1].buffer[RtpConstants.RTP_HEADER_LENGTH].toInt() and 0x60)
+    assertEquals(5, frames[2].buffer[RtpConstants.RTP_HEADER_LENGTH].toInt() and 0x1F)
+    assertEquals(listOf(false, false, true), frames.map { isMarked(it) })
+    assertEquals(listOf(sps, pps).plus(listOf(aud, sei)).plus(slices).map { it.toList() }, depacketize(frames))
+  }
+
+  @Test
+  fun `GIVEN a frame with big and small slices WHEN create a packet THEN fragment only big NAL units`() {
+    val sps = byteArrayOf(0x67, 0x42, 0x00, 0x1F)
+    val pps = byteArrayOf(0x68, 0xCE.toByte(), 0x3C, 0x80.toByte())
+    val h264Packet = H264Packet(sps, pps)
+    h264Packet.setPorts(1, 2)
+    h264Packet.setSSRC(123456789)
+    //start sending with a key frame
+    createFrames(h264Packet, listOf(createNal(0x65, 100)), keyFrame = true)
+
+    val sei = createNal(0x06, 30)
+    val bigSlice = createNal(0x41, 3000)
+    val smallSlices = List(2) { createNal(0x41, 100) }
+    val accessUnit = listOf(sei, bigSlice).plus(smallSlices)
+    val frames = createFrames(h264Packet, accessUnit, keyFrame = false)
+
+    //sei alone because the next NAL unit is fragmented, 3 FU-A and STAP-A with the small slices
+    assertEquals(5, frames.size)
+    val types = frames.map { it.buffer[RtpConstants.RTP_HEADER_LENGTH].toInt() and 0x1F }
+    assertEquals(listOf(6, 28, 28, 28, 24), types)
+    assertEquals(listOf(false, false, false, false, true), frames.map { isMarked(it) })
+    assertTrue(frames.all { it.length <= RtpConstants.MTU - 28 })
+    assertEquals(accessUnit.map { it.toList() }, depacketize(frames))
+  }
+
+  @Test
+  fun `GIVEN a low bitrate frame with many slices WHEN create a packet THEN send less packets than NAL units`() {
+    val sps = byteArrayOf(0x67, 0x42, 0x00, 0x1F)
+    val pps = byteArrayOf(0x68, 0xCE.toByte(), 0x3C, 0x80.toByte())
+    val h264Packet = H264Packet(sps, pps)
+    h264Packet.setPorts(1, 2)
+    h264Packet.setSSRC(123456789)
+    createFrames(h264Packet, listOf(createNal(0x65, 100)), keyFrame = true)
+
+    val accessUnit = List(8) { createNal(0x41, 120) }
+    val frames = createFrames(h264Packet, accessUnit, keyFrame = false)
+    assertEquals(1, frames.size)
+    assertEquals(accessUnit.map { it.toList() }, depacketize(frames))
+  }
+
+  /**
+   * NAL unit with random payload without zeros to avoid start codes
+   */
+  private fun createNal(header: Int, size: Int): ByteArray {
+    val random = Random(seed++)
+    return ByteArray(size) { if (it == 0) header.toByte() else (random.nextInt(255) + 1).toByte() }
+  }
+
+  private fun createFrames(h264Packet: H264Packet, nalUnits: List<ByteArray>, keyFrame: Boolean): List<RtpFrame> {
+    //mix 4 and 3 bytes start codes
+    var accessUnit = ByteArray(0)
+    nalUnits.forEachIndexed { i, nal ->
+      val startCode = if (i % 2 == 0) byteArrayOf(0x00, 0x00, 0x00, 0x01) else byteArrayOf(0x00, 0x00, 0x01)
+      accessUnit = accessUnit.plus(startCode).plus(nal)
+    }
+    val info = MediaCodec.BufferInfo()
+    info.presentationTimeUs = 123456789L
+    info.offset = 0
+    info.size = accessUnit.size
+    info.flags = if (keyFrame) 1 else 0
+    val frames = mutableListOf<RtpFrame>()
+    h264Packet.createAndSendPacket(ByteBuffer.wrap(accessUnit), info) { rtpFrames ->
+      frames.addAll(rtpFrames.map { it.buffer.copyOfRange(it.offset, it.offset + it.length) }
+        .map { RtpFrame(it, 0, it.size, 1, 2, RtpConstants.trackVideo) })
+    }
+    return frames
+  }
+
+  private fun isMarked(frame: RtpFrame): Boolean = frame.buffer[1].toInt() and 0x80 != 0
+
+  /**
+   * Rebuild NAL units from single NAL unit, STAP-A and FU-A packets
+   */
+  private fun depacketize(frames: List<RtpFrame>): List<List<Byte>> {
+    val nalUnits = mutableListOf<List<Byte>>()
+    var fragmented = mutableListOf<Byte>()
+    frames.forEach { frame ->
+      val payload = frame.buffer.copyOfRange(RtpConstants.RTP_HEADER_LENGTH, frame.length)
+      when (payload[0].toInt() and 0x1F) {
+        24 -> {
+          var position = 1
+          while (position < payload.size) {
+            val size = ((payload[position].toInt() and 0xFF) shl 8) or (payload[position + 1].toInt() and 0xFF)
+            nalUnits.add(payload.copyOfRange(position + 2, position + 2 + size).toList())
+            position += 2 + size
+          }
+        }
+        28 -> {
+          val fuHeader = payload[1].toInt()
+          if (fuHeader and 0x80 != 0) {
+            fragmented = mutableListOf(((payload[0].toInt() and 0xE0) or (fuHeader and 0x1F)).toByte())
+          }
+          fragmented.addAll(payload.copyOfRange(2, payload.size).toList())
+          if (fuHeader and 0x40 != 0) nalUnits.add(fragmented)
+        }
+        else -> nalUnits.add(payload.toList())
+      }
+    }
+    return nalUnits
+  }
+}
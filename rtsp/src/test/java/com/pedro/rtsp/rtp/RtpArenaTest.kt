@@ -0,0 +1,141 @@
+/*
+ * Copyright (C) 2024 pedroSG94.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.pedro.rtsp.rtp
+
+import android.media.MediaCodec
+import com.pedro.common.TimedBlockingQueue
+import com.pedro.rtsp.rtp.packets.H264Packet
+import com.pedro.rtsp.rtsp.RtpFrame
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNotSame
+import org.junit.Assert.assertSame
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import java.lang.management.ManagementFactory
+import java.nio.ByteBuffer
+
+class RtpArenaTest {
+
+  private val fakeSps = byteArrayOf(0x00, 0x00, 0x00, 0x01, 0x02, 0x03, 0x04)
+  private val fakePps = byteArrayOf(0x00, 0x00, 0x00, 0x01, 0x0A, 0x0B, 0x0C)
+
+  @Test
+  fun `GIVEN frames released WHEN packetize access units THEN reuse the arena and write same packets`() {
+    val pooledPacket = H264Packet(fakeSps, fakePps).apply { setPorts(1, 2); setSSRC(123456789) }
+    val h264Packet = H264Packet(fakeSps, fakePps).apply { setPorts(1, 2); setSSRC(123456789) }
+    val info = MediaCodec.BufferInfo()
+    val buffers = mutableSetOf<ByteArray>()
+    for (i in 0 until 60) {
+      val frame = createFrame(i, if (i % 3 == 0) 300 else 5000)
+      info.presentationTimeUs = i * 33_000L
+      info.size = frame.size
+      info.flags = if (i % 30 == 0) MediaCodec.BUFFER_FLAG_KEY_FRAME else 0
+      val expected = mutableListOf<RtpFrame>()
+      h264Packet.createAndSendPacket(ByteBuffer.wrap(frame), info) { expected.addAll(it) }
+      pooledPacket.createAndSendPacket(ByteBuffer.wrap(frame), info) { frames ->
+        assertEquals(expected, frames)
+        //all packets of the access unit are in the same buffer
+        frames.forEach { assertSame(frames[0].buffer, it.buffer) }
+        buffers.add(frames[0].buffer)
+        frames.forEach { it.release() }
+      }
+    }
+    //the buffer is only replaced when the first big access unit doesn't fit
+    assertEquals(2, buffers.size)
+  }
+
+  @Test
+  fun `GIVEN frames not released WHEN packetize access units THEN buffer is not reused`() {
+    val h264Packet = H264Packet(fakeSps, fakePps)
+    val info = MediaCodec.BufferInfo()
+    val result = mutableListOf<RtpFrame>()
+    for (i in 0 until 2) {
+      val frame = createFrame(i, 300)
+      info.size = frame.size
+      info.flags = MediaCodec.BUFFER_FLAG_KEY_FRAME
+      h264Packet.createAndSendPacket(ByteBuffer.wrap(frame), info) { result.add(it[0]) }
+    }
+    assertNotSame(result[0].buffer, result[1].buffer)
+  }
+
+  @Test
+  fun `GIVEN frames in a queue WHEN clear the queue releasing items THEN buffer is reused`() {
+    val h264Packet = H264Packet(fakeSps, fakePps)
+    val queue = TimedBlockingQueue<List<RtpFrame>>(10)
+    val info = MediaCodec.BufferInfo()
+    val buffers = mutableListOf<ByteArray>()
+    for (i in 0 until 2) {
+      val frame = createFrame(i, 300)
+      info.size = frame.size
+      info.flags = MediaCodec.BUFFER_FLAG_KEY_FRAME
+      h264Packet.createAndSendPacket(ByteBuffer.wrap(frame), info) { frames ->
+        buffers.add(frames[0].buffer)
+        queue.offer(frames, info.presentationTimeUs)
+      }
+      queue.clear { frames ->
+        //the list is reused when the last frame is released
+        val size = frames.size
+        for (j in 0 until size) frames[j].release()
+      }
+    }
+    assertSame(buffers[0], buffers[1])
+  }
+
+  @Test
+  fun `GIVEN a 8 Mbps h264 stream WHEN packetize and release frames THEN payload buffer is reused`() {
+    //8 Mbps at 30 fps
+    val frameSize = 8_000_000 / 8 / 30
+    val count = 900
+    val frame = createFrame(0, frameSize)
+    val info = MediaCodec.BufferInfo()
+    info.size = frame.size
+    val threadMXBean = ManagementFactory.getThreadMXBean() as com.sun.management.ThreadMXBean
+    val threadId = Thread.currentThread().id
+
+    fun measure(release: Boolean): Double {
+      val h264Packet = H264Packet(fakeSps, fakePps)
+      var packets = 0L
+      var allocated = 0L
+      repeat(5) {
+        packets = 0
+        val startAllocated = threadMXBean.getThreadAllocatedBytes(threadId)
+        for (i in 0 until count) {
+          info.presentationTimeUs = i * 33_333L
+          info.flags = if (i % 30 == 0) MediaCodec.BUFFER_FLAG_KEY_FRAME else 0
+          h264Packet.createAndSendPacket(ByteBuffer.wrap(frame), info) { frames ->
+            packets += frames.size
+            if (release) frames.forEach { it.release() }
+          }
+        }
+        allocated = threadMXBean.getThreadAllocatedBytes(threadId) - startAllocated
+      }
+      return allocated.toDouble() / packets
+    }
+
+    val withoutRelease = measure(false)
+    val withRelease = measure(true)
+    //only the RtpFrame views are allocated per packet, the payload buffer is reused
+    assertTrue(withRelease < 128)
+    assertTrue(withoutRelease > withRelease * 10)
+  }
+
+  private fun createFrame(index: Int, size: Int): ByteArray {
+    val header = byteArrayOf(0x00, 0x00, 0x00, 0x01, if (index % 30 == 0) 0x05 else 0x01)
+    return header.plus(ByteArray(size) { (it + index).toByte() })
+  }
+}
@@ -16,14 +16,22 @@
 
 package com.pedro.rtsp.rtp
 
+import android.media.MediaCodec
+import com.pedro.rtsp.rtcp.BaseSenderReport
+import com.pedro.rtsp.rtp.packets.H264Packet
 import com.pedro.rtsp.rtp.sockets.BaseRtpSocket
+import com.pedro.rtsp.rtp.sockets.RtpSocketTcp
 import com.pedro.rtsp.rtp.sockets.RtpSocketUdp
+import com.pedro.rtsp.rtp.sockets.RtpSocketUdpChannel
 import com.pedro.rtsp.rtsp.Protocol
 import com.pedro.rtsp.rtsp.RtpFrame
 import com.pedro.rtsp.utils.RtpConstants
 import kotlinx.coroutines.Dispatchers
 import kotlinx.coroutines.test.runTest
 import kotlinx.coroutines.withContext
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
 import org.junit.Test
 import org.junit.runner.RunWith
 import org.mockito.Mock
@@ -31,9 +39,17 @@ import org.mockito.junit.MockitoJUnitRunner
 import org.mockito.kotlin.argumentCaptor
 import org.mockito.kotlin.times
 import org.mockito.kotlin.verify
+import java.io.ByteArrayOutputStream
+import java.io.FilterOutputStream
 import java.io.OutputStream
 import java.net.DatagramPacket
+import java.net.InetSocketAddress
 import java.net.MulticastSocket
+import java.net.ServerSocket
+import java.net.Socket
+import java.nio.ByteBuffer
+import java.nio.channels.DatagramChannel
+import kotlin.concurrent.thread
 
 /**
  * Created by pedro on 9/9/23.
@@ -77,4 +93,148 @@ class RtpSocketTest {
       verify(multicastSocketMocked, times((10))).send(resultValue.capture())
     }
   }
-}
\ No newline at end of file
+
+  @Test
+  fun `GIVEN access units WHEN send frames with tcp THEN write each access unit and report with a single write`() = runTest {
+    val frames = createAccessUnits(10)
+    val expected = ByteArrayOutputStream()
+    val expectedSocket = RtpSocketTcp()
+    expectedSocket.setDataStream(expected, "127.0.0.1")
+    frames.forEach { accessUnit -> accessUnit.forEach { expectedSocket.sendFrame(it) } }
+
+    val output = CountingOutputStream(ByteArrayOutputStream())
+    val rtpSocket = RtpSocketTcp()
+    rtpSocket.setDataStream(output, "127.0.0.1")
+    frames.forEach { rtpSocket.sendFrames(it, null) }
+    assertEquals(frames.size, output.writes)
+    assertEquals(frames.size, output.flushes)
+    assertArrayEquals(expected.toByteArray(), (output.output as ByteArrayOutputStream).toByteArray())
+
+    val reportOutput = CountingOutputStream(ByteArrayOutputStream())
+    val senderReport = BaseSenderReport.getInstance(Protocol.TCP, 0, 1)
+    val reportSocket = RtpSocketTcp()
+    reportSocket.setDataStream(reportOutput, "127.0.0.1")
+    val reports = reportSocket.sendFrames(frames[0], senderReport)
+    val bytes = (reportOutput.output as ByteArrayOutputStream).toByteArray()
+    assertEquals(1, reports)
+    assertEquals(1, reportOutput.writes)
+    //report is written after the first packet using the rtcp channel
+    val reportPosition = 4 + frames[0][0].length
+    assertEquals('$'.code.toByte(), bytes[reportPosition])
+    assertEquals(1.toByte(), bytes[reportPosition + 1])
+    assertEquals(RtpConstants.REPORT_PACKET_LENGTH.toByte(), bytes[reportPosition + 3])
+  }
+
+  @Test
+  fun `GIVEN a local rtsp server WHEN send 8 Mbps h264 with tcp THEN write once per access unit and batched is not slower`() = runTest {
+    val frames = createAccessUnits(300)
+    val packets = frames.sumOf { it.size }
+    val server = ServerSocket(0)
+    val reader = thread {
+      server.accept().use { socket ->
+        val buffer = ByteArray(64 * 1024)
+        val input = socket.getInputStream()
+        while (input.read(buffer) >= 0) continue
+      }
+    }
+    val socket = Socket("127.0.0.1", server.localPort)
+    val output = CountingOutputStream(socket.getOutputStream())
+    val rtpSocket = RtpSocketTcp()
+    rtpSocket.setDataStream(output, "127.0.0.1")
+
+    //alternate both modes and keep the best time of each one to reduce noise, first round is warm up
+    var packetNanos = Long.MAX_VALUE
+    var batchNanos = Long.MAX_VALUE
+    var packetWrites = 0
+    var batchWrites = 0
+    repeat(4) { round ->
+      output.writes = 0
+      var start = System.nanoTime()
+      frames.forEach { accessUnit -> accessUnit.forEach { rtpSocket.sendFrame(it) } }
+      if (round > 0) packetNanos = minOf(packetNanos, System.nanoTime() - start)
+      packetWrites = output.writes
+      output.writes = 0
+      start = System.nanoTime()
+      frames.forEach { rtpSocket.sendFrames(it, null) }
+      if (round > 0) batchNanos = minOf(batchNanos, System.nanoTime() - start)
+      batchWrites = output.writes
+    }
+    socket.close()
+    reader.join()
+    server.close()
+
+    assertEquals(frames.size, batchWrites)
+    assertTrue(packetWrites >= packets * 2)
+    val packetRate = packets / (packetNanos / 1_000_000_000.0)
+    val batchRate = packets / (batchNanos / 1_000_000_000.0)
+    assertTrue("per packet: %.0f packets/s, batched: %.0f packets/s".format(packetRate, batchRate), batchRate >= packetRate)
+  }
+
+  @Test
+  fun `GIVEN udp channel socket WHEN send frames THEN receive same packets in each track port with dscp mark`() = runTest {
+    val videoReceiver = DatagramChannel.open().apply { bind(InetSocketAddress("127.0.0.1", 0)) }
+    val audioReceiver = DatagramChannel.open().apply { bind(InetSocketAddress("127.0.0.1", 0)) }
+    val videoPort = videoReceiver.socket().localPort
+    val audioPort = audioReceiver.socket().localPort
+    val videoChannel = DatagramChannel.open()
+    val rtpSocket = RtpSocketUdpChannel(0, 0, 256 * 1024, 46, videoChannel)
+    rtpSocket.setDataStream(outputMocked, "127.0.0.1")
+    val videoFrames = createAccessUnits(2).flatten().map {
+      RtpFrame(it.buffer, it.timeStamp, it.length, videoPort, videoPort + 1, RtpConstants.trackVideo, it.offset)
+    }
+    val audioFrame = RtpFrame(ByteArray(100) { it.toByte() }, 0, 100, audioPort, audioPort + 1, RtpConstants.trackAudio)
+    rtpSocket.sendFrames(videoFrames, null)
+    rtpSocket.sendFrame(audioFrame)
+
+    //TOS byte is dscp shl 2
+    assertEquals(46 shl 2, videoChannel.socket().trafficClass)
+    assertTrue(videoChannel.socket().sendBufferSize >= 256 * 1024)
+    val buffer = ByteBuffer.allocate(RtpConstants.MTU)
+    videoFrames.forEach { rtpFrame ->
+      buffer.clear()
+      videoReceiver.receive(buffer)
+      buffer.flip()
+      val received = ByteArray(buffer.remaining()).also { buffer.get(it) }
+      assertArrayEquals(rtpFrame.buffer.copyOfRange(rtpFrame.offset, rtpFrame.offset + rtpFrame.length), received)
+    }
+    buffer.clear()
+    audioReceiver.receive(buffer)
+    assertEquals(100, buffer.position())
+    rtpSocket.close()
+    videoReceiver.close()
+    audioReceiver.close()
+  }
+
+  private fun createAccessUnits(count: Int): List<List<RtpFrame>> {
+    val sps = byteArrayOf(0x00, 0x00, 0x00, 0x01, 0x02, 0x03, 0x04)
+    val pps = byteArrayOf(0x00, 0x00, 0x00, 0x01, 0x0A, 0x0B, 0x0C)
+    val h264Packet = H264Packet(sps, pps)
+    val info = MediaCodec.BufferInfo()
+    //8 Mbps at 30 fps
+    val frameSize = 8_000_000 / 8 / 30
+    return List(count) { i ->
+      val frame = byteArrayOf(0x00, 0x00, 0x00, 0x01, if (i == 0) 0x05 else 0x01).plus(ByteArray(frameSize) { (it + i).toByte() })
+      info.presentationTimeUs = i * 33_333L
+      info.size = frame.size
+      info.flags = if (i == 0) MediaCodec.BUFFER_FLAG_KEY_FRAME else 0
+      val result = mutableListOf<RtpFrame>()
+      h264Packet.createAndSendPacket(ByteBuffer.wrap(frame), info) { result.addAll(it) }
+      result
+    }
+  }
+
+  private class CountingOutputStream(val output: OutputStream) : FilterOutputStream(output) {
+    var writes = 0
+    var flushes = 0
+
+    override fun write(b: ByteArray, off: Int, len: Int) {
+      writes++
+      output.write(b, off, len)
+    }
+
+    override fun flush() {
+      flushes++
+      output.flush()
+    }
+  }
+}
@@ -0,0 +1,216 @@
+/*
+ * Copyright (C) 2024 pedroSG94.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.pedro.rtsp.rtp
+
+import android.media.MediaCodec
+import com.pedro.rtsp.rtp.packets.H264Packet
+import com.pedro.rtsp.rtp.packets.UlpFecEncoder
+import com.pedro.rtsp.rtsp.RtpFrame
+import com.pedro.rtsp.utils.RtpConstants
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import java.lang.management.ManagementFactory
+import java.nio.ByteBuffer
+import java.util.Random
+
+class UlpFecEncoderTest {
+
+  private val fakeSps = byteArrayOf(0x00, 0x00, 0x00, 0x01, 0x02, 0x03, 0x04)
+  private val fakePps = byteArrayOf(0x00, 0x00, 0x00, 0x01, 0x0A, 0x0B, 0x0C)
+  private val fecPayload = RtpConstants.payloadTypeFec + RtpConstants.trackVideo
+
+  @Test
+  fun `GIVEN a keyframe with a burst loss WHEN decode fec THEN recover lost packets with columns`() {
+    val encoder = UlpFecEncoder(fecPayload).apply { setLevel(10, 1, 4, 4) }
+    val (media, fec) = encode(encoder, 1, 16_000)
+    //burst of 3 packets in the same row can't be recovered by the row
+    val received = media.filterKeys { it !in 5..7 }.toMutableMap()
+    decode(received, fec)
+    media.forEach { (sequence, packet) -> assertArrayEquals(packet, received[sequence]) }
+    //rows of 4 packets and columns of each block of 4 rows
+    media.values.forEach { assertTrue(it.size <= RtpConstants.MTU - 28 - UlpFecEncoder.FEC_HEADER_LENGTH) }
+    fec.forEach { assertTrue(it.size <= RtpConstants.MTU - 28) }
+    assertEquals(fecPayload, fec[0][1].toInt() and 0x7F)
+  }
+
+  @Test
+  fun `GIVEN random loss WHEN decode fec THEN recover most lost packets`() {
+    val encoder = UlpFecEncoder(fecPayload).apply { setLevel(10, 1, 5, 4) }
+    val (media, fec) = encode(encoder, 300, 8_000_000 / 8 / 30)
+    val random = Random(1234)
+    val received = media.filter { random.nextInt(100) >= 3 }.toMutableMap()
+    val receivedFec = fec.filter { random.nextInt(100) >= 3 }
+    val lost = media.size - received.size
+    decode(received, receivedFec)
+    val recovered = received.size - (media.size - lost)
+    received.forEach { (sequence, packet) -> assertArrayEquals(media[sequence], packet) }
+    assertTrue(lost > 0)
+    assertTrue(recovered >= lost * 0.7)
+    //rows of 10 packets and keyframes with rows of 5 and 4 columns
+    assertTrue(fec.size < media.size * 0.25)
+  }
+
+  @Test
+  fun `GIVEN a 20 Mbps stream WHEN protect packets THEN allocations and throughput are bounded`() {
+    //20 Mbps at 30 fps
+    val frameSize = 20_000_000 / 8 / 30
+    val h264Packet = H264Packet(fakeSps, fakePps)
+    val encoder = UlpFecEncoder(fecPayload).apply { setLevel(10, 2, 5, 4) }
+    val info = MediaCodec.BufferInfo()
+    val frame = byteArrayOf(0x00, 0x00, 0x00, 0x01, 0x01).plus(ByteArray(frameSize) { it.toByte() })
+    info.size = frame.size
+    val accessUnits = List(60) { i ->
+      info.presentationTimeUs = i * 33_333L
+      info.flags = if (i % 30 == 0) MediaCodec.BUFFER_FLAG_KEY_FRAME else 0
+      val result = mutableListOf<RtpFrame>()
+      h264Packet.createAndSendPacket(ByteBuffer.wrap(frame), info) { result.addAll(it) }
+      result
+    }
+    val packets = accessUnits.sumOf { it.size }
+    val threadMXBean = ManagementFactory.getThreadMXBean() as com.sun.management.ThreadMXBean
+    val threadId = Thread.currentThread().id
+    var allocated = 0L
+    var nanos = 0L
+    var fecPackets = 0
+    repeat(5) {
+      fecPackets = 0
+      val startAllocated = threadMXBean.getThreadAllocatedBytes(threadId)
+      val start = System.nanoTime()
+      accessUnits.forEachIndexed { i, accessUnit ->
+        encoder.protect(accessUnit, i % 30 == 0) { fecFrames ->
+          fecPackets += fecFrames.size
+          for (j in fecFrames.indices.reversed()) fecFrames[j].release()
+        }
+      }
+      nanos = System.nanoTime() - start
+      allocated = threadMXBean.getThreadAllocatedBytes(threadId) - startAllocated
+    }
+    val bytesPerPacket = allocated / packets
+    val packetsPerSecond = packets * 1_000_000_000L / nanos
+    assertTrue(fecPackets > 0)
+    //only the RtpFrame of each fec packet is allocated
+    assertTrue(bytesPerPacket < 64)
+    //20 Mbps is around 1800 packets/s
+    assertTrue(packetsPerSecond > 5_000)
+  }
+
+  @Test
+  fun `GIVEN packets with transport sequence written before protect WHEN decode fec THEN fec is not affected and recover packets except transport sequence`() {
+    val (_, expectedFec) = encode(UlpFecEncoder(fecPayload).apply { setLevel(10, 1, 5, 4) }, 60, 4_000) { 0 }
+    val (media, fec) = encode(UlpFecEncoder(fecPayload).apply { setLevel(10, 1, 5, 4) }, 60, 4_000) { it * 3 + 1 }
+    assertEquals(expectedFec.size, fec.size)
+    expectedFec.indices.forEach { assertArrayEquals(expectedFec[it], fec[it]) }
+    val received = media.filterKeys { it % 10 != 3 }.toMutableMap()
+    decode(received, fec)
+    assertEquals(media.size, received.size)
+    val sequence = RtpConstants.TRANSPORT_CC_SEQUENCE_OFFSET
+    media.forEach { (seq, packet) ->
+      val recovered = received.getValue(seq)
+      assertEquals(packet.size, recovered.size)
+      assertTrue(packet[0].toInt() and 0x10 != 0)
+      packet.indices.filter { it != sequence && it != sequence + 1 }.forEach { assertEquals(packet[it], recovered[it]) }
+    }
+  }
+
+  /**
+   * @param transportSequence if not null, enable transport sequence extension and write the value
+   * returned for each sequence number before protect the packets
+   * @return media packets by sequence number and fec packets
+   */
+  private fun encode(encoder: UlpFecEncoder, frames: Int, frameSize: Int,
+                     transportSequence: ((Int) -> Int)? = null): Pair<Map<Int, ByteArray>, List<ByteArray>> {
+    val h264Packet = H264Packet(fakeSps, fakePps).apply {
+      setReservedSize(UlpFecEncoder.FEC_HEADER_LENGTH)
+      if (transportSequence != null) setTransportSequence(true)
+    }
+    val info = MediaCodec.BufferInfo()
+    val media = LinkedHashMap<Int, ByteArray>()
+    val fec = mutableListOf<ByteArray>()
+    for (i in 0 until frames) {
+      val frame = byteArrayOf(0x00, 0x00, 0x00, 0x01, if (i % 30 == 0) 0x05 else 0x01)
+        .plus(ByteArray(frameSize + i % 700) { (it * 7 + i).toByte() })
+      info.presentationTimeUs = i * 33_333L
+      info.size = frame.size
+      info.flags = if (i % 30 == 0) MediaCodec.BUFFER_FLAG_KEY_FRAME else 0
+      h264Packet.createAndSendPacket(ByteBuffer.wrap(frame), info) { rtpFrames ->
+        rtpFrames.forEach {
+          val sequence = getSequence(it.buffer, it.offset)
+          transportSequence?.let { transport ->
+            val value = transport(sequence)
+            it.buffer[it.offset + RtpConstants.TRANSPORT_CC_SEQUENCE_OFFSET] = (value shr 8).toByte()
+            it.buffer[it.offset + RtpConstants.TRANSPORT_CC_SEQUENCE_OFFSET + 1] = value.toByte()
+          }
+          media[sequence] = it.buffer.copyOfRange(it.offset, it.offset + it.length)
+        }
+        encoder.protect(rtpFrames, i % 30 == 0) { fecFrames ->
+          fecFrames.forEach { fec.add(it.buffer.copyOfRange(it.offset, it.offset + it.length)) }
+        }
+      }
+    }
+    return Pair(media, fec)
+  }
+
+  /**
+   * RFC 5109 decoder, recover packets while there are fec packets with only 1 packet lost
+   */
+  private fun decode(received: MutableMap<Int, ByteArray>, fec: List<ByteArray>) {
+    val ssrc = received.values.first().copyOfRange(8, 12)
+    var recovered = true
+    while (recovered) {
+      recovered = false
+      fec.forEach { packet ->
+        val fecHeader = RtpConstants.RTP_HEADER_LENGTH
+        val baseSeq = getSequence(packet, fecHeader)
+        var mask = 0L
+        for (i in 0 until 6) mask = (mask shl 8) or (packet[fecHeader + 12 + i].toLong() and 0xFF)
+        val protected = (0 until UlpFecEncoder.MAX_BLOCK_SIZE)
+          .filter { mask and (1L shl (UlpFecEncoder.MAX_BLOCK_SIZE - 1 - it)) != 0L }
+          .map { (baseSeq + it) and 0xFFFF }
+        val missing = protected.filter { it !in received }
+        if (missing.size != 1) return@forEach
+        var header0 = packet[fecHeader].toInt()
+        var header1 = packet[fecHeader + 1].toInt()
+        var timeStamp = ByteBuffer.wrap(packet, fecHeader + 4, 4).int
+        var length = ByteBuffer.wrap(packet, fecHeader + 8, 2).short.toInt() and 0xFFFF
+        val payload = packet.copyOfRange(fecHeader + UlpFecEncoder.FEC_HEADER_LENGTH, packet.size)
+        protected.filter { it != missing[0] }.forEach { sequence ->
+          val media = received.getValue(sequence)
+          header0 = header0 xor media[0].toInt()
+          header1 = header1 xor media[1].toInt()
+          timeStamp = timeStamp xor ByteBuffer.wrap(media, 4, 4).int
+          length = length xor (media.size - RtpConstants.RTP_HEADER_LENGTH)
+          for (i in RtpConstants.RTP_HEADER_LENGTH until media.size) {
+            payload[i - RtpConstants.RTP_HEADER_LENGTH] = (payload[i - RtpConstants.RTP_HEADER_LENGTH].toInt() xor media[i].toInt()).toByte()
+          }
+        }
+        val result = ByteBuffer.allocate(RtpConstants.RTP_HEADER_LENGTH + length)
+        result.put((0x80 or (header0 and 0x3F)).toByte()).put(header1.toByte())
+        result.putShort(missing[0].toShort()).putInt(timeStamp).put(ssrc)
+        result.put(payload, 0, length)
+        received[missing[0]] = result.array()
+        recovered = true
+      }
+    }
+  }
+
+  private fun getSequence(buffer: ByteArray, offset: Int): Int {
+    return ((buffer[offset + 2].toInt() and 0xFF) shl 8) or (buffer[offset + 3].toInt() and 0xFF)
+  }
+}
@@ -0,0 +1,198 @@
+/*
+ * Copyright (C) 2024 pedroSG94.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.pedro.rtsp.rtsp
+
+import android.media.MediaCodec
+import com.pedro.common.ConnectChecker
+import com.pedro.rtsp.rtsp.commands.CommandsManager
+import com.pedro.rtsp.utils.RtpConstants
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.ExperimentalCoroutinesApi
+import kotlinx.coroutines.runBlocking
+import kotlinx.coroutines.test.UnconfinedTestDispatcher
+import kotlinx.coroutines.test.resetMain
+import kotlinx.coroutines.test.setMain
+import org.junit.After
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNotEquals
+import org.junit.Assert.assertNull
+import org.junit.Assert.assertTrue
+import org.junit.Before
+import org.junit.Test
+import org.mockito.kotlin.mock
+import java.io.ByteArrayOutputStream
+import java.net.DatagramPacket
+import java.net.DatagramSocket
+import java.net.InetAddress
+import java.net.SocketTimeoutException
+import java.nio.ByteBuffer
+import java.util.Random
+import kotlin.concurrent.thread
+
+@OptIn(ExperimentalCoroutinesApi::class)
+class RetransmissionTest {
+
+  @Before
+  fun setUp() {
+    Dispatchers.setMain(UnconfinedTestDispatcher())
+  }
+
+  @After
+  fun tearDown() {
+    Dispatchers.resetMain()
+  }
+
+  @Test
+  fun `GIVEN packets in history WHEN obtain them THEN return only packets not expired and create rtx packets`() {
+    val history = RetransmissionHistory(historyMs = 100_000)
+    history.setRtxSSRC(0x0A0B0C0DL)
+    val frames = (0 until 10).map { createPacket(65530 + it) }
+    frames.forEach { history.add(it) }
+
+    assertEquals(10, history.getSize())
+    assertEquals(frames[7], history.obtain((65530 + 7) and 0xFFFF))
+    assertNull(history.obtain(100))
+
+    val rtxFrame = history.createRtxFrame(frames[2], RtpConstants.payloadTypeRtx)
+    val buffer = rtxFrame.buffer
+    assertEquals(frames[2].length + 2, rtxFrame.length)
+    //marker bit is kept
+    assertEquals(0x80 or RtpConstants.payloadTypeRtx, buffer[1].toInt() and 0xFF)
+    assertEquals(1, ((buffer[2].toInt() and 0xFF) shl 8) or (buffer[3].toInt() and 0xFF))
+    assertEquals(0x0A0B0C0D, ByteBuffer.wrap(buffer, 8, 4).int)
+    //original sequence number before the payload
+    assertEquals(65532, ((buffer[12].toInt() and 0xFF) shl 8) or (buffer[13].toInt() and 0xFF))
+    assertArrayEquals(frames[2].buffer.copyOfRange(12, frames[2].length), buffer.copyOfRange(14, rtxFrame.length))
+
+    history.historyMs = 0
+    Thread.sleep(5)
+    assertNull(history.obtain(65530))
+    history.clear()
+    assertEquals(0, history.getSize())
+  }
+
+  @Test
+  fun `GIVEN a packet in history WHEN modify a copy THEN packet in history is not modified`() {
+    val history = RetransmissionHistory(historyMs = 100_000)
+    val frame = createPacket(10)
+    history.add(frame)
+    val copy = history.createCopy(frame)
+    assertEquals(frame, copy)
+    copy.buffer[RtpConstants.TRANSPORT_CC_SEQUENCE_OFFSET] = 0x7F
+    assertNotEquals(frame, copy)
+    assertEquals(frame, history.obtain(10))
+    assertEquals(RtpConstants.TRANSPORT_CC_SEQUENCE_OFFSET.toByte(), frame.buffer[RtpConstants.TRANSPORT_CC_SEQUENCE_OFFSET])
+  }
+
+  @Test
+  fun `GIVEN a lossy udp relay WHEN server send nack THEN sender resend lost packets`() {
+    val (videoRtp, videoRtcp, audioRtp, audioRtcp) = List(4) { DatagramSocket(0).use { it.localPort } }
+    val relay = DatagramSocket(0, InetAddress.getLoopbackAddress()).apply { soTimeout = 500 }
+    val commandsManager = CommandsManager().apply { protocol = Protocol.UDP }
+    val connectChecker = mock<ConnectChecker>()
+    val rtspSender = RtspSender(connectChecker, commandsManager)
+    rtspSender.setLogs(false)
+    rtspSender.setRetransmission(true, 1000, false)
+    rtspSender.setSocketsInfo(Protocol.UDP, intArrayOf(videoRtp, videoRtcp), intArrayOf(audioRtp, audioRtcp))
+    rtspSender.setVideoInfo(fakeSps, fakePps, null)
+    rtspSender.setDataStream(ByteArrayOutputStream(), "127.0.0.1")
+    rtspSender.setVideoPorts(relay.localPort, relay.localPort + 1)
+    rtspSender.start()
+
+    //drop 5% of packets received, including retransmissions
+    val random = Random(1234)
+    val received = mutableSetOf<Int>()
+    val dropped = mutableSetOf<Int>()
+    var running = true
+    val relayThread = thread {
+      val packet = DatagramPacket(ByteArray(RtpConstants.MTU), RtpConstants.MTU)
+      var highest = -1
+      while (running) {
+        try {
+          packet.length = RtpConstants.MTU
+          relay.receive(packet)
+        } catch (e: SocketTimeoutException) {
+          continue
+        }
+        val data = packet.data
+        val sequence = ((data[2].toInt() and 0xFF) shl 8) or (data[3].toInt() and 0xFF)
+        if (random.nextInt(100) < 5) {
+          if (sequence !in received) dropped.add(sequence)
+          continue
+        }
+        received.add(sequence)
+        if (highest >= 0 && sequence > highest + 1) {
+          val ssrc = ByteBuffer.wrap(data, 8, 4).int
+          val nack = createNack(ssrc, (highest + 1 until sequence).toList())
+          relay.send(DatagramPacket(nack, nack.size, InetAddress.getLoopbackAddress(), videoRtcp))
+        }
+        if (sequence > highest) highest = sequence
+      }
+    }
+
+    val info = MediaCodec.BufferInfo()
+    for (i in 0 until 150) {
+      val frame = byteArrayOf(0x00, 0x00, 0x00, 0x01, if (i % 30 == 0) 0x05 else 0x01)
+        .plus(ByteArray(10_000) { (it + i).toByte() })
+      info.presentationTimeUs = i * 33_333L
+      info.size = frame.size
+      info.flags = if (i % 30 == 0) MediaCodec.BUFFER_FLAG_KEY_FRAME else 0
+      rtspSender.sendVideoFrame(ByteBuffer.wrap(frame), info)
+      Thread.sleep(10)
+    }
+    Thread.sleep(500)
+    running = false
+    relayThread.join()
+    val retransmitted = rtspSender.retransmittedPackets
+    runBlocking { rtspSender.stop() }
+    relay.close()
+
+    val recovered = dropped.count { it in received }
+    assertTrue(dropped.isNotEmpty())
+    assertTrue(retransmitted >= recovered)
+    //a retransmission can be dropped again
+    assertTrue(recovered >= dropped.size * 0.8)
+  }
+
+  private val fakeSps = byteArrayOf(0x00, 0x00, 0x00, 0x01, 0x02, 0x03, 0x04)
+  private val fakePps = byteArrayOf(0x00, 0x00, 0x00, 0x01, 0x0A, 0x0B, 0x0C)
+
+  private fun createPacket(sequence: Int): RtpFrame {
+    val buffer = ByteArray(100) { it.toByte() }
+    buffer[0] = 0x80.toByte()
+    buffer[1] = (0x80 or RtpConstants.payloadType).toByte()
+    buffer[2] = (sequence shr 8).toByte()
+    buffer[3] = sequence.toByte()
+    return RtpFrame(buffer, 0, buffer.size, 0, 0, RtpConstants.trackVideo)
+  }
+
+  /**
+   * Generic NACK (RFC 4585) with an entry per lost packet
+   */
+  private fun createNack(ssrc: Int, lost: List<Int>): ByteArray {
+    val buffer = ByteBuffer.allocate(12 + lost.size * 4)
+    buffer.put((0x80 or 1).toByte())
+    buffer.put(205.toByte())
+    buffer.putShort((2 + lost.size).toShort())
+    buffer.putInt(1)
+    buffer.putInt(ssrc)
+    lost.forEach { buffer.putShort(it.toShort()); buffer.putShort(0) }
+    return buffer.array()
+  }
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright (C) 2024 pedroSG94.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.pedro.rtsp.rtsp
+
+import android.media.MediaCodec
+import com.pedro.common.ConnectChecker
+import com.pedro.rtsp.rtsp.commands.CommandsManager
+import com.pedro.rtsp.utils.RtpConstants
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.ExperimentalCoroutinesApi
+import kotlinx.coroutines.runBlocking
+import kotlinx.coroutines.test.UnconfinedTestDispatcher
+import kotlinx.coroutines.test.resetMain
+import kotlinx.coroutines.test.setMain
+import org.junit.After
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Before
+import org.junit.Test
+import org.mockito.kotlin.mock
+import java.io.OutputStream
+import java.nio.ByteBuffer
+
+@OptIn(ExperimentalCoroutinesApi::class)
+class RtpPacerTest {
+
+  @Before
+  fun setUp() {
+    Dispatchers.setMain(UnconfinedTestDispatcher())
+  }
+
+  @After
+  fun tearDown() {
+    Dispatchers.resetMain()
+  }
+
+  @Test
+  fun `GIVEN a keyframe burst WHEN pace it THEN spread packets at the pacing rate`() {
+    val pacer = RtpPacer()
+    //1 MB/s
+    pacer.setBitrate(4_000_000, 2f)
+    val packets = createPackets(200, 1200)
+    var now = 1_000_000_000L
+    val start = now
+    pacer.add(packets, now)
+    val sendTimes = mutableListOf<Long>()
+    val output = mutableListOf<RtpFrame>()
+    while (!pacer.isEmpty()) {
+      now += pacer.getWaitNanos(now)
+      pacer.poll(now, output)
+      while (sendTimes.size < output.size) sendTimes.add(now - start)
+    }
+    assertEquals(packets, output)
+    //5 ms burst allowed at start
+    assertEquals(4, sendTimes.count { it == 0L })
+    val durationMs = sendTimes.last() / 1_000_000
+    assertTrue(durationMs in 230..240)
+    val peak = (0 until durationMs.toInt()).maxOf { ms ->
+      sendTimes.count { it >= ms * 1_000_000L && it < (ms + 5) * 1_000_000L } * 1200
+    }
+    //initial burst plus 5 ms at pacing rate
+    assertTrue(peak <= 5000 + 5000 + 1200)
+    assertEquals(durationMs, pacer.delay)
+  }
+
+  @Test
+  fun `GIVEN a low pacing rate WHEN packets wait too much THEN send them without pacing`() {
+    val pacer = RtpPacer()
+    pacer.setBitrate(100_000, 1f)
+    pacer.add(createPackets(200, 1200), 0)
+    val output = mutableListOf<RtpFrame>()
+    pacer.poll(499_000_000L, output)
+    assertTrue(output.size < 200)
+    pacer.poll(500_000_000L, output)
+    assertEquals(200, output.size)
+    assertEquals(500, pacer.delay)
+
+    pacer.setBitrate(0, 1f)
+    pacer.add(createPackets(200, 1200), 0)
+    output.clear()
+    pacer.poll(0, output)
+    assertEquals(200, output.size)
+  }
+
+  @Test
+  fun `GIVEN pacing enabled WHEN send a keyframe and audio THEN audio is not delayed by video`() {
+    val writes = mutableListOf<Int>()
+    val output = object : OutputStream() {
+      override fun write(b: Int) {}
+      override fun write(b: ByteArray, off: Int, len: Int) {
+        synchronized(writes) {
+          //first channel of the batch
+          writes.add(b[off + 1].toInt())
+        }
+      }
+    }
+    val rtspSender = RtspSender(mock<ConnectChecker>(), CommandsManager())
+    rtspSender.setLogs(false)
+    rtspSender.setPacing(true, 1_000_000, 2f)
+    rtspSender.setSocketsInfo(Protocol.TCP, intArrayOf(0, 1), intArrayOf(2, 3))
+    rtspSender.setVideoInfo(fakeSps, fakePps, null)
+    rtspSender.setAudioInfo(44100)
+    rtspSender.setDataStream(output, "127.0.0.1")
+    rtspSender.start()
+    //50 KB keyframe need 160 ms at 250 KB/s
+    val keyframe = byteArrayOf(0x00, 0x00, 0x00, 0x01, 0x05).plus(ByteArray(50_000) { it.toByte() })
+    val videoInfo = MediaCodec.BufferInfo().apply { size = keyframe.size; flags = MediaCodec.BUFFER_FLAG_KEY_FRAME }
+    rtspSender.sendVideoFrame(ByteBuffer.wrap(keyframe), videoInfo)
+    Thread.sleep(20)
+    val audio = ByteArray(300) { it.toByte() }
+    val audioInfo = MediaCodec.BufferInfo().apply { size = audio.size; presentationTimeUs = 20_000 }
+    rtspSender.sendAudioFrame(ByteBuffer.wrap(audio), audioInfo)
+    Thread.sleep(300)
+    runBlocking { rtspSender.stop() }
+
+    val audioChannel = 2 * RtpConstants.trackAudio
+    val result = synchronized(writes) { writes.toList() }
+    val audioPosition = result.indexOf(audioChannel)
+    //audio is written while video packets are paced
+    assertTrue(audioPosition in 1 until result.lastIndex)
+    assertTrue(result.size > 10)
+    assertTrue(rtspSender.getPacingDelay() >= 0)
+  }
+
+  private val fakeSps = byteArrayOf(0x00, 0x00, 0x00, 0x01, 0x02, 0x03, 0x04)
+  private val fakePps = byteArrayOf(0x00, 0x00, 0x00, 0x01, 0x0A, 0x0B, 0x0C)
+
+  private fun createPackets(count: Int, size: Int): List<RtpFrame> {
+    return List(count) { RtpFrame(ByteArray(size), 0, size, 0, 0, RtpConstants.trackVideo) }
+  }
+}
@@ -18,6 +18,7 @@ package com.pedro.rtsp.rtsp
 
 import com.pedro.rtsp.rtsp.commands.SdpBody
 import com.pedro.rtsp.utils.RtpConstants
+import org.junit.Assert.assertFalse
 import org.junit.Assert.assertTrue
 import org.junit.Test
 
@@ -124,4 +125,45 @@ class SdpBodyTest {
     assertTrue(result.contains(expectedPayload))
     assertTrue(result.contains(expectedTrack))
   }
-}
\ No newline at end of file
+
+  @Test
+  fun `GIVEN a media body WHEN add retransmission THEN advertise nack and rtx payload`() {
+    val track = 0
+    val payload = RtpConstants.payloadType + track
+    val rtxPayload = RtpConstants.payloadTypeRtx + track
+    val body = SdpBody.createH264Body(track, "sps", "pps")
+
+    val result = SdpBody.addRetransmission(body, payload, RtpConstants.clockVideoFrequency, rtxPayload)
+    assertTrue(result.startsWith("m=video 0 RTP/AVP $payload $rtxPayload\r\n"))
+    assertTrue(result.contains("a=rtcp-fb:$payload nack\r\n"))
+    assertTrue(result.contains("a=rtpmap:$rtxPayload rtx/${RtpConstants.clockVideoFrequency}\r\n"))
+    assertTrue(result.contains("a=fmtp:$rtxPayload apt=$payload\r\n"))
+
+    val nackOnly = SdpBody.addRetransmission(body, payload, RtpConstants.clockVideoFrequency)
+    assertTrue(nackOnly.startsWith("m=video 0 RTP/AVP $payload\r\n"))
+    assertTrue(nackOnly.contains("a=rtcp-fb:$payload nack\r\n"))
+    assertFalse(nackOnly.contains("rtx"))
+  }
+
+  @Test
+  fun `GIVEN a media body WHEN add fec THEN advertise ulpfec payload`() {
+    val payload = RtpConstants.payloadType
+    val fecPayload = RtpConstants.payloadTypeFec
+    val body = SdpBody.createH264Body(0, "sps", "pps")
+
+    val result = SdpBody.addFec(body, fecPayload, RtpConstants.clockVideoFrequency)
+    assertTrue(result.startsWith("m=video 0 RTP/AVP $payload $fecPayload\r\n"))
+    assertTrue(result.contains("a=rtpmap:$fecPayload ulpfec/${RtpConstants.clockVideoFrequency}\r\n"))
+  }
+
+  @Test
+  fun `GIVEN a media body WHEN add transport cc THEN advertise extension and feedback`() {
+    val payload = RtpConstants.payloadType
+    val body = SdpBody.createH264Body(0, "sps", "pps")
+
+    val result = SdpBody.addTransportCc(body, payload, RtpConstants.transportCcExtensionId)
+    assertTrue(result.startsWith(body))
+    assertTrue(result.contains("a=rtcp-fb:$payload transport-cc\r\n"))
+    assertTrue(result.contains("a=extmap:${RtpConstants.transportCcExtensionId} http://www.ietf.org/id/draft-holmer-rmcat-transport-wide-cc-extensions-01\r\n"))
+  }
+}
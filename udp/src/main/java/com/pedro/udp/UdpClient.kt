@@ -281,6 +281,22 @@ class UdpClient(private val connectChecker: ConnectChecker) {
 
   fun getItemsInCache(): Int = udpSender.getItemsInCache()
 
+  /**
+   * Limit the cache by media duration instead of only by size.
+   * @param durationMs max media duration in the cache. 0 to limit the cache only by size
+   */
+  @Throws(IllegalArgumentException::class)
+  fun setMaxCacheDuration(durationMs: Long) {
+    udpSender.setMaxCacheDuration(durationMs)
+  }
+
+  fun getMaxCacheDuration(): Long = udpSender.getMaxCacheDuration()
+
+  /**
+   * @return media duration in the cache in milliseconds
+   */
+  fun getCacheDelay(): Long = udpSender.getCacheDelay()
+
   /**
    * @param factor values from 0.1f to 1f
    * Set an exponential factor to the bitrate calculation to avoid bitrate spikes
@@ -20,9 +20,9 @@ import android.media.MediaCodec
 import android.util.Log
 import com.pedro.common.AudioCodec
 import com.pedro.common.BitrateManager
+import com.pedro.common.TimedBlockingQueue
 import com.pedro.common.ConnectChecker
 import com.pedro.common.onMainThread
-import com.pedro.common.trySend
 import com.pedro.srt.mpeg2ts.MpegTsPacket
 import com.pedro.srt.mpeg2ts.MpegTsPacketizer
 import com.pedro.srt.mpeg2ts.Pid
@@ -45,8 +45,6 @@ import kotlinx.coroutines.isActive
 import kotlinx.coroutines.launch
 import kotlinx.coroutines.runInterruptible
 import java.nio.ByteBuffer
-import java.util.concurrent.BlockingQueue
-import java.util.concurrent.LinkedBlockingQueue
 import java.util.concurrent.TimeUnit
 
 /**
@@ -74,8 +72,7 @@ class UdpSender(
 
   private var job: Job? = null
   private val scope = CoroutineScope(Dispatchers.IO)
-  @Volatile
-  private var queue: BlockingQueue<List<MpegTsPacket>> = LinkedBlockingQueue(cacheSize)
+  private val queue = TimedBlockingQueue<List<MpegTsPacket>>(cacheSize)
   private var audioFramesSent: Long = 0
   private var videoFramesSent: Long = 0
   var socket: UdpSocket? = null
@@ -123,7 +120,7 @@ class UdpSender(
   fun sendVideoFrame(h264Buffer: ByteBuffer, info: MediaCodec.BufferInfo) {
     if (running) {
       h26XPacket.createAndSendPacket(h264Buffer, info) { mpegTsPackets ->
-        val result = queue.trySend(mpegTsPackets)
+        val result = queue.offer(mpegTsPackets, info.presentationTimeUs)
         if (!result) {
           Log.i(TAG, "Video frame discarded")
           droppedVideoFrames++
@@ -135,7 +132,7 @@ class UdpSender(
   fun sendAudioFrame(aacBuffer: ByteBuffer, info: MediaCodec.BufferInfo) {
     if (running) {
       audioPacket.createAndSendPacket(aacBuffer, info) { mpegTsPackets ->
-        val result = queue.trySend(mpegTsPackets)
+        val result = queue.offer(mpegTsPackets, info.presentationTimeUs)
         if (!result) {
           Log.i(TAG, "Audio frame discarded")
           droppedAudioFrames++
@@ -163,7 +160,7 @@ class UdpSender(
         val error = runCatching {
           val mpegTsPackets = runInterruptible {
             queue.poll(1, TimeUnit.SECONDS)
-          }
+          } ?: return@runCatching
           val isKey = mpegTsPackets[0].isKey
           val psiPackets = psiManager.checkSendInfo(isKey, mpegTsPacketizer)
           bytesSend += sendPackets(psiPackets)
@@ -212,19 +209,11 @@ class UdpSender(
   @Throws(IllegalArgumentException::class)
   fun hasCongestion(percentUsed: Float = 20f): Boolean {
     if (percentUsed < 0 || percentUsed > 100) throw IllegalArgumentException("the value must be in range 0 to 100")
-    val size = queue.size.toFloat()
-    val remaining = queue.remainingCapacity().toFloat()
-    val capacity = size + remaining
-    return size >= capacity * (percentUsed / 100f)
+    return queue.getUsage() >= percentUsed
   }
 
   fun resizeCache(newSize: Int) {
-    if (newSize < queue.size - queue.remainingCapacity()) {
-      throw RuntimeException("Can't fit current cache inside new cache size")
-    }
-    val tempQueue: BlockingQueue<List<MpegTsPacket>> = LinkedBlockingQueue(newSize)
-    queue.drainTo(tempQueue)
-    queue = tempQueue
+    queue.resize(newSize)
   }
 
   fun getCacheSize(): Int {
@@ -233,6 +222,21 @@ class UdpSender(
 
   fun getItemsInCache(): Int = queue.size
 
+  /**
+   * @param durationMs max media duration in the cache. 0 to limit the cache only by size
+   */
+  @Throws(IllegalArgumentException::class)
+  fun setMaxCacheDuration(durationMs: Long) {
+    queue.maxDurationMs = durationMs
+  }
+
+  fun getMaxCacheDuration(): Long = queue.maxDurationMs
+
+  /**
+   * @return media duration in the cache in milliseconds
+   */
+  fun getCacheDelay(): Long = queue.getDelayMs()
+
   fun clearCache() {
     queue.clear()
   }